@@ -14,16 +14,19 @@ import com.chillenious.common.db.sync.DataRefreshListener;
 import com.chillenious.common.db.sync.DataRefresher;
 import com.chillenious.common.db.sync.PersistentObject;
 import com.chillenious.common.db.sync.PersistentObjectLookup;
+import com.chillenious.common.db.sync.RefreshDaemon;
+import com.chillenious.common.db.sync.RefreshExecutors;
 import com.chillenious.common.db.sync.RefreshResults;
+import com.chillenious.common.db.sync.RefreshSchedule;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Uses a refresher to build up search indexes in ElasticSearch and provides a
@@ -38,8 +41,7 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
 
     private final ObjectMapper mapper = new ObjectMapper(new JsonFactory());
 
-    protected final ScheduledExecutorService scheduler =
-            Executors.newScheduledThreadPool(1);
+    protected final ScheduledExecutorService scheduler = RefreshExecutors.scheduler(); // shared; don't shut down
 
     protected final DataRefresher<O> refresher;
 
@@ -51,6 +53,10 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
 
     protected final Searcher<O> searcher;
 
+    private final RefreshDaemon refreshDaemon;
+
+    private boolean loaded = false;
+
     /**
      * Listens in on refreshes and updates the index
      */
@@ -71,25 +77,20 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
         }
     }
 
-    final class Refresher implements Runnable {
+    final class Refresher implements Supplier<RefreshResults> {
         @Override
-        public void run() {
+        public RefreshResults get() {
+            log.debug(String.format("do refresh run for %s", typeName));
             try {
-                log.debug(String.format("do refresh run for %s", typeName));
-                try {
-                    RefreshResults results = refresher.refresh();
-                    if (results.getNumberRecordsFound() > 0) {
-                        log.info(String.format("indexes %s updated refreshed: %s", typeName, results));
-                    }
-                } catch (Exception e) {
-                    log.error(String.format("problem with index update for %s: %s",
-                            typeName, e.getMessage()), e);
+                RefreshResults results = refresher.refresh();
+                if (results.getNumberRecordsFound() > 0) {
+                    log.info(String.format("indexes %s updated refreshed: %s", typeName, results));
                 }
-                log.debug(String.format("exiting refresh daemon %s", this));
+                return results;
             } catch (Exception e) {
-                log.error(String.format(
-                        "problem with refresh run: %s; exiting",
-                        e.getMessage()), e);
+                log.error(String.format("problem with index update for %s: %s",
+                        typeName, e.getMessage()), e);
+                return null;
             }
         }
     }
@@ -156,6 +157,7 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
         this.indexName = addressing.getIndexName();
         this.typeName = addressing.getTypeName();
         this.searcher = new Searcher<>(type, mapper, indexName, typeName, searchClient, lookup);
+        this.refreshDaemon = new RefreshDaemon(typeName, scheduler, new Refresher());
         initRefresher(refreshInterval, startWithRefresh);
     }
 
@@ -166,9 +168,7 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
             Duration refreshInterval,
             boolean startWithRefresh) {
         refresher.addListener(new RefreshListener()); // the listener will update the cache
-        Duration refreshDaemonDelay;
         if (startWithRefresh) {
-            refreshDaemonDelay = refreshInterval;
             log.info(String.format("start refresh for %s", typeName));
             RefreshResults results = refresher.refresh(); // load initial data
             syncAndRefresh(Duration.seconds(4));
@@ -176,19 +176,26 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
             log.info(String.format("initialized %s with %,d objects, in %,d milliseconds",
                     typeName, (results.getNumberCreated() + results.getNumberChanged()),
                     results.getMillisecondsItTook()));
-        } else {
-            refreshDaemonDelay = Duration.milliseconds(0);
+            loaded = true;
         }
         if (refreshInterval != null) {
-            scheduler.scheduleAtFixedRate(
-                    new Refresher(),
-                    refreshDaemonDelay.getMilliseconds(),
-                    refreshInterval.getMilliseconds(),
-                    TimeUnit.MILLISECONDS);
+            setRefreshSchedule(RefreshSchedule.every(refreshInterval));
         }
         log.info(String.format("cache %s ready", typeName));
     }
 
+    /**
+     * Set the schedule for updating the index, e.g. to an
+     * {@link RefreshSchedule#adaptive(Duration, Duration) adaptive} one. If no update is
+     * scheduled yet, the first one is scheduled according to the new schedule (right away if the
+     * initial load didn't happen yet); otherwise the new schedule applies from the next update on.
+     *
+     * @param schedule schedule, or null to stop updating
+     */
+    public void setRefreshSchedule(@Nullable RefreshSchedule schedule) {
+        refreshDaemon.setSchedule(schedule, loaded ? -1 : 0);
+    }
+
     /**
      * @return search context that can be used for this indexer
      */
@@ -215,6 +222,6 @@ public class SearchIndexer<O extends PersistentObject> implements WithShutdown {
 
     @Override
     public void shutdown() {
-        scheduler.shutdownNow();
+        refreshDaemon.shutdown();
     }
 }
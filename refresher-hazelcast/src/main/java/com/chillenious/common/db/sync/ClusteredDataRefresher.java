@@ -0,0 +1,256 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.util.Duration;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.Message;
+import com.hazelcast.core.MessageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Refresher that coordinates the refreshes of another refresher over a Hazelcast cluster (e.g.
+ * the {@link HazelcastInstance} of {@link com.chillenious.common.hazelcast.HazelcastModule}), so
+ * that only one node of the cluster - the leader - queries the data store, however many nodes
+ * there are. The leader is the oldest member of the cluster; when it leaves, the next oldest
+ * member takes over.
+ * <p/>
+ * The leader publishes the events of the refreshes it runs on a distributed topic, and every
+ * node (including the leader itself) publishes the events it receives from that topic to it's
+ * own listeners, such as caches. {@link #refresh() Refreshes} on the other nodes do nothing.
+ * <p/>
+ * As the topic doesn't keep history, a node that joins has to build up it's state by itself:
+ * the first {@link #load() load} or refresh of every node runs the wrapped refresher locally,
+ * and the events it receives from the topic in the meantime are published once that is done.
+ * Objects that change while a node catches up might therefore be stale on that node until
+ * they change again. A node that becomes the leader continues from the state it's refresher
+ * had when it caught up, which, for refreshers that track changes (like a
+ * {@link WatermarkDataRefresher}), means that it's first refresh as the leader picks up
+ * everything that changed since then.
+ * <p/>
+ * Events and the objects they carry are sent over the network, so they must be serializable.
+ *
+ * @param <O> persistent object type
+ */
+public class ClusteredDataRefresher<O extends PersistentObject> extends DataRefresher<O> {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusteredDataRefresher.class);
+
+    /**
+     * Passes the events of the wrapped refresher on to the topic, or, while catching up, to the
+     * listeners of this refresher directly.
+     */
+    private final class Forwarder extends DataRefreshListener<O> {
+
+        @Override
+        protected void onEvent(DataRefreshEvent<O> evt) {
+            forward(evt);
+        }
+
+        @Override
+        protected void onBatch(DataBatchEvent<O> batch) {
+            forward(batch);
+        }
+
+        private void forward(DataRefreshEvent<O> evt) {
+            if (catchingUp) {
+                publish(evt);
+            } else {
+                clusterTopic.publish(evt);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Forwarder{" + name + '}';
+        }
+    }
+
+    private final String name;
+
+    private final HazelcastInstance hazelcast;
+
+    private final DataRefresher<O> delegate;
+
+    private final ITopic<DataRefreshEvent<O>> clusterTopic;
+
+    private final Forwarder forwarder = new Forwarder();
+
+    private final String registrationId;
+
+    private final Object lock = new Object();
+
+    private List<DataRefreshEvent<O>> pending = new ArrayList<>(); // received while catching up; null when done
+
+    private volatile boolean catchingUp = false;
+
+    private volatile boolean leader = false;
+
+    /**
+     * Construct.
+     *
+     * @param shutdownHooks shutdown hook registry
+     * @param hazelcast     Hazelcast instance to coordinate with
+     * @param name          name of the distributed topic; should be unique for the data that
+     *                      is refreshed, and the same on every node
+     * @param delegate      refresher that does the actual refreshing
+     */
+    public ClusteredDataRefresher(ShutdownHooks shutdownHooks, HazelcastInstance hazelcast,
+                                  String name, DataRefresher<O> delegate) {
+        super(shutdownHooks);
+        if (hazelcast == null) {
+            throw new NullPointerException();
+        }
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        if (delegate == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+        this.hazelcast = hazelcast;
+        this.delegate = delegate;
+        this.clusterTopic = hazelcast.getTopic(name);
+        this.registrationId = clusterTopic.addMessageListener(new MessageListener<DataRefreshEvent<O>>() {
+            @Override
+            public void onMessage(Message<DataRefreshEvent<O>> message) {
+                receive(message.getMessageObject());
+            }
+        });
+        delegate.addListener(forwarder);
+    }
+
+    /*
+     * Handle an event from the topic.
+     */
+    private void receive(DataRefreshEvent<O> evt) {
+        synchronized (lock) {
+            if (pending != null) {
+                pending.add(evt);
+                return;
+            }
+        }
+        publish(evt);
+    }
+
+    /**
+     * @return whether this node is the leader, i.e. the oldest member of the cluster
+     */
+    public boolean isLeader() {
+        Iterator<Member> members = hazelcast.getCluster().getMembers().iterator();
+        boolean isLeader = members.hasNext() && members.next().localMember();
+        if (isLeader != leader) {
+            leader = isLeader;
+            log.info(String.format("%s %s the leader", this, isLeader ? "became" : "is no longer"));
+        }
+        return isLeader;
+    }
+
+    /**
+     * @return maximum time to wait for the events of catching up to be published; 10 minutes
+     * by default
+     */
+    protected Duration getCatchUpTimeout() {
+        return Duration.minutes(10);
+    }
+
+    /**
+     * Catches up if this node didn't do so yet, and otherwise, if this node is the leader,
+     * refreshes with the wrapped refresher and publishes the events to the cluster.
+     *
+     * @return summary of the refresh run; nothing when this node is not the leader
+     */
+    @Override
+    public RefreshResults refresh() {
+        if (isCatchUpNeeded()) {
+            return catchUp(delegate::refresh);
+        }
+        return isLeader() ? delegate.refresh() : NoopRefresher.NOTHING_REALLY;
+    }
+
+    /**
+     * Catches up with a load of the wrapped refresher if this node didn't do so yet, and otherwise
+     * does the same as {@link #refresh()}.
+     *
+     * @return summary of the load
+     */
+    @Override
+    public RefreshResults load() {
+        return isCatchUpNeeded() ? catchUp(delegate::load) : refresh();
+    }
+
+    private boolean isCatchUpNeeded() {
+        synchronized (lock) {
+            return pending != null;
+        }
+    }
+
+    /*
+     * Run the wrapped refresher locally, and then publish what was received from the topic meanwhile.
+     */
+    private synchronized RefreshResults catchUp(Supplier<RefreshResults> run) {
+        if (!isCatchUpNeeded()) {
+            return NoopRefresher.NOTHING_REALLY;
+        }
+        log.info(String.format("%s catching up", this));
+        catchingUp = true;
+        RefreshResults results;
+        try {
+            results = run.get();
+            delegate.waitForListeners(getCatchUpTimeout());
+        } finally {
+            catchingUp = false;
+        }
+        while (true) {
+            List<DataRefreshEvent<O>> events;
+            synchronized (lock) {
+                events = pending;
+                if (events.isEmpty()) {
+                    pending = null; // from here on, events from the topic are published right away
+                    break;
+                }
+                pending = new ArrayList<>();
+            }
+            for (DataRefreshEvent<O> evt : events) {
+                publish(evt);
+            }
+        }
+        log.info(String.format("%s caught up: %s", this, results));
+        return results;
+    }
+
+    @Nullable
+    @Override
+    protected Serializable getCheckpoint() {
+        return delegate.getCheckpoint();
+    }
+
+    @Override
+    protected void restoreCheckpoint(Serializable checkpoint) {
+        delegate.restoreCheckpoint(checkpoint);
+    }
+
+    @Override
+    public void shutdown() {
+        clusterTopic.removeMessageListener(registrationId);
+        delegate.removeListener(forwarder);
+        super.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "ClusteredDataRefresher{" +
+                "name='" + name + '\'' +
+                ", delegate=" + delegate +
+                '}';
+    }
+}
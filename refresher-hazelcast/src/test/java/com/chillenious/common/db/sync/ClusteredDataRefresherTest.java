@@ -0,0 +1,124 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.util.Duration;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClusteredDataRefresherTest {
+
+    /*
+     * Refresher that publishes the objects of a shared 'database' it didn't publish before.
+     */
+    static class BamRefresher extends DataRefresher<Bam> {
+
+        final Map<Long, Bam> database;
+
+        final Set<Object> publishedIds = new HashSet<>();
+
+        final AtomicInteger refreshes = new AtomicInteger();
+
+        BamRefresher(ShutdownHooks shutdownHooks, Map<Long, Bam> database) {
+            super(shutdownHooks);
+            this.database = database;
+        }
+
+        @Override
+        public synchronized RefreshResults refresh() {
+            refreshes.incrementAndGet();
+            RefreshResults.Counter counter = RefreshResults.newCounter();
+            List<DataRefreshEvent<Bam>> events = new ArrayList<>();
+            for (Bam bam : database.values()) {
+                if (publishedIds.add(bam.getId())) {
+                    DataCreatedEvent<Bam> evt = new DataCreatedEvent<>(bam);
+                    counter.inc(evt);
+                    events.add(evt);
+                }
+            }
+            publish(events);
+            return counter.asResults();
+        }
+    }
+
+    private ShutdownHooks shutdownHooks;
+
+    private HazelcastInstance first, second;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        shutdownHooks = new ShutdownHooks();
+        first = Hazelcast.newHazelcastInstance(config());
+        second = Hazelcast.newHazelcastInstance(config());
+        for (int i = 0; i < 300 && first.getCluster().getMembers().size() < 2; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(2, second.getCluster().getMembers().size());
+    }
+
+    @After
+    public void tearDown() {
+        shutdownHooks.runShutdownHooks();
+        Hazelcast.shutdownAll();
+    }
+
+    private static Config config() {
+        Config config = new Config();
+        config.setProperty("hazelcast.logging.type", "slf4j");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+
+    @Test
+    public void testOnlyLeaderRefreshes() throws Exception {
+        Map<Long, Bam> database = new ConcurrentHashMap<>();
+        database.put(1L, new Bam(1L, "bam1"));
+        BamRefresher firstSource = new BamRefresher(shutdownHooks, database);
+        BamRefresher secondSource = new BamRefresher(shutdownHooks, database);
+        ClusteredDataRefresher<Bam> firstRefresher =
+                new ClusteredDataRefresher<>(shutdownHooks, first, "bams", firstSource);
+        ClusteredDataRefresher<Bam> secondRefresher =
+                new ClusteredDataRefresher<>(shutdownHooks, second, "bams", secondSource);
+        Assert.assertTrue(firstRefresher.isLeader());
+        Assert.assertFalse(secondRefresher.isLeader());
+
+        // both nodes catch up by themselves
+        PersistentObjectCache<Bam> firstCache =
+                new PersistentObjectCache<>(null, shutdownHooks, firstRefresher, null, false, true);
+        PersistentObjectCache<Bam> secondCache =
+                new PersistentObjectCache<>(null, shutdownHooks, secondRefresher, null, false, true);
+        firstRefresher.waitForListeners(Duration.seconds(5));
+        secondRefresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals(1, firstCache.size());
+        Assert.assertEquals(1, secondCache.size());
+        Assert.assertEquals(1, firstSource.refreshes.get());
+        Assert.assertEquals(1, secondSource.refreshes.get());
+
+        // from then on, only the leader refreshes
+        database.put(2L, new Bam(2L, "bam2"));
+        Assert.assertEquals(0, secondRefresher.refresh().getNumberRecordsFound());
+        Assert.assertEquals(1, firstRefresher.refresh().getNumberCreated());
+        Assert.assertEquals(1, secondSource.refreshes.get());
+        for (int i = 0; i < 50 && secondCache.get(2L) == null; i++) {
+            Thread.sleep(100);
+        }
+        firstRefresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals("bam2", firstCache.get(2L).getName());
+        Assert.assertEquals("bam2", secondCache.get(2L).getName());
+    }
+}
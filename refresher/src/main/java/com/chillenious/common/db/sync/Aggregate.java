@@ -0,0 +1,95 @@
+package com.chillenious.common.db.sync;
+
+import java.io.Serializable;
+
+/**
+ * Immutable snapshot of the aggregated values of a group of objects, as maintained by an
+ * {@link Aggregator}.
+ */
+public final class Aggregate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Aggregate of an empty group.
+     */
+    public static final Aggregate EMPTY = new Aggregate(0, 0, null, null);
+
+    private final long count;
+
+    private final long sum;
+
+    private final Long min, max;
+
+    Aggregate(long count, long sum, Long min, Long max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return number of objects in the group
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return sum of the values of the objects in the group; zero if the aggregator has no value function
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return average of the values of the objects in the group, or null if the group is empty
+     */
+    public Double getAverage() {
+        return (count > 0) ? (double) sum / count : null;
+    }
+
+    /**
+     * @return lowest value of the objects in the group, or null if the group is empty or if
+     * the aggregator doesn't track {@link Aggregator.Function#MIN minimums}
+     */
+    public Long getMin() {
+        return min;
+    }
+
+    /**
+     * @return highest value of the objects in the group, or null if the group is empty or if
+     * the aggregator doesn't track {@link Aggregator.Function#MAX maximums}
+     */
+    public Long getMax() {
+        return max;
+    }
+
+    /**
+     * Combine this aggregate with the aggregate of another (disjoint) group of objects, e.g. the
+     * aggregates of the same group in different shards.
+     *
+     * @param other aggregate to combine with
+     * @return aggregate of the objects of both
+     */
+    Aggregate plus(Aggregate other) {
+        if (other.count == 0) {
+            return this;
+        } else if (count == 0) {
+            return other;
+        }
+        return new Aggregate(count + other.count, sum + other.sum,
+                (min != null && other.min != null) ? Long.valueOf(Math.min(min, other.min)) : null,
+                (max != null && other.max != null) ? Long.valueOf(Math.max(max, other.max)) : null);
+    }
+
+    @Override
+    public String toString() {
+        return "Aggregate{" +
+                "count=" + count +
+                ", sum=" + sum +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -0,0 +1,33 @@
+package com.chillenious.common.db.sync;
+
+/**
+ * Every {@link com.chillenious.common.db.sync.Aggregator} gets a {@link com.chillenious.common.db.sync.DataRefreshListener} so that the
+ * aggregates can be updated (synchronously, without blocking the thread that triggered the update)
+ *
+ * @param <O> type of object to aggregate
+ * @param <K> type of the group keys
+ */
+final class AggregateDataRefreshListener<O extends PersistentObject, K>
+        extends DataRefreshListener<O> {
+
+    private final Aggregator<O, K> aggregator;
+
+    AggregateDataRefreshListener(Aggregator<O, K> aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    @Override
+    protected void onEvent(DataRefreshEvent<O> evt) {
+        if (evt instanceof DataCreatedEvent || evt instanceof DataChangedEvent) {
+            O object = getObject(evt);
+            aggregator.put(object);
+        } else if (evt instanceof DataDeletedEvent) {
+            aggregator.remove(evt.getId());
+        } // else ignore
+    }
+
+    @Override
+    protected void onBatch(DataBatchEvent<O> batch) {
+        aggregator.apply(batch.getEvents());
+    }
+}
@@ -0,0 +1,330 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Structure that keeps aggregates (counts, sums, minimums and maximums) of the objects in a
+ * cache, grouped by the keys that a factory produces, and that updates them incrementally
+ * when objects are created, changed or deleted. Reading an aggregate is O(1), rather than a
+ * scan over all objects.
+ * <p/>
+ * Values are longs, so that sums are exact no matter how many times objects are added and
+ * removed; use a fixed scale (e.g. cents) for decimal values. Counts and sums are kept for every
+ * group; minimums and maximums are only kept when asked for, as that takes an ordered multiset
+ * of values per group.
+ * <p/>
+ * Besides the groups, the aggregator keeps the aggregate of all objects it holds
+ * (see {@link #total()}).
+ * <p/>
+ * As part of the setup of this object, it should be {@link #bind(DataRefresher) bound}
+ * to a refresher, and when it is taken out of commission, it should be
+ * {@link #unbind(DataRefresher) unbound} again.
+ *
+ * @param <O> type of objects that are aggregated
+ * @param <K> type of the group keys
+ */
+public final class Aggregator<O extends PersistentObject, K> {
+
+    /**
+     * Aggregate functions.
+     */
+    public static enum Function {
+        /**
+         * Number of objects; always kept.
+         */
+        COUNT,
+        /**
+         * Sum of the values; always kept when there is a value function.
+         */
+        SUM,
+        /**
+         * Lowest value.
+         */
+        MIN,
+        /**
+         * Highest value.
+         */
+        MAX
+    }
+
+    /*
+     * What an object contributes to a group.
+     */
+    private static final class Contribution<K> {
+
+        final K group;
+
+        final long value;
+
+        Contribution(K group, long value) {
+            this.group = group;
+            this.value = value;
+        }
+    }
+
+    /*
+     * Aggregates of a group; must be accessed while holding the lock.
+     */
+    private static final class Group {
+
+        long count;
+
+        long sum;
+
+        final TreeMap<Long, Integer> values; // value -> number of objects, if min/ max are kept
+
+        Group(boolean keepValues) {
+            this.values = keepValues ? new TreeMap<>() : null;
+        }
+
+        void add(long value) {
+            count++;
+            sum += value;
+            if (values != null) {
+                values.merge(value, 1, Integer::sum);
+            }
+        }
+
+        void remove(long value) {
+            count--;
+            sum -= value;
+            if (values != null) {
+                values.computeIfPresent(value, (v, n) -> (n == 1) ? null : n - 1);
+            }
+        }
+
+        Aggregate snapshot(boolean min, boolean max) {
+            if (count == 0) {
+                return Aggregate.EMPTY;
+            }
+            return new Aggregate(count, sum,
+                    min ? values.firstKey() : null, max ? values.lastKey() : null);
+        }
+    }
+
+    private final IndexKeyFactory<O, K> groupBy;
+
+    private final ToLongFunction<? super O> value;
+
+    private final boolean min, max;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+    private final Lock r = rwl.readLock(), w = rwl.writeLock();
+
+    private final Map<K, Group> groups = new HashMap<>();
+
+    private final Group total;
+
+    private final IdMap<Contribution<K>> contributions;
+
+    AggregateDataRefreshListener<O, K> listener;
+
+    Aggregator(IndexKeyFactory<O, K> groupBy, @Nullable ToLongFunction<? super O> value,
+               Set<Function> functions) {
+        this(groupBy, value, functions, false);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param groupBy   factory for the group keys; objects for which it returns null aren't aggregated
+     * @param value     function for the values to aggregate, or null to only count
+     * @param functions aggregate functions to keep; counts (and sums, with a value function) are always kept
+     * @param longIds   whether all ids are longs
+     */
+    Aggregator(IndexKeyFactory<O, K> groupBy, @Nullable ToLongFunction<? super O> value,
+               Set<Function> functions, boolean longIds) {
+        if (groupBy == null) {
+            throw new NullPointerException();
+        }
+        if (functions == null) {
+            throw new NullPointerException();
+        }
+        this.min = functions.contains(Function.MIN);
+        this.max = functions.contains(Function.MAX);
+        if ((functions.contains(Function.SUM) || min || max) && value == null) {
+            throw new IllegalArgumentException(String.format(
+                    "functions %s need a value function", functions));
+        }
+        this.groupBy = groupBy;
+        this.value = value;
+        this.total = new Group(min || max);
+        this.contributions = IdMap.create(longIds, false);
+    }
+
+    /**
+     * @return the functions this aggregator keeps
+     */
+    public Set<Function> getFunctions() {
+        EnumSet<Function> functions = EnumSet.of(Function.COUNT);
+        if (value != null) {
+            functions.add(Function.SUM);
+        }
+        if (min) {
+            functions.add(Function.MIN);
+        }
+        if (max) {
+            functions.add(Function.MAX);
+        }
+        return functions;
+    }
+
+    void put(O object) {
+        if (object == null || object.getId() == null) {
+            throw new NullPointerException();
+        }
+        w.lock();
+        try {
+            doPut(object);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    void remove(Object id) {
+        if (id == null) {
+            throw new NullPointerException();
+        }
+        w.lock();
+        try {
+            doRemove(id);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Apply a batch of created, changed and deleted events in one go (taking the write lock once).
+     *
+     * @param events events to apply, in order
+     */
+    void apply(List<DataRefreshEvent<O>> events) {
+        if (events == null) {
+            throw new NullPointerException();
+        }
+        w.lock();
+        try {
+            for (DataRefreshEvent<O> evt : events) {
+                if (evt instanceof DataDeletedEvent) {
+                    doRemove(evt.getId());
+                } else {
+                    O object = DataRefreshEvent.objectOf(evt);
+                    if (object != null) {
+                        doPut(object);
+                    }
+                }
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private void doPut(O object) {
+        doRemove(object.getId());
+        K key = groupBy.create(object);
+        if (key != null) {
+            long v = (value != null) ? value.applyAsLong(object) : 0;
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(min || max);
+                groups.put(key, group);
+            }
+            group.add(v);
+            total.add(v);
+            contributions.put(object.getId(), new Contribution<>(key, v));
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private void doRemove(Object id) {
+        Contribution<K> previous = contributions.remove(id);
+        if (previous != null) {
+            Group group = groups.get(previous.group);
+            group.remove(previous.value);
+            if (group.count == 0) {
+                groups.remove(previous.group);
+            }
+            total.remove(previous.value);
+        } // object wasn't in here to start with
+    }
+
+    /**
+     * @param key group key
+     * @return aggregate of the group; {@link Aggregate#EMPTY} if there are no objects in the group
+     */
+    public Aggregate get(K key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        r.lock();
+        try {
+            Group group = groups.get(key);
+            return (group != null) ? group.snapshot(min, max) : Aggregate.EMPTY;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * @return aggregates of all groups that have objects
+     */
+    public Map<K, Aggregate> getAll() {
+        r.lock();
+        try {
+            ImmutableMap.Builder<K, Aggregate> all = ImmutableMap.builder();
+            for (Map.Entry<K, Group> e : groups.entrySet()) {
+                all.put(e.getKey(), e.getValue().snapshot(min, max));
+            }
+            return all.build();
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * @return aggregate of all objects in this aggregator (of all groups)
+     */
+    public Aggregate total() {
+        r.lock();
+        try {
+            return total.snapshot(min, max);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    synchronized void bind(DataRefresher<O> refresher) {
+        if (listener == null) {
+            listener = new AggregateDataRefreshListener<>(this);
+            refresher.addListener(listener);
+        } else {
+            throw new IllegalStateException(
+                    String.format("aggregator %s already has an active listener (%s)", this, listener));
+        }
+    }
+
+    synchronized void unbind(DataRefresher<O> refresher) {
+        if (listener != null) {
+            refresher.removeListener(listener);
+        } else {
+            throw new IllegalStateException(String.format("aggregator %s wasn't bound", this));
+        }
+    }
+}
@@ -17,6 +17,25 @@ abstract class BaseDataRefreshListener<O extends PersistentObject> {
      */
     public abstract void onDataRefresh(DataRefreshEvent<O> evt);
 
+    /**
+     * Called when the events handled so far should be made visible, which is when the
+     * queue of this listener runs empty and before telling those waiting for the listener (see
+     * {@link DataRefresher#whenListenersDone()}) that it is done. Does nothing
+     * by default.
+     */
+    void flush() {
+    }
+
+    /**
+     * Called when events for this listener were dropped because it's queue was full (see
+     * {@link ListenerQueueSettings.OverflowPolicy#DROP_AND_MARK_STALE}), once the listener
+     * caught up with the events that weren't dropped. Does nothing by default.
+     *
+     * @param numberDropped number of events that were dropped
+     */
+    void onEventsDropped(long numberDropped) {
+    }
+
     void setTopic(DataRefreshTopic<O> topic) {
         this.topic = topic;
     }
@@ -0,0 +1,104 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableSet;
+import org.roaringbitmap.RoaringBitmap;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Index store that keeps the members of each key as a {@link RoaringBitmap compressed bitmap}
+ * of the {@link Ordinals ordinals} of the objects. This is a good fit for keys with many members
+ * each (like status, country or category), where it takes a fraction of the memory of a hash
+ * set per key, and where counts and intersections don't need to touch the objects or their ids.
+ * <p/>
+ * Objects are always looked up with the resolver (typically the storage of the cache) when
+ * they are read.
+ *
+ * @param <O> type of objects that are indexed
+ * @param <T> key type
+ */
+final class BitmapIndexStore<O extends PersistentObject, T> implements IndexStore<O, T> {
+
+    private final Map<T, RoaringBitmap> indexed = new HashMap<>();
+
+    private final Ordinals ordinals;
+
+    private final Function<Object, O> resolver;
+
+    BitmapIndexStore(Ordinals ordinals, Function<Object, O> resolver) {
+        if (ordinals == null) {
+            throw new NullPointerException();
+        }
+        if (resolver == null) {
+            throw new NullPointerException();
+        }
+        this.ordinals = ordinals;
+        this.resolver = resolver;
+    }
+
+    @Override
+    public void add(T key, O object) {
+        RoaringBitmap bitmap = indexed.get(key);
+        if (bitmap == null) {
+            bitmap = new RoaringBitmap();
+            indexed.put(key, bitmap);
+        }
+        int ordinal = ordinals.acquire(object.getId());
+        if (!bitmap.checkedAdd(ordinal)) {
+            ordinals.release(object.getId());
+        }
+    }
+
+    @Override
+    public void remove(T key, Object id, @Nullable O object) {
+        RoaringBitmap bitmap = indexed.get(key);
+        if (bitmap != null) {
+            int ordinal = ordinals.ordinalOf(id);
+            if (ordinal >= 0 && bitmap.checkedRemove(ordinal)) {
+                ordinals.release(id);
+            }
+            if (bitmap.isEmpty()) {
+                indexed.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public Set<O> get(T key) {
+        RoaringBitmap bitmap = indexed.get(key);
+        if (bitmap == null) {
+            return ImmutableSet.of();
+        }
+        return ordinals.read(() -> {
+            ImmutableSet.Builder<O> objects = ImmutableSet.builder();
+            bitmap.forEach((int ordinal) -> {
+                O object = resolver.apply(ordinals.idOf(ordinal));
+                if (object != null) { // might be removed from the storage before it's removed from the index
+                    objects.add(object);
+                }
+            });
+            return objects.build();
+        });
+    }
+
+    @Override
+    public IdSet ids(T key) {
+        RoaringBitmap bitmap = indexed.get(key);
+        return (bitmap != null) ? new IdSet.BitmapIds(bitmap.clone(), ordinals) : IdSet.EMPTY;
+    }
+
+    /**
+     * @return estimate of the memory used by the bitmaps of this store, in bytes
+     */
+    long sizeInBytes() {
+        long bytes = 0;
+        for (RoaringBitmap bitmap : indexed.values()) {
+            bytes += bitmap.getLongSizeInBytes();
+        }
+        return bytes;
+    }
+}
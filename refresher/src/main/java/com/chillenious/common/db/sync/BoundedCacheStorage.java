@@ -0,0 +1,157 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Storage that keeps objects on the heap, like {@link HeapCacheStorage}, but only up to a maximum
+ * number of objects or a maximum total weight, evicting the least recently used objects
+ * beyond that. Use this for tables of which only a hot subset matters, typically together with a
+ * {@link PersistentObjectCache#setLoader(PersistentObjectLookup) loader}, so that objects that
+ * were evicted are loaded again when they are asked for.
+ * <p/>
+ * Eviction is done per segment of the underlying Guava {@link com.google.common.cache.Cache},
+ * so the storage may evict objects slightly before the maximum is reached. As objects can be
+ * evicted at any time, this storage reports that it isn't {@link #isHeapResident() heap resident},
+ * so that sorts and indexes hold ids and look objects up in the storage.
+ *
+ * @param <O> type of the objects in the storage
+ */
+public final class BoundedCacheStorage<O extends PersistentObject> implements CacheStorage<O> {
+
+    private final Cache<Object, O> cache;
+
+    private volatile Consumer<Object> evictionListener;
+
+    private BoundedCacheStorage(CacheBuilder<Object, Object> builder, boolean recordStats) {
+        if (recordStats) {
+            builder.recordStats();
+        }
+        this.cache = builder.removalListener((RemovalNotification<Object, O> notification) -> {
+            Consumer<Object> listener = evictionListener;
+            if (listener != null && notification.wasEvicted()) {
+                listener.accept(notification.getKey());
+            }
+        }).build();
+    }
+
+    /**
+     * Create storage that holds at most the provided number of objects.
+     *
+     * @param maximumSize maximum number of objects
+     * @param recordStats whether to record stats
+     * @return new storage
+     */
+    public static <O extends PersistentObject> BoundedCacheStorage<O> maximumSize(
+            long maximumSize, boolean recordStats) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "maximum size must be positive (is %,d)", maximumSize));
+        }
+        return new BoundedCacheStorage<>(CacheBuilder.newBuilder().maximumSize(maximumSize), recordStats);
+    }
+
+    /**
+     * Create storage that holds objects up to the provided total weight.
+     *
+     * @param maximumWeight maximum total weight of the objects
+     * @param weigher       weight of an object (e.g. it's approximate size in bytes); must not be negative
+     * @param recordStats   whether to record stats
+     * @return new storage
+     */
+    public static <O extends PersistentObject> BoundedCacheStorage<O> maximumWeight(
+            long maximumWeight, ToIntFunction<? super O> weigher, boolean recordStats) {
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "maximum weight must be positive (is %,d)", maximumWeight));
+        }
+        if (weigher == null) {
+            throw new NullPointerException();
+        }
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((Object id, Object object) -> {
+                    @SuppressWarnings("unchecked")
+                    int weight = weigher.applyAsInt((O) object);
+                    return weight;
+                });
+        return new BoundedCacheStorage<>(builder, recordStats);
+    }
+
+    @Override
+    public O get(Object id) {
+        return cache.getIfPresent(id);
+    }
+
+    @Override
+    public void put(O object) {
+        cache.put(object.getId(), object);
+    }
+
+    @Override
+    public void remove(Object id) {
+        cache.invalidate(id);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public Set<Object> ids() {
+        return cache.asMap().keySet();
+    }
+
+    @Override
+    public Collection<O> values() {
+        return cache.asMap().values();
+    }
+
+    @Override
+    public Map<Object, O> asMap() {
+        return Collections.unmodifiableMap(cache.asMap());
+    }
+
+    /*
+     * The backing Guava cache, for the deprecated cache view of PersistentObjectCache.
+     */
+    Cache<Object, O> guavaCache() {
+        return cache;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public boolean isHeapResident() {
+        return false; // objects can be evicted at any time
+    }
+
+    @Override
+    public boolean isBounded() {
+        return true;
+    }
+
+    @Override
+    public void onEviction(@Nullable Consumer<Object> listener) {
+        this.evictionListener = listener;
+    }
+}
@@ -0,0 +1,106 @@
+package com.chillenious.common.db.sync;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Lookups by id that first try a cache and then load what's missing in one go, shared by
+ * {@link PersistentObjectCache} and {@link ShardedPersistentObjectCache}.
+ */
+final class CacheLookups {
+
+    private CacheLookups() {
+    }
+
+    /**
+     * Lookup multiple objects by their ids. The ids for which the cache has no object are looked up
+     * with the loader (if any) in one go, and the objects it finds are handed to the provided
+     * consumer to put them in the cache.
+     *
+     * @param ids     ids of the objects to lookup
+     * @param cached  gets an object from the cache, or null if it isn't in there
+     * @param loader  loader for objects that aren't in the cache, or null to not load them
+     * @param putAll  puts loaded objects in the cache
+     * @param <O>     type of the objects
+     * @return map of id to object for the objects that were found, in the order of the ids
+     */
+    static <O extends PersistentObject> Map<Object, O> lookupAll(Collection<?> ids,
+                                                                 Function<Object, O> cached,
+                                                                 @Nullable PersistentObjectLookup<O> loader,
+                                                                 Consumer<Collection<O>> putAll) {
+        Map<Object, O> found = new LinkedHashMap<>(ids.size() * 2);
+        List<Object> missing = null;
+        for (Object id : ids) {
+            O object = cached.apply(id);
+            if (object != null) {
+                found.put(id, object);
+            } else {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(id);
+            }
+        }
+        if (missing == null || loader == null) {
+            return found;
+        }
+        Map<Object, O> loaded = loader.lookupAll(missing);
+        if (loaded.isEmpty()) {
+            return found;
+        }
+        putAll.accept(loaded.values());
+        if (loaded.size() == missing.size() && found.isEmpty()) {
+            return loaded;
+        }
+        Map<Object, O> all = new LinkedHashMap<>(ids.size() * 2); // in the order of the ids
+        for (Object id : ids) {
+            O object = found.get(id);
+            if (object == null) {
+                object = loaded.get(id);
+            }
+            if (object != null) {
+                all.put(id, object);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Type of the arrays returned by lookups of the provided cache: it's object type if that is
+     * set, and otherwise the type of the objects of it's loader, if that knows it.
+     *
+     * @throws IllegalStateException when neither the cache nor the loader knows the type
+     */
+    static <O extends PersistentObject> Class<O> arrayType(Object cache, @Nullable Class<O> objectType,
+                                                           @Nullable PersistentObjectLookup<O> loader) {
+        Class<O> type = objectType;
+        if (type == null && loader != null) {
+            type = loader.getObjectType();
+        }
+        if (type == null) {
+            throw new IllegalStateException(String.format(
+                    "type of the objects of %s isn't known; set the object type, use a loader that " +
+                            "knows it, or use lookup(Class, Object...) or lookupAll(Collection)", cache));
+        }
+        return type;
+    }
+
+    /**
+     * Array of the provided type with the objects for the ids, and nulls for the ids that weren't found.
+     */
+    @SuppressWarnings("unchecked")
+    static <O> O[] toArray(Class<?> type, Object[] ids, Map<Object, O> found) {
+        O[] objects = (O[]) Array.newInstance(type, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            objects[i] = found.get(ids[i]);
+        }
+        return objects;
+    }
+}
@@ -0,0 +1,302 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.db.jooq.svc.Limit;
+import com.chillenious.common.db.jooq.svc.ListPage;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Query on the objects of a {@link PersistentObjectCache cache}, which combines a query on the
+ * indexes of the cache, a filter on the objects, and the order of one of the sorts of the cache,
+ * and that returns pages of results like queries on the database do:
+ * <pre>
+ *     ListPage&lt;Product&gt; page = cache.query()
+ *             .where(IndexQuery.eq("category", "shoes"))
+ *             .filter(product -&gt; product.isInStock())
+ *             .orderBy("price")
+ *             .list(Limit.get(20).withTestForMore().startingAt(40));
+ * </pre>
+ * The query is planned when it is executed (see {@link Plan}). The index query narrows
+ * the candidates down first, and the filter is applied to the objects that remain. When a sort is
+ * provided, the planner either walks that sort and stops as soon as it has the requested page,
+ * or puts the candidates in the order of the sort, whichever it estimates is cheaper. Note that
+ * the estimate assumes that the filter (if any) lets most objects through; put selective
+ * conditions in the index query where possible.
+ * <p/>
+ * Queries are immutable and can be reused.
+ *
+ * @param <O> type of the objects
+ */
+public final class CacheQuery<O extends PersistentObject> {
+
+    /**
+     * How a query is executed.
+     */
+    public static enum Plan {
+        /**
+         * Scan all objects of the cache, in no particular order.
+         */
+        SCAN,
+        /**
+         * Walk the sort, and stop when the page is complete.
+         */
+        WALK_SORT,
+        /**
+         * Look up the candidates with the index query, in no particular order.
+         */
+        INDEX,
+        /**
+         * Look up the candidates with the index query, and walk the sort, skipping objects that
+         * aren't candidates, until the page is complete; best when the candidates are a large part
+         * of the sort.
+         */
+        INDEX_WALK_SORT,
+        /**
+         * Look up the candidates with the index query, and put them in the order of the sort;
+         * best when there are few candidates.
+         */
+        INDEX_SORT
+    }
+
+    private final PersistentObjectCache<O> cache;
+
+    private final IndexQuery where;
+
+    private final Predicate<? super O> filter;
+
+    private final String sortId;
+
+    CacheQuery(PersistentObjectCache<O> cache) {
+        this(cache, null, null, null);
+    }
+
+    private CacheQuery(PersistentObjectCache<O> cache, @Nullable IndexQuery where,
+                       @Nullable Predicate<? super O> filter, @Nullable String sortId) {
+        if (cache == null) {
+            throw new NullPointerException();
+        }
+        this.cache = cache;
+        this.where = where;
+        this.filter = filter;
+        this.sortId = sortId;
+    }
+
+    /**
+     * Only return objects that match the provided index query (in addition to any index query
+     * that was provided before).
+     *
+     * @param query index query
+     * @return new query
+     */
+    public CacheQuery<O> where(IndexQuery query) {
+        if (query == null) {
+            throw new NullPointerException();
+        }
+        return new CacheQuery<>(cache, (where != null) ? where.and(query) : query, filter, sortId);
+    }
+
+    /**
+     * Only return objects that match the provided filter (in addition to any filter that was
+     * provided before).
+     *
+     * @param predicate filter
+     * @return new query
+     */
+    public CacheQuery<O> filter(Predicate<? super O> predicate) {
+        if (predicate == null) {
+            throw new NullPointerException();
+        }
+        Predicate<? super O> previous = filter;
+        Predicate<O> combined = (previous != null) ?
+                object -> previous.test(object) && predicate.test(object) : predicate::test;
+        return new CacheQuery<>(cache, where, combined, sortId);
+    }
+
+    /**
+     * Return the objects in the order of the provided sort.
+     *
+     * @param sortId id of the sort
+     * @return new query
+     */
+    public CacheQuery<O> orderBy(String sortId) {
+        if (sortId == null) {
+            throw new NullPointerException();
+        }
+        return new CacheQuery<>(cache, where, filter, sortId);
+    }
+
+    /**
+     * Execute the query.
+     *
+     * @param limit offset and number of objects to return
+     * @return page with the objects
+     */
+    public ListPage<O> list(Limit limit) {
+        if (limit == null) {
+            throw new NullPointerException();
+        }
+        // one extra object tells the page whether there are more
+        int needed = (int) Math.min(Integer.MAX_VALUE,
+                (long) limit.getNumberOfRows() + (limit.getTestForMore() ? 1 : 0));
+        List<O> objects = new ArrayList<>(Math.min(needed, 1024));
+        Set<Object> candidates = (where != null) ? cache.getIndexedIds(where) : null;
+        Sorter<O> sorter = (sortId != null) ? cache.getSorter(sortId) : null;
+        switch (plan(candidates, sorter, limit.getOffset() + (long) needed)) {
+            case SCAN:
+                collect(cache.values(), null, limit.getOffset(), needed, objects);
+                break;
+            case WALK_SORT:
+                collect(sorter.values(), null, limit.getOffset(), needed, objects);
+                break;
+            case INDEX:
+                collect(lookup(candidates), null, limit.getOffset(), needed, objects);
+                break;
+            case INDEX_WALK_SORT:
+                collect(sorter.values(), candidates, limit.getOffset(), needed, objects);
+                break;
+            case INDEX_SORT:
+                collect(inSortOrder(candidates, sorter), null, limit.getOffset(), needed, objects);
+                break;
+        }
+        return ListPage.of(limit, objects);
+    }
+
+    /**
+     * Count the objects that match the query. Without a filter and a sort, this doesn't
+     * look up objects.
+     *
+     * @return number of objects
+     */
+    public int count() {
+        Set<Object> candidates = (where != null) ? cache.getIndexedIds(where) : null;
+        if (filter == null && sortId == null) {
+            return (candidates != null) ? candidates.size() : (int) cache.size();
+        }
+        if (sortId != null) { // objects might not be in the sort
+            return collect(cache.getSorter(sortId).values(), candidates, 0, Integer.MAX_VALUE, null);
+        }
+        return collect((candidates != null) ? lookup(candidates) : cache.values(),
+                null, 0, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Plan the query.
+     *
+     * @param candidates ids of the objects that match the index query, or null if there is none
+     * @param sorter     sorter to order by, or null if there is none
+     * @param needed     number of objects needed from the start (offset plus page size)
+     * @return plan
+     */
+    private Plan plan(@Nullable Set<Object> candidates, @Nullable Sorter<O> sorter, long needed) {
+        if (candidates == null) {
+            return (sorter != null) ? Plan.WALK_SORT : Plan.SCAN;
+        } else if (sorter == null) {
+            return Plan.INDEX;
+        }
+        // walking the sort visits (sort size / candidates) objects per candidate it finds,
+        // while sorting the candidates costs k log k
+        long n = sorter.size(), k = candidates.size();
+        if (k == 0) {
+            return Plan.INDEX;
+        }
+        double walk = Math.min(n, (double) needed * n / k);
+        double sort = k * (Math.log(k) / Math.log(2) + 1);
+        return (walk <= sort) ? Plan.INDEX_WALK_SORT : Plan.INDEX_SORT;
+    }
+
+    /**
+     * @return plan for the query with the provided limit, for diagnostics
+     */
+    public Plan explain(Limit limit) {
+        if (limit == null) {
+            throw new NullPointerException();
+        }
+        return plan((where != null) ? cache.getIndexedIds(where) : null,
+                (sortId != null) ? cache.getSorter(sortId) : null,
+                limit.getOffset() + (long) limit.getNumberOfRows());
+    }
+
+    /*
+     * Add the objects that are candidates (if provided) and match the filter to the
+     * provided list (if provided), skipping the first offset of them and stopping when
+     * the number of objects that are needed is reached. Returns the number of objects
+     * that were added (or would have been added).
+     */
+    private int collect(Collection<O> values, @Nullable Set<Object> candidates, int offset,
+                        int needed, @Nullable List<O> objects) {
+        int skipped = 0, collected = 0;
+        for (Iterator<O> i = values.iterator(); i.hasNext() && collected < needed; ) {
+            O object = i.next();
+            if ((candidates == null || candidates.contains(object.getId()))
+                    && (filter == null || filter.test(object))) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    if (objects != null) {
+                        objects.add(object);
+                    }
+                    collected++;
+                }
+            }
+        }
+        return collected;
+    }
+
+    /*
+     * Look up the objects for the provided ids.
+     */
+    private Collection<O> lookup(Set<Object> ids) {
+        List<O> objects = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            O object = cache.storage.get(id);
+            if (object != null) { // might be removed from the storage before it's removed from the index
+                objects.add(object);
+            }
+        }
+        return objects;
+    }
+
+    /*
+     * Look up the objects for the provided ids that are in the sort, in the order of the sort.
+     */
+    private Collection<O> inSortOrder(Set<Object> ids, Sorter<O> sorter) {
+        List<Object[]> keyed = new ArrayList<>(ids.size()); // sort key and object
+        for (Object id : ids) {
+            SortKey key = sorter.keyOf(id);
+            if (key != null) {
+                O object = cache.storage.get(id);
+                if (object != null) {
+                    keyed.add(new Object[]{key, object});
+                }
+            }
+        }
+        keyed.sort(KEY_ORDER);
+        List<O> objects = new ArrayList<>(keyed.size());
+        for (Object[] pair : keyed) {
+            @SuppressWarnings("unchecked")
+            O object = (O) pair[1];
+            objects.add(object);
+        }
+        return Collections.unmodifiableList(objects);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final Comparator<Object[]> KEY_ORDER = (a, b) -> ((SortKey) a[0]).compareTo((SortKey) b[0]);
+
+    @Override
+    public String toString() {
+        return "CacheQuery{" +
+                "where=" + where +
+                ", filter=" + filter +
+                ", orderBy=" + sortId +
+                '}';
+    }
+}
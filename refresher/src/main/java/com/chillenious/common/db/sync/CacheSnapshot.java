@@ -0,0 +1,253 @@
+package com.chillenious.common.db.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Snapshot of the contents of a {@link com.chillenious.common.db.sync.PersistentObjectCache cache},
+ * together with the {@link DataRefresher#getCheckpoint() checkpoint} of it's refresher, in a file on
+ * local disk. A cache that is configured with a snapshot writes it when it shuts down, and when it
+ * starts, it loads the snapshot (memory-mapped) and then only does an incremental catch-up refresh
+ * rather than reading the full data set from the backend.
+ * <p/>
+ * This only works with refreshers that support checkpoints (like
+ * {@link com.chillenious.common.db.sync.WatermarkDataRefresher}); caches with other refreshers simply
+ * won't write snapshots. Snapshots can't be larger than 2GB.
+ *
+ * @param <O> type of the objects in the cache
+ */
+public final class CacheSnapshot<O extends PersistentObject> {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x43534e50;
+
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Codec that relies on Java serialization, which works for any persistent object, but
+     * is neither compact nor fast.
+     */
+    static final class SerializingCodec<O extends PersistentObject> implements PersistentObjectCodec<O> {
+
+        @Override
+        public void write(O object, DataOutput out) throws IOException {
+            byte[] bytes = serialize(object);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public O read(DataInput in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return (O) deserialize(bytes);
+        }
+    }
+
+    /**
+     * What was read from a snapshot; the objects themselves went to the consumer passed in.
+     */
+    static final class Contents {
+
+        final Serializable checkpoint;
+
+        final int size;
+
+        Contents(Serializable checkpoint, int size) {
+            this.checkpoint = checkpoint;
+            this.size = size;
+        }
+    }
+
+    /*
+     * Reads from a (mapped) byte buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    private final Path file;
+
+    private final PersistentObjectCodec<O> codec;
+
+    /**
+     * Construct a snapshot that uses Java serialization for the objects.
+     *
+     * @param file file to write the snapshot to and read it from
+     */
+    public CacheSnapshot(Path file) {
+        this(file, new SerializingCodec<O>());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param file  file to write the snapshot to and read it from
+     * @param codec codec for reading and writing the objects
+     */
+    public CacheSnapshot(Path file, PersistentObjectCodec<O> codec) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (codec == null) {
+            throw new NullPointerException();
+        }
+        this.file = file;
+        this.codec = codec;
+    }
+
+    /**
+     * @return file the snapshot is written to and read from
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Write the snapshot; the file is replaced atomically, so that a failed write never
+     * leaves a corrupt snapshot behind. The objects are streamed straight to the file, and
+     * as the collection may be changing underneath, the number of objects actually written
+     * goes in a trailer rather than in the header.
+     *
+     * @param checkpoint checkpoint of the refresher the objects are at least as recent as
+     * @param objects    objects to write
+     * @return number of objects written
+     * @throws IOException when writing fails
+     */
+    int write(Serializable checkpoint, Iterable<O> objects) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int size = 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            byte[] checkpointBytes = serialize(checkpoint);
+            out.writeInt(checkpointBytes.length);
+            out.write(checkpointBytes);
+            for (O object : objects) {
+                codec.write(object, out);
+                size++;
+            }
+            out.writeInt(size);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * Read the snapshot by memory-mapping the file, handing each object to the consumer
+     * as soon as it is decoded.
+     *
+     * @param consumer receives the objects of the snapshot
+     * @return checkpoint and number of objects read, or null if there is no snapshot
+     * @throws IOException when reading fails, or the file is not a (compatible) snapshot
+     */
+    @Nullable
+    Contents read(Consumer<? super O> consumer) throws IOException {
+        if (consumer == null) {
+            throw new NullPointerException();
+        }
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("%s is not a cache snapshot", file));
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(String.format(
+                        "snapshot %s has format version %d; expected %d", file, version, FORMAT_VERSION));
+            }
+            byte[] checkpointBytes = new byte[in.readInt()];
+            in.readFully(checkpointBytes);
+            Serializable checkpoint = deserialize(checkpointBytes);
+            int size = buffer.getInt(buffer.limit() - 4); // trailer
+            for (int i = 0; i < size; i++) {
+                consumer.accept(codec.read(in));
+            }
+            log.debug(String.format("read %,d objects from snapshot %s", size, file));
+            return new Contents(checkpoint, size);
+        }
+    }
+
+    /*
+     * Serialize with Java serialization.
+     */
+    private static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Deserialize with Java serialization.
+     */
+    private static Serializable deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Serializable) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CacheSnapshot{" +
+                "file=" + file +
+                ", codec=" + codec +
+                '}';
+    }
+}
@@ -0,0 +1,128 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.cache.CacheStats;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Storage for the values of a {@link com.chillenious.common.db.sync.PersistentObjectCache cache}. By default,
+ * caches keep their objects on the heap ({@link HeapCacheStorage}); for very large caches, keeping them
+ * serialized outside of the heap ({@link OffHeapCacheStorage}) can take a lot of pressure off the
+ * garbage collector.
+ * <p/>
+ * Storage should support reads from many threads while being written to. Storage can be
+ * bounded ({@link BoundedCacheStorage}), in which case it evicts objects by itself, and tells the
+ * cache about that so that the cache can remove them from it's sorts and indexes.
+ *
+ * @param <O> type of the objects in the storage
+ */
+public interface CacheStorage<O extends PersistentObject> {
+
+    /**
+     * @param id id of the object
+     * @return object with the provided id, or null if it is not in this storage
+     */
+    @Nullable
+    O get(Object id);
+
+    /**
+     * Get an object by it's long id, without boxing when the storage {@link #hasLongIds() has long ids}.
+     *
+     * @param id id of the object
+     * @return object with the provided id, or null if it is not in this storage
+     */
+    @Nullable
+    default O get(long id) {
+        return get((Object) id);
+    }
+
+    /**
+     * Put an object in the storage, replacing any object with the same id.
+     *
+     * @param object object to put
+     */
+    void put(O object);
+
+    /**
+     * Remove the object with the provided id, if any.
+     *
+     * @param id id of the object to remove
+     */
+    void remove(Object id);
+
+    /**
+     * Remove all objects.
+     */
+    void clear();
+
+    /**
+     * @return the (approximate) number of objects in this storage
+     */
+    long size();
+
+    /**
+     * @return set of the ids in this storage (in unspecified order)
+     */
+    Set<Object> ids();
+
+    /**
+     * @return all objects in this storage (in unspecified order)
+     */
+    Collection<O> values();
+
+    /**
+     * @return unmodifiable map (id -> persistent object) over all objects in this storage
+     */
+    Map<Object, O> asMap();
+
+    /**
+     * @return stats of this storage
+     * @throws UnsupportedOperationException if the storage doesn't record stats
+     */
+    CacheStats stats();
+
+    /**
+     * Whether objects are kept as live objects on the heap. If not, looking them up
+     * is relatively expensive, but sorts and indexes only hold ids rather than
+     * references to objects, and look up objects in the storage when read.
+     *
+     * @return whether objects are kept on the heap
+     */
+    boolean isHeapResident();
+
+    /**
+     * Whether all ids are longs (the objects are {@link LongPersistentObject long persistent objects}),
+     * in which case sorts and indexes can keep their reverse lookups in primitive maps.
+     *
+     * @return whether all ids are longs
+     */
+    default boolean hasLongIds() {
+        return false;
+    }
+
+    /**
+     * Whether this storage evicts objects by itself, in which case it only holds a subset of
+     * the objects of the cache.
+     *
+     * @return whether objects can be evicted
+     */
+    default boolean isBounded() {
+        return false;
+    }
+
+    /**
+     * Set the listener that is told about the ids of objects that this storage evicts by itself
+     * (as opposed to objects that are {@link #remove(Object) removed}). It can be called on any
+     * thread that uses the storage, including threads that merely {@link #get(Object) read} it
+     * (and that might hold locks of sorts or indexes while doing so), so it should do as little
+     * as possible. By default, this does nothing, as storage doesn't evict.
+     *
+     * @param listener listener, or null for none
+     */
+    default void onEviction(@Nullable Consumer<Object> listener) {
+    }
+}
@@ -0,0 +1,98 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * View on a {@link CacheStorage storage} as a Guava {@link com.google.common.cache.Cache cache}, for
+ * subclasses of {@link PersistentObjectCache} that still use the cache it used to have before it
+ * got pluggable storage. Like that cache, writes through this view go straight to the storage,
+ * bypassing sorts, indexes and aggregates.
+ *
+ * @param <O> type of the objects in the storage
+ */
+final class CacheStorageView<O extends PersistentObject> extends AbstractCache<Object, O> {
+
+    private final CacheStorage<O> storage;
+
+    CacheStorageView(CacheStorage<O> storage) {
+        if (storage == null) {
+            throw new NullPointerException();
+        }
+        this.storage = storage;
+    }
+
+    @Override
+    public O getIfPresent(Object key) {
+        return storage.get(key);
+    }
+
+    @Override
+    public O get(Object key, Callable<? extends O> valueLoader) throws ExecutionException {
+        O object = storage.get(key);
+        if (object == null) {
+            try {
+                object = valueLoader.call();
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+            put(key, object);
+        }
+        return object;
+    }
+
+    @Override
+    public void put(Object key, O value) {
+        if (!Objects.equal(key, value.getId())) {
+            throw new IllegalArgumentException(String.format(
+                    "key %s is not the id of %s", key, value));
+        }
+        storage.put(value);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        storage.remove(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        storage.clear();
+    }
+
+    @Override
+    public long size() {
+        return storage.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return storage.stats();
+    }
+
+    /**
+     * @return the map of the Guava cache that backs {@link HeapCacheStorage heap} and
+     * {@link BoundedCacheStorage bounded} storage, or the map of the storage if it is concurrent
+     * @throws UnsupportedOperationException when the storage doesn't have a concurrent map
+     */
+    @Override
+    public ConcurrentMap<Object, O> asMap() {
+        if (storage instanceof HeapCacheStorage) {
+            return ((HeapCacheStorage<O>) storage).guavaCache().asMap();
+        } else if (storage instanceof BoundedCacheStorage) {
+            return ((BoundedCacheStorage<O>) storage).guavaCache().asMap();
+        }
+        Map<Object, O> map = storage.asMap();
+        if (map instanceof ConcurrentMap) {
+            return (ConcurrentMap<Object, O>) map;
+        }
+        throw new UnsupportedOperationException(String.format(
+                "storage %s has no concurrent map; use the storage directly", storage));
+    }
+}
@@ -0,0 +1,123 @@
+package com.chillenious.common.db.sync;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Index key that is made up of multiple values (e.g. multiple columns), compared in order.
+ * Use {@link #factory(Function[])} to create a factory for a composite index, and
+ * {@link #of(Comparable[])} to create keys to look up:
+ * <pre>
+ *     cache.addIndex("countryAndCity", CompositeKey.factory(Shop::getCountry, Shop::getCity));
+ *     cache.getIndexed("countryAndCity", CompositeKey.of("NL", "Amsterdam"));
+ * </pre>
+ */
+public final class CompositeKey implements Comparable<CompositeKey>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Comparable[] values;
+
+    private CompositeKey(Comparable[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Create a key.
+     *
+     * @param values values that make up the key, none of which may be null
+     * @return new key
+     */
+    public static CompositeKey of(Comparable... values) {
+        if (values == null) {
+            throw new NullPointerException();
+        }
+        Comparable[] copy = values.clone();
+        for (Comparable value : copy) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+        }
+        return new CompositeKey(copy);
+    }
+
+    /**
+     * Create a factory for composite keys with the provided parts. Objects for which any of
+     * the parts is null aren't indexed.
+     *
+     * @param parts functions that produce the values of the key, none of which may be null
+     * @param <O>   type of the objects
+     * @return new factory
+     */
+    @SafeVarargs
+    public static <O extends PersistentObject> IndexKeyFactory<O, CompositeKey> factory(
+            Function<? super O, ? extends Comparable>... parts) {
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("at least one part is needed");
+        }
+        List<Function<? super O, ? extends Comparable>> copy = new ArrayList<>(parts.length);
+        for (Function<? super O, ? extends Comparable> part : parts) {
+            if (part == null) {
+                throw new NullPointerException();
+            }
+            copy.add(part);
+        }
+        return object -> {
+            Comparable[] values = new Comparable[copy.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = copy.get(i).apply(object);
+                if (values[i] == null) {
+                    return null;
+                }
+            }
+            return new CompositeKey(values);
+        };
+    }
+
+    /**
+     * @return number of values in this key
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @param i position of the value
+     * @return value at the provided position
+     */
+    public Comparable get(int i) {
+        return values[i];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int compareTo(CompositeKey o) {
+        for (int i = 0; i < values.length && i < o.values.length; i++) {
+            int c = values[i].compareTo(o.values[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(values.length, o.values.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(values, ((CompositeKey) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
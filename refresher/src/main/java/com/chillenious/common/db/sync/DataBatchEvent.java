@@ -0,0 +1,53 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Event that bundles a batch of {@link DataCreatedEvent created}, {@link DataChangedEvent changed}
+ * and {@link DataDeletedEvent deleted} events, so that listeners can apply them in one go
+ * (e.g. under a single lock acquisition) rather than one by one. The events are applied in
+ * the order of the batch. Batches have no subject, so their {@link #getId() id} is null.
+ *
+ * @param <O> persistent object type
+ */
+public final class DataBatchEvent<O extends PersistentObject> extends DataRefreshEvent<O> {
+
+    private final List<DataRefreshEvent<O>> events;
+
+    public DataBatchEvent(List<? extends DataRefreshEvent<O>> events) {
+        super(null);
+        if (events == null) {
+            throw new NullPointerException();
+        }
+        for (DataRefreshEvent<O> evt : events) {
+            if (!(evt instanceof DataCreatedEvent
+                    || evt instanceof DataChangedEvent
+                    || evt instanceof DataDeletedEvent)) {
+                throw new IllegalArgumentException(String.format(
+                        "only created, changed and deleted events can be batched (got %s)", evt));
+            }
+        }
+        this.events = ImmutableList.copyOf(events);
+    }
+
+    /**
+     * @return the events in this batch, in order
+     */
+    public List<DataRefreshEvent<O>> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return number of events in this batch
+     */
+    public int size() {
+        return events.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DataBatchEvent{timestamp=%d, size=%,d}", getTimestamp(), events.size());
+    }
+}
@@ -0,0 +1,88 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableList;
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteType;
+import org.jooq.Table;
+import org.jooq.impl.DefaultExecuteListener;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * jOOQ execute listener that {@link DataChangeNotifier#requestRefresh() requests a refresh}
+ * whenever a statement that writes to any of the provided tables is executed, so that the
+ * changes are picked up right away (or right after the transaction commits) rather than with the
+ * next scheduled refresh. Add it to the configuration of the DSL context that writes, e.g.:
+ * <pre>
+ *     configuration.set(new DefaultExecuteListenerProvider(
+ *             new DataChangeExecuteListener(notifier, Tables.PRODUCT)));
+ * </pre>
+ * Statements are matched on the names of the tables in their SQL. As statements don't say which
+ * rows they changed, this relies on the refresher to find out (which is cheap for refreshers
+ * that only load what changed, like a {@link WatermarkDataRefresher}). Code that knows which
+ * objects changed can notify the {@link DataChangeNotifier notifier} directly instead.
+ */
+public class DataChangeExecuteListener extends DefaultExecuteListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DataChangeNotifier<?> notifier;
+
+    private final List<Pattern> tables;
+
+    /**
+     * Construct.
+     *
+     * @param notifier notifier to request refreshes with
+     * @param tables   tables of the objects the notifier is for
+     */
+    public DataChangeExecuteListener(DataChangeNotifier<?> notifier, Table<?>... tables) {
+        if (notifier == null) {
+            throw new NullPointerException();
+        }
+        if (tables.length == 0) {
+            throw new IllegalArgumentException("at least one table is needed");
+        }
+        this.notifier = notifier;
+        ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+        for (Table<?> table : tables) {
+            patterns.add(Pattern.compile("(^|\\W)" + Pattern.quote(table.getName()) + "(\\W|$)",
+                    Pattern.CASE_INSENSITIVE));
+        }
+        this.tables = patterns.build();
+    }
+
+    @Override
+    public void executeEnd(ExecuteContext ctx) {
+        if (ctx.sqlException() != null || ctx.exception() != null) {
+            return;
+        }
+        if (ctx.type() == ExecuteType.WRITE) {
+            if (writes(ctx.sql())) {
+                notifier.requestRefresh();
+            }
+        } else if (ctx.type() == ExecuteType.BATCH) {
+            for (String sql : ctx.batchSQL()) {
+                if (writes(sql)) {
+                    notifier.requestRefresh();
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * Whether the statement mentions any of the tables.
+     */
+    private boolean writes(String sql) {
+        if (sql != null) {
+            for (Pattern table : tables) {
+                if (table.matcher(sql).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,223 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.WithShutdown;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Channel for pushing changes to the listeners of a {@link DataRefresher refresher} (e.g. the
+ * caches that it fills) right when they happen, rather than waiting for the next scheduled
+ * refresh. Code that writes to the data store notifies this object of what it
+ * {@link #changed(PersistentObject) changed}, {@link #deleted(Object...) deleted} or
+ * {@link #invalidate(Collection) touched} (e.g. through a {@link DataChangeExecuteListener}
+ * on jOOQ), and the corresponding events are published immediately. The scheduled refreshes
+ * then serve as a safety net that reconciles whatever was missed, and can be done a lot less
+ * frequently.
+ * <p/>
+ * When notified from within a Spring managed transaction (see
+ * {@link com.chillenious.common.db.jooq.JooqModule}), the events are only published after the
+ * transaction commits, so that they don't reflect changes that are rolled back, and so that
+ * objects that are {@link #invalidate(Collection) invalidated} are read back as committed.
+ * <p/>
+ * Requested refreshes run on the {@link RefreshExecutors#workers() shared workers}, so notifiers
+ * don't have threads of their own.
+ *
+ * @param <O> persistent object type
+ */
+public class DataChangeNotifier<O extends PersistentObject> implements WithShutdown {
+
+    private static final Logger log = LoggerFactory.getLogger(DataChangeNotifier.class);
+
+    private final DataRefresher<O> refresher;
+
+    private final PersistentObjectLookup<O> lookup;
+
+    private final Executor executor = RefreshExecutors.workers();
+
+    private final AtomicBoolean refreshRequested = new AtomicBoolean(false);
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Construct.
+     *
+     * @param shutdownHooks shutdown hook registry
+     * @param refresher     refresher to publish the changes with
+     * @param lookup        looks up objects that are {@link #invalidate(Collection) invalidated}
+     *                      (e.g. a {@link JdbcObjectLookup}), or null if changes are only pushed
+     *                      with the objects, or by {@link #requestRefresh() requesting a refresh}
+     */
+    public DataChangeNotifier(ShutdownHooks shutdownHooks, DataRefresher<O> refresher,
+                              @Nullable PersistentObjectLookup<O> lookup) {
+        if (refresher == null) {
+            throw new NullPointerException();
+        }
+        this.refresher = refresher;
+        this.lookup = lookup;
+        shutdownHooks.add(this);
+    }
+
+    /**
+     * Notify that the provided object was created or changed.
+     *
+     * @param object object as it is in the data store now
+     */
+    public void changed(O object) {
+        if (object == null) {
+            throw new NullPointerException();
+        }
+        afterCommit(() -> refresher.publish(new DataChangedEvent<>(object)));
+    }
+
+    /**
+     * Notify that the provided objects were created or changed.
+     *
+     * @param objects objects as they are in the data store now
+     */
+    public void changed(Collection<? extends O> objects) {
+        List<DataRefreshEvent<O>> events = new ArrayList<>(objects.size());
+        for (O object : objects) {
+            events.add(new DataChangedEvent<>(object));
+        }
+        afterCommit(() -> refresher.publish(events));
+    }
+
+    /**
+     * Notify that the objects with the provided ids were deleted.
+     *
+     * @param ids ids of the deleted objects
+     */
+    public void deleted(Object... ids) {
+        List<DataRefreshEvent<O>> events = new ArrayList<>(ids.length);
+        for (Object id : ids) {
+            events.add(new DataDeletedEvent<O>(id));
+        }
+        afterCommit(() -> refresher.publish(events));
+    }
+
+    /**
+     * Notify that the objects with the provided ids were created, changed or deleted. The objects
+     * are looked up (in one go), and published as changed when they are found and as deleted when
+     * they aren't.
+     *
+     * @param ids ids of the objects
+     * @throws IllegalStateException when this notifier doesn't have a lookup
+     */
+    public void invalidate(Object... ids) {
+        invalidate(Arrays.asList(ids));
+    }
+
+    /**
+     * Notify that the objects with the provided ids were created, changed or deleted. The objects
+     * are looked up (in one go), and published as changed when they are found and as deleted when
+     * they aren't. When the lookup fails, the failure is logged and a refresh is
+     * {@link #requestRefresh() requested} instead, so that the failure doesn't surface as a failed
+     * commit of the transaction that already committed.
+     *
+     * @param ids ids of the objects
+     * @throws IllegalStateException when this notifier doesn't have a lookup
+     */
+    public void invalidate(Collection<?> ids) {
+        if (lookup == null) {
+            throw new IllegalStateException(String.format(
+                    "%s has no lookup; can't invalidate %s", this, ids));
+        }
+        List<Object> copy = new ArrayList<>(ids);
+        afterCommit(() -> {
+            Map<Object, O> found;
+            try {
+                found = lookup.lookupAll(copy);
+            } catch (RuntimeException e) {
+                log.error(String.format("problem looking up %s to invalidate them; requesting a refresh of %s " +
+                        "instead: %s", copy, refresher, e.getMessage()), e);
+                refreshInBackground();
+                return;
+            }
+            List<DataRefreshEvent<O>> events = new ArrayList<>(copy.size());
+            for (Object id : copy) {
+                O object = found.get(id);
+                events.add((object != null) ? new DataChangedEvent<>(object) : new DataDeletedEvent<O>(id));
+            }
+            refresher.publish(events);
+        });
+    }
+
+    /**
+     * Request a refresh, for when it's not known which objects changed; the refresh is done
+     * in the background, right away, unless one was already requested and didn't start yet.
+     * This is cheap with refreshers that only load what changed since the previous refresh, like
+     * a {@link WatermarkDataRefresher}.
+     */
+    public void requestRefresh() {
+        afterCommit(this::refreshInBackground);
+    }
+
+    /*
+     * Refresh in the background, unless a refresh was already requested and didn't start yet.
+     */
+    private void refreshInBackground() {
+        if (!shutdown && refreshRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    refreshRequested.set(false);
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        RefreshResults results = refresher.refresh();
+                        if (log.isDebugEnabled()) {
+                            log.debug(String.format("requested refresh of %s: %s", refresher, results));
+                        }
+                    } catch (Exception e) {
+                        log.error(String.format("problem with requested refresh of %s: %s",
+                                refresher, e.getMessage()), e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshRequested.set(false);
+                log.error(String.format("unable to refresh %s: %s", refresher, e.getMessage()), e);
+            }
+        }
+    }
+
+    /*
+     * Run the notification right away, or after the current transaction commits if there is one.
+     */
+    private void afterCommit(Runnable notification) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    notification.run();
+                }
+            });
+        } else {
+            notification.run();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true; // the workers are shared, so they keep running
+    }
+
+    @Override
+    public String toString() {
+        return "DataChangeNotifier{" +
+                "refresher=" + refresher +
+                '}';
+    }
+}
@@ -0,0 +1,29 @@
+package com.chillenious.common.db.sync;
+
+import java.io.Serializable;
+
+/**
+ * Event that is sent out with the {@link DataRefresher#getCheckpoint() checkpoint} of a refresher, after
+ * the events that led up to that checkpoint. Hence, when a listener receives this event, what it built up
+ * is at least as recent as the checkpoint.
+ *
+ * @param <O> persistent object type
+ */
+final class DataCheckpointEvent<O extends PersistentObject> extends DataRefreshEvent<O> {
+
+    private final Serializable checkpoint;
+
+    DataCheckpointEvent(Serializable checkpoint) {
+        super(null);
+        this.checkpoint = checkpoint;
+    }
+
+    Serializable getCheckpoint() {
+        return checkpoint;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Checkpoint {checkpoint=%s}", checkpoint);
+    }
+}
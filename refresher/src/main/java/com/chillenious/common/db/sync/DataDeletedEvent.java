@@ -10,4 +10,11 @@ public final class DataDeletedEvent<O extends PersistentObject> extends DataRefr
     public DataDeletedEvent(long id) {
         super(id);
     }
+
+    public DataDeletedEvent(Object id) {
+        super(id);
+        if (id == null) {
+            throw new NullPointerException();
+        }
+    }
 }
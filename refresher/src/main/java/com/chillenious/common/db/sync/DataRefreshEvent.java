@@ -36,6 +36,22 @@ public abstract class DataRefreshEvent<O extends PersistentObject> implements Se
         return id;
     }
 
+    /**
+     * Gets the object of a {@link DataCreatedEvent created} or {@link DataChangedEvent changed} event.
+     *
+     * @param evt event
+     * @return the object, or null if the event doesn't carry one
+     */
+    @SuppressWarnings("unchecked")
+    static <O extends PersistentObject> O objectOf(DataRefreshEvent<O> evt) {
+        if (evt instanceof DataCreatedEvent) {
+            return ((DataCreatedEvent<O>) evt).getObject();
+        } else if (evt instanceof DataChangedEvent) {
+            return ((DataChangedEvent<O>) evt).getObject();
+        }
+        return null;
+    }
+
     /**
      * @return time in ms this event was created
      */
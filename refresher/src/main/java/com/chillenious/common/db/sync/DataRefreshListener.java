@@ -26,9 +26,8 @@ public abstract class DataRefreshListener<O extends PersistentObject>
             throw new IllegalStateException(
                     "topic is not yet set; this listener is not properly initialized/ used");
         }
-        if (evt instanceof MarkerReq) {
-            log.info(String.format("received req; sending ack (listener = %s)", this));
-            topic.publish(new MarkerAck(this, (MarkerReq) evt));
+        if (evt instanceof DataBatchEvent) {
+            onBatch((DataBatchEvent<O>) evt);
         } else {
             onEvent(evt);
         }
@@ -41,12 +40,35 @@ public abstract class DataRefreshListener<O extends PersistentObject>
      */
     protected abstract void onEvent(DataRefreshEvent<O> evt);
 
-    protected O getObject(DataRefreshEvent<O> evt) {
-        if (evt instanceof DataCreatedEvent) {
-            return ((DataCreatedEvent<O>) evt).getObject();
-        } else if (evt instanceof DataChangedEvent) {
-            return ((DataChangedEvent<O>) evt).getObject();
+    /**
+     * Invoked when a batch of events is received. By default, this calls {@link #onEvent(DataRefreshEvent)}
+     * for every event in the batch; override to apply the batch in one go.
+     *
+     * @param batch received batch
+     */
+    protected void onBatch(DataBatchEvent<O> batch) {
+        for (DataRefreshEvent<O> evt : batch.getEvents()) {
+            onEvent(evt);
         }
-        return null;
+    }
+
+    /**
+     * Invoked when events for this listener were dropped because it's queue was full, once
+     * it caught up with the events that weren't dropped. What this listener built up from the
+     * events is stale at that point; override to e.g. rebuild from the source. The refresher
+     * forgets the versions of the objects it published and {@link DataRefresher#resync(java.util.Set)
+     * resyncs} the objects of the dropped events, so that its next refresh publishes them again.
+     * By default, this logs a warning.
+     *
+     * @param numberDropped number of events that were dropped
+     */
+    @Override
+    protected void onEventsDropped(long numberDropped) {
+        log.warn(String.format("%,d events were dropped for listener %s; it's data is stale",
+                numberDropped, this));
+    }
+
+    protected O getObject(DataRefreshEvent<O> evt) {
+        return DataRefreshEvent.objectOf(evt);
     }
 }
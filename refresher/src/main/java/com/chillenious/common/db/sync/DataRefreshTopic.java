@@ -5,14 +5,20 @@ import com.chillenious.common.ShutdownHooks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * Topic that sends out events asynchronously amongst the registered listeners, but
@@ -31,25 +37,59 @@ final class DataRefreshTopic<O extends PersistentObject> {
 
     private final Lock r = rwl.readLock(), w = rwl.writeLock();
 
+    private final ListenerQueueSettings defaultQueueSettings;
+
+    private final Executor executor;
+
+    // called with the ids of the dropped events when listeners report dropped events
+    private volatile Consumer<Set<Object>> onEventsDropped = ids -> { };
+
     /**
-     * each listener gets it's own queue in it's own thread. After creation,
-     * {@link #start()} needs to be called to actually poll for events.
+     * Each listener gets it's own queue, which is drained by one of the (shared)
+     * {@link RefreshExecutors#workers() workers} at a time whenever there are events in it, so
+     * that listeners don't need a thread of their own, while still getting their events one at
+     * a time and in order. After creation, {@link #start()} needs to be called to actually
+     * deliver events.
+     * <p/>
+     * Whoever wants to know when the events that were published so far are processed gets a
+     * future for the current {@link ListenerEventQueue#sequence() sequence number} of the queue,
+     * which is completed (after flushing the listener) when the queue has processed up to it.
      */
     static final class ListenerQueue<O extends PersistentObject> {
 
-        private final BlockingQueue<DataRefreshEvent<O>> queue = new LinkedBlockingQueue<>();
+        /**
+         * Maximum number of events that is delivered in one go, after which the rest of
+         * the queue is left to a new task so that busy listeners don't hold on to a worker.
+         */
+        static final int DRAIN_BATCH_SIZE = 256;
+
+        private final ListenerEventQueue<O> queue;
 
         private final BaseDataRefreshListener<O> listener;
 
-        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        private final Executor executor;
+
+        private final Consumer<Set<Object>> onEventsDropped;
+
+        // whether a drain task is submitted or running; only one at a time, which keeps events in order
+        private final AtomicBoolean draining = new AtomicBoolean();
 
-        final class PollDaemon implements Runnable {
+        private volatile boolean started = false, closed = false;
+
+        // futures of those waiting for events to be processed, by sequence number
+        private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters =
+                new ConcurrentSkipListMap<>();
+
+        final class Drainer implements Runnable {
             @Override
             public void run() {
-                log.debug("start polling data refresh event queue for " + listener);
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        DataRefreshEvent<O> evt = queue.take();
+                try {
+                    boolean flushed = false;
+                    for (int i = 0; i < DRAIN_BATCH_SIZE && !closed; i++) {
+                        DataRefreshEvent<O> evt = queue.poll();
+                        if (evt == null) {
+                            break;
+                        }
                         try {
                             listener.onDataRefresh(evt);
                         } catch (Exception e) {
@@ -57,45 +97,176 @@ final class DataRefreshTopic<O extends PersistentObject> {
                                     "problem handling data refresh event by listener %s: %s%n\tevent: %s",
                                     listener, e.getMessage(), evt), e);
                         }
-                    } catch (InterruptedException e) {
-                        //log.error(e.getMessage(), e);
-                        Thread.currentThread().interrupt(); // restore interrupt status and let exit
+                        flushed = queue.isEmpty() && flush();
+                        queue.markProcessed();
+                        flushed = release(flushed);
                     }
+                    release(flushed); // events might have cancelled each other out
+                } finally {
+                    draining.set(false);
+                }
+                if (!queue.isEmpty()) { // more events, or events that came in after the last poll
+                    drain();
                 }
-                log.debug(String.format(
-                        "exiting commit event queue polling for %s with %,d " +
-                                "events in the queue left",
-                        listener, queue.size()));
             }
         }
 
-        ListenerQueue(BaseDataRefreshListener<O> listener) {
+        /*
+         * Flush the listener, and tell it about dropped events, if any. Always returns true.
+         */
+        private boolean flush() {
+            try {
+                listener.flush();
+                long dropped = queue.takeNumberDropped();
+                if (dropped > 0) {
+                    onEventsDropped.accept(queue.takeDroppedIds());
+                    listener.onEventsDropped(dropped);
+                }
+            } catch (Exception e) {
+                log.error(String.format("problem flushing listener %s: %s",
+                        listener, e.getMessage()), e);
+            }
+            return true;
+        }
+
+        /*
+         * Complete the futures of those waiting for events that are processed by now, flushing
+         * the listener first unless it was just flushed. Returns whether the listener is flushed.
+         */
+        private boolean release(boolean flushed) {
+            Map.Entry<Long, CompletableFuture<Void>> first = waiters.firstEntry();
+            if (first == null) {
+                return flushed;
+            }
+            long processed = queue.processedSequence();
+            if (first.getKey() > processed) {
+                return flushed;
+            }
+            if (!flushed) {
+                flush();
+            }
+            complete(processed);
+            return true;
+        }
+
+        /*
+         * Complete the futures of those waiting for events up to the provided sequence number.
+         */
+        private void complete(long processed) {
+            for (Iterator<CompletableFuture<Void>> i = waiters.headMap(processed, true).values().iterator();
+                 i.hasNext(); ) {
+                CompletableFuture<Void> future = i.next();
+                i.remove();
+                future.complete(null);
+            }
+        }
+
+        /**
+         * @return future that is completed when the listener processed the events that were
+         * offered so far (or when the queue is shut down)
+         */
+        CompletableFuture<Void> whenProcessed() {
+            long sequence = queue.sequence();
+            if (closed || queue.processedSequence() >= sequence) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> future = waiters.computeIfAbsent(sequence, s -> new CompletableFuture<>());
+            if (closed) { // might have missed the shut down
+                complete(Long.MAX_VALUE);
+            } else if (queue.processedSequence() >= sequence) { // might have missed the last event
+                complete(sequence);
+            }
+            return future;
+        }
+
+        ListenerQueue(BaseDataRefreshListener<O> listener, ListenerQueueSettings settings, Executor executor,
+                      Consumer<Set<Object>> onEventsDropped) {
             if (listener == null) {
                 throw new NullPointerException();
             }
+            if (executor == null) {
+                throw new NullPointerException();
+            }
+            if (onEventsDropped == null) {
+                throw new NullPointerException();
+            }
             this.listener = listener;
+            this.executor = executor;
+            this.onEventsDropped = onEventsDropped;
+            this.queue = new ListenerEventQueue<>(settings);
             start();
         }
 
         void offer(DataRefreshEvent<O> evt) {
-            if (!queue.offer(evt)) {
+            try {
+                queue.put(evt);
+                drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // restore interrupt status
                 throw new IllegalStateException(String.format(
-                        "unable to add event to queue for listener %s", listener));
+                        "interrupted while adding event to queue for listener %s", listener), e);
             }
         }
 
+        ListenerQueueStats stats() {
+            return queue.stats(listener.toString());
+        }
+
         void start() {
-            executor.execute(new PollDaemon());
+            started = true;
+            drain();
+        }
+
+        /*
+         * Have the events in the queue delivered, unless that is already under way.
+         */
+        private void drain() {
+            if (started && !closed && !queue.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    executor.execute(new Drainer());
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                    log.error(String.format("unable to deliver events to listener %s: %s",
+                            listener, e.getMessage()), e);
+                }
+            }
         }
 
         void shutdown() {
-            executor.shutdownNow();
-            log.debug("queue for " + listener + " shut down");
+            closed = true;
+            queue.close();
+            complete(Long.MAX_VALUE);
+            log.debug(String.format("queue for %s shut down with %,d events in the queue left",
+                    listener, queue.size()));
         }
     }
 
     @Inject
     DataRefreshTopic(ShutdownHooks shutdownHooks) {
+        this(shutdownHooks, ListenerQueueSettings.unbounded());
+    }
+
+    DataRefreshTopic(ShutdownHooks shutdownHooks, ListenerQueueSettings defaultQueueSettings) {
+        this(shutdownHooks, defaultQueueSettings, RefreshExecutors.workers());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param shutdownHooks        shutdown hook registry
+     * @param defaultQueueSettings settings for the queues of listeners that are added without settings
+     * @param executor             executor that delivers the events to the listeners
+     */
+    DataRefreshTopic(ShutdownHooks shutdownHooks, ListenerQueueSettings defaultQueueSettings,
+                     Executor executor) {
+        if (defaultQueueSettings == null) {
+            throw new NullPointerException();
+        }
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        this.defaultQueueSettings = defaultQueueSettings;
+        this.executor = executor;
         shutdownHooks.add(new Runnable() {
             @Override
             public void run() {
@@ -104,6 +275,19 @@ final class DataRefreshTopic<O extends PersistentObject> {
         });
     }
 
+    /**
+     * Set what to do when a listener reports that events were dropped for it (see
+     * {@link BaseDataRefreshListener#onEventsDropped(long)}), besides telling the listener.
+     *
+     * @param onEventsDropped what to do with the ids of the objects of the dropped events
+     */
+    void setOnEventsDropped(Consumer<Set<Object>> onEventsDropped) {
+        if (onEventsDropped == null) {
+            throw new NullPointerException();
+        }
+        this.onEventsDropped = onEventsDropped;
+    }
+
     /**
      * Publish data commit event to the registered listeners.
      *
@@ -127,14 +311,26 @@ final class DataRefreshTopic<O extends PersistentObject> {
     }
 
     /**
-     * Adds a listener; will be called in order it was added compared to other listeners.
+     * Adds a listener with the default queue settings; will be called in order it was
+     * added compared to other listeners.
      *
      * @param listener listener
      */
     void addListener(BaseDataRefreshListener<O> listener) {
+        addListener(listener, defaultQueueSettings);
+    }
+
+    /**
+     * Adds a listener; will be called in order it was added compared to other listeners.
+     *
+     * @param listener      listener
+     * @param queueSettings settings for the queue of the listener
+     */
+    void addListener(BaseDataRefreshListener<O> listener, ListenerQueueSettings queueSettings) {
         w.lock();
         try {
-            listeners.put(listener, new ListenerQueue<O>(listener));
+            listeners.put(listener, new ListenerQueue<O>(listener, queueSettings, executor,
+                    ids -> onEventsDropped.accept(ids)));
             listener.setTopic(this);
         } finally {
             w.unlock();
@@ -162,6 +358,33 @@ final class DataRefreshTopic<O extends PersistentObject> {
         q.shutdown();
     }
 
+    /**
+     * Gets a future that is completed when all listeners that are registered with the topic
+     * processed (and flushed) the events that were published so far. This doesn't block, and
+     * many callers can wait at the same time. Note that the future is completed on the thread
+     * that delivered the last event, so callers should use the async variants of the methods of
+     * the future for anything that takes a while.
+     *
+     * @return future that completes when the listeners are done with the events published so far
+     */
+    CompletableFuture<Void> whenProcessed() {
+        List<CompletableFuture<Void>> futures;
+        r.lock();
+        try {
+            futures = new ArrayList<>(listeners.size());
+            for (ListenerQueue<O> listenerQueue : listeners.values()) {
+                CompletableFuture<Void> future = listenerQueue.whenProcessed();
+                if (!future.isDone()) {
+                    futures.add(future);
+                }
+            }
+        } finally {
+            r.unlock();
+        }
+        return futures.isEmpty() ? CompletableFuture.completedFuture(null) :
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
     /**
      * @return the number of listeners registered with the topic
      */
@@ -174,6 +397,22 @@ final class DataRefreshTopic<O extends PersistentObject> {
         }
     }
 
+    /**
+     * @return statistics for the queues of the registered listeners
+     */
+    List<ListenerQueueStats> getListenerQueueStats() {
+        r.lock();
+        try {
+            List<ListenerQueueStats> stats = new ArrayList<>(listeners.size());
+            for (ListenerQueue<O> listenerQueue : listeners.values()) {
+                stats.add(listenerQueue.stats());
+            }
+            return stats;
+        } finally {
+            r.unlock();
+        }
+    }
+
     void shutdown() {
         w.lock();
         try {
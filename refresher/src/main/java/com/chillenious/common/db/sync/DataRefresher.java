@@ -2,22 +2,69 @@ package com.chillenious.common.db.sync;
 
 import com.chillenious.common.ShutdownHooks;
 import com.chillenious.common.util.Duration;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Base class for classes that know how to refresh data from a store and
  * broadcast that to interested parties.
+ * <p/>
+ * When the objects are {@link VersionedPersistentObject versioned}, the refresher keeps the
+ * versions of the objects it published, and {@link DataChangedEvent changed} events for objects
+ * that have the same version as when they were last published aren't published at all.
+ * Implementations can check {@link #isUnchanged(PersistentObject)} up front, so that they
+ * don't create those events in the first place, and so that they can count them as
+ * {@link RefreshResults.Counter#incUnchanged() unchanged}; the publish methods return how many
+ * events they left out, so that those can be counted as
+ * {@link RefreshResults.Counter#incSuppressed(int) unchanged} as well.
+ * <p/>
+ * As listeners rely on the refresher to send them what changed, the versions are forgotten when
+ * a listener is added or reports that it {@link DataRefreshListener#onEventsDropped(long) dropped
+ * events}, so that the next refresh publishes all the objects it finds again. Refreshers that
+ * only publish what changed should also {@link #resync(java.util.Set) resync} the objects of the
+ * dropped events, so that the listeners that missed them are repaired.
  *
  * @param <O> persistent object type
  */
 public abstract class DataRefresher<O extends PersistentObject> {
 
+    private static final Logger log = LoggerFactory.getLogger(DataRefresher.class);
+
     private final DataRefreshTopic<O> topic;
 
-    private final DataRefreshListenerMarker<O> synchronizer;
+    private final Map<Object, Long> publishedVersions = new ConcurrentHashMap<>(); // for versioned objects
 
     public DataRefresher(ShutdownHooks shutdownHooks) {
-        this.topic = new DataRefreshTopic<>(shutdownHooks);
-        this.synchronizer = new DataRefreshListenerMarker<>(topic);
+        this(shutdownHooks, ListenerQueueSettings.unbounded());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param shutdownHooks        shutdown hook registry
+     * @param defaultQueueSettings settings for the queues of listeners that are added without
+     *                             explicit settings
+     */
+    public DataRefresher(ShutdownHooks shutdownHooks, ListenerQueueSettings defaultQueueSettings) {
+        this.topic = new DataRefreshTopic<>(shutdownHooks, defaultQueueSettings);
+        this.topic.setOnEventsDropped(this::eventsDropped);
     }
 
     /**
@@ -29,12 +76,232 @@ public abstract class DataRefresher<O extends PersistentObject> {
     public abstract RefreshResults refresh();
 
     /**
-     * Publishes event to interested parties.
+     * Split the initial load in partitions (e.g. key ranges) that can be loaded concurrently.
+     * Each partition should publish the objects it loads as {@link DataCreatedEvent created}
+     * events (preferably {@link #publish(java.util.List) in batches}) and return what it did.
+     * <p/>
+     * By default, this returns an empty list, meaning the source can't be partitioned and
+     * {@link #load()} simply does a {@link #refresh()}. Implementations that do partition
+     * should make sure that subsequent refreshes know about the objects that were loaded.
+     *
+     * @return partitions, possibly empty, never null
+     */
+    protected List<Callable<RefreshResults>> partitions() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Do the initial load of the backing data store, running the {@link #partitions() partitions}
+     * concurrently on the {@link RefreshExecutors#workers() shared workers} if the source is
+     * partitioned, or just doing a {@link #refresh()} otherwise. When a partition fails, the
+     * partitions that didn't start yet are skipped, and the ones that are running are waited for
+     * before this throws, so that no partition publishes anymore once this returns.
+     *
+     * @return summary of the load, combined for all partitions
+     */
+    public RefreshResults load() {
+        List<Callable<RefreshResults>> partitions = partitions();
+        if (partitions.size() < 2) {
+            return partitions.isEmpty() ? refresh() : call(partitions.get(0));
+        }
+        RefreshResults.Counter counter = RefreshResults.newCounter();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<RefreshResults>> futures = new ArrayList<>(partitions.size());
+        for (Callable<RefreshResults> partition : partitions) {
+            futures.add(CompletableFuture.supplyAsync(() -> failed.get() ? null
+                    : RefreshExecutors.managedBlock(() -> call(partition)), RefreshExecutors.workers()));
+        }
+        Throwable problem = null;
+        boolean interrupted = false;
+        for (Future<RefreshResults> future : futures) {
+            try {
+                if (!interrupted) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        failed.set(true); // skip the partitions that didn't start yet
+                    }
+                }
+                RefreshResults results = Uninterruptibles.getUninterruptibly(future);
+                if (results != null) {
+                    counter.add(results);
+                }
+            } catch (ExecutionException e) {
+                failed.set(true); // skip the partitions that didn't start yet
+                if (problem == null) {
+                    problem = e.getCause();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("interrupted while loading %s", this));
+        }
+        if (problem != null) {
+            String msg = String.format("problem loading partition of %s: %s", this, problem.getMessage());
+            log.error(msg, problem);
+            throw new IllegalStateException(msg, problem);
+        }
+        return counter.asResults();
+    }
+
+    /*
+     * Load a single partition on the calling thread.
+     */
+    private RefreshResults call(Callable<RefreshResults> partition) {
+        try {
+            return partition.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(String.format("problem loading %s: %s", this, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Gets a checkpoint that captures how far this refresher got, so that a refresher can later
+     * {@link #restoreCheckpoint(java.io.Serializable) continue} from there, e.g. to warm-start a
+     * cache from a {@link CacheSnapshot snapshot}. Implementations should make sure that the
+     * checkpoint is consistent with the events that were published; when it is taken while a
+     * refresh is running, it should reflect the state before or after that refresh.
+     * <p/>
+     * By default, this returns null, which means checkpoints are not supported.
+     *
+     * @return checkpoint or null
+     */
+    @Nullable
+    protected Serializable getCheckpoint() {
+        return null;
+    }
+
+    /**
+     * Continue from the provided checkpoint, that was produced by {@link #getCheckpoint()}.
+     * Should be called before the first refresh.
+     *
+     * @param checkpoint checkpoint to continue from
+     * @throws UnsupportedOperationException when this refresher doesn't support checkpoints
+     */
+    protected void restoreCheckpoint(Serializable checkpoint) {
+        throw new UnsupportedOperationException(String.format("%s doesn't support checkpoints", this));
+    }
+
+    /*
+     * Publish the current checkpoint (if any), so that listeners know what they built up is
+     * at least as recent as that checkpoint once they receive it.
+     */
+    void publishCheckpoint() {
+        Serializable checkpoint = getCheckpoint();
+        if (checkpoint != null) {
+            topic.publish(new DataCheckpointEvent<O>(checkpoint));
+        }
+    }
+
+    /**
+     * Whether the provided object is {@link VersionedPersistentObject versioned}, and has the same
+     * version as when it was last published, in which case publishing it again as changed would
+     * be a no-op.
+     *
+     * @param object object to check
+     * @return whether the object didn't change since it was last published
+     */
+    protected final boolean isUnchanged(O object) {
+        if (object instanceof VersionedPersistentObject) {
+            Long published = publishedVersions.get(object.getId());
+            return published != null && published == ((VersionedPersistentObject) object).getVersion();
+        }
+        return false;
+    }
+
+    /**
+     * Called when events were dropped for a listener because it's queue was full, once the
+     * listener caught up with the events that weren't dropped. Implementations that only publish
+     * what changed should make sure that the current state of the objects of the dropped events
+     * is published again, including deletes for the ones that are gone, e.g. by doing a full
+     * load with the next refresh. By default, this does nothing, which is fine for refreshers that
+     * publish all objects with every refresh.
+     *
+     * @param droppedIds ids of the objects of the events that were dropped
+     */
+    protected void resync(Set<Object> droppedIds) {
+    }
+
+    /*
+     * Repair listeners that dropped events.
+     */
+    private void eventsDropped(Set<Object> droppedIds) {
+        forgetPublishedVersions();
+        resync(droppedIds);
+    }
+
+    /*
+     * Forget the versions of the objects that were published, so that changed events for them
+     * are published again, e.g. for listeners that missed them.
+     */
+    private void forgetPublishedVersions() {
+        if (!publishedVersions.isEmpty()) {
+            log.info(String.format("%s forgets the versions of %,d objects; they'll be published again",
+                    this, publishedVersions.size()));
+            publishedVersions.clear();
+        }
+    }
+
+    /*
+     * Whether the event should be published, keeping track of the versions of the objects.
+     */
+    private boolean track(DataRefreshEvent<O> evt) {
+        if (evt instanceof DataDeletedEvent) {
+            publishedVersions.remove(evt.getId());
+        } else {
+            O object = DataRefreshEvent.objectOf(evt);
+            if (object instanceof VersionedPersistentObject) {
+                Long previous = publishedVersions.put(
+                        object.getId(), ((VersionedPersistentObject) object).getVersion());
+                return !(evt instanceof DataChangedEvent)
+                        || previous == null || previous != ((VersionedPersistentObject) object).getVersion();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes event to interested parties, unless it is a {@link DataChangedEvent changed}
+     * event for an object that {@link #isUnchanged(PersistentObject) didn't change}.
      *
      * @param evt event to publish
+     * @return number of events that were left out (0 or 1, or up to the size of the batch
+     * for {@link DataBatchEvent batches})
+     */
+    protected final int publish(DataRefreshEvent<O> evt) {
+        if (evt instanceof DataBatchEvent) {
+            return publish(((DataBatchEvent<O>) evt).getEvents());
+        } else if (track(evt)) {
+            topic.publish(evt);
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * Publishes events to interested parties as a single {@link DataBatchEvent batch}, so that
+     * listeners can apply them in one go, leaving out {@link DataChangedEvent changed} events
+     * for objects that {@link #isUnchanged(PersistentObject) didn't change}. Nothing is published
+     * when no events remain.
+     *
+     * @param events created, changed and/ or deleted events to publish, in order
+     * @return number of events that were left out
      */
-    protected final void publish(DataRefreshEvent<O> evt) {
-        topic.publish(evt);
+    protected final int publish(List<? extends DataRefreshEvent<O>> events) {
+        List<DataRefreshEvent<O>> changed = new ArrayList<>(events.size());
+        for (DataRefreshEvent<O> evt : events) {
+            if (track(evt)) {
+                changed.add(evt);
+            }
+        }
+        if (!changed.isEmpty()) {
+            topic.publish(new DataBatchEvent<>(changed));
+        }
+        return events.size() - changed.size();
     }
 
     /**
@@ -45,6 +312,19 @@ public abstract class DataRefresher<O extends PersistentObject> {
     public final void addListener(DataRefreshListener<O> listener) {
         listener.setTopic(topic);
         topic.addListener(listener);
+        forgetPublishedVersions();
+    }
+
+    /**
+     * Adds a listener with specific settings for it's queue.
+     *
+     * @param listener      listener to add
+     * @param queueSettings settings for the queue of the listener
+     */
+    public final void addListener(DataRefreshListener<O> listener, ListenerQueueSettings queueSettings) {
+        listener.setTopic(topic);
+        topic.addListener(listener, queueSettings);
+        forgetPublishedVersions();
     }
 
     /**
@@ -57,6 +337,33 @@ public abstract class DataRefresher<O extends PersistentObject> {
         listener.setTopic(null);
     }
 
+    /**
+     * Calls {@link #refresh()} and returns a future that is completed with the results when
+     * the listeners are done processing the events of the refresh (see
+     * {@link #whenListenersDone()}). The refresh itself runs on the calling thread; the
+     * waiting for the listeners doesn't block it.
+     *
+     * @return future for the refresh results
+     */
+    public final CompletableFuture<RefreshResults> refreshAndApply() {
+        RefreshResults results = refresh();
+        return whenListenersDone().thenApply(done -> results);
+    }
+
+    /**
+     * Gets a future that is completed when all listeners processed the events that were
+     * published so far. Every listener keeps track of the sequence number of the last event it
+     * was sent and of the event it processed last, so this is cheap, doesn't block, and can be
+     * called by many callers at the same time. Note that the future might be completed on a
+     * thread that delivers events to listeners; use the async methods of the future for anything
+     * that takes a while.
+     *
+     * @return future that is completed when the listeners are done
+     */
+    public final CompletableFuture<Void> whenListenersDone() {
+        return topic.whenProcessed();
+    }
+
     /**
      * Calls {@link #refresh()} and then waits for listeners the finish processing
      * with the provided timeout.
@@ -74,10 +381,36 @@ public abstract class DataRefresher<O extends PersistentObject> {
      * Block until all processing by listeners is done or the provided
      * timeout passes.
      *
-     * @param timeout maximum time to wait
+     * @param timeout maximum time to wait; null for no time out
+     * @throws OverDueException if the timeout passes before the listeners are done
+     */
+    public final void waitForListeners(@Nullable Duration timeout) {
+        CompletableFuture<Void> done = whenListenersDone();
+        try {
+            if (timeout != null) {
+                done.get(timeout.getMilliseconds(), TimeUnit.MILLISECONDS);
+            } else {
+                done.get();
+            }
+        } catch (TimeoutException e) {
+            throw new OverDueException(String.format(
+                    "too much time (%s) elapsed while waiting for listeners of %s", timeout, this));
+        } catch (InterruptedException e) {
+            log.error(e.getMessage(), e);
+            Thread.currentThread().interrupt(); // restore interrupt status
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Gets statistics (depth, lag, dropped events, etc) for the queues of the listeners
+     * of this refresher, e.g. for exposing them as metrics.
+     *
+     * @return statistics per listener, in the order the listeners were added
      */
-    public final void waitForListeners(Duration timeout) {
-        synchronizer.blockUntilNextMarker(timeout);
+    public final List<ListenerQueueStats> getListenerQueueStats() {
+        return topic.getListenerQueueStats();
     }
 
     public void shutdown() {
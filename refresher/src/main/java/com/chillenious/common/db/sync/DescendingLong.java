@@ -2,13 +2,16 @@ package com.chillenious.common.db.sync;
 
 import com.google.common.base.Objects;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Comparable for longs in descending order. A salt is added because when this is
- * used with timestamps, the order in which they are created can matter.
+ * used with timestamps, the order in which they are created can matter. The salt comes
+ * from an atomic sequence, so creating instances doesn't contend on a lock.
  */
 public final class DescendingLong implements Comparable<DescendingLong> {
 
-    private static volatile int globalCounter = 0;
+    private static final AtomicLong sequence = new AtomicLong();
 
     private final long value;
 
@@ -19,19 +22,8 @@ public final class DescendingLong implements Comparable<DescendingLong> {
         this.salt = next();
     }
 
-    private static int next() {
-        synchronized (DescendingLong.class) {
-            if (globalCounter == Integer.MAX_VALUE) {
-                try {
-                    Thread.sleep(1); // in case you create a new instance after this, this should be marked 'earlier'
-                } catch (InterruptedException e) {
-                }
-                globalCounter = 0;
-            } else {
-                globalCounter++;
-            }
-            return globalCounter;
-        }
+    private static long next() {
+        return sequence.incrementAndGet(); // a long doesn't wrap around in practice
     }
 
     @Override
@@ -0,0 +1,129 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Index store that keeps the members of each key in a hash set; this is a good fit
+ * for keys with few members each. Stores created with a resolver hold ids rather than objects,
+ * and look up objects with the resolver when they are read.
+ *
+ * @param <O> type of objects that are indexed
+ * @param <T> key type
+ */
+class HashIndexStore<O extends PersistentObject, T> implements IndexStore<O, T> {
+
+    protected final Map<T, Set<Object>> indexed; // objects, or ids when resolving
+
+    private final Function<Object, O> resolver;
+
+    HashIndexStore(@Nullable Function<Object, O> resolver) {
+        this(new HashMap<>(), resolver);
+    }
+
+    HashIndexStore(Map<T, Set<Object>> indexed, @Nullable Function<Object, O> resolver) {
+        this.indexed = indexed;
+        this.resolver = resolver;
+    }
+
+    @Override
+    public void add(T key, O object) {
+        Set<Object> members = indexed.get(key);
+        if (members == null) {
+            members = new HashSet<>();
+            indexed.put(key, members);
+        }
+        members.add((resolver != null) ? object.getId() : object);
+    }
+
+    @Override
+    public void remove(T key, Object id, @Nullable O object) {
+        Set<Object> members = indexed.get(key);
+        if (members == null) {
+            return;
+        }
+        if (resolver != null) {
+            members.remove(id);
+        } else if (object == null || !members.remove(object)) {
+            for (Iterator<Object> i = members.iterator(); i.hasNext(); ) {
+                PersistentObject indexedObject = (PersistentObject) i.next();
+                if (Objects.equal(indexedObject.getId(), id)) {
+                    i.remove();
+                }
+            }
+        }
+        if (members.isEmpty()) {
+            indexed.remove(key);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<O> get(T key) {
+        Set<Object> members = indexed.get(key);
+        if (members == null) {
+            return ImmutableSet.of();
+        } else if (resolver == null) {
+            return Collections.unmodifiableSet((Set<O>) (Set) members);
+        }
+        return resolve(Collections.singleton(members));
+    }
+
+    @Override
+    public IdSet ids(T key) {
+        Set<Object> members = indexed.get(key);
+        return (members != null) ? idsOf(Collections.singleton(members)) : IdSet.EMPTY;
+    }
+
+    /**
+     * @param groups sets of members
+     * @return objects in the sets
+     */
+    @SuppressWarnings("unchecked")
+    protected Set<O> resolve(Collection<Set<Object>> groups) {
+        ImmutableSet.Builder<O> objects = ImmutableSet.builder();
+        for (Set<Object> members : groups) {
+            if (resolver == null) {
+                objects.addAll((Set<O>) (Set) members);
+            } else {
+                for (Object id : members) {
+                    O object = resolver.apply(id);
+                    if (object != null) { // might be removed from the storage before it's removed from the index
+                        objects.add(object);
+                    }
+                }
+            }
+        }
+        return objects.build();
+    }
+
+    /**
+     * @param groups sets of members
+     * @return ids of the objects in the sets
+     */
+    protected IdSet idsOf(Collection<Set<Object>> groups) {
+        List<Object> ids = new ArrayList<>();
+        for (Set<Object> members : groups) {
+            if (resolver != null) {
+                ids.addAll(members);
+            } else {
+                for (Object object : members) {
+                    ids.add(((PersistentObject) object).getId());
+                }
+            }
+        }
+        return IdSet.of(ids);
+    }
+}
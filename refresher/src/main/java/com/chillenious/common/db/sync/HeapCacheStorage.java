@@ -0,0 +1,93 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage that keeps objects on the heap, in a Guava {@link com.google.common.cache.Cache}.
+ * This is the default storage for {@link com.chillenious.common.db.sync.PersistentObjectCache caches}.
+ *
+ * @param <O> type of the objects in the storage
+ */
+public final class HeapCacheStorage<O extends PersistentObject> implements CacheStorage<O> {
+
+    private final Cache<Object, O> cache;
+
+    /**
+     * Construct.
+     *
+     * @param recordStats whether to record record stats (which will result
+     *                    in a slight overhead of working with the cache, but
+     *                    might give you interesting usage stats)
+     */
+    public HeapCacheStorage(boolean recordStats) {
+        if (recordStats) {
+            this.cache = CacheBuilder.newBuilder().recordStats().build();
+        } else {
+            this.cache = CacheBuilder.newBuilder().build();
+        }
+    }
+
+    @Override
+    public O get(Object id) {
+        return cache.getIfPresent(id);
+    }
+
+    @Override
+    public void put(O object) {
+        cache.put(object.getId(), object);
+    }
+
+    @Override
+    public void remove(Object id) {
+        cache.invalidate(id);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public Set<Object> ids() {
+        return cache.asMap().keySet();
+    }
+
+    @Override
+    public Collection<O> values() {
+        return cache.asMap().values();
+    }
+
+    @Override
+    public Map<Object, O> asMap() {
+        return Collections.unmodifiableMap(cache.asMap());
+    }
+
+    /*
+     * The backing Guava cache, for the deprecated cache view of PersistentObjectCache.
+     */
+    Cache<Object, O> guavaCache() {
+        return cache;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public boolean isHeapResident() {
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map from the ids of persistent objects to values, used for the reverse lookups of sorters and
+ * indexers. When all ids are longs, a {@link LongObjectMap primitive map} can be used, which
+ * avoids boxed keys and entry objects.
+ *
+ * @param <V> type of the values
+ */
+abstract class IdMap<V> {
+
+    /**
+     * Create a new map.
+     *
+     * @param longIds    whether all ids are longs
+     * @param concurrent whether the map should support reads while it is written to; note that
+     *                   maps with long ids never do, so callers need to coordinate access
+     * @return new map
+     */
+    static <V> IdMap<V> create(boolean longIds, boolean concurrent) {
+        if (longIds) {
+            return new LongIds<>(new LongObjectMap<V>());
+        }
+        return new ObjectIds<>(concurrent ? new ConcurrentHashMap<Object, V>() : new HashMap<Object, V>());
+    }
+
+    abstract V get(Object id);
+
+    abstract V put(Object id, V value);
+
+    abstract V remove(Object id);
+
+    abstract boolean containsKey(Object id);
+
+    abstract int size();
+
+    abstract void clear();
+
+    /**
+     * @return the ids; a view for maps with object ids, and a copy for maps with long ids
+     */
+    abstract Set<Object> ids();
+
+    /**
+     * @return copy of this map that is safe to read from multiple threads, and that may not be changed
+     */
+    abstract IdMap<V> immutableCopy();
+
+    /*
+     * Backed by a regular map.
+     */
+    private static final class ObjectIds<V> extends IdMap<V> {
+
+        private final Map<Object, V> map;
+
+        ObjectIds(Map<Object, V> map) {
+            this.map = map;
+        }
+
+        @Override
+        V get(Object id) {
+            return map.get(id);
+        }
+
+        @Override
+        V put(Object id, V value) {
+            return map.put(id, value);
+        }
+
+        @Override
+        V remove(Object id) {
+            return map.remove(id);
+        }
+
+        @Override
+        boolean containsKey(Object id) {
+            return map.containsKey(id);
+        }
+
+        @Override
+        int size() {
+            return map.size();
+        }
+
+        @Override
+        void clear() {
+            map.clear();
+        }
+
+        @Override
+        Set<Object> ids() {
+            return Collections.unmodifiableSet(map.keySet());
+        }
+
+        @Override
+        IdMap<V> immutableCopy() {
+            return new ObjectIds<>(ImmutableMap.copyOf(map));
+        }
+    }
+
+    /*
+     * Backed by a primitive map.
+     */
+    private static final class LongIds<V> extends IdMap<V> {
+
+        private final LongObjectMap<V> map;
+
+        LongIds(LongObjectMap<V> map) {
+            this.map = map;
+        }
+
+        @Override
+        V get(Object id) {
+            return (id instanceof Long) ? map.get((Long) id) : null;
+        }
+
+        @Override
+        V put(Object id, V value) {
+            if (!(id instanceof Long)) {
+                throw new IllegalArgumentException(String.format(
+                        "id %s is not a long (%s)", id, (id != null) ? id.getClass() : null));
+            }
+            return map.put((Long) id, value);
+        }
+
+        @Override
+        V remove(Object id) {
+            return (id instanceof Long) ? map.remove((Long) id) : null;
+        }
+
+        @Override
+        boolean containsKey(Object id) {
+            return (id instanceof Long) && map.containsKey((Long) id);
+        }
+
+        @Override
+        int size() {
+            return map.size();
+        }
+
+        @Override
+        void clear() {
+            map.clear();
+        }
+
+        @Override
+        Set<Object> ids() {
+            final ImmutableSet.Builder<Object> ids = ImmutableSet.builder();
+            map.forEach((key, value) -> ids.add(key));
+            return ids.build();
+        }
+
+        @Override
+        IdMap<V> immutableCopy() {
+            return new LongIds<>(map.copy());
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableSet;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of ids of persistent objects, used to combine the results of index lookups.
+ * When all ids are longs, the set is a sorted array of primitive longs, so that intersections
+ * and unions are merges of arrays (or binary searches when one set is much smaller than the
+ * other) rather than hash lookups of boxed ids. Sets that come from
+ * {@link BitmapIndexStore bitmap indexes} are bitmaps of ordinals, which are combined
+ * without looking at the ids at all when they share their {@link Ordinals ordinals}.
+ */
+abstract class IdSet extends AbstractSet<Object> {
+
+    static final IdSet EMPTY = new LongIds(new long[0]);
+
+    /**
+     * Create a set with the provided ids.
+     *
+     * @param ids ids; may contain duplicates
+     * @return new set
+     */
+    static IdSet of(Collection<?> ids) {
+        if (ids.isEmpty()) {
+            return EMPTY;
+        }
+        long[] longs = new long[ids.size()];
+        int i = 0;
+        for (Object id : ids) {
+            if (!(id instanceof Long)) {
+                return new ObjectIds(ImmutableSet.copyOf(ids));
+            }
+            longs[i++] = (Long) id;
+        }
+        Arrays.sort(longs);
+        return new LongIds(dedupe(longs, longs.length));
+    }
+
+    /**
+     * @param other set to intersect with
+     * @return ids that are in both this set and the other
+     */
+    abstract IdSet and(IdSet other);
+
+    /**
+     * @param other set to combine with
+     * @return ids that are in this set, the other or both
+     */
+    abstract IdSet or(IdSet other);
+
+    /**
+     * @return set that doesn't depend on {@link Ordinals ordinals}, and that can therefore be
+     * used outside of {@link Ordinals#read(java.util.function.Supplier)}
+     */
+    IdSet materialize() {
+        return this;
+    }
+
+    /*
+     * Removes duplicates from the first length elements of the sorted array.
+     */
+    private static long[] dedupe(long[] sorted, int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            if (size == 0 || sorted[size - 1] != sorted[i]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return (size == sorted.length) ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    /*
+     * Sorted array of long ids.
+     */
+    static final class LongIds extends IdSet {
+
+        private final long[] ids;
+
+        LongIds(long[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return (o instanceof Long) && Arrays.binarySearch(ids, (Long) o) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new Iterator<Object>() {
+
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < ids.length;
+                }
+
+                @Override
+                public Object next() {
+                    if (i >= ids.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return ids[i++];
+                }
+            };
+        }
+
+        @Override
+        IdSet and(IdSet other) {
+            if (!(other instanceof LongIds)) {
+                return other.and(this);
+            }
+            long[] small = ids, large = ((LongIds) other).ids;
+            if (small.length > large.length) {
+                long[] swap = small;
+                small = large;
+                large = swap;
+            }
+            if (small.length == 0) {
+                return EMPTY;
+            }
+            long[] result = new long[small.length];
+            int size = 0;
+            if ((long) small.length * (64 - Long.numberOfLeadingZeros(large.length)) < large.length) {
+                // much smaller than the other, so look up each id rather than walking both
+                int from = 0;
+                for (long id : small) {
+                    int pos = Arrays.binarySearch(large, from, large.length, id);
+                    if (pos >= 0) {
+                        result[size++] = id;
+                        from = pos + 1;
+                    } else {
+                        from = -pos - 1;
+                    }
+                }
+            } else {
+                for (int i = 0, j = 0; i < small.length && j < large.length; ) {
+                    if (small[i] < large[j]) {
+                        i++;
+                    } else if (small[i] > large[j]) {
+                        j++;
+                    } else {
+                        result[size++] = small[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return new LongIds((size == result.length) ? result : Arrays.copyOf(result, size));
+        }
+
+        @Override
+        IdSet or(IdSet other) {
+            if (ids.length == 0) {
+                return other;
+            } else if (!(other instanceof LongIds)) {
+                return other.or(this);
+            }
+            long[] a = ids, b = ((LongIds) other).ids;
+            if (b.length == 0) {
+                return this;
+            }
+            long[] result = new long[a.length + b.length];
+            int size = 0, i = 0, j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    result[size++] = a[i++];
+                } else if (a[i] > b[j]) {
+                    result[size++] = b[j++];
+                } else {
+                    result[size++] = a[i++];
+                    j++;
+                }
+            }
+            while (i < a.length) {
+                result[size++] = a[i++];
+            }
+            while (j < b.length) {
+                result[size++] = b[j++];
+            }
+            return new LongIds((size == result.length) ? result : Arrays.copyOf(result, size));
+        }
+    }
+
+    /*
+     * Set of ids of any type.
+     */
+    static final class ObjectIds extends IdSet {
+
+        private final ImmutableSet<Object> ids;
+
+        ObjectIds(ImmutableSet<Object> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return ids.contains(o);
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return ids.iterator();
+        }
+
+        @Override
+        IdSet and(IdSet other) {
+            IdSet small = (size() <= other.size()) ? this : other;
+            IdSet large = (small == this) ? other : this;
+            ImmutableSet.Builder<Object> result = ImmutableSet.builder();
+            for (Object id : small) {
+                if (large.contains(id)) {
+                    result.add(id);
+                }
+            }
+            return new ObjectIds(result.build());
+        }
+
+        @Override
+        IdSet or(IdSet other) {
+            if (other.isEmpty()) {
+                return this;
+            }
+            return new ObjectIds(ImmutableSet.builder().addAll(ids).addAll(other).build());
+        }
+    }
+
+    /*
+     * Bitmap of ordinals of ids.
+     */
+    static final class BitmapIds extends IdSet {
+
+        private final RoaringBitmap bitmap;
+
+        private final Ordinals ordinals;
+
+        private IdSet ids; // materialized on demand
+
+        BitmapIds(RoaringBitmap bitmap, Ordinals ordinals) {
+            this.bitmap = bitmap;
+            this.ordinals = ordinals;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            int ordinal = ordinals.ordinalOf(o);
+            return ordinal >= 0 && bitmap.contains(ordinal);
+        }
+
+        @Override
+        public int size() {
+            return bitmap.getCardinality();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return materialize().iterator();
+        }
+
+        @Override
+        IdSet and(IdSet other) {
+            if (other instanceof BitmapIds && ((BitmapIds) other).ordinals == ordinals) {
+                return new BitmapIds(RoaringBitmap.and(bitmap, ((BitmapIds) other).bitmap), ordinals);
+            } else if (other.size() < size()) {
+                List<Object> result = new ArrayList<>(other.size());
+                for (Object id : other) {
+                    if (contains(id)) {
+                        result.add(id);
+                    }
+                }
+                return IdSet.of(result);
+            }
+            return materialize().and(other);
+        }
+
+        @Override
+        IdSet or(IdSet other) {
+            if (other.isEmpty()) {
+                return this;
+            } else if (other instanceof BitmapIds && ((BitmapIds) other).ordinals == ordinals) {
+                return new BitmapIds(RoaringBitmap.or(bitmap, ((BitmapIds) other).bitmap), ordinals);
+            }
+            return materialize().or(other);
+        }
+
+        @Override
+        IdSet materialize() {
+            if (ids == null) {
+                List<Object> list = new ArrayList<>(bitmap.getCardinality());
+                bitmap.forEach((int ordinal) -> list.add(ordinals.idOf(ordinal)));
+                ids = IdSet.of(list);
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Collections2;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Sort store that holds ids rather than objects, and that looks objects up (e.g. in the
+ * {@link CacheStorage storage} of a cache) when they are read. It decorates a store that
+ * holds light-weight {@link IdRef references}, which only point to their object while
+ * the sort key is created, so that the objects themselves can be garbage collected.
+ * <p/>
+ * Note that as objects are looked up when read, readers see the latest version of an
+ * object, even when the sort itself is not published yet.
+ *
+ * @param <O> type of objects that are sorted
+ */
+final class IdSortStore<O extends PersistentObject> implements SortStore<O> {
+
+    /**
+     * Reference to an object by it's id.
+     */
+    static final class IdRef<O extends PersistentObject> implements PersistentObject {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object id;
+
+        private transient O object; // only set while creating the sort key
+
+        IdRef(O object) {
+            this.id = object.getId();
+            this.object = object;
+        }
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "IdRef{id=" + id + '}';
+        }
+    }
+
+    /*
+     * Creates sort keys for references with the factory for the objects.
+     */
+    private static final class RefKeyFactory<O extends PersistentObject>
+            implements SortKeyFactory<IdRef<O>, Comparable> {
+
+        private final SortKeyFactory<O, ? extends Comparable> factory;
+
+        RefKeyFactory(SortKeyFactory<O, ? extends Comparable> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public SortKey<Comparable> create(IdRef<O> ref, boolean isNew) {
+            return (SortKey<Comparable>) factory.create(ref.object, isNew);
+        }
+    }
+
+    private final SortStore<IdRef<O>> delegate;
+
+    private final Function<Object, O> resolver;
+
+    IdSortStore(SortStore<IdRef<O>> delegate, Function<Object, O> resolver) {
+        if (delegate == null) {
+            throw new NullPointerException();
+        }
+        if (resolver == null) {
+            throw new NullPointerException();
+        }
+        this.delegate = delegate;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Put the object; note that this returns the current object for the previous id,
+     * as previous versions of objects aren't kept.
+     */
+    @Override
+    public O put(O object, SortKeyFactory<O, ? extends Comparable> factory) {
+        IdRef<O> ref = new IdRef<>(object);
+        try {
+            return resolve(delegate.put(ref, new RefKeyFactory<>(factory)));
+        } finally {
+            ref.object = null;
+        }
+    }
+
+    @Override
+    public void apply(List<DataRefreshEvent<O>> events, SortKeyFactory<O, ? extends Comparable> factory) {
+        List<DataRefreshEvent<IdRef<O>>> refEvents = new ArrayList<>(events.size());
+        List<IdRef<O>> refs = new ArrayList<>(events.size());
+        for (DataRefreshEvent<O> evt : events) {
+            if (evt instanceof DataDeletedEvent) {
+                refEvents.add(new DataDeletedEvent<IdRef<O>>(evt.getId()));
+            } else {
+                O object = DataRefreshEvent.objectOf(evt);
+                if (object != null) {
+                    IdRef<O> ref = new IdRef<>(object);
+                    refs.add(ref);
+                    refEvents.add(evt instanceof DataCreatedEvent ?
+                            new DataCreatedEvent<>(ref) : new DataChangedEvent<>(ref));
+                }
+            }
+        }
+        try {
+            delegate.apply(refEvents, new RefKeyFactory<>(factory));
+        } finally {
+            for (IdRef<O> ref : refs) {
+                ref.object = null;
+            }
+        }
+    }
+
+    @Override
+    public O remove(Object id) {
+        return resolve(delegate.remove(id));
+    }
+
+    @Override
+    public O get(Object id) {
+        return delegate.contains(id) ? resolver.apply(id) : null;
+    }
+
+    @Override
+    public Collection<O> values() {
+        return resolveAll(delegate.values());
+    }
+
+    @Override
+    public Collection<O> values(@Nullable Comparable from, boolean fromInclusive,
+                                @Nullable Comparable to, boolean toInclusive) {
+        return resolveAll(delegate.values(from, fromInclusive, to, toInclusive));
+    }
+
+    @Override
+    public Collection<Map.Entry<SortKey, O>> entries(@Nullable Comparable from, boolean fromInclusive,
+                                                     @Nullable Comparable to, boolean toInclusive) {
+        Collection<Map.Entry<SortKey, IdRef<O>>> refs = delegate.entries(from, fromInclusive, to, toInclusive);
+        return Collections2.filter(Collections2.transform(refs,
+                ref -> new AbstractMap.SimpleImmutableEntry<>(ref.getKey(), resolver.apply(ref.getValue().getId()))),
+                entry -> entry.getValue() != null);
+    }
+
+    @Override
+    public Collection<O> valuesAfter(Object id) {
+        Collection<IdRef<O>> refs = delegate.valuesAfter(id);
+        return (refs != null) ? resolveAll(refs) : null;
+    }
+
+    @Override
+    public SortKey keyOf(Object id) {
+        return delegate.keyOf(id);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public Set<Object> ids() {
+        return delegate.ids();
+    }
+
+    @Override
+    public boolean contains(Object id) {
+        return delegate.contains(id);
+    }
+
+    @Override
+    public void publish() {
+        delegate.publish();
+    }
+
+    @Override
+    public void publishLazily() {
+        delegate.publishLazily();
+    }
+
+    @Override
+    public long getVersion() {
+        return delegate.getVersion();
+    }
+
+    /*
+     * Look up the objects for the references.
+     */
+    private Collection<O> resolveAll(Collection<IdRef<O>> refs) {
+        // objects might be removed from the storage before they're removed from the sort
+        return Collections2.filter(Collections2.transform(refs,
+                ref -> resolver.apply(ref.getId())), Predicates.notNull());
+    }
+
+    /*
+     * Look up the object for the reference.
+     */
+    private O resolve(IdRef<O> ref) {
+        return (ref != null) ? resolver.apply(ref.getId()) : null;
+    }
+}
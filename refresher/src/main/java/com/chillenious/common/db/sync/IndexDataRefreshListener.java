@@ -25,4 +25,9 @@ final class IndexDataRefreshListener<O extends PersistentObject, T>
             indexer.remove(evt.getId());
         } // else ignore
     }
+
+    @Override
+    protected void onBatch(DataBatchEvent<O> batch) {
+        indexer.apply(batch.getEvents());
+    }
 }
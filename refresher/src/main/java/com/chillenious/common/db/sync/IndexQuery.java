@@ -0,0 +1,269 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Query on the indexes of a {@link PersistentObjectCache cache}, which combines index lookups
+ * with set algebra, e.g.:
+ * <pre>
+ *     cache.getIndexed(IndexQuery.and(
+ *             IndexQuery.eq("tag", "sale"),
+ *             IndexQuery.in("country", "NL", "BE")));
+ * </pre>
+ * Queries are evaluated on the ids of the matching objects (see {@link IdSet}), and objects are
+ * only looked up for the final result. Intersections start with the smallest set, and stop as
+ * soon as the result is empty.
+ * <p/>
+ * Queries are immutable and can be reused.
+ */
+public abstract class IndexQuery {
+
+    IndexQuery() {
+    }
+
+    /**
+     * Match objects that have the provided key in the provided index.
+     *
+     * @param indexId id of the index
+     * @param key     key to look up
+     * @return new query
+     */
+    public static IndexQuery eq(String indexId, Object key) {
+        return in(indexId, ImmutableList.of(key));
+    }
+
+    /**
+     * Match objects that have any of the provided keys in the provided index.
+     *
+     * @param indexId id of the index
+     * @param keys    keys to look up
+     * @return new query
+     */
+    public static IndexQuery in(String indexId, Object... keys) {
+        return in(indexId, Arrays.asList(keys));
+    }
+
+    /**
+     * Match objects that have any of the provided keys in the provided index.
+     *
+     * @param indexId id of the index
+     * @param keys    keys to look up
+     * @return new query
+     */
+    public static IndexQuery in(String indexId, Collection<?> keys) {
+        if (indexId == null) {
+            throw new NullPointerException();
+        }
+        return new Lookup(indexId, ImmutableList.copyOf(keys));
+    }
+
+    /**
+     * Match objects with keys between the provided bounds (inclusive) in the provided
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @param indexId id of the index
+     * @param from    lower bound of the keys, or null for no lower bound
+     * @param to      upper bound of the keys, or null for no upper bound
+     * @return new query
+     */
+    public static IndexQuery between(String indexId, @Nullable Object from, @Nullable Object to) {
+        return range(indexId, from, true, to, true);
+    }
+
+    /**
+     * Match objects with keys in the provided range in the provided
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @param indexId       id of the index
+     * @param from          lower bound of the keys, or null for no lower bound
+     * @param fromInclusive whether objects with the lower bound as their key match
+     * @param to            upper bound of the keys, or null for no upper bound
+     * @param toInclusive   whether objects with the upper bound as their key match
+     * @return new query
+     */
+    public static IndexQuery range(String indexId, @Nullable Object from, boolean fromInclusive,
+                                   @Nullable Object to, boolean toInclusive) {
+        if (indexId == null) {
+            throw new NullPointerException();
+        }
+        return new Range(indexId, from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Match objects that match all of the provided queries.
+     *
+     * @param queries queries to combine
+     * @return new query
+     */
+    public static IndexQuery and(IndexQuery... queries) {
+        return new And(ImmutableList.copyOf(queries));
+    }
+
+    /**
+     * Match objects that match any of the provided queries.
+     *
+     * @param queries queries to combine
+     * @return new query
+     */
+    public static IndexQuery or(IndexQuery... queries) {
+        return new Or(ImmutableList.copyOf(queries));
+    }
+
+    /**
+     * @param other query to combine with
+     * @return query that matches objects that match both this query and the other
+     */
+    public IndexQuery and(IndexQuery other) {
+        return and(this, other);
+    }
+
+    /**
+     * @param other query to combine with
+     * @return query that matches objects that match this query, the other or both
+     */
+    public IndexQuery or(IndexQuery other) {
+        return or(this, other);
+    }
+
+    /**
+     * Evaluate the query.
+     *
+     * @param indexers looks up indexers by their id
+     * @return ids of the matching objects
+     */
+    abstract IdSet evaluate(Function<String, Indexer<?, ?>> indexers);
+
+    /*
+     * Lookup of one or more keys in an index.
+     */
+    private static final class Lookup extends IndexQuery {
+
+        private final String indexId;
+
+        private final List<Object> keys;
+
+        Lookup(String indexId, List<Object> keys) {
+            this.indexId = indexId;
+            this.keys = keys;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        IdSet evaluate(Function<String, Indexer<?, ?>> indexers) {
+            Indexer<?, Object> indexer = (Indexer<?, Object>) indexers.apply(indexId);
+            return indexer.ids(keys);
+        }
+
+        @Override
+        public String toString() {
+            return (keys.size() == 1) ? (indexId + " = " + keys.get(0)) : (indexId + " in " + keys);
+        }
+    }
+
+    /*
+     * Range of keys in a sorted index.
+     */
+    private static final class Range extends IndexQuery {
+
+        private final String indexId;
+
+        private final Object from, to;
+
+        private final boolean fromInclusive, toInclusive;
+
+        Range(String indexId, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+            this.indexId = indexId;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        IdSet evaluate(Function<String, Indexer<?, ?>> indexers) {
+            Indexer<?, Object> indexer = (Indexer<?, Object>) indexers.apply(indexId);
+            return indexer.rangeIds(from, fromInclusive, to, toInclusive);
+        }
+
+        @Override
+        public String toString() {
+            return indexId + " in " + (fromInclusive ? "[" : "(") + from + ", " + to + (toInclusive ? "]" : ")");
+        }
+    }
+
+    /*
+     * Intersection of queries.
+     */
+    private static final class And extends IndexQuery {
+
+        private final List<IndexQuery> queries;
+
+        And(List<IndexQuery> queries) {
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("at least one query is needed");
+            }
+            this.queries = queries;
+        }
+
+        @Override
+        IdSet evaluate(Function<String, Indexer<?, ?>> indexers) {
+            List<IdSet> sets = new ArrayList<>(queries.size());
+            for (IndexQuery query : queries) {
+                IdSet set = query.evaluate(indexers);
+                if (set.isEmpty()) {
+                    return IdSet.EMPTY;
+                }
+                sets.add(set);
+            }
+            sets.sort(Comparator.comparingInt(IdSet::size));
+            IdSet result = sets.get(0);
+            for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+                result = result.and(sets.get(i));
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "and" + queries;
+        }
+    }
+
+    /*
+     * Union of queries.
+     */
+    private static final class Or extends IndexQuery {
+
+        private final List<IndexQuery> queries;
+
+        Or(List<IndexQuery> queries) {
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("at least one query is needed");
+            }
+            this.queries = queries;
+        }
+
+        @Override
+        IdSet evaluate(Function<String, Indexer<?, ?>> indexers) {
+            IdSet result = IdSet.EMPTY;
+            for (IndexQuery query : queries) {
+                result = result.or(query.evaluate(indexers));
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "or" + queries;
+        }
+    }
+}
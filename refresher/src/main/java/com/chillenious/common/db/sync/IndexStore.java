@@ -0,0 +1,45 @@
+package com.chillenious.common.db.sync;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+
+/**
+ * Storage strategy behind an {@link com.chillenious.common.db.sync.Indexer}, which keeps the
+ * members (posting lists) of the keys of the index. Indexers coordinate access, so
+ * implementations don't have to be thread safe, other than that reads can happen concurrently.
+ *
+ * @param <O> type of objects that are indexed
+ * @param <T> key type
+ */
+interface IndexStore<O extends PersistentObject, T> {
+
+    /**
+     * Add the object to the members of the key.
+     *
+     * @param key    key
+     * @param object object to add
+     */
+    void add(T key, O object);
+
+    /**
+     * Remove the object with the provided id from the members of the key.
+     *
+     * @param key    key
+     * @param id     id of the object to remove
+     * @param object new version of the object if the object is updated rather than removed;
+     *               equal to the indexed version in most cases
+     */
+    void remove(T key, Object id, @Nullable O object);
+
+    /**
+     * @param key key
+     * @return members of the key
+     */
+    Set<O> get(T key);
+
+    /**
+     * @param key key
+     * @return ids of the members of the key; the set should not change when the store changes
+     */
+    IdSet ids(T key);
+}
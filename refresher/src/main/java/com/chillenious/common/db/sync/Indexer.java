@@ -1,54 +1,188 @@
 package com.chillenious.common.db.sync;
 
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 /**
  * Structure that works with a factory to produce index keys and a map
- * between these keys and persistent objects. It uses {@link java.util.concurrent.ConcurrentHashMap}
- * so that the impact of writes is minimal and access should generally fast
+ * between these keys and persistent objects. How the members of each key are stored
+ * depends on the {@link Mode mode} of the indexer:
+ * <ul>
+ * <li>{@link Mode#HASH} (the default) keeps a hash set per key, which is a good fit for
+ * keys with few members each (like foreign keys)</li>
+ * <li>{@link Mode#BITMAP} keeps a compressed bitmap of object ordinals per key, which is a good
+ * fit for keys with many members each (like status, country or category); it takes a fraction
+ * of the memory of the hash sets, and counts and intersections of such indexes (see
+ * {@link IndexQuery}) don't touch the objects at all</li>
+ * <li>{@link Mode#SORTED} keeps the keys sorted, so that besides exact matches, the
+ * objects for ranges of keys can be looked up (e.g. {@link #range(Object, boolean, Object, boolean)}),
+ * as well as the keys closest to a key ({@link #floorKey(Object)} and {@link #ceilingKey(Object)})</li>
+ * </ul>
+ * <p/>
+ * Indexers can be created with a resolver, in which case they hold ids rather than objects, and
+ * look up objects with the resolver when they are read (see {@link CacheStorage#isHeapResident()}).
+ * Indexers for objects with long ids can keep their reverse lookup in a primitive map
+ * (see {@link CacheStorage#hasLongIds()}).
+ * <p/>
+ * Indexers are either created with a {@link IndexKeyFactory factory for one key per object}, or
+ * with a {@link MultiIndexKeyFactory factory for multiple keys per object} (e.g. tags). Besides
+ * looking up objects, indexers can return the {@link IdSet ids} of the objects for a key, which
+ * {@link IndexQuery index queries} combine. These sets are kept until the key is written to.
  *
  * @param <O> type of objects that are sorted
  * @param <T> key type
  */
 public final class Indexer<O extends PersistentObject, T> {
 
-    private final IndexKeyFactory<O, T> factory;
+    /**
+     * How indexers keep the members of their keys.
+     */
+    public static enum Mode {
+        /**
+         * Hash set of objects (or ids) per key.
+         */
+        HASH,
+        /**
+         * Compressed bitmap of object ordinals per key; objects are looked up when read.
+         */
+        BITMAP,
+        /**
+         * Sorted keys with a hash set of objects (or ids) per key; supports range lookups.
+         */
+        SORTED
+    }
+
+    private final MultiIndexKeyFactory<O, T> factory;
+
+    private final Mode mode;
+
+    private final boolean multiValued;
 
     private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
 
     private final Lock r = rwl.readLock(), w = rwl.writeLock();
 
-    private final HashMultimap<T, O> indexed = HashMultimap.create();
+    private final IndexStore<O, T> store;
 
-    private final Map<Object, T> reverseLookup = new HashMap<>();
+    private final IdMap<Object> reverseLookup; // key, or set of keys when multi valued
+
+    private final Map<T, IdSet> idSets = new ConcurrentHashMap<>(); // computed on read, dropped on write
 
     IndexDataRefreshListener<O, T> listener;
 
     Indexer(IndexKeyFactory<O, T> factory) {
+        this(factory, null);
+    }
+
+    Indexer(IndexKeyFactory<O, T> factory, @Nullable Function<Object, O> resolver) {
+        this(factory, resolver, false);
+    }
+
+    Indexer(IndexKeyFactory<O, T> factory, @Nullable Function<Object, O> resolver, boolean longIds) {
+        this(factory, Mode.HASH, resolver, longIds, null);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param factory  factory for the keys
+     * @param mode     how to keep the members of keys
+     * @param resolver resolver for objects by id; required for {@link Mode#BITMAP bitmap} indexers
+     * @param longIds  whether all ids are longs
+     * @param ordinals ordinals to use for {@link Mode#BITMAP bitmap} indexers; indexers that share
+     *                 their ordinals can be intersected without translating ordinals to ids
+     */
+    Indexer(IndexKeyFactory<O, T> factory, Mode mode, @Nullable Function<Object, O> resolver,
+            boolean longIds, @Nullable Ordinals ordinals) {
+        this(singleKey(factory), false, mode, resolver, longIds, ordinals);
+    }
+
+    Indexer(MultiIndexKeyFactory<O, T> factory, @Nullable Function<Object, O> resolver, boolean longIds) {
+        this(factory, Mode.HASH, resolver, longIds, null);
+    }
+
+    /**
+     * Construct an indexer for multiple keys per object.
+     *
+     * @see #Indexer(IndexKeyFactory, Mode, Function, boolean, Ordinals)
+     */
+    Indexer(MultiIndexKeyFactory<O, T> factory, Mode mode, @Nullable Function<Object, O> resolver,
+            boolean longIds, @Nullable Ordinals ordinals) {
+        this(factory, true, mode, resolver, longIds, ordinals);
+    }
+
+    private Indexer(MultiIndexKeyFactory<O, T> factory, boolean multiValued, Mode mode,
+                    @Nullable Function<Object, O> resolver, boolean longIds, @Nullable Ordinals ordinals) {
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        if (mode == null) {
+            throw new NullPointerException();
+        }
         this.factory = factory;
+        this.multiValued = multiValued;
+        this.mode = mode;
+        this.reverseLookup = IdMap.create(longIds, false);
+        if (mode == Mode.BITMAP) {
+            if (resolver == null) {
+                throw new IllegalArgumentException("bitmap indexers need a resolver to look up objects");
+            }
+            this.store = new BitmapIndexStore<>((ordinals != null) ? ordinals : new Ordinals(longIds), resolver);
+        } else if (mode == Mode.SORTED) {
+            this.store = new SortedIndexStore<>(resolver, multiValued);
+        } else {
+            this.store = new HashIndexStore<>(resolver);
+        }
+    }
+
+    /*
+     * Adapts a factory for single keys.
+     */
+    private static <O extends PersistentObject, T> MultiIndexKeyFactory<O, T> singleKey(
+            IndexKeyFactory<O, T> factory) {
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        return object -> {
+            T key = factory.create(object);
+            return (key != null) ? Collections.singleton(key) : null;
+        };
+    }
+
+    /**
+     * @return mode of this indexer
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return whether objects can have multiple keys in this index
+     */
+    public boolean isMultiValued() {
+        return multiValued;
     }
 
     void put(O object) {
         if (object == null || object.getId() == null) {
             throw new NullPointerException();
         }
-        T key = factory.create(object);
-        if (key != null) {
+        Collection<T> keys = factory.create(object);
+        if (keys != null && !keys.isEmpty()) {
+            checkKeys(keys);
             w.lock();
             try {
-                T previous = reverseLookup.remove(object.getId());
-                if (previous != null) {
-                    indexed.remove(previous, object);
-                }
-                indexed.put(key, object);
-                reverseLookup.put(object.getId(), key);
+                doPut(object, keys);
             } finally {
                 w.unlock();
             }
@@ -61,32 +195,229 @@ public final class Indexer<O extends PersistentObject, T> {
         }
         w.lock();
         try {
-            T key = reverseLookup.remove(id);
-            if (key != null) {
-                for (Iterator<O> i = indexed.get(key).iterator(); i.hasNext(); ) {
-                    O object = i.next();
-                    if (object.getId() == id) {
-                        i.remove();
+            doRemove(id, null);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Apply a batch of created, changed and deleted events in one go (taking the write lock once).
+     *
+     * @param events events to apply, in order
+     */
+    void apply(List<DataRefreshEvent<O>> events) {
+        if (events == null) {
+            throw new NullPointerException();
+        }
+        w.lock();
+        try {
+            for (DataRefreshEvent<O> evt : events) {
+                if (evt instanceof DataDeletedEvent) {
+                    doRemove(evt.getId(), null);
+                } else {
+                    O object = DataRefreshEvent.objectOf(evt);
+                    if (object != null) {
+                        Collection<T> keys = factory.create(object);
+                        if (keys != null && !keys.isEmpty()) {
+                            checkKeys(keys);
+                            doPut(object, keys);
+                        }
                     }
                 }
-            } // object wasn't in here to start with
+            }
         } finally {
             w.unlock();
         }
     }
 
+    /*
+     * Sorted indexes can only hold comparable keys; checked before the index is changed, so that
+     * an object with keys that can't be sorted doesn't leave the index half updated.
+     */
+    private void checkKeys(Collection<T> keys) {
+        if (mode == Mode.SORTED) {
+            for (T key : keys) {
+                if (!(key instanceof Comparable)) {
+                    throw new IllegalArgumentException(String.format(
+                            "keys of sorted indexes must be comparable, but %s is a %s",
+                            key, (key != null) ? key.getClass().getName() : null));
+                }
+            }
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private void doPut(O object, Collection<T> keys) {
+        doRemove(object.getId(), object);
+        for (T key : keys) {
+            store.add(key, object);
+            idSets.remove(key);
+        }
+        reverseLookup.put(object.getId(), multiValued ? ImmutableSet.copyOf(keys) : keys.iterator().next());
+    }
+
+    /*
+     * Must be called while holding the write lock. The object, if provided, is the new version
+     * of the object, which is equal to the indexed version in most cases.
+     */
+    @SuppressWarnings("unchecked")
+    private void doRemove(Object id, @Nullable O object) {
+        Object previous = reverseLookup.remove(id);
+        if (previous != null) {
+            if (multiValued) {
+                for (T key : (Set<T>) previous) {
+                    doRemove(id, object, key);
+                }
+            } else {
+                doRemove(id, object, (T) previous);
+            }
+        } // object wasn't in here to start with
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private void doRemove(Object id, @Nullable O object, T key) {
+        store.remove(key, id, object);
+        idSets.remove(key);
+    }
+
     Set<O> get(T key) {
         if (key == null) {
             throw new NullPointerException();
         }
         r.lock();
         try {
-            return indexed.get(key);
+            return store.get(key);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the objects that have any of the provided keys.
+     *
+     * @param keys keys to look up
+     * @return ids of the objects
+     */
+    IdSet ids(Collection<T> keys) {
+        r.lock();
+        try {
+            IdSet result = IdSet.EMPTY;
+            for (T key : keys) {
+                if (key == null) {
+                    throw new NullPointerException();
+                }
+                result = result.or(idSets.computeIfAbsent(key, store::ids));
+            }
+            return result;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * Get the objects with keys in the provided range; only supported by {@link Mode#SORTED sorted} indexers.
+     *
+     * @param from          lower bound of the keys, or null for no lower bound
+     * @param fromInclusive whether objects with the lower bound as their key are included
+     * @param to            upper bound of the keys, or null for no upper bound
+     * @param toInclusive   whether objects with the upper bound as their key are included
+     * @return objects with keys in the range
+     * @throws IllegalStateException when this indexer isn't sorted
+     */
+    Set<O> range(@Nullable T from, boolean fromInclusive, @Nullable T to, boolean toInclusive) {
+        SortedIndexStore<O, T> sorted = sorted();
+        r.lock();
+        try {
+            return sorted.range(from, fromInclusive, to, toInclusive);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the objects with keys in the provided range.
+     *
+     * @see #range(Object, boolean, Object, boolean)
+     */
+    IdSet rangeIds(@Nullable T from, boolean fromInclusive, @Nullable T to, boolean toInclusive) {
+        SortedIndexStore<O, T> sorted = sorted();
+        r.lock();
+        try {
+            return sorted.rangeIds(from, fromInclusive, to, toInclusive);
         } finally {
             r.unlock();
         }
     }
 
+    /**
+     * Count the objects with keys in the provided range, without looking them up.
+     *
+     * @see #range(Object, boolean, Object, boolean)
+     */
+    int count(@Nullable T from, boolean fromInclusive, @Nullable T to, boolean toInclusive) {
+        SortedIndexStore<O, T> sorted = sorted();
+        r.lock();
+        try {
+            return sorted.count(from, fromInclusive, to, toInclusive);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * @param key key to look up
+     * @return greatest key less than or equal to the provided key, or null if there is no such key
+     * @throws IllegalStateException when this indexer isn't sorted
+     */
+    @Nullable
+    T floorKey(T key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        SortedIndexStore<O, T> sorted = sorted();
+        r.lock();
+        try {
+            return sorted.floorKey(key);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * @param key key to look up
+     * @return least key greater than or equal to the provided key, or null if there is no such key
+     * @throws IllegalStateException when this indexer isn't sorted
+     */
+    @Nullable
+    T ceilingKey(T key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        SortedIndexStore<O, T> sorted = sorted();
+        r.lock();
+        try {
+            return sorted.ceilingKey(key);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /*
+     * Get the store as a sorted store.
+     */
+    private SortedIndexStore<O, T> sorted() {
+        if (mode != Mode.SORTED) {
+            throw new IllegalStateException(String.format(
+                    "indexer %s is not sorted (mode is %s)", this, mode));
+        }
+        return (SortedIndexStore<O, T>) store;
+    }
+
     synchronized void bind(DataRefresher<O> refresher) {
         if (listener == null) {
             listener = new IndexDataRefreshListener<>(this);
@@ -0,0 +1,182 @@
+package com.chillenious.common.db.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for lookups of persistent objects in a JDBC data source, that fetch the objects
+ * for any number of ids with {@code IN (...)} queries of at most so many ids each, rather than with
+ * a query per id. Use this as the {@link PersistentObjectCache#setLoader(PersistentObjectLookup) loader}
+ * of a cache, so that e.g. hydrating a page of search results costs a single round trip to the
+ * database for the objects that aren't cached.
+ *
+ * @param <O> persistent object type
+ */
+public abstract class JdbcObjectLookup<O extends PersistentObject> implements PersistentObjectLookup<O> {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcObjectLookup.class);
+
+    /**
+     * Maximum number of ids per query when not provided (some databases limit the number of
+     * elements of an IN list to 1000).
+     */
+    public static final int DEFAULT_MAX_IDS_PER_QUERY = 1000;
+
+    private final DataSource dataSource;
+
+    private final Class<O> type;
+
+    private final int maxIdsPerQuery;
+
+    /**
+     * Construct.
+     *
+     * @param dataSource data source to look objects up in
+     * @param type       type of the objects, for creating arrays of them
+     */
+    protected JdbcObjectLookup(DataSource dataSource, Class<O> type) {
+        this(dataSource, type, DEFAULT_MAX_IDS_PER_QUERY);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param dataSource     data source to look objects up in
+     * @param type           type of the objects, for creating arrays of them
+     * @param maxIdsPerQuery maximum number of ids to select per query
+     */
+    protected JdbcObjectLookup(DataSource dataSource, Class<O> type, int maxIdsPerQuery) {
+        if (dataSource == null) {
+            throw new NullPointerException();
+        }
+        if (type == null) {
+            throw new NullPointerException();
+        }
+        if (maxIdsPerQuery < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "maximum number of ids per query must be positive (is %,d)", maxIdsPerQuery));
+        }
+        this.dataSource = dataSource;
+        this.type = type;
+        this.maxIdsPerQuery = maxIdsPerQuery;
+    }
+
+    /**
+     * Prepare the statement that selects the rows with the provided ids, typically something like
+     * {@code "select * from bam where id in (" + placeholders(ids.size()) + ")"}, with the ids
+     * set as the parameters.
+     *
+     * @param connection connection to prepare the statement with
+     * @param ids        ids of the rows to select; never more than the maximum per query
+     * @return statement
+     * @throws SQLException when preparing fails
+     */
+    protected abstract PreparedStatement prepareSelect(Connection connection, List<Object> ids)
+            throws SQLException;
+
+    /**
+     * Map the current row to a persistent object.
+     *
+     * @param resultSet result set, positioned on the row to map
+     * @return object
+     * @throws SQLException when reading the row fails
+     */
+    protected abstract O map(ResultSet resultSet) throws SQLException;
+
+    /**
+     * @param count number of parameters
+     * @return the provided number of parameter placeholders, separated by commas (e.g. "?, ?, ?")
+     */
+    protected static String placeholders(int count) {
+        StringBuilder b = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append('?');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Set the ids as the parameters of the statement, starting at the provided index.
+     *
+     * @param statement statement to set the parameters of
+     * @param ids       ids
+     * @param first     index of the first parameter (1 based)
+     * @throws SQLException when setting the parameters fails
+     */
+    protected static void setIds(PreparedStatement statement, List<Object> ids, int first)
+            throws SQLException {
+        for (int i = 0; i < ids.size(); i++) {
+            statement.setObject(first + i, ids.get(i));
+        }
+    }
+
+    @Override
+    public Class<O> getObjectType() {
+        return type;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public O[] lookup(Object... ids) {
+        Map<Object, O> found = lookupAll(Arrays.asList(ids));
+        O[] objects = (O[]) Array.newInstance(type, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            objects[i] = found.get(ids[i]);
+        }
+        return objects;
+    }
+
+    @Override
+    public Map<Object, O> lookupAll(Collection<?> ids) {
+        List<Object> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<Object, O> byId = new HashMap<>(distinct.size() * 2);
+        try (Connection connection = dataSource.getConnection()) {
+            for (int from = 0; from < distinct.size(); from += maxIdsPerQuery) {
+                List<Object> chunk = distinct.subList(from, Math.min(distinct.size(), from + maxIdsPerQuery));
+                try (PreparedStatement statement = prepareSelect(connection, chunk);
+                     ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        O object = map(resultSet);
+                        byId.put(object.getId(), object);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            String msg = String.format("problem looking up %,d objects with %s: %s",
+                    distinct.size(), this, e.getMessage());
+            log.error(msg, e);
+            throw new IllegalStateException(msg, e);
+        }
+        Map<Object, O> found = new LinkedHashMap<>(byId.size() * 2);
+        for (Object id : distinct) { // in the order of the ids
+            O object = byId.get(id);
+            if (object != null) {
+                found.put(id, object);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{type=" + type.getSimpleName() + '}';
+    }
+}
@@ -0,0 +1,527 @@
+package com.chillenious.common.db.sync;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of events for a single listener. Events are kept in a ring buffer (an
+ * {@link java.util.ArrayDeque}) that holds at most the {@link ListenerQueueSettings#getCapacity()
+ * capacity} of created, changed, deleted and batch events; what happens when it is full is
+ * decided by the {@link ListenerQueueSettings.OverflowPolicy overflow policy}. Other (internal)
+ * events are always accepted.
+ * <p/>
+ * When coalescing, events are merged into pending events for the same object in place, so
+ * an object never moves to a later position in the queue. That includes the events of
+ * {@link DataBatchEvent batches}, which is how refreshers publish: an object that changes in
+ * several refreshes in a row is merged into the batch it was first queued with. Merges that
+ * cancel out leave an empty slot (or position in a batch) behind that is skipped when taking
+ * events.
+ * <p/>
+ * Every event that is put gets the next sequence number, whether it is queued, merged into a
+ * pending event or dropped. The queue keeps track of the sequence number up to which all events
+ * are {@link #processedSequence() processed}, so that waiting for the events that were put up
+ * to a point just means waiting for that number to catch up.
+ *
+ * @param <O> persistent object type
+ */
+final class ListenerEventQueue<O extends PersistentObject> {
+
+    /**
+     * Position in the queue. The event of a slot can be replaced (or cleared) when coalescing;
+     * for batches, the events of the batch are kept so that they can be replaced one by one.
+     */
+    private static final class Slot<O extends PersistentObject> {
+
+        final long sequence;
+
+        DataRefreshEvent<O> event;
+
+        // events of a batch when we might coalesce, or null; events that cancelled out are null
+        final List<DataRefreshEvent<O>> batched;
+
+        // number of events of the batch that didn't cancel out
+        int remaining;
+
+        // whether events of the batch were replaced or cancelled out
+        boolean modified = false;
+
+        Slot(long sequence, DataRefreshEvent<O> event, List<DataRefreshEvent<O>> batched) {
+            this.sequence = sequence;
+            this.event = event;
+            this.batched = batched;
+            this.remaining = (batched != null) ? batched.size() : 0;
+        }
+
+        /*
+         * The event to hand out: the event, or a batch of what is left of it if it changed.
+         */
+        DataRefreshEvent<O> take() {
+            if (batched == null || !modified) {
+                return event;
+            }
+            List<DataRefreshEvent<O>> events = new ArrayList<>(remaining);
+            for (DataRefreshEvent<O> evt : batched) {
+                if (evt != null) {
+                    events.add(evt);
+                }
+            }
+            return new DataBatchEvent<>(events);
+        }
+    }
+
+    /**
+     * Where the pending event for an object is: a slot, and the index in the batch for batches.
+     */
+    private static final class Pending<O extends PersistentObject> {
+
+        final Slot<O> slot;
+
+        final int index;
+
+        Pending(Slot<O> slot, int index) {
+            this.slot = slot;
+            this.index = index;
+        }
+    }
+
+    private final ListenerQueueSettings settings;
+
+    private final ArrayDeque<Slot<O>> slots;
+
+    // pending events by object id; only kept when we might coalesce
+    private final Map<Object, Pending<O>> pending;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    // number of slots that still have an event
+    private int live = 0;
+
+    private long numberProcessed = 0, numberDropped = 0, numberCoalesced = 0, droppedSinceReport = 0;
+
+    // ids of the objects of the events that were dropped since the last report; only kept when we might drop
+    private final Set<Object> droppedIds;
+
+    private boolean closed = false;
+
+    // sequence number of the last event that was put
+    private long sequence = 0;
+
+    // while an event that was polled is being processed: the sequence number up to which all events are processed
+    private long processed = 0;
+
+    private boolean inFlight = false;
+
+    ListenerEventQueue(ListenerQueueSettings settings) {
+        if (settings == null) {
+            throw new NullPointerException();
+        }
+        this.settings = settings;
+        this.slots = new ArrayDeque<>(Math.min(settings.getCapacity(), 1024));
+        this.pending = (settings.isCoalescing()
+                || settings.getOverflowPolicy() == ListenerQueueSettings.OverflowPolicy.COALESCE)
+                ? new HashMap<>() : null;
+        this.droppedIds = (settings.getOverflowPolicy() == ListenerQueueSettings.OverflowPolicy.DROP_AND_MARK_STALE)
+                ? new HashSet<>() : null;
+    }
+
+    /**
+     * Add event to the queue, applying the overflow policy if the queue is full.
+     *
+     * @param evt event to add
+     * @throws InterruptedException when interrupted while waiting for room
+     */
+    void put(DataRefreshEvent<O> evt) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (closed) {
+                return;
+            }
+            if (settings.isCoalescing() && (evt = coalesce(evt)) == null) {
+                return;
+            }
+            if (isBounded(evt)) {
+                while (live >= settings.getCapacity()) {
+                    ListenerQueueSettings.OverflowPolicy policy = settings.getOverflowPolicy();
+                    if (policy == ListenerQueueSettings.OverflowPolicy.DROP_AND_MARK_STALE) {
+                        sequence++;
+                        numberDropped++;
+                        droppedSinceReport++;
+                        if (evt instanceof DataBatchEvent) {
+                            for (DataRefreshEvent<O> batched : ((DataBatchEvent<O>) evt).getEvents()) {
+                                droppedIds.add(batched.getId());
+                            }
+                        } else {
+                            droppedIds.add(evt.getId());
+                        }
+                        return;
+                    } else if (policy == ListenerQueueSettings.OverflowPolicy.COALESCE
+                            && (evt = coalesce(evt)) == null) {
+                        return;
+                    }
+                    awaitNotFull();
+                    if (closed) {
+                        return;
+                    }
+                }
+            }
+            enqueue(evt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next event off the queue if there is one.
+     *
+     * @return next event, or null if the queue is empty
+     */
+    DataRefreshEvent<O> poll() {
+        lock.lock();
+        try {
+            Slot<O> slot = next();
+            if (slot == null) {
+                return null;
+            }
+            processed = slot.sequence - 1;
+            inFlight = true;
+            return slot.take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Take the next slot that wasn't cancelled out by coalescing off the queue, or null if
+     * there is none. Must be called while holding the lock.
+     */
+    private Slot<O> next() {
+        Slot<O> slot;
+        do {
+            slot = slots.poll();
+            if (slot == null) {
+                return null;
+            }
+        } while (slot.event == null); // cancelled out by coalescing
+        if (pending != null) {
+            if (slot.batched != null) {
+                for (DataRefreshEvent<O> evt : slot.batched) {
+                    if (evt != null) {
+                        removePending(evt.getId(), slot);
+                    }
+                }
+            } else if (coalescingId(slot.event) != null) {
+                removePending(slot.event.getId(), slot);
+            }
+        }
+        live--;
+        numberProcessed++;
+        notFull.signal();
+        return slot;
+    }
+
+    /*
+     * Stop merging into the provided slot for the object with the provided id.
+     */
+    private void removePending(Object id, Slot<O> slot) {
+        Pending<O> at = pending.get(id);
+        if (at != null && at.slot == slot) {
+            pending.remove(id);
+        }
+    }
+
+    /**
+     * Mark the event that was last {@link #poll() polled} as processed.
+     */
+    void markProcessed() {
+        lock.lock();
+        try {
+            inFlight = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return sequence number of the last event that was put
+     */
+    long sequence() {
+        lock.lock();
+        try {
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the sequence number up to which all events that were put are processed, i.e.
+     * {@link #poll() polled} and {@link #markProcessed() marked as processed}. Events that were merged into a pending event are processed with that
+     * event, and events that were dropped count as processed once the events before them are.
+     *
+     * @return sequence number up to which all events are processed
+     */
+    long processedSequence() {
+        lock.lock();
+        try {
+            if (inFlight) {
+                return processed;
+            }
+            for (Slot<O> slot : slots) {
+                if (slot.event != null) {
+                    return slot.sequence - 1;
+                }
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Wait for room; must be called while holding the lock. Publishers might run on a
+     * worker of a fork/join pool that also drains the queue (see {@link RefreshExecutors}),
+     * so the pool is told about the wait and can start another worker in the meantime.
+     */
+    private void awaitNotFull() throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                notFull.await();
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @return whether there are no events waiting
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return live == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of events waiting
+     */
+    int size() {
+        lock.lock();
+        try {
+            return live;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of events that were dropped since the last call to this method.
+     *
+     * @return number of events dropped since the last call
+     */
+    long takeNumberDropped() {
+        lock.lock();
+        try {
+            long dropped = droppedSinceReport;
+            droppedSinceReport = 0;
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the ids of the objects of the events that were dropped since the last call to this
+     * method, so that the refresher can publish their current state again.
+     *
+     * @return ids, possibly empty, never null
+     */
+    Set<Object> takeDroppedIds() {
+        lock.lock();
+        try {
+            if (droppedIds == null || droppedIds.isEmpty()) {
+                return Collections.emptySet();
+            }
+            Set<Object> ids = new HashSet<>(droppedIds);
+            droppedIds.clear();
+            return ids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting events and release any publishers that are waiting for room.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ListenerQueueStats stats(String listener) {
+        lock.lock();
+        try {
+            long lag = 0;
+            for (Slot<O> slot : slots) {
+                if (slot.event != null) {
+                    lag = Math.max(0, System.currentTimeMillis() - slot.event.getTimestamp());
+                    break;
+                }
+            }
+            return new ListenerQueueStats(listener, settings, live, lag,
+                    numberProcessed, numberDropped, numberCoalesced, droppedSinceReport > 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Must be called while holding the lock.
+     */
+    private void enqueue(DataRefreshEvent<O> evt) {
+        List<DataRefreshEvent<O>> batched = (pending != null && evt instanceof DataBatchEvent)
+                ? new ArrayList<>(((DataBatchEvent<O>) evt).getEvents()) : null;
+        Slot<O> slot = new Slot<>(++sequence, evt, batched);
+        slots.add(slot);
+        live++;
+        if (batched != null) {
+            for (int i = 0; i < batched.size(); i++) {
+                pending.put(batched.get(i).getId(), new Pending<>(slot, i));
+            }
+        } else if (pending != null && coalescingId(evt) != null) {
+            pending.put(evt.getId(), new Pending<>(slot, -1));
+        }
+    }
+
+    /*
+     * Must be called while holding the lock. Merges the event, or the events of a batch, into
+     * pending events for the same objects where possible, and returns what is left to queue, or
+     * null if everything was merged.
+     */
+    private DataRefreshEvent<O> coalesce(DataRefreshEvent<O> evt) {
+        if (evt instanceof DataBatchEvent) {
+            List<DataRefreshEvent<O>> events = ((DataBatchEvent<O>) evt).getEvents();
+            List<DataRefreshEvent<O>> left = new ArrayList<>(events.size());
+            for (DataRefreshEvent<O> batched : events) {
+                if (!mergeIntoPending(batched)) {
+                    left.add(batched);
+                }
+            }
+            if (left.size() == events.size()) {
+                return evt;
+            } else if (!left.isEmpty()) {
+                return new DataBatchEvent<>(left);
+            }
+        } else if (coalescingId(evt) == null || !mergeIntoPending(evt)) {
+            return evt;
+        }
+        sequence++;
+        return null;
+    }
+
+    /*
+     * Must be called while holding the lock. Tries to merge the (created, changed or deleted)
+     * event into a pending event for the same object, and returns whether that worked.
+     */
+    private boolean mergeIntoPending(DataRefreshEvent<O> evt) {
+        Pending<O> at = pending.get(evt.getId());
+        if (at == null) {
+            return false;
+        }
+        Slot<O> slot = at.slot;
+        DataRefreshEvent<O> merged;
+        if (at.index < 0) {
+            merged = merge(slot.event, evt);
+            slot.event = merged;
+        } else {
+            merged = merge(slot.batched.get(at.index), evt);
+            slot.batched.set(at.index, merged);
+            slot.modified = true;
+            if (merged == null && --slot.remaining == 0) {
+                slot.event = null;
+            }
+        }
+        if (merged == null) {
+            pending.remove(evt.getId());
+            if (slot.event == null) {
+                live--;
+                notFull.signal();
+            }
+        }
+        numberCoalesced++;
+        return true;
+    }
+
+    /*
+     * Combine a pending event and a newer event for the same object into one,
+     * or null if they cancel each other out.
+     */
+    private static <O extends PersistentObject> DataRefreshEvent<O> merge(
+            DataRefreshEvent<O> older, DataRefreshEvent<O> newer) {
+        if (older instanceof DataCreatedEvent) {
+            if (newer instanceof DataChangedEvent) {
+                // listeners haven't seen the object yet, so it is still new to them
+                return new DataCreatedEvent<>(((DataChangedEvent<O>) newer).getObject());
+            } else if (newer instanceof DataDeletedEvent) {
+                return null; // listeners never need to know
+            }
+        } else if (older instanceof DataDeletedEvent && newer instanceof DataCreatedEvent) {
+            // listeners still have the old version of the object
+            return new DataChangedEvent<>(((DataCreatedEvent<O>) newer).getObject());
+        }
+        return newer;
+    }
+
+    /*
+     * Events that count towards the capacity; anything else is internal.
+     */
+    private static boolean isBounded(DataRefreshEvent<?> evt) {
+        return evt instanceof DataCreatedEvent
+                || evt instanceof DataChangedEvent
+                || evt instanceof DataDeletedEvent
+                || evt instanceof DataBatchEvent;
+    }
+
+    /*
+     * Id to coalesce on, or null if the event can't be coalesced.
+     */
+    private static Object coalescingId(DataRefreshEvent<?> evt) {
+        if (evt instanceof DataCreatedEvent
+                || evt instanceof DataChangedEvent
+                || evt instanceof DataDeletedEvent) {
+            return evt.getId();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerEventQueue{" +
+                "settings=" + settings +
+                ", size=" + size() +
+                '}';
+    }
+}
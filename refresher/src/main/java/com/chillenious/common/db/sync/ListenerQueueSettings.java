@@ -0,0 +1,130 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Settings for the queue that every listener of a {@link DataRefresher refresher} gets. By default,
+ * queues are unbounded, which means that a slow listener lets events pile up on the heap during
+ * big refreshes. Bounded queues have a {@link #getCapacity() capacity} and an
+ * {@link OverflowPolicy overflow policy} that decides what happens when the capacity is reached.
+ * <p/>
+ * Only created, changed, deleted and batch events count towards the capacity; internal events
+ * (like {@link DataCheckpointEvent checkpoints}) are always accepted.
+ * <p/>
+ * Queues can also be {@link #withCoalescing() coalescing}, in which case a pending event for an
+ * object is replaced by a newer event for the same object (and a pending create is cancelled out
+ * by a delete), so that listeners only process the latest state of objects that change a lot.
+ */
+public final class ListenerQueueSettings {
+
+    /**
+     * What to do when an event is published to a queue that is full.
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Block the publishing thread until the listener made room.
+         */
+        BLOCK,
+        /**
+         * Drop the event and mark the listener as stale; the listener is told how many events
+         * it missed (see {@link DataRefreshListener#onEventsDropped(long)}) once it caught up.
+         */
+        DROP_AND_MARK_STALE,
+        /**
+         * Replace a pending event for the same object id with the new event if there is one
+         * (for batches: for every event of the batch), and block the publishing thread for
+         * the events that are left otherwise.
+         */
+        COALESCE
+    }
+
+    private static final ListenerQueueSettings UNBOUNDED =
+            new ListenerQueueSettings(Integer.MAX_VALUE, OverflowPolicy.BLOCK, false);
+
+    /**
+     * @return settings for queues without a capacity (the default)
+     */
+    public static ListenerQueueSettings unbounded() {
+        return UNBOUNDED;
+    }
+
+    /**
+     * Get settings for bounded queues.
+     *
+     * @param capacity maximum number of pending events
+     * @param policy   what to do when the queue is full
+     * @return settings
+     */
+    public static ListenerQueueSettings bounded(int capacity, OverflowPolicy policy) {
+        return new ListenerQueueSettings(capacity, policy, false);
+    }
+
+    private final int capacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final boolean coalescing;
+
+    private ListenerQueueSettings(int capacity, OverflowPolicy overflowPolicy, boolean coalescing) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (overflowPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Get settings like these, but for coalescing queues: events for an object that is already
+     * waiting in the queue are merged into the pending event rather than queued up behind it.
+     * Created followed by changed becomes created with the latest state, created followed by
+     * deleted cancels out, deleted followed by created becomes changed, and anything else is
+     * replaced by the newest event. The events of {@link DataBatchEvent batches} are coalesced
+     * one by one, with pending events that were queued on their own or in earlier batches.
+     *
+     * @return coalescing settings
+     */
+    public ListenerQueueSettings withCoalescing() {
+        return new ListenerQueueSettings(capacity, overflowPolicy, true);
+    }
+
+    /**
+     * @return maximum number of pending events ({@link Integer#MAX_VALUE} for unbounded queues)
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return what to do when the queue is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return whether pending events are always coalesced with newer events for the same object
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * @return whether this is for bounded queues
+     */
+    public boolean isBounded() {
+        return capacity < Integer.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("capacity", isBounded() ? String.valueOf(capacity) : "unbounded")
+                .add("overflowPolicy", overflowPolicy)
+                .add("coalescing", coalescing)
+                .toString();
+    }
+}
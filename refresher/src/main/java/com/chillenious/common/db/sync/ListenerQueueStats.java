@@ -0,0 +1,110 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Point in time statistics of the queue of a listener, as returned by
+ * {@link DataRefresher#getListenerQueueStats()}. Suitable for exposing as gauges.
+ */
+public final class ListenerQueueStats {
+
+    private final String listener;
+
+    private final ListenerQueueSettings settings;
+
+    private final int depth;
+
+    private final long lagMilliseconds;
+
+    private final long numberProcessed, numberDropped, numberCoalesced;
+
+    private final boolean stale;
+
+    ListenerQueueStats(String listener,
+                       ListenerQueueSettings settings,
+                       int depth,
+                       long lagMilliseconds,
+                       long numberProcessed,
+                       long numberDropped,
+                       long numberCoalesced,
+                       boolean stale) {
+        this.listener = listener;
+        this.settings = settings;
+        this.depth = depth;
+        this.lagMilliseconds = lagMilliseconds;
+        this.numberProcessed = numberProcessed;
+        this.numberDropped = numberDropped;
+        this.numberCoalesced = numberCoalesced;
+        this.stale = stale;
+    }
+
+    /**
+     * @return description of the listener
+     */
+    public String getListener() {
+        return listener;
+    }
+
+    /**
+     * @return settings of the queue
+     */
+    public ListenerQueueSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return number of events waiting to be handled by the listener
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return age in milliseconds of the oldest event waiting to be handled, or 0 if the queue is empty
+     */
+    public long getLagMilliseconds() {
+        return lagMilliseconds;
+    }
+
+    /**
+     * @return number of events that were taken off the queue by the listener
+     */
+    public long getNumberProcessed() {
+        return numberProcessed;
+    }
+
+    /**
+     * @return number of events that were dropped because the queue was full
+     */
+    public long getNumberDropped() {
+        return numberDropped;
+    }
+
+    /**
+     * @return number of events that were merged into pending events for the same object
+     */
+    public long getNumberCoalesced() {
+        return numberCoalesced;
+    }
+
+    /**
+     * @return whether events were dropped that the listener wasn't told about yet
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("listener", listener)
+                .add("settings", settings)
+                .add("depth", depth)
+                .add("lagMilliseconds", lagMilliseconds)
+                .add("numberProcessed", numberProcessed)
+                .add("numberDropped", numberDropped)
+                .add("numberCoalesced", numberCoalesced)
+                .add("stale", stale)
+                .toString();
+    }
+}
@@ -0,0 +1,202 @@
+package com.chillenious.common.db.sync;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sort store that uses a {@link java.util.concurrent.ConcurrentSkipListMap} guarded by a
+ * read/ write lock. Writes are visible to readers right away, so {@link #publish()} is a no-op.
+ * With long ids, the reverse lookup is a primitive map, and {@link #ids()} returns a copy.
+ *
+ * @param <O> type of objects that are sorted
+ */
+final class LockingSortStore<O extends PersistentObject> implements SortStore<O> {
+
+    private final NavigableMap<SortKey, O> sorted = new ConcurrentSkipListMap<>();
+
+    private final IdMap<SortKey> reverseLookup;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+    private final Lock r = rwl.readLock(), w = rwl.writeLock();
+
+    private volatile long version = 0;
+
+    LockingSortStore() {
+        this(false);
+    }
+
+    LockingSortStore(boolean longIds) {
+        this.reverseLookup = IdMap.create(longIds, true);
+    }
+
+    @Override
+    public O put(O object, SortKeyFactory<O, ? extends Comparable> factory) {
+        w.lock();
+        try {
+            return doPut(object, factory);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public void apply(List<DataRefreshEvent<O>> events, SortKeyFactory<O, ? extends Comparable> factory) {
+        w.lock();
+        try {
+            for (DataRefreshEvent<O> evt : events) {
+                if (evt instanceof DataDeletedEvent) {
+                    doRemove(evt.getId());
+                } else {
+                    O object = DataRefreshEvent.objectOf(evt);
+                    if (object != null) {
+                        doPut(object, factory);
+                    }
+                }
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public O remove(Object id) {
+        w.lock();
+        try {
+            return doRemove(id);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    @SuppressWarnings("unchecked")
+    private O doPut(O object, SortKeyFactory<O, ? extends Comparable> factory) {
+        SortKey oldKey = reverseLookup.get(object.getId());
+        SortKey key = factory.create(object, (oldKey == null));
+        if (oldKey != null && key != null) {
+            reverseLookup.remove(object.getId());
+            sorted.remove(oldKey);
+            version++;
+        }
+        if (key != null && (!SortKey.DELETE.equals(key))) {
+            reverseLookup.put(object.getId(), key);
+            Object previous = sorted.put(key, object);
+            version++;
+            return (O) previous;
+        } else {
+            return null;
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private O doRemove(Object id) {
+        SortKey key = reverseLookup.remove(id);
+        if (key != null) {
+            version++;
+            return sorted.remove(key);
+        }
+        return null;
+    }
+
+    @Override
+    public O get(Object id) {
+        r.lock();
+        try {
+            SortKey key = reverseLookup.get(id);
+            return (key != null) ? sorted.get(key) : null;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public Collection<O> values() {
+        return sorted.values();
+    }
+
+    @Override
+    public Collection<O> values(@Nullable Comparable from, boolean fromInclusive,
+                                @Nullable Comparable to, boolean toInclusive) {
+        return SortStore.range(sorted, from, fromInclusive, to, toInclusive).values();
+    }
+
+    @Override
+    public Collection<Map.Entry<SortKey, O>> entries(@Nullable Comparable from, boolean fromInclusive,
+                                                     @Nullable Comparable to, boolean toInclusive) {
+        return SortStore.range(sorted, from, fromInclusive, to, toInclusive).entrySet();
+    }
+
+    @Override
+    public Collection<O> valuesAfter(Object id) {
+        SortKey key;
+        r.lock();
+        try {
+            key = reverseLookup.get(id);
+        } finally {
+            r.unlock();
+        }
+        return (key != null) ? sorted.tailMap(key, false).values() : null;
+    }
+
+    @Override
+    public SortKey keyOf(Object id) {
+        r.lock();
+        try {
+            return reverseLookup.get(id);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        r.lock();
+        try {
+            return reverseLookup.size();
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public Set<Object> ids() {
+        r.lock();
+        try {
+            return reverseLookup.ids();
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object id) {
+        r.lock();
+        try {
+            return reverseLookup.containsKey(id);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public void publish() {
+        // writes are visible right away
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+}
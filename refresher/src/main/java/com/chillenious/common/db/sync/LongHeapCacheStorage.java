@@ -0,0 +1,167 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage that keeps objects with {@link LongPersistentObject long ids} on the heap, in a
+ * {@link LongObjectMap primitive map} guarded by a read/ write lock. Compared to
+ * {@link HeapCacheStorage}, this saves the boxed id and the entry object for every object in
+ * the cache, and the sorts and indexes of caches with this storage use primitive maps as well.
+ * <p/>
+ * Note that {@link #ids()} and {@link #values()} return copies rather than views.
+ *
+ * @param <O> type of the objects in the storage
+ */
+public final class LongHeapCacheStorage<O extends LongPersistentObject> implements CacheStorage<O> {
+
+    private final LongObjectMap<O> objects;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+    private final Lock r = rwl.readLock(), w = rwl.writeLock();
+
+    private final boolean recordStats;
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * Construct.
+     *
+     * @param recordStats whether to record hit and miss counts
+     */
+    public LongHeapCacheStorage(boolean recordStats) {
+        this(recordStats, 16);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param recordStats  whether to record hit and miss counts
+     * @param expectedSize expected number of objects, to avoid rehashing while loading
+     */
+    public LongHeapCacheStorage(boolean recordStats, int expectedSize) {
+        this.recordStats = recordStats;
+        this.objects = new LongObjectMap<>(expectedSize);
+    }
+
+    @Override
+    public O get(Object id) {
+        if (id instanceof Long) {
+            return get(((Long) id).longValue());
+        }
+        return null;
+    }
+
+    @Override
+    public O get(long id) {
+        O object;
+        r.lock();
+        try {
+            object = objects.get(id);
+        } finally {
+            r.unlock();
+        }
+        if (recordStats) {
+            (object != null ? hits : misses).increment();
+        }
+        return object;
+    }
+
+    @Override
+    public void put(O object) {
+        w.lock();
+        try {
+            objects.put(object.getLongId(), object);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public void remove(Object id) {
+        if (id instanceof Long) {
+            w.lock();
+            try {
+                objects.remove((Long) id);
+            } finally {
+                w.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        w.lock();
+        try {
+            objects.clear();
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        r.lock();
+        try {
+            return objects.size();
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public Set<Object> ids() {
+        final ImmutableSet.Builder<Object> ids = ImmutableSet.builder();
+        r.lock();
+        try {
+            objects.forEach((id, object) -> ids.add(id));
+        } finally {
+            r.unlock();
+        }
+        return ids.build();
+    }
+
+    @Override
+    public Collection<O> values() {
+        r.lock();
+        try {
+            final List<O> values = new ArrayList<>(objects.size());
+            objects.forEach((id, object) -> values.add(object));
+            return Collections.unmodifiableList(values);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public Map<Object, O> asMap() {
+        return Maps.asMap(ids(), this::get);
+    }
+
+    @Override
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, 0);
+    }
+
+    @Override
+    public boolean isHeapResident() {
+        return true;
+    }
+
+    @Override
+    public boolean hasLongIds() {
+        return true;
+    }
+}
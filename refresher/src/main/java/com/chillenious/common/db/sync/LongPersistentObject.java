@@ -0,0 +1,14 @@
+package com.chillenious.common.db.sync;
+
+/**
+ * {@link com.chillenious.common.db.sync.PersistentObject Persistent object} with a long id. Caches with
+ * {@link LongHeapCacheStorage storage for long ids} - and their sorts and indexes - keep such objects in
+ * primitive maps, which avoids boxing ids and saves a lot of memory per object.
+ */
+public interface LongPersistentObject extends PersistentObject {
+
+    /**
+     * @return the id as a primitive long; {@link #getId()} should return the same value, boxed
+     */
+    long getLongId();
+}
@@ -0,0 +1,27 @@
+package com.chillenious.common.db.sync;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+
+/**
+ * Factory for multiple index keys per object, e.g. for indexing tags. Clients can create such
+ * factories and pass them in
+ * {@link PersistentObjectCache#addMultiIndex(String, com.chillenious.common.db.sync.MultiIndexKeyFactory)}
+ * so that objects can be looked up by any of their keys.
+ *
+ * @param <O> type of the object it indexes
+ * @param <T> type of the index keys
+ */
+@FunctionalInterface
+public interface MultiIndexKeyFactory<O extends PersistentObject, T> {
+
+    /**
+     * Create the keys for the passed in object.
+     *
+     * @param object the persistent object to create the keys for
+     * @return keys, or null or empty if this object shouldn't be added to the
+     * index this works for; duplicates are ignored
+     */
+    @Nullable
+    Collection<T> create(O object);
+}
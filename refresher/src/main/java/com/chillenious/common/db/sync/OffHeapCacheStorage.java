@@ -0,0 +1,442 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage that keeps objects serialized (with a {@link PersistentObjectCodec codec}) outside of the heap,
+ * in segments of direct byte buffers, or - when a directory is provided - of memory-mapped temporary files.
+ * Objects are deserialized every time they are read, unless they are in the optional hot set: a small,
+ * on-heap cache of the most recently read objects.
+ * <p/>
+ * Segments are filled up one after the other. Objects that are replaced or removed leave garbage
+ * behind in their segment; segments that are mostly garbage are compacted by moving the live objects
+ * to the segment that is currently being filled, after which the segment is reused. Every segment
+ * keeps the ids of the objects that live in it, so that compacting a segment only touches the
+ * objects in that segment.
+ * <p/>
+ * Caches with this storage let their sorts and indexes hold ids rather than objects.
+ *
+ * @param <O> type of the objects in the storage
+ */
+public final class OffHeapCacheStorage<O extends PersistentObject> implements CacheStorage<O> {
+
+    /**
+     * Default size of the segments: 64MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /*
+     * Block of memory objects are written to.
+     */
+    private static final class Segment {
+
+        final int number;
+
+        final ByteBuffer buffer;
+
+        final Set<Object> ids = new HashSet<>(); // of the live objects
+
+        int position = 0, live = 0, dead = 0;
+
+        Segment(int number, ByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    private final PersistentObjectCodec<O> codec;
+
+    private final int segmentSize;
+
+    private final Path directory;
+
+    private final Cache<Object, O> hot;
+
+    private final Map<Object, Long> index = new ConcurrentHashMap<>(); // id -> segment number and offset
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    private final Deque<Segment> free = new ArrayDeque<>();
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+    private final Lock r = rwl.readLock(), w = rwl.writeLock();
+
+    private Segment active;
+
+    /**
+     * Construct with segments of {@link #DEFAULT_SEGMENT_SIZE the default size} in direct
+     * byte buffers, and without a hot set.
+     *
+     * @param codec codec for the objects
+     */
+    public OffHeapCacheStorage(PersistentObjectCodec<O> codec) {
+        this(codec, DEFAULT_SEGMENT_SIZE, 0, null);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param codec       codec for the objects
+     * @param segmentSize size of the segments in bytes; objects can't be larger than this
+     * @param hotSetSize  maximum number of recently read objects to keep on the heap;
+     *                    0 for no hot set
+     * @param directory   directory for memory-mapped segment files, or null to use direct byte buffers
+     */
+    public OffHeapCacheStorage(PersistentObjectCodec<O> codec, int segmentSize,
+                               int hotSetSize, @Nullable Path directory) {
+        if (codec == null) {
+            throw new NullPointerException();
+        }
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException(String.format(
+                    "segment size must be at least 1024 bytes (was %,d)", segmentSize));
+        }
+        if (hotSetSize < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "hot set size may not be negative (was %,d)", hotSetSize));
+        }
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.directory = directory;
+        this.hot = (hotSetSize > 0) ?
+                CacheBuilder.newBuilder().maximumSize(hotSetSize).recordStats().<Object, O>build() : null;
+    }
+
+    @Override
+    public O get(Object id) {
+        if (hot != null) {
+            O object = hot.getIfPresent(id);
+            if (object != null) {
+                return object;
+            }
+        }
+        r.lock();
+        try {
+            Long address = index.get(id);
+            if (address == null) {
+                return null;
+            }
+            O object = decode(address);
+            if (hot != null) {
+                hot.put(id, object); // while holding the lock, so that a concurrent write can't be missed
+            }
+            return object;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public void put(O object) {
+        byte[] bytes = encode(object);
+        int needed = 4 + bytes.length;
+        if (needed > segmentSize) {
+            throw new IllegalArgumentException(String.format(
+                    "object %s takes %,d bytes, which doesn't fit in segments of %,d bytes",
+                    object.getId(), needed, segmentSize));
+        }
+        w.lock();
+        try {
+            Long previous = index.put(object.getId(), write(object.getId(), bytes));
+            if (previous != null) {
+                release(object.getId(), previous);
+            }
+            if (hot != null) {
+                hot.invalidate(object.getId());
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public void remove(Object id) {
+        w.lock();
+        try {
+            Long previous = index.remove(id);
+            if (previous != null) {
+                release(id, previous);
+            }
+            if (hot != null) {
+                hot.invalidate(id);
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        w.lock();
+        try {
+            index.clear();
+            free.clear();
+            for (Segment segment : segments) {
+                recycle(segment);
+            }
+            active = null;
+            if (hot != null) {
+                hot.invalidateAll();
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /*
+     * Write the bytes of the object with the id to the active segment, starting a new one when
+     * needed, and return the address. Must be called while holding the write lock.
+     */
+    private long write(Object id, byte[] bytes) {
+        int needed = 4 + bytes.length;
+        if (active == null || segmentSize - active.position < needed) {
+            active = allocate();
+        }
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(active.position);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        long address = ((long) active.number << 32) | active.position;
+        active.position += needed;
+        active.live += needed;
+        active.ids.add(id);
+        return address;
+    }
+
+    /*
+     * Mark the object with the id at the address as garbage, and recycle or compact the segment if it
+     * is (mostly) garbage. Must be called while holding the write lock.
+     */
+    private void release(Object id, long address) {
+        Segment segment = segments.get((int) (address >>> 32));
+        int length = 4 + segment.buffer.getInt((int) address);
+        segment.live -= length;
+        segment.dead += length;
+        Long current = index.get(id);
+        if (current == null || (int) (current >>> 32) != segment.number) {
+            segment.ids.remove(id); // unless it was just written to this segment again
+        }
+        if (segment != active) {
+            if (segment.live == 0) {
+                recycle(segment);
+            } else if (segment.dead > segmentSize / 2) {
+                compact(segment);
+            }
+        }
+    }
+
+    /*
+     * Move the live objects of the segment to the active segment, and recycle it.
+     * Must be called while holding the write lock.
+     */
+    private void compact(Segment segment) {
+        for (Object id : segment.ids) {
+            long address = index.get(id);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position((int) address);
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            index.put(id, write(id, bytes)); // to the active segment, which is never this one
+        }
+        recycle(segment);
+    }
+
+    /*
+     * Make the segment available for reuse. Must be called while holding the write lock.
+     */
+    private void recycle(Segment segment) {
+        segment.position = segment.live = segment.dead = 0;
+        segment.ids.clear();
+        free.add(segment);
+    }
+
+    /*
+     * Get a segment to write to, reusing one if possible. Must be called while holding the write lock.
+     */
+    private Segment allocate() {
+        Segment segment = free.poll();
+        if (segment == null) {
+            ByteBuffer buffer;
+            if (directory == null) {
+                buffer = ByteBuffer.allocateDirect(segmentSize);
+            } else {
+                try {
+                    Path file = Files.createTempFile(directory, "cache-segment", ".bin");
+                    // the mapping stays valid after the file is closed (and deleted)
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(String.format(
+                            "unable to map segment in %s: %s", directory, e.getMessage()), e);
+                }
+            }
+            segment = new Segment(segments.size(), buffer);
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    /*
+     * Serialize the object with the codec.
+     */
+    private byte[] encode(O object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            codec.write(object, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format(
+                    "problem encoding %s: %s", object, e.getMessage()), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Deserialize what is at the address with the codec. Must be called while holding
+     * the read or write lock.
+     */
+    private O decode(long address) {
+        Segment segment = segments.get((int) (address >>> 32));
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position((int) address);
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return codec.read(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format(
+                    "problem decoding object at %,d: %s", address, e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public long size() {
+        return index.size();
+    }
+
+    @Override
+    public Set<Object> ids() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public Collection<O> values() {
+        return new AbstractCollection<O>() {
+            @Override
+            public Iterator<O> iterator() {
+                final Iterator<Object> ids = index.keySet().iterator();
+                return new AbstractIterator<O>() {
+                    @Override
+                    protected O computeNext() {
+                        while (ids.hasNext()) {
+                            O object = get(ids.next());
+                            if (object != null) { // could have been removed in the meantime
+                                return object;
+                            }
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    @Override
+    public Map<Object, O> asMap() {
+        return Maps.asMap(ids(), this::get);
+    }
+
+    /**
+     * Gets the stats of the hot set.
+     *
+     * @return stats of the hot set
+     * @throws UnsupportedOperationException when there is no hot set
+     */
+    @Override
+    public CacheStats stats() {
+        if (hot == null) {
+            throw new UnsupportedOperationException("storage has no hot set to gather stats for");
+        }
+        return hot.stats();
+    }
+
+    @Override
+    public boolean isHeapResident() {
+        return false;
+    }
+
+    /**
+     * @return number of bytes that are allocated for segments
+     */
+    public long getAllocatedBytes() {
+        r.lock();
+        try {
+            return (long) segments.size() * segmentSize;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes taken by the objects that are currently in the storage
+     */
+    public long getUsedBytes() {
+        r.lock();
+        try {
+            long used = 0;
+            for (Segment segment : segments) {
+                used += segment.live;
+            }
+            return used;
+        } finally {
+            r.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapCacheStorage{" +
+                "codec=" + codec +
+                ", segmentSize=" + segmentSize +
+                ", directory=" + directory +
+                ", size=" + index.size() +
+                '}';
+    }
+}
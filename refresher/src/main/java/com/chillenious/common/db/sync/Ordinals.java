@@ -0,0 +1,159 @@
+package com.chillenious.common.db.sync;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Assigns dense int ordinals to the ids of persistent objects, so that sets of objects can be
+ * stored as {@link org.roaringbitmap.RoaringBitmap bitmaps}. Ordinals are reference counted: every index that
+ * holds an object acquires its ordinal, and releases it when the object is removed.
+ * <p/>
+ * Ordinals of removed objects are reused for new objects, but only when no reader is
+ * translating ordinals to ids, as such a reader might work on a copy of a bitmap that still
+ * has the old ordinal. Readers that need ordinals to be stable should therefore work in
+ * {@link #read(Supplier)}.
+ */
+final class Ordinals {
+
+    /*
+     * Ordinal and reference count of an id.
+     */
+    private static final class Slot {
+
+        final int ordinal;
+
+        int references;
+
+        Slot(int ordinal) {
+            this.ordinal = ordinal;
+        }
+    }
+
+    private final IdMap<Slot> slots;
+
+    private Object[] ids = new Object[1024];
+
+    private int next = 0;
+
+    private int[] free = new int[16];
+
+    private int freeSize = 0;
+
+    private int[] released = new int[16];
+
+    private int releasedSize = 0;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+    private final Lock r = rwl.readLock(), w = rwl.writeLock();
+
+    Ordinals(boolean longIds) {
+        this.slots = IdMap.create(longIds, false);
+    }
+
+    /**
+     * Get the ordinal for the id, assigning one if it doesn't have one yet, and count the reference.
+     *
+     * @param id id of the object
+     * @return ordinal
+     */
+    synchronized int acquire(Object id) {
+        Slot slot = slots.get(id);
+        if (slot == null) {
+            slot = new Slot(nextOrdinal());
+            slots.put(id, slot);
+            if (slot.ordinal >= ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[slot.ordinal] = id;
+        }
+        slot.references++;
+        return slot.ordinal;
+    }
+
+    /**
+     * Release a reference to the ordinal for the id, freeing the ordinal when this was the
+     * last reference.
+     *
+     * @param id id of the object
+     */
+    synchronized void release(Object id) {
+        Slot slot = slots.get(id);
+        if (slot == null) {
+            throw new IllegalStateException(String.format("no ordinal for id %s", id));
+        }
+        if (--slot.references == 0) {
+            slots.remove(id);
+            ids[slot.ordinal] = null;
+            if (releasedSize == released.length) {
+                released = Arrays.copyOf(released, releasedSize * 2);
+            }
+            released[releasedSize++] = slot.ordinal;
+        }
+    }
+
+    /**
+     * @param id id of the object
+     * @return ordinal of the object, or -1 if it doesn't have one
+     */
+    synchronized int ordinalOf(Object id) {
+        Slot slot = slots.get(id);
+        return (slot != null) ? slot.ordinal : -1;
+    }
+
+    /**
+     * @param ordinal ordinal of the object
+     * @return id of the object, or null if the ordinal isn't in use
+     */
+    synchronized Object idOf(int ordinal) {
+        return (ordinal >= 0 && ordinal < next) ? ids[ordinal] : null;
+    }
+
+    /**
+     * @return number of ids that have an ordinal
+     */
+    synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Do work that translates between ordinals and ids, during which ordinals aren't reused.
+     *
+     * @param work work to do
+     * @return result of the work
+     */
+    <V> V read(Supplier<V> work) {
+        r.lock();
+        try {
+            return work.get();
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /*
+     * Must be called while holding the monitor.
+     */
+    private int nextOrdinal() {
+        if (freeSize == 0 && releasedSize > 0 && w.tryLock()) {
+            try { // no readers, so released ordinals can be reused
+                int[] swap = free;
+                free = released;
+                freeSize = releasedSize;
+                released = swap;
+                releasedSize = 0;
+            } finally {
+                w.unlock();
+            }
+        }
+        if (freeSize > 0) {
+            return free[--freeSize];
+        }
+        if (next == Integer.MAX_VALUE) {
+            throw new IllegalStateException("ran out of ordinals");
+        }
+        return next++;
+    }
+}
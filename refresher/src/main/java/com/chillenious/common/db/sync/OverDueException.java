@@ -1,7 +1,7 @@
 package com.chillenious.common.db.sync;
 
 /**
- * Thrown by {@link DataRefreshListenerMarker#blockUntilNextMarker(com.chillenious.common.util.Duration)}
+ * Thrown by {@link DataRefresher#waitForListeners(com.chillenious.common.util.Duration)}
  * when the blocking times out.
  */
 public final class OverDueException extends RuntimeException {
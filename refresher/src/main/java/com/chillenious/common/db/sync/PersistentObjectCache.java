@@ -3,9 +3,9 @@ package com.chillenious.common.db.sync;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
 import com.chillenious.common.ShutdownHooks;
 import com.chillenious.common.WithShutdown;
 import com.chillenious.common.util.Duration;
@@ -13,9 +13,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 /**
  * Cache that works with {@link com.chillenious.common.db.sync.PersistentObject persistent objects} (it is known that these
@@ -48,60 +53,95 @@ public class PersistentObjectCache<O extends PersistentObject>
 
         @Override
         protected void onEvent(DataRefreshEvent<O> evt) {
-            if (evt instanceof DataDeletedEvent) {
+            if (bounded && !(evt instanceof DataCheckpointEvent)) {
+                apply(Collections.singletonList(evt));
+            } else if (evt instanceof DataDeletedEvent) {
                 Object id = evt.getId();
-                cache.invalidate(id);
+                storage.remove(id);
                 if (cacheListener != null) {
                     cacheListener.afterDeleted(id);
                 }
             } else if (evt instanceof DataCreatedEvent) {
                 O object = ((DataCreatedEvent<O>) evt).getObject();
-                cache.put(evt.getId(), object);
+                storage.put(object);
                 if (cacheListener != null) {
                     cacheListener.afterPut(object);
                 }
             } else if (evt instanceof DataChangedEvent) {
                 O object = ((DataChangedEvent<O>) evt).getObject();
-                cache.put(evt.getId(), object);
+                storage.put(object);
                 if (cacheListener != null) {
                     cacheListener.afterPut(object);
                 }
-            } // else ignore; it's probably a special purpose event like req/ ack
+            } else if (evt instanceof DataCheckpointEvent) {
+                // everything up to the checkpoint is in the cache now
+                lastCheckpoint = ((DataCheckpointEvent<O>) evt).getCheckpoint();
+            } // else ignore; it's a special purpose event
+        }
+
+        @Override
+        protected void onBatch(DataBatchEvent<O> batch) {
+            if (bounded) {
+                apply(batch.getEvents());
+            } else {
+                super.onBatch(batch);
+            }
+        }
+
+        @Override
+        void flush() {
+            if (bounded) {
+                for (Sorter<O> sorter : sorters.values()) {
+                    sorter.publishLazily();
+                }
+            }
         }
     }
 
-    final class Refresher implements Runnable {
+    final class Refresher implements Supplier<RefreshResults> {
         @Override
-        public void run() {
+        public RefreshResults get() {
+            log.debug(String.format("do refresh run for %s", name));
             try {
-                log.debug(String.format("do refresh run for %s", name));
-                try {
-                    RefreshResults results = refresher.refresh();
-                    if (results.getNumberRecordsFound() > 0) {
-                        if (log.isDebugEnabled()) {
-                            log.debug(String.format("cache %s refreshed: %s", name, results));
-                        }
+                RefreshResults results;
+                if (initialLoadResults == null) {
+                    results = initialLoad();
+                } else {
+                    results = refresher.refresh();
+                    checkpoint();
+                }
+                if (results.getNumberRecordsFound() > 0) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("cache %s refreshed: %s", name, results));
                     }
-                } catch (Exception e) {
-                    log.error(String.format("problem with cache refresh for %s: %s",
-                            name, e.getMessage()), e);
                 }
-                log.debug(String.format("exiting refresh daemon %s", this));
+                return results;
             } catch (Exception e) {
-                log.error(String.format(
-                        "problem with refresh run: %s; exiting",
-                        e.getMessage()), e);
+                log.error(String.format("problem with cache refresh for %s: %s",
+                        name, e.getMessage()), e);
+                return null;
             }
         }
     }
 
     protected final String name; // mostly for debugging, monitoring
 
+    protected final CacheStorage<O> storage;
+
+    /**
+     * The objects in this cache, as the Guava cache that this field used to be.
+     *
+     * @deprecated use {@link #storage} instead; writes through this view bypass sorts, indexes
+     * and aggregates, and {@link com.google.common.cache.Cache#asMap()} isn't supported by all storage
+     */
+    @Deprecated
     protected final Cache<Object, O> cache;
 
     protected final DataRefresher<O> refresher;
 
-    protected final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    protected final ScheduledExecutorService scheduler = RefreshExecutors.scheduler(); // shared; don't shut down
+
+    private final RefreshDaemon refreshDaemon;
 
     PersistentObjectCacheListener<O> cacheListener; // listener, for testing purposes
 
@@ -109,7 +149,39 @@ public class PersistentObjectCache<O extends PersistentObject>
 
     protected final Map<String, Indexer<O, ?>> indexers = new ConcurrentHashMap<>();
 
-    protected final ExecutorService seedSortsExecutor = Executors.newSingleThreadExecutor();
+    protected final Map<String, Aggregator<O, ?>> aggregators = new ConcurrentHashMap<>();
+
+    private final Ordinals ordinals; // shared by bitmap indexes, so that they can be intersected directly
+
+    protected final ExecutorService seedSortsExecutor = RefreshExecutors.workers(); // shared; don't shut down
+
+    /**
+     * Number of objects that are applied to a sorter or indexer in one go when seeding it.
+     */
+    static final int SEED_BATCH_SIZE = 1000;
+
+    private volatile RefreshResults initialLoadResults;
+
+    @Nullable
+    protected final CacheSnapshot<O> snapshot;
+
+    private volatile Serializable lastCheckpoint; // checkpoint the cache is at least as recent as
+
+    private boolean warmStarted = false;
+
+    @Nullable
+    private volatile PersistentObjectLookup<O> loader; // loads objects that aren't in the cache
+
+    private volatile Class<O> objectType; // type of the arrays returned by lookup(Object...), if known
+
+    // whether the storage evicts objects; sorts, indexes and aggregates are then updated by the
+    // listener of this cache together with the storage, rather than by listeners of their own
+    private final boolean bounded;
+
+    // ids of objects the storage evicted, which are still to be removed from the sorts, indexes and aggregates
+    private final Queue<Object> evictedIds = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean evictionsScheduled = new AtomicBoolean();
 
     /**
      * Construct. This instance will NOT use a refresher (or rather, it
@@ -174,18 +246,191 @@ public class PersistentObjectCache<O extends PersistentObject>
             boolean recordStats,
             boolean startWithRefresh) {
 
+        this(name, shutdownHooks, refresher, refreshInterval,
+                new HeapCacheStorage<O>(recordStats), startWithRefresh, null);
+    }
+
+    /**
+     * Construct, like {@link #PersistentObjectCache(String, com.chillenious.common.ShutdownHooks,
+     * DataRefresher, com.chillenious.common.util.Duration, boolean, boolean)}, but with the
+     * {@link CacheStorage storage} for the objects, and optionally with a
+     * {@link CacheSnapshot snapshot} to warm-start from and to write on shutdown.
+     *
+     * @param name             name of the cache, mainly for debugging and monitoring
+     * @param shutdownHooks    shutdown hook registry
+     * @param refresher        refresher this cache should use to keep track of the backend; snapshots
+     *                         are only used if it supports {@link DataRefresher#getCheckpoint() checkpoints}
+     * @param refreshInterval  interval for refreshes; if null, no refreshes will be
+     *                         done aside from the initial refresh
+     * @param storage          storage for the objects in the cache
+     * @param startWithRefresh whether to do a refresh when the instance is created
+     * @param snapshot         snapshot, or null to always do a full initial load
+     */
+    public PersistentObjectCache(
+            String name,
+            ShutdownHooks shutdownHooks,
+            DataRefresher<O> refresher,
+            Duration refreshInterval,
+            CacheStorage<O> storage,
+            boolean startWithRefresh,
+            @Nullable CacheSnapshot<O> snapshot) {
+
+        if (storage == null) {
+            throw new NullPointerException();
+        }
         this.name = Strings.isNullOrEmpty(name) ? this.toString() : name;
         log.info("creating cache " + this.name);
-        if (recordStats) {
-            this.cache = CacheBuilder.<Long, O>newBuilder().recordStats().build();
-        } else {
-            this.cache = CacheBuilder.<Long, O>newBuilder().build();
-        }
+        this.storage = storage;
+        this.cache = new CacheStorageView<>(storage);
+        this.bounded = storage.isBounded();
+        this.ordinals = new Ordinals(storage.hasLongIds());
         this.refresher = refresher != null ? refresher : new NoopRefresher<O>();
+        this.snapshot = snapshot;
+        this.refreshDaemon = new RefreshDaemon(this.name, scheduler, new Refresher());
+        storage.onEviction(this::evicted);
         shutdownHooks.add(this);
         initRefresher(refreshInterval, startWithRefresh);
     }
 
+    /*
+     * Called by the storage when it evicts an object, possibly on a thread that holds locks
+     * of sorts or indexes (as it is reading them), so the object is only removed from them later:
+     * on the next write, or else in the background.
+     */
+    private void evicted(Object id) {
+        evictedIds.add(id);
+        if (evictionsScheduled.compareAndSet(false, true)) {
+            try {
+                seedSortsExecutor.execute(() -> {
+                    evictionsScheduled.set(false);
+                    synchronized (storage) {
+                        removeEvicted(true);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                evictionsScheduled.set(false);
+            }
+        }
+    }
+
+    /*
+     * Remove the objects that the storage evicted from the sorts, indexes and aggregates, in one
+     * batch. Must be called while holding the lock on the storage.
+     */
+    private void removeEvicted(boolean publish) {
+        List<DataRefreshEvent<O>> removed = null;
+        for (Object id = evictedIds.poll(); id != null; id = evictedIds.poll()) {
+            if (!storage.ids().contains(id)) { // it might have been put back since
+                if (removed == null) {
+                    removed = new ArrayList<>();
+                }
+                removed.add(new DataDeletedEvent<>(id));
+            }
+        }
+        if (removed != null) {
+            for (Sorter<O> sorter : sorters.values()) {
+                sorter.apply(removed);
+                if (publish) {
+                    sorter.publishLazily();
+                }
+            }
+            for (Indexer<O, ?> indexer : indexers.values()) {
+                indexer.apply(removed);
+            }
+            for (Aggregator<O, ?> aggregator : aggregators.values()) {
+                aggregator.apply(removed);
+            }
+        }
+    }
+
+    /*
+     * Apply events from the refresher to the storage and to the sorts, indexes and aggregates,
+     * for when the storage is bounded. Changed events for objects that aren't in the storage
+     * (anymore) are ignored, so that refreshes don't fill the storage up with objects that were
+     * evicted; those are loaded again when they are asked for. Sorts are published when the
+     * listener is flushed.
+     */
+    private void apply(List<DataRefreshEvent<O>> events) {
+        synchronized (storage) {
+            List<DataRefreshEvent<O>> applied = new ArrayList<>(events.size());
+            for (DataRefreshEvent<O> evt : events) {
+                if (evt instanceof DataDeletedEvent) {
+                    storage.remove(evt.getId());
+                    applied.add(evt);
+                    if (cacheListener != null) {
+                        cacheListener.afterDeleted(evt.getId());
+                    }
+                } else if (evt instanceof DataCreatedEvent
+                        || (evt instanceof DataChangedEvent && storage.ids().contains(evt.getId()))) {
+                    O object = DataRefreshEvent.objectOf(evt);
+                    storage.put(object);
+                    applied.add(evt);
+                    if (cacheListener != null) {
+                        cacheListener.afterPut(object);
+                    }
+                } // else not in the storage, or not a data event
+            }
+            for (Sorter<O> sorter : sorters.values()) {
+                sorter.apply(applied);
+            }
+            for (Indexer<O, ?> indexer : indexers.values()) {
+                indexer.apply(applied);
+            }
+            for (Aggregator<O, ?> aggregator : aggregators.values()) {
+                aggregator.apply(applied);
+            }
+            removeEvicted(false);
+        }
+    }
+
+    /**
+     * Set the loader for objects that aren't in this cache, typically because it's
+     * {@link BoundedCacheStorage storage is bounded} and evicted them. When an object is
+     * {@link #get(Object) asked for} that isn't in the cache, it is looked up with the loader,
+     * and if it is found, it is put in the cache (and it's sorts and indexes). Note that
+     * objects that don't exist are looked up with the loader every time they are asked for.
+     *
+     * @param loader loader, or null to not load objects that aren't in the cache
+     */
+    public void setLoader(@Nullable PersistentObjectLookup<O> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Set the type of the objects in this cache, so that {@link #lookup(Object...)} can create
+     * arrays of that type; not needed when the loader knows the type.
+     *
+     * @param objectType type of the objects, or null if it isn't known
+     */
+    public void setObjectType(@Nullable Class<O> objectType) {
+        this.objectType = objectType;
+    }
+
+    /**
+     * @return type of the objects in this cache, or null if it isn't known
+     */
+    @Nullable
+    public Class<O> getObjectType() {
+        return objectType;
+    }
+
+    /*
+     * Load an object that isn't in the cache with the loader (if any), and put it in the cache.
+     */
+    @Nullable
+    private O load(Object id) {
+        PersistentObjectLookup<O> loader = this.loader;
+        if (loader == null) {
+            return null;
+        }
+        O[] loaded = loader.lookup(id);
+        O object = (loaded != null && loaded.length > 0) ? loaded[0] : null;
+        if (object != null) {
+            put(object);
+        }
+        return object;
+    }
+
     /*
      * Initialize the refresher.
      */
@@ -193,27 +438,178 @@ public class PersistentObjectCache<O extends PersistentObject>
             Duration refreshInterval,
             boolean startWithRefresh) {
         refresher.addListener(new RefreshListener()); // the listener will update the cache
-        Duration refreshDaemonDelay;
+        warmStarted = restoreSnapshot();
         if (startWithRefresh) {
-            refreshDaemonDelay = refreshInterval;
             log.info(String.format("start refresher for %s", name));
-            RefreshResults results = refresher.refresh(); // load initial data
-            log.info(String.format("initialized %s with %,d objects, in %,d milliseconds",
-                    name, (results.getNumberCreated() + results.getNumberChanged()),
-                    results.getMillisecondsItTook()));
-        } else {
-            refreshDaemonDelay = Duration.milliseconds(0);
+            initialLoad();
         }
         if (refreshInterval != null) {
-            scheduler.scheduleAtFixedRate(
-                    new Refresher(),
-                    refreshDaemonDelay.getMilliseconds(),
-                    refreshInterval.getMilliseconds(),
-                    TimeUnit.MILLISECONDS);
+            setRefreshSchedule(RefreshSchedule.every(refreshInterval));
         }
         log.info(String.format("cache %s ready", name));
     }
 
+    /**
+     * Set the schedule for refreshes, e.g. an {@link RefreshSchedule#adaptive(Duration, Duration)
+     * adaptive} one, replacing the schedule from the refresh interval the cache was created with.
+     * If no refresh is scheduled yet, the first one is scheduled right away (when the initial
+     * load wasn't done yet), or with the first delay of the schedule.
+     *
+     * @param schedule schedule, or null to stop refreshing
+     */
+    public void setRefreshSchedule(@Nullable RefreshSchedule schedule) {
+        refreshDaemon.setSchedule(schedule, (initialLoadResults == null) ? 0 : -1);
+    }
+
+    /**
+     * @return daemon that runs the scheduled refreshes, e.g. for monitoring the current interval
+     */
+    public RefreshDaemon getRefreshDaemon() {
+        return refreshDaemon;
+    }
+
+    /*
+     * Load initial data, possibly with multiple partitions concurrently, or
+     * just catch up when the cache was warm-started from a snapshot.
+     */
+    private RefreshResults initialLoad() {
+        RefreshResults results = warmStarted ? refresher.refresh() : refresher.load();
+        checkpoint();
+        initialLoadResults = results;
+        log.info(String.format("initialized %s with %,d objects, in %,d milliseconds",
+                name, (results.getNumberCreated() + results.getNumberChanged()),
+                results.getMillisecondsItTook()));
+        return results;
+    }
+
+    /*
+     * Have the refresher send it's checkpoint, so that we know how recent the cache
+     * is when writing a snapshot.
+     */
+    private void checkpoint() {
+        if (snapshot != null) {
+            refresher.publishCheckpoint();
+        }
+    }
+
+    /*
+     * Fill the cache from the snapshot (if any) and let the refresher continue from
+     * where it was when the snapshot was written.
+     */
+    private boolean restoreSnapshot() {
+        if (snapshot == null) {
+            return false;
+        }
+        try {
+            CacheSnapshot.Contents contents = snapshot.read(storage::put);
+            if (contents == null) {
+                log.info(String.format("no snapshot for cache %s found at %s", name, snapshot.getFile()));
+                return false;
+            }
+            refresher.restoreCheckpoint(contents.checkpoint);
+            lastCheckpoint = contents.checkpoint;
+            log.info(String.format("restored %,d objects for cache %s from snapshot %s",
+                    contents.size, name, snapshot.getFile()));
+            return true;
+        } catch (Exception e) {
+            log.warn(String.format("could not restore cache %s from snapshot %s; doing a full load: %s",
+                    name, snapshot.getFile(), e.getMessage()), e);
+            storage.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Write the contents of this cache to it's {@link CacheSnapshot snapshot}, if it has one and it's
+     * refresher supports checkpoints. This is done automatically when the cache is shut down.
+     *
+     * @return whether a snapshot was written
+     */
+    public boolean writeSnapshot() {
+        if (snapshot == null) {
+            return false;
+        }
+        Serializable checkpoint = lastCheckpoint;
+        if (checkpoint == null) {
+            log.info(String.format("not writing snapshot for cache %s, as there is no checkpoint " +
+                    "(the refresher doesn't support them, or the initial load isn't done)", name));
+            return false;
+        }
+        try {
+            int size = snapshot.write(checkpoint, storage.values());
+            log.info(String.format("wrote %,d objects of cache %s to snapshot %s",
+                    size, name, snapshot.getFile()));
+            return true;
+        } catch (Exception e) {
+            log.error(String.format("problem writing snapshot %s for cache %s: %s",
+                    snapshot.getFile(), name, e.getMessage()), e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the results of the initial load of this cache, which includes the time it took.
+     *
+     * @return results of the initial load, or null if it wasn't done (yet)
+     */
+    @Nullable
+    public RefreshResults getInitialLoadResults() {
+        return initialLoadResults;
+    }
+
+    /*
+     * Sorters and indexers hold ids and look objects up in the storage, unless
+     * the storage keeps them on the heap anyway.
+     */
+    @Nullable
+    private Function<Object, O> resolver() {
+        return storage.isHeapResident() ? null : storage::get;
+    }
+
+    /*
+     * Bitmap indexes always look objects up in the storage.
+     */
+    private Function<Object, O> resolver(Indexer.Mode mode) {
+        return (mode == Indexer.Mode.BITMAP) ? storage::get : resolver();
+    }
+
+    /*
+     * Seed a sorter or indexer with what is in the cache, on a thread of the
+     * seed executor so that multiple sorts and indexes are seeded in parallel. The
+     * objects are applied in batches, and done is ran (if provided) when all are applied.
+     */
+    private Future<Integer> seed(final String what, final String id,
+                                 final Consumer<List<DataRefreshEvent<O>>> apply,
+                                 @Nullable final Runnable done) {
+        return seedSortsExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    int count = 0;
+                    List<DataRefreshEvent<O>> batch = new ArrayList<>(SEED_BATCH_SIZE);
+                    for (O object : storage.values()) {
+                        batch.add(new DataCreatedEvent<>(object));
+                        if (batch.size() == SEED_BATCH_SIZE) {
+                            apply.accept(batch);
+                            count += batch.size();
+                            batch = new ArrayList<>(SEED_BATCH_SIZE);
+                        }
+                    }
+                    apply.accept(batch);
+                    if (done != null) {
+                        done.run();
+                    }
+                    return count + batch.size();
+                } catch (Exception e) {
+                    String msg = String.format("problem adding %s %s to cache %s: %s",
+                            what, id, name, e.getMessage());
+                    log.error(msg, e);
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
     /**
      * Add a index for objects in this cache so that elements in the cache
      * can be looked up using a particular key. Adding an index will result
@@ -228,6 +624,25 @@ public class PersistentObjectCache<O extends PersistentObject>
      */
     public <T extends Comparable> Future<Integer> addIndex(
             final String id, IndexKeyFactory<O, T> factory) {
+        return addIndex(id, factory, Indexer.Mode.HASH);
+    }
+
+    /**
+     * Add an index for objects in this cache, like {@link #addIndex(String, IndexKeyFactory)}, using
+     * the provided {@link com.chillenious.common.db.sync.Indexer.Mode mode}. Use
+     * {@link com.chillenious.common.db.sync.Indexer.Mode#BITMAP} for indexes with few keys that
+     * each have many objects (like status or country), and
+     * {@link com.chillenious.common.db.sync.Indexer.Mode#SORTED} for indexes that are looked up
+     * by range (like prices or dates).
+     *
+     * @param id      index id
+     * @param factory factory for creating lookup keys
+     * @param mode    how the index keeps the objects of its keys
+     * @return future on the task of initial creation of the index, which returns the
+     * number of rows it indexed
+     */
+    public <T extends Comparable> Future<Integer> addIndex(
+            final String id, IndexKeyFactory<O, T> factory, Indexer.Mode mode) {
 
         if (id == null) {
             throw new NullPointerException();
@@ -235,36 +650,92 @@ public class PersistentObjectCache<O extends PersistentObject>
         if (factory == null) {
             throw new NullPointerException();
         }
-        synchronized (indexers) {
+        if (mode == null) {
+            throw new NullPointerException();
+        }
+        return addIndex(id, new Indexer<>(factory, mode, resolver(mode),
+                storage.hasLongIds(), ordinals), factory);
+    }
+
+    /**
+     * Add an index for objects in this cache with multiple keys per object (e.g. tags), so
+     * that elements in the cache can be looked up using any of their keys. Otherwise this
+     * works like {@link #addIndex(String, IndexKeyFactory)}.
+     *
+     * @param id      index id
+     * @param factory factory for creating lookup keys
+     * @return future on the task of initial creation of the index, which returns the
+     * number of rows it indexed
+     */
+    public <T> Future<Integer> addMultiIndex(
+            final String id, MultiIndexKeyFactory<O, T> factory) {
+        return addMultiIndex(id, factory, Indexer.Mode.HASH);
+    }
 
-            final Indexer<O, T> indexer = new Indexer<>(factory);
+    /**
+     * Add an index for objects in this cache with multiple keys per object, like
+     * {@link #addMultiIndex(String, MultiIndexKeyFactory)}, using the provided
+     * {@link com.chillenious.common.db.sync.Indexer.Mode mode}. The keys of
+     * {@link com.chillenious.common.db.sync.Indexer.Mode#SORTED sorted} indexes must be
+     * {@link Comparable comparable}; objects with other keys are rejected with an
+     * {@link IllegalArgumentException} before the index is changed.
+     *
+     * @param id      index id
+     * @param factory factory for creating lookup keys
+     * @param mode    how the index keeps the objects of its keys
+     * @return future on the task of initial creation of the index, which returns the
+     * number of rows it indexed
+     */
+    public <T> Future<Integer> addMultiIndex(
+            final String id, MultiIndexKeyFactory<O, T> factory, Indexer.Mode mode) {
+
+        if (id == null) {
+            throw new NullPointerException();
+        }
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        if (mode == null) {
+            throw new NullPointerException();
+        }
+        return addIndex(id, new Indexer<>(factory, mode, resolver(mode),
+                storage.hasLongIds(), ordinals), factory);
+    }
+
+    /*
+     * Registers, binds and seeds the indexer.
+     */
+    private Future<Integer> addIndex(String id, Indexer<O, ?> indexer, Object factory) {
+        synchronized (indexers) {
             Indexer<O, ?> previous = indexers.put(id, indexer);
             if (previous != null) {
                 log.debug(String.format("replaced sort id %s for cache %s", id, name));
-                previous.unbind(refresher);
+                unbind(previous::unbind);
             }
             // add listener that updates the sorted set when data changes
-            indexer.bind(refresher);
+            bind(indexer::bind);
             log.info(String.format("added index %s (key factory: %s) for cache %s", id, factory, name));
-            // and finally, seed sort set in a different thread and return the future of the work
-            return seedSortsExecutor.submit(new Callable<Integer>() {
-                @Override
-                public Integer call() {
-                    try {
-                        AtomicInteger count = new AtomicInteger(0);
-                        for (O object : cache.asMap().values()) {
-                            indexer.put(object);
-                            count.incrementAndGet();
-                        }
-                        return count.get();
-                    } catch (Exception e) {
-                        String msg = String.format("problem adding index %s to cache %s: %s",
-                                id, name, e.getMessage());
-                        log.error(msg, e);
-                        throw new IllegalStateException(e);
-                    }
-                }
-            });
+            // and finally, seed index in a different thread and return the future of the work
+            return seed("index", id, indexer::apply, null);
+        }
+    }
+
+    /*
+     * Bind a sort, index or aggregate to the refresher, unless the storage is bounded, in which
+     * case the listener of this cache updates it.
+     */
+    private void bind(Consumer<DataRefresher<O>> bind) {
+        if (!bounded) {
+            bind.accept(refresher);
+        }
+    }
+
+    /*
+     * Unbind a sort, index or aggregate that was bound with bind(...).
+     */
+    private void unbind(Consumer<DataRefresher<O>> unbind) {
+        if (!bounded) {
+            unbind.accept(refresher);
         }
     }
 
@@ -299,6 +770,128 @@ public class PersistentObjectCache<O extends PersistentObject>
         return getIndexer(indexId).get(indexVal);
     }
 
+    /**
+     * Gets the objects with index values between the provided bounds (inclusive), using a
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @param indexId id of the index
+     * @param from    lower bound of the index values, or null for no lower bound
+     * @param to      upper bound of the index values, or null for no upper bound
+     * @param <T>     type of the index value
+     * @return set of matches, possibly empty, never null
+     * @throws IllegalStateException when the index isn't sorted
+     */
+    public <T> Set<O> getIndexedRange(String indexId, @Nullable T from, @Nullable T to) {
+        return getIndexedRange(indexId, from, true, to, true);
+    }
+
+    /**
+     * Gets the objects with index values in the provided range, using a
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @param indexId       id of the index
+     * @param from          lower bound of the index values, or null for no lower bound
+     * @param fromInclusive whether objects with the lower bound as their index value are included
+     * @param to            upper bound of the index values, or null for no upper bound
+     * @param toInclusive   whether objects with the upper bound as their index value are included
+     * @param <T>           type of the index value
+     * @return set of matches, possibly empty, never null
+     * @throws IllegalStateException when the index isn't sorted
+     */
+    public <T> Set<O> getIndexedRange(String indexId, @Nullable T from, boolean fromInclusive,
+                                      @Nullable T to, boolean toInclusive) {
+        return this.<T>getIndexer(indexId).range(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Counts the objects with index values in the provided range, using a
+     * {@link Indexer.Mode#SORTED sorted} index, without looking the objects up.
+     *
+     * @see #getIndexedRange(String, Object, boolean, Object, boolean)
+     */
+    public <T> int countIndexedRange(String indexId, @Nullable T from, boolean fromInclusive,
+                                     @Nullable T to, boolean toInclusive) {
+        return this.<T>getIndexer(indexId).count(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Gets the greatest index value less than or equal to the provided value, using a
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @param indexId  id of the index
+     * @param indexVal value to look up
+     * @param <T>      type of the index value
+     * @return greatest index value less than or equal to the provided value, or null if there is none
+     * @throws IllegalStateException when the index isn't sorted
+     */
+    @Nullable
+    public <T> T getIndexedFloorKey(String indexId, T indexVal) {
+        return this.<T>getIndexer(indexId).floorKey(indexVal);
+    }
+
+    /**
+     * Gets the least index value greater than or equal to the provided value, using a
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @param indexId  id of the index
+     * @param indexVal value to look up
+     * @param <T>      type of the index value
+     * @return least index value greater than or equal to the provided value, or null if there is none
+     * @throws IllegalStateException when the index isn't sorted
+     */
+    @Nullable
+    public <T> T getIndexedCeilingKey(String indexId, T indexVal) {
+        return this.<T>getIndexer(indexId).ceilingKey(indexVal);
+    }
+
+    /**
+     * Gets the objects that match the provided query on the indexes of this cache.
+     *
+     * @param query query to evaluate
+     * @return set of matches, possibly empty, never null
+     * @throws IllegalArgumentException when the query refers to an index that doesn't exist
+     */
+    public Set<O> getIndexed(IndexQuery query) {
+        Set<Object> ids = getIndexedIds(query);
+        ImmutableSet.Builder<O> objects = ImmutableSet.builder();
+        for (Object id : ids) {
+            O object = storage.get(id);
+            if (object != null) { // might be removed from the storage before it's removed from the index
+                objects.add(object);
+            }
+        }
+        return objects.build();
+    }
+
+    /**
+     * Gets the ids of the objects that match the provided query on the indexes of this cache.
+     *
+     * @param query query to evaluate
+     * @return set of ids, possibly empty, never null
+     * @throws IllegalArgumentException when the query refers to an index that doesn't exist
+     */
+    public Set<Object> getIndexedIds(IndexQuery query) {
+        if (query == null) {
+            throw new NullPointerException();
+        }
+        return ordinals.read(() -> query.evaluate(this::getIndexer).materialize());
+    }
+
+    /**
+     * Counts the objects that match the provided query on the indexes of this cache, without
+     * looking the objects up.
+     *
+     * @param query query to evaluate
+     * @return number of matches
+     * @throws IllegalArgumentException when the query refers to an index that doesn't exist
+     */
+    public int countIndexed(IndexQuery query) {
+        if (query == null) {
+            throw new NullPointerException();
+        }
+        return ordinals.read(() -> query.evaluate(this::getIndexer).size());
+    }
+
     /**
      * Gets single matches for indexed field based on the indexer (id) and the index value.
      *
@@ -337,7 +930,23 @@ public class PersistentObjectCache<O extends PersistentObject>
      * or go on with execution if you don't. It returns the number of rows it sorted
      */
     public <T extends Comparable> Future<Integer> addSort(
-            final String id, SortKeyFactory<O, T> factory) {
+            String id, SortKeyFactory<O, T> factory) {
+        return addSort(id, factory, Sorter.Mode.LOCKING);
+    }
+
+    /**
+     * Add a sort for objects in this cache, like {@link #addSort(String, SortKeyFactory)}, using
+     * the provided {@link com.chillenious.common.db.sync.Sorter.Mode mode}. Use
+     * {@link com.chillenious.common.db.sync.Sorter.Mode#SNAPSHOT} for sorts that are iterated
+     * over a lot while refreshes land, so that readers never block.
+     *
+     * @param id      sort id
+     * @param factory factory for creating sort keys
+     * @param mode    how the sorter keeps it's sorted set
+     * @return future on the task of initial creation of the set; it returns the number of rows it sorted
+     */
+    public <T extends Comparable> Future<Integer> addSort(
+            final String id, SortKeyFactory<O, T> factory, Sorter.Mode mode) {
 
         if (id == null) {
             throw new NullPointerException();
@@ -345,36 +954,22 @@ public class PersistentObjectCache<O extends PersistentObject>
         if (factory == null) {
             throw new NullPointerException();
         }
+        if (mode == null) {
+            throw new NullPointerException();
+        }
         synchronized (sorters) {
 
-            final Sorter<O> sorter = new Sorter<>(factory);
+            final Sorter<O> sorter = new Sorter<>(factory, mode, resolver(), storage.hasLongIds());
             Sorter<O> previous = sorters.put(id, sorter);
             if (previous != null) {
                 log.info(String.format("replaced sort id %s for cache %s", id, name));
-                previous.unbind(refresher);
+                unbind(previous::unbind);
             }
             // add listener that updates the sorted set when data changes
-            sorter.bind(refresher);
+            bind(sorter::bind);
             log.info(String.format("added sort %s (key factory: %s) for cache %s", id, factory, name));
             // and finally, seed sort set in a different thread and return the future of the work
-            return seedSortsExecutor.submit(new Callable<Integer>() {
-                @Override
-                public Integer call() {
-                    try {
-                        AtomicInteger count = new AtomicInteger(0);
-                        for (O object : cache.asMap().values()) {
-                            sorter.put(object);
-                            count.incrementAndGet();
-                        }
-                        return count.get();
-                    } catch (Exception e) {
-                        String msg = String.format("problem adding sort %s to cache %s: %s",
-                                id, name, e.getMessage());
-                        log.error(msg, e);
-                        throw new IllegalStateException(e);
-                    }
-                }
-            });
+            return seed("sort", id, sorter::apply, sorter::publish);
         }
     }
 
@@ -413,13 +1008,143 @@ public class PersistentObjectCache<O extends PersistentObject>
         }
     }
 
+    /**
+     * Gets the objects with sort values in the provided range for the provided sort id.
+     *
+     * @param id            id of the sort
+     * @param from          lower bound of the sort values, or null for no lower bound
+     * @param fromInclusive whether objects with the lower bound as their sort value are included
+     * @param to            upper bound of the sort values, or null for no upper bound
+     * @param toInclusive   whether objects with the upper bound as their sort value are included
+     * @return objects in the range, in sort order
+     * @see Sorter#values(Comparable, boolean, Comparable, boolean)
+     */
+    public Collection<O> values(String id, @Nullable Comparable from, boolean fromInclusive,
+                                @Nullable Comparable to, boolean toInclusive) {
+        return getSorter(id).values(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Gets a page of objects for the provided sort id, starting after the object with the provided id.
+     *
+     * @param id      id of the sort
+     * @param afterId id of the object to start after (typically the last one of the previous page),
+     *                or null to start at the beginning
+     * @param limit   maximum number of objects to return
+     * @return objects in sort order, at most limit
+     * @see Sorter#page(Object, int)
+     */
+    public List<O> page(String id, @Nullable Object afterId, int limit) {
+        return getSorter(id).page(afterId, limit);
+    }
+
+    /**
+     * Add an aggregate view on the objects in this cache, which keeps the number of objects
+     * (and, when a value function is provided, the sum and optionally the minimum and maximum
+     * of their values) per group. The view is updated incrementally when objects are created,
+     * changed or deleted, so reading it doesn't scan the cache.
+     *
+     * @param id        aggregate id
+     * @param groupBy   factory for the group keys; objects for which it returns null aren't aggregated
+     * @param value     function for the values to aggregate, or null to only count
+     * @param functions additional functions to keep (e.g. {@link Aggregator.Function#MIN}); counts,
+     *                  and sums when there is a value function, are always kept
+     * @return future on the task of initial creation of the aggregates, which returns the
+     * number of rows it aggregated
+     */
+    public <K> Future<Integer> addAggregate(String id, IndexKeyFactory<O, K> groupBy,
+                                            @Nullable ToLongFunction<? super O> value,
+                                            Aggregator.Function... functions) {
+        if (id == null) {
+            throw new NullPointerException();
+        }
+        if (groupBy == null) {
+            throw new NullPointerException();
+        }
+        Set<Aggregator.Function> fns = EnumSet.noneOf(Aggregator.Function.class);
+        Collections.addAll(fns, functions);
+        Aggregator<O, K> aggregator = new Aggregator<>(groupBy, value, fns, storage.hasLongIds());
+        synchronized (aggregators) {
+            Aggregator<O, ?> previous = aggregators.put(id, aggregator);
+            if (previous != null) {
+                log.debug(String.format("replaced aggregate id %s for cache %s", id, name));
+                unbind(previous::unbind);
+            }
+            bind(aggregator::bind);
+            log.info(String.format("added aggregate %s (group by: %s) for cache %s", id, groupBy, name));
+            return seed("aggregate", id, aggregator::apply, null);
+        }
+    }
+
+    /**
+     * Gets aggregator for the provided aggregate id.
+     *
+     * @param id id of the aggregator
+     * @return aggregator
+     * @throws IllegalArgumentException when no aggregator with the provided id was found
+     */
+    @SuppressWarnings("unchecked")
+    protected <K> Aggregator<O, K> getAggregator(String id) {
+        if (id == null) {
+            throw new NullPointerException();
+        }
+        Aggregator aggregator = aggregators.get(id);
+        if (aggregator == null) {
+            throw new IllegalArgumentException(String.format("no aggregator found with id %s (cache %s)", id, name));
+        }
+        return aggregator;
+    }
+
+    /**
+     * Gets the aggregate of a group.
+     *
+     * @param id    id of the aggregate
+     * @param group group key
+     * @param <K>   type of the group key
+     * @return aggregate of the group; {@link Aggregate#EMPTY} if the group has no objects
+     */
+    public <K> Aggregate getAggregate(String id, K group) {
+        return this.<K>getAggregator(id).get(group);
+    }
+
+    /**
+     * Gets the aggregates of all groups that have objects.
+     *
+     * @param id  id of the aggregate
+     * @param <K> type of the group key
+     * @return map of group key to aggregate
+     */
+    public <K> Map<K, Aggregate> getAggregates(String id) {
+        return this.<K>getAggregator(id).getAll();
+    }
+
+    /**
+     * Gets the aggregate of all objects in all groups.
+     *
+     * @param id id of the aggregate
+     * @return aggregate of all groups
+     */
+    public Aggregate getAggregateTotal(String id) {
+        return getAggregator(id).total();
+    }
+
+    /**
+     * Start a query on the objects in this cache, which can combine index queries, filters
+     * and the order of a sort, and which returns pages of results.
+     *
+     * @return new query, which matches all objects in the cache until it is refined
+     */
+    public CacheQuery<O> query() {
+        return new CacheQuery<>(this);
+    }
+
     /**
      * Get unmodifiable map (id -> persistent object) over all values in the cache.
      *
      * @return map with ids and objects
      */
     public Map<Object, O> asMap() {
-        return Collections.unmodifiableMap(cache.asMap());
+        return storage.asMap();
     }
 
     /**
@@ -429,7 +1154,7 @@ public class PersistentObjectCache<O extends PersistentObject>
      * @return collection of all values
      */
     public Collection<O> values() {
-        return cache.asMap().values();
+        return storage.values();
     }
 
     /**
@@ -438,16 +1163,33 @@ public class PersistentObjectCache<O extends PersistentObject>
      * @return set of all ids
      */
     public Set<Object> ids() {
-        return cache.asMap().keySet();
+        return storage.ids();
     }
 
     /**
      * Returns the value associated with the provided id in this cache, or {@code null}
-     * if there is no cached value for it.
+     * if there is no cached value for it (and the {@link #setLoader(PersistentObjectLookup) loader},
+     * if any, didn't find it either).
      */
     @Nullable
     public O get(Object id) {
-        return cache.getIfPresent(id);
+        O object = storage.get(id);
+        return (object != null) ? object : load(id);
+    }
+
+    /**
+     * Returns the value associated with the provided long id in this cache, or {@code null}
+     * if there is no cached value for it (and the {@link #setLoader(PersistentObjectLookup) loader},
+     * if any, didn't find it either). Avoids boxing the id when the cache's
+     * {@link CacheStorage#hasLongIds() storage has long ids}.
+     * <p/>
+     * This isn't an overload of {@link #get(Object)}, as that would be picked for {@code int}
+     * ids as well, which would then be looked up as longs.
+     */
+    @Nullable
+    public O getById(long id) {
+        O object = storage.get(id);
+        return (object != null) ? object : load(id);
     }
 
     /**
@@ -459,14 +1201,19 @@ public class PersistentObjectCache<O extends PersistentObject>
      * @param object object to put in the cache
      */
     public void put(O object) {
-        synchronized (cache) {
-            cache.put(object.getId(), object);
+        synchronized (storage) {
+            storage.put(object);
             for (Sorter<O> sorter : sorters.values()) {
                 sorter.put(object);
+                sorter.publishLazily();
             }
             for (Indexer<O, ?> indexer : indexers.values()) {
                 indexer.put(object);
             }
+            for (Aggregator<O, ?> aggregator : aggregators.values()) {
+                aggregator.put(object);
+            }
+            removeEvicted(true);
         }
     }
 
@@ -478,14 +1225,18 @@ public class PersistentObjectCache<O extends PersistentObject>
      * @param id id of the object to remove
      */
     public void remove(Object id) {
-        synchronized (cache) {
-            cache.invalidate(id);
+        synchronized (storage) {
+            storage.remove(id);
             for (Sorter<O> sorter : sorters.values()) {
                 sorter.remove(id);
+                sorter.publishLazily();
             }
             for (Indexer<O, ?> indexer : indexers.values()) {
                 indexer.remove(id);
             }
+            for (Aggregator<O, ?> aggregator : aggregators.values()) {
+                aggregator.remove(id);
+            }
         }
     }
 
@@ -496,14 +1247,14 @@ public class PersistentObjectCache<O extends PersistentObject>
      * @throws UnsupportedOperationException if the cache is not initialized to gather stats
      */
     public CacheStats stats() {
-        return cache.stats();
+        return storage.stats();
     }
 
     /**
      * @return the approximate number of entries in this cache.
      */
     public long size() {
-        return cache.size();
+        return storage.size();
     }
 
     /**
@@ -512,18 +1263,83 @@ public class PersistentObjectCache<O extends PersistentObject>
      * @return refresh results
      */
     public RefreshResults refresh() {
-        return refresher.refresh();
+        RefreshResults results = refresher.refresh();
+        checkpoint();
+        return results;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Lookup one or more objects by their ids; objects that aren't in the cache are loaded with
+     * the {@link #setLoader(PersistentObjectLookup) loader} (if any) in one go.
+     * <p/>
+     * The returned array is of the {@link #setObjectType(Class) object type} of this cache, or if
+     * that isn't set, of the {@link PersistentObjectLookup#getObjectType() object type} of the
+     * loader. When neither is known, use {@link #lookup(Class, Object...)} or
+     * {@link #lookupAll(Collection)} instead.
+     *
+     * @param ids ids of the objects to lookup
+     * @return objects, with nulls for the ids that weren't found
+     * @throws IllegalStateException when the type of the objects isn't known
+     */
     @Override
     public O[] lookup(Object... ids) {
         Preconditions.checkNotNull(ids);
-        O[] objects = (O[]) new Object[ids.length];
-        for (int i = 0, l = ids.length; i < l; i++) {
-            objects[i] = get(ids[i]);
+        Class<O> type = CacheLookups.arrayType(this, objectType, loader);
+        return CacheLookups.toArray(type, ids, lookupAll(Arrays.asList(ids)));
+    }
+
+    /**
+     * Lookup one or more objects by their ids; objects that aren't in the cache are loaded with
+     * the {@link #setLoader(PersistentObjectLookup) loader} (if any) in one go.
+     *
+     * @param type type of the objects
+     * @param ids  ids of the objects to lookup
+     * @return objects, with nulls for the ids that weren't found
+     */
+    public O[] lookup(Class<O> type, Object... ids) {
+        Preconditions.checkNotNull(type);
+        Preconditions.checkNotNull(ids);
+        return CacheLookups.toArray(type, ids, lookupAll(Arrays.asList(ids)));
+    }
+
+    /**
+     * Lookup multiple objects by their ids. The ids that aren't in the cache are looked up with
+     * the {@link #setLoader(PersistentObjectLookup) loader} (if any) in one go (see
+     * {@link PersistentObjectLookup#lookupAll(Collection)}), and the objects it finds are put in
+     * the cache (and it's sorts, indexes and aggregates).
+     *
+     * @param ids ids of the objects to lookup
+     * @return map of id to object for the objects that were found, in the order of the ids
+     */
+    public Map<Object, O> lookupAll(Collection<?> ids) {
+        Preconditions.checkNotNull(ids);
+        return CacheLookups.lookupAll(ids, storage::get, loader, this::putAll);
+    }
+
+    /*
+     * Put objects in the cache, applying them to each sort, index and aggregate in one go.
+     */
+    void putAll(Collection<O> objects) {
+        List<DataRefreshEvent<O>> events = new ArrayList<>(objects.size());
+        for (O object : objects) {
+            events.add(new DataCreatedEvent<>(object));
+        }
+        synchronized (storage) {
+            for (O object : objects) {
+                storage.put(object);
+            }
+            for (Sorter<O> sorter : sorters.values()) {
+                sorter.apply(events);
+                sorter.publish();
+            }
+            for (Indexer<O, ?> indexer : indexers.values()) {
+                indexer.apply(events);
+            }
+            for (Aggregator<O, ?> aggregator : aggregators.values()) {
+                aggregator.apply(events);
+            }
+            removeEvicted(true);
         }
-        return objects;
     }
 
     /**
@@ -531,8 +1347,8 @@ public class PersistentObjectCache<O extends PersistentObject>
      */
     public void shutdown() {
         log.debug("shutting down cache " + name);
-        scheduler.shutdownNow();
-        seedSortsExecutor.shutdownNow();
-        cache.invalidateAll();
+        refreshDaemon.shutdown();
+        writeSnapshot();
+        storage.clear();
     }
 }
@@ -6,6 +6,9 @@ import com.chillenious.common.Settings;
 import com.chillenious.common.ShutdownHooks;
 import com.chillenious.common.util.Duration;
 
+import javax.annotation.Nullable;
+import java.util.function.ToIntFunction;
+
 /**
  * Creates instances of {@link com.chillenious.common.db.sync.PersistentObjectCache}.
  * <p/>
@@ -59,7 +62,35 @@ public final class PersistentObjectCacheBuilder {
                               boolean recordCacheStats,
                               boolean startWithRefresh,
                               PersistentObjectCacheWithMRUSort.MruPromotionStrategy<O> strategy) {
-            super(name, shutdownHooks, refresher, refreshDuration, recordCacheStats, startWithRefresh);
+            this(name, shutdownHooks, refresher, refreshDuration,
+                    recordCacheStats, startWithRefresh, strategy, null, null);
+        }
+
+        public MruSortImpStep(String name,
+                              ShutdownHooks shutdownHooks,
+                              DataRefresher<O> refresher,
+                              Duration refreshDuration,
+                              boolean recordCacheStats,
+                              boolean startWithRefresh,
+                              PersistentObjectCacheWithMRUSort.MruPromotionStrategy<O> strategy,
+                              @Nullable CacheStorage<O> storage,
+                              @Nullable CacheSnapshot<O> snapshot) {
+            this(name, shutdownHooks, refresher, refreshDuration,
+                    recordCacheStats, startWithRefresh, strategy, storage, snapshot, null);
+        }
+
+        public MruSortImpStep(String name,
+                              ShutdownHooks shutdownHooks,
+                              DataRefresher<O> refresher,
+                              Duration refreshDuration,
+                              boolean recordCacheStats,
+                              boolean startWithRefresh,
+                              PersistentObjectCacheWithMRUSort.MruPromotionStrategy<O> strategy,
+                              @Nullable CacheStorage<O> storage,
+                              @Nullable CacheSnapshot<O> snapshot,
+                              @Nullable Class<O> type) {
+            super(name, shutdownHooks, refresher, refreshDuration,
+                    recordCacheStats, startWithRefresh, storage, snapshot, type);
             this.strategy = strategy;
         }
 
@@ -69,9 +100,9 @@ public final class PersistentObjectCacheBuilder {
          * @return new persistent object cache
          */
         public PersistentObjectCacheWithMRUSort<O> build() {
-            return new PersistentObjectCacheWithMRUSort<>
+            return withType(new PersistentObjectCacheWithMRUSort<>
                     (name, shutdownHooks, refresher, refreshDuration,
-                            recordCacheStats, startWithRefresh, strategy);
+                            storage(), startWithRefresh, strategy, snapshot));
         }
 
         /**
@@ -82,7 +113,7 @@ public final class PersistentObjectCacheBuilder {
             return new MruSortImpStep<>
                     (name, shutdownHooks, refresher, refreshDuration,
                             recordCacheStats, startWithRefresh,
-                            new PersistentObjectCacheWithMRUSort.PromoteWhenNewOnly<O>());
+                            new PersistentObjectCacheWithMRUSort.PromoteWhenNewOnly<O>(), storage, snapshot, type);
         }
 
         /**
@@ -93,7 +124,7 @@ public final class PersistentObjectCacheBuilder {
             return new MruSortImpStep<>
                     (name, shutdownHooks, refresher, refreshDuration,
                             recordCacheStats, startWithRefresh,
-                            new PersistentObjectCacheWithMRUSort.PromoteWhenNewOrUpdated<O>());
+                            new PersistentObjectCacheWithMRUSort.PromoteWhenNewOrUpdated<O>(), storage, snapshot, type);
         }
 
         /**
@@ -104,7 +135,7 @@ public final class PersistentObjectCacheBuilder {
             return new MruSortImpStep<>
                     (name, shutdownHooks, refresher, refreshDuration,
                             recordCacheStats, startWithRefresh,
-                            new PersistentObjectCacheWithMRUSort.PromoteNever<O>());
+                            new PersistentObjectCacheWithMRUSort.PromoteNever<O>(), storage, snapshot, type);
         }
 
         /**
@@ -115,7 +146,7 @@ public final class PersistentObjectCacheBuilder {
         public MruSortImpStep<O> withPromotionStrategy(
                 PersistentObjectCacheWithMRUSort.MruPromotionStrategy<O> strategy) {
             return new MruSortImpStep<>(name, shutdownHooks, refresher, refreshDuration,
-                    recordCacheStats, startWithRefresh, strategy);
+                    recordCacheStats, startWithRefresh, strategy, storage, snapshot, type);
         }
     }
 
@@ -125,8 +156,27 @@ public final class PersistentObjectCacheBuilder {
                          ShutdownHooks shutdownHooks,
                          DataRefresher<O> refresher, Duration refreshDuration,
                          boolean recordCacheStats, boolean startWithRefresh) {
+            this(name, shutdownHooks, refresher, refreshDuration,
+                    recordCacheStats, startWithRefresh, null, null);
+        }
+
+        public BuildStep(String name,
+                         ShutdownHooks shutdownHooks,
+                         DataRefresher<O> refresher, Duration refreshDuration,
+                         boolean recordCacheStats, boolean startWithRefresh,
+                         @Nullable CacheStorage<O> storage, @Nullable CacheSnapshot<O> snapshot) {
+            this(name, shutdownHooks, refresher, refreshDuration,
+                    recordCacheStats, startWithRefresh, storage, snapshot, null);
+        }
+
+        public BuildStep(String name,
+                         ShutdownHooks shutdownHooks,
+                         DataRefresher<O> refresher, Duration refreshDuration,
+                         boolean recordCacheStats, boolean startWithRefresh,
+                         @Nullable CacheStorage<O> storage, @Nullable CacheSnapshot<O> snapshot,
+                         @Nullable Class<O> type) {
             super(name, shutdownHooks, refresher, refreshDuration,
-                    recordCacheStats, startWithRefresh);
+                    recordCacheStats, startWithRefresh, storage, snapshot, type);
         }
 
         /**
@@ -135,9 +185,9 @@ public final class PersistentObjectCacheBuilder {
          * @return new persistent object cache
          */
         public PersistentObjectCache<O> build() {
-            return new PersistentObjectCache<>(
+            return withType(new PersistentObjectCache<>(
                     name, shutdownHooks, refresher, refreshDuration,
-                    recordCacheStats, startWithRefresh);
+                    storage(), startWithRefresh, snapshot));
         }
 
         /**
@@ -147,7 +197,7 @@ public final class PersistentObjectCacheBuilder {
          */
         public BuildStep<O> withCacheStats() {
             return new BuildStep<>(name, shutdownHooks, refresher,
-                    refreshDuration, true, startWithRefresh);
+                    refreshDuration, true, startWithRefresh, storage, snapshot, type);
         }
 
         /**
@@ -157,7 +207,7 @@ public final class PersistentObjectCacheBuilder {
          */
         public BuildStep<O> withoutCacheStats() {
             return new BuildStep<>(name, shutdownHooks, refresher,
-                    refreshDuration, false, startWithRefresh);
+                    refreshDuration, false, startWithRefresh, storage, snapshot, type);
         }
 
         /**
@@ -170,7 +220,7 @@ public final class PersistentObjectCacheBuilder {
          */
         public BuildStep<O> withRefreshOnConstruction() {
             return new BuildStep<>(name, shutdownHooks, refresher,
-                    refreshDuration, recordCacheStats, true);
+                    refreshDuration, recordCacheStats, true, storage, snapshot, type);
         }
 
         /**
@@ -183,7 +233,7 @@ public final class PersistentObjectCacheBuilder {
          */
         public BuildStep<O> withoutRefreshOnConstruction() {
             return new BuildStep<>(name, shutdownHooks, refresher,
-                    refreshDuration, recordCacheStats, false);
+                    refreshDuration, recordCacheStats, false, storage, snapshot, type);
         }
 
         /**
@@ -195,7 +245,7 @@ public final class PersistentObjectCacheBuilder {
          */
         public BuildStep<O> withRefreshEvery(Duration refreshDuration) {
             return new BuildStep<>(name, shutdownHooks, refresher,
-                    refreshDuration, recordCacheStats, startWithRefresh);
+                    refreshDuration, recordCacheStats, startWithRefresh, storage, snapshot, type);
         }
 
         /**
@@ -205,7 +255,77 @@ public final class PersistentObjectCacheBuilder {
          */
         public BuildStep<O> withName(String name) {
             return new BuildStep<>(name, shutdownHooks, refresher,
-                    Duration.minutes(20), recordCacheStats, startWithRefresh);
+                    Duration.minutes(20), recordCacheStats, startWithRefresh, storage, snapshot, type);
+        }
+
+        /**
+         * Use the provided storage for the objects in the cache, for instance
+         * {@link OffHeapCacheStorage off-heap storage} for very large caches. Whether to record
+         * cache stats is then up to the storage.
+         *
+         * @param storage storage to use
+         * @return build step
+         */
+        public BuildStep<O> withStorage(CacheStorage<O> storage) {
+            if (storage == null) {
+                throw new NullPointerException();
+            }
+            return new BuildStep<>(name, shutdownHooks, refresher,
+                    refreshDuration, recordCacheStats, startWithRefresh, storage, snapshot, type);
+        }
+
+        /**
+         * Keep at most the provided number of objects in the cache, evicting the least recently
+         * used objects beyond that (see {@link BoundedCacheStorage}).
+         *
+         * @param maximumSize maximum number of objects
+         * @return build step
+         */
+        public BuildStep<O> withMaximumSize(long maximumSize) {
+            return withStorage(BoundedCacheStorage.<O>maximumSize(maximumSize, recordCacheStats));
+        }
+
+        /**
+         * Keep objects in the cache up to the provided total weight, evicting the least recently
+         * used objects beyond that (see {@link BoundedCacheStorage}).
+         *
+         * @param maximumWeight maximum total weight of the objects
+         * @param weigher       weight of an object
+         * @return build step
+         */
+        public BuildStep<O> withMaximumWeight(long maximumWeight, ToIntFunction<? super O> weigher) {
+            return withStorage(BoundedCacheStorage.<O>maximumWeight(maximumWeight, weigher, recordCacheStats));
+        }
+
+        /**
+         * Warm-start the cache from the provided snapshot, and write the snapshot when the cache is
+         * shut down. This only works when the refresher supports
+         * {@link DataRefresher#getCheckpoint() checkpoints}.
+         *
+         * @param snapshot snapshot to use
+         * @return build step
+         */
+        public BuildStep<O> withSnapshot(CacheSnapshot<O> snapshot) {
+            if (snapshot == null) {
+                throw new NullPointerException();
+            }
+            return new BuildStep<>(name, shutdownHooks, refresher,
+                    refreshDuration, recordCacheStats, startWithRefresh, storage, snapshot, type);
+        }
+
+        /**
+         * Set the type of the objects in the cache, so that {@link PersistentObjectCache#lookup(Object...)}
+         * returns arrays of that type.
+         *
+         * @param type type of the objects
+         * @return build step
+         */
+        public BuildStep<O> withObjectType(Class<O> type) {
+            if (type == null) {
+                throw new NullPointerException();
+            }
+            return new BuildStep<>(name, shutdownHooks, refresher,
+                    refreshDuration, recordCacheStats, startWithRefresh, storage, snapshot, type);
         }
 
         /**
@@ -213,7 +333,8 @@ public final class PersistentObjectCacheBuilder {
          */
         public MruSortImpStep<O> withMruSort() {
             return new MruSortImpStep<>(name, shutdownHooks, refresher,
-                    refreshDuration, recordCacheStats, startWithRefresh);
+                    refreshDuration, recordCacheStats, startWithRefresh,
+                    new PersistentObjectCacheWithMRUSort.PromoteWhenNewOnly<O>(), storage, snapshot, type);
         }
     }
 
@@ -231,17 +352,63 @@ public final class PersistentObjectCacheBuilder {
 
         final boolean startWithRefresh;
 
+        final CacheStorage<O> storage;
+
+        final CacheSnapshot<O> snapshot;
+
+        final Class<O> type;
+
         public BaseStep(
                 String name,
                 ShutdownHooks shutdownHooks,
                 DataRefresher<O> refresher, Duration refreshDuration,
                 boolean recordCacheStats, boolean startWithRefresh) {
+            this(name, shutdownHooks, refresher, refreshDuration, recordCacheStats, startWithRefresh, null, null);
+        }
+
+        public BaseStep(
+                String name,
+                ShutdownHooks shutdownHooks,
+                DataRefresher<O> refresher, Duration refreshDuration,
+                boolean recordCacheStats, boolean startWithRefresh,
+                @Nullable CacheStorage<O> storage, @Nullable CacheSnapshot<O> snapshot) {
+            this(name, shutdownHooks, refresher, refreshDuration, recordCacheStats, startWithRefresh,
+                    storage, snapshot, null);
+        }
+
+        public BaseStep(
+                String name,
+                ShutdownHooks shutdownHooks,
+                DataRefresher<O> refresher, Duration refreshDuration,
+                boolean recordCacheStats, boolean startWithRefresh,
+                @Nullable CacheStorage<O> storage, @Nullable CacheSnapshot<O> snapshot,
+                @Nullable Class<O> type) {
             this.name = name;
+            this.type = type;
             this.shutdownHooks = shutdownHooks;
             this.recordCacheStats = recordCacheStats;
             this.refresher = refresher;
             this.refreshDuration = refreshDuration;
             this.startWithRefresh = startWithRefresh;
+            this.storage = storage;
+            this.snapshot = snapshot;
+        }
+
+        /*
+         * Set the type of the objects on the cache, if it is known.
+         */
+        <C extends PersistentObjectCache<O>> C withType(C cache) {
+            if (type != null) {
+                cache.setObjectType(type);
+            }
+            return cache;
+        }
+
+        /*
+         * Storage for the cache; objects are kept on the heap unless a storage was set.
+         */
+        CacheStorage<O> storage() {
+            return (storage != null) ? storage : new HeapCacheStorage<O>(recordCacheStats);
         }
     }
 
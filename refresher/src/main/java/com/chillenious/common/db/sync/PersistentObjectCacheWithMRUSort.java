@@ -5,13 +5,28 @@ import com.chillenious.common.util.CurrentTime;
 import com.chillenious.common.util.Duration;
 import com.google.common.base.Objects;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Persistent object cache that keeps track of elements in order of most recently used
  * (so the most recently used element is on the front when iterating over the set, while
  * the last recently used would be the last element).
+ * <p/>
+ * {@link #touch(PersistentObject) Touches} are recorded in a lock-free {@link TouchBuffer buffer}
+ * and applied to the MRU sort in batches: in the background when the buffer fills up and
+ * periodically, and before {@link #valuesByMostRecentlyUsed()} returns. Touches are dropped
+ * when the buffer is full, so under heavy load the MRU order is approximate.
  *
  * @param <O> type of the elements in the cache
  */
@@ -91,8 +106,31 @@ public class PersistentObjectCacheWithMRUSort<O extends PersistentObject>
         }
     }
 
+    /**
+     * Number of touches that can be waiting to be applied to the MRU sort.
+     */
+    static final int TOUCH_BUFFER_SIZE = 1024;
+
+    /**
+     * Interval in milliseconds at which waiting touches are applied to the MRU sort.
+     */
+    static final long DRAIN_INTERVAL_MILLIS = 100;
+
     private final Sorter<O> mruSorter;
 
+    private final TouchBuffer<O> touches = new TouchBuffer<>(TOUCH_BUFFER_SIZE);
+
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final Runnable drainTask = () -> {
+        drainScheduled.set(false);
+        drainTouches();
+    };
+
+    private final ScheduledFuture<?> periodicDrain;
+
     /**
      * Construct. This instance will NOT use a refresher (or rather, it
      * will use a {@link com.chillenious.common.db.sync.NoopRefresher dummy} with no refreshes scheduled).
@@ -161,7 +199,37 @@ public class PersistentObjectCacheWithMRUSort<O extends PersistentObject>
             boolean startWithRefresh,
             final MruPromotionStrategy<O> mruPromotionStrategy) {
 
-        super(name, shutdownHooks, refresher, refreshInterval, recordStats, startWithRefresh);
+        this(name, shutdownHooks, refresher, refreshInterval, new HeapCacheStorage<O>(recordStats),
+                startWithRefresh, mruPromotionStrategy, null);
+    }
+
+    /**
+     * Construct with the {@link CacheStorage storage} for the objects, and optionally with a
+     * {@link CacheSnapshot snapshot} to warm-start from and to write on shutdown. Note that the
+     * MRU sort itself is not part of the snapshot.
+     *
+     * @param name                 name of the cache, mainly for debugging and monitoring
+     * @param shutdownHooks        shutdown hook registry
+     * @param refresher            refresher this cache should use to keep track of the backend
+     * @param refreshInterval      interval for refreshes; if null, no refreshes will be
+     *                             done aside from the initial refresh
+     * @param storage              storage for the objects in the cache
+     * @param startWithRefresh     whether to do a refresh when the instance is created
+     * @param mruPromotionStrategy strategy to use when deciding to promote
+     *                             an element to the front of the MRU sort
+     * @param snapshot             snapshot, or null to always do a full initial load
+     */
+    public PersistentObjectCacheWithMRUSort(
+            String name,
+            ShutdownHooks shutdownHooks,
+            DataRefresher<O> refresher,
+            Duration refreshInterval,
+            CacheStorage<O> storage,
+            boolean startWithRefresh,
+            final MruPromotionStrategy<O> mruPromotionStrategy,
+            @Nullable CacheSnapshot<O> snapshot) {
+
+        super(name, shutdownHooks, refresher, refreshInterval, storage, startWithRefresh, snapshot);
         try {
             super.addSort(MRU_SORT_ID, (object, isNew) -> {
                 PromoteOption option = mruPromotionStrategy.promote(object, isNew);
@@ -176,48 +244,113 @@ public class PersistentObjectCacheWithMRUSort<O extends PersistentObject>
                 } else {
                     throw new IllegalStateException("unknown response " + option);
                 }
-            }).get();
+            }, Sorter.Mode.LOCKING).get();
 
             this.mruSorter = getSorter(MRU_SORT_ID);
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
+        periodicDrain = scheduler.scheduleWithFixedDelay(drainTask, DRAIN_INTERVAL_MILLIS,
+                DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public <T extends Comparable> Future<Integer> addSort(
-            String id, SortKeyFactory<O, T> factory) {
+            String id, SortKeyFactory<O, T> factory, Sorter.Mode mode) {
 
         if (Objects.equal(id, MRU_SORT_ID)) {
             throw new IllegalArgumentException(String.format("sort id %s is reserved", MRU_SORT_ID));
         }
-        return super.addSort(id, factory);
+        return super.addSort(id, factory, mode);
     }
 
     /**
      * Update the sorted set of O by 'touching' it, which should put it in front
-     * of the other elements.
+     * of the other elements. The touch is recorded without locking, and applied to the
+     * sorted set later (see {@link #drainTouches()}); touches of objects that aren't in
+     * the cache (anymore) by then are ignored.
      *
      * @param object object to touch
      */
     public void touch(O object) {
-        O previous = mruSorter.remove(object.getId()); // updates might be ignored, so remove manually
-        mruSorter.put(object);
+        if (object == null) {
+            throw new NullPointerException();
+        }
+        if (!touches.offer(object) || touches.size() >= touches.capacity() / 2) {
+            scheduleDrain();
+        }
+    }
+
+    /*
+     * Have the touches applied in the background, unless that is already scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                drainScheduled.set(false); // shut down
+            }
+        }
+    }
+
+    /**
+     * Apply the touches that were recorded so far to the MRU sort, in one batch. An object that
+     * was touched multiple times is only moved once, to the position of it's last touch.
+     *
+     * @return number of touches that were applied
+     */
+    int drainTouches() {
+        drainLock.lock();
+        try {
+            Set<Object> touched = new LinkedHashSet<>(); // ids
+            touches.drain(object -> {
+                touched.remove(object.getId()); // so that it is ordered by it's last touch
+                touched.add(object.getId());
+            });
+            if (touched.isEmpty()) {
+                return 0;
+            }
+            List<DataRefreshEvent<O>> events = new ArrayList<>(touched.size() * 2);
+            for (Object id : touched) {
+                // the touched instance might have been replaced since, so use the one in the storage
+                O current = storage.get(id);
+                if (current != null) {
+                    // updates might be ignored, so remove first
+                    events.add(new DataDeletedEvent<O>(id));
+                    events.add(new DataCreatedEvent<>(current));
+                }
+            }
+            mruSorter.apply(events);
+            return events.size() / 2;
+        } finally {
+            drainLock.unlock();
+        }
     }
 
     /**
      * @return the elements in this case in most recently used order
      */
     public Collection<O> valuesByMostRecentlyUsed() {
+        if (touches.size() > 0) {
+            drainTouches();
+        }
         return mruSorter.values();
     }
 
     /**
-     * Short cut to get direct handle on sorter
+     * Short cut to get direct handle on sorter; note that touches that weren't
+     * {@link #drainTouches() applied} yet are not reflected in it.
      *
      * @return sorter
      */
     public Sorter<O> getMruSorter() {
         return mruSorter;
     }
+
+    @Override
+    public void shutdown() {
+        periodicDrain.cancel(false);
+        super.shutdown();
+    }
 }
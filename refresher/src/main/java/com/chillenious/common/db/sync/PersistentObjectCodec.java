@@ -0,0 +1,34 @@
+package com.chillenious.common.db.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes {@link com.chillenious.common.db.sync.PersistentObject persistent objects} in a
+ * compact binary form, e.g. for {@link CacheSnapshot snapshots}. Implementations should write just
+ * the fields they need to recreate the object, which is a lot more compact (and faster) than
+ * relying on Java serialization.
+ *
+ * @param <O> type of the persistent objects
+ */
+public interface PersistentObjectCodec<O extends PersistentObject> {
+
+    /**
+     * Write the object.
+     *
+     * @param object object to write
+     * @param out    output to write to
+     * @throws IOException when writing fails
+     */
+    void write(O object, DataOutput out) throws IOException;
+
+    /**
+     * Read an object that was written by {@link #write(PersistentObject, java.io.DataOutput)}.
+     *
+     * @param in input to read from
+     * @return object
+     * @throws IOException when reading fails
+     */
+    O read(DataInput in) throws IOException;
+}
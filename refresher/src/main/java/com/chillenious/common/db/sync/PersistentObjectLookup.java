@@ -1,5 +1,10 @@
 package com.chillenious.common.db.sync;
 
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Abstracts lookup for persistent objects
  *
@@ -17,4 +22,39 @@ public interface PersistentObjectLookup<O extends PersistentObject> {
      * returned when objects for ids 1 and 3 exist, but 2 doesn't
      */
     O[] lookup(Object... ids);
+
+    /**
+     * Type of the objects this lookup returns, if it knows it. Caches that use this lookup as
+     * their loader create the arrays they return from {@link #lookup(Object...)} with it when
+     * their own object type isn't set.
+     *
+     * @return type of the objects, or null if it isn't known
+     */
+    @Nullable
+    default Class<O> getObjectType() {
+        return null;
+    }
+
+    /**
+     * Lookup multiple objects by their ids in one go. Implementations that talk to a backing
+     * store should fetch all of them in one round trip (e.g. with an {@code IN (...)} query); by
+     * default, this does a single {@link #lookup(Object...)} for all ids.
+     *
+     * @param ids ids of the objects to lookup; may not be null
+     * @return map of id to object for the objects that were found, in the order of the ids
+     */
+    default Map<Object, O> lookupAll(Collection<?> ids) {
+        Map<Object, O> found = new LinkedHashMap<>();
+        if (ids.isEmpty()) {
+            return found;
+        }
+        Object[] idArray = ids.toArray();
+        O[] objects = lookup(idArray);
+        for (int i = 0; i < idArray.length; i++) {
+            if (objects[i] != null) {
+                found.put(idArray[i], objects[i]);
+            }
+        }
+        return found;
+    }
 }
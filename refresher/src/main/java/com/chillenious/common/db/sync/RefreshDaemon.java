@@ -0,0 +1,198 @@
+package com.chillenious.common.db.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs refreshes according to a {@link RefreshSchedule schedule}; a scheduler triggers them, and
+ * they run on an executor (the {@link RefreshExecutors#workers() shared workers} by default), so
+ * that refreshes that take a while don't hold up other work on the scheduler. Every refresh
+ * is scheduled when the previous one is done, so refreshes never overlap or pile up when they
+ * take longer than the interval, and the interval can adapt to what the previous refresh found.
+ * The schedule can be {@link #setSchedule(RefreshSchedule) changed} (or removed) at any time, and
+ * applies from the next refresh on.
+ * <p/>
+ * Daemons typically share the {@link RefreshExecutors#scheduler() shared scheduler} and workers,
+ * and are {@link #shutdown() shut down} individually.
+ */
+public final class RefreshDaemon {
+
+    private static final Logger log = LoggerFactory.getLogger(RefreshDaemon.class);
+
+    private final String name;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor executor;
+
+    private final Supplier<RefreshResults> refresh;
+
+    private RefreshSchedule schedule; // null when not scheduled
+
+    private long delay; // current delay without jitter
+
+    private boolean scheduled = false; // whether a refresh is scheduled or running
+
+    private ScheduledFuture<?> next; // refresh that is scheduled, if any
+
+    private boolean shutdown = false;
+
+    /**
+     * Construct a daemon that runs it's refreshes on the {@link RefreshExecutors#workers() shared workers}.
+     *
+     * @param name      name, mostly for debugging and monitoring
+     * @param scheduler scheduler to trigger the refreshes with
+     * @param refresh   does a refresh, and returns its results (or null if it failed)
+     */
+    public RefreshDaemon(String name, ScheduledExecutorService scheduler, Supplier<RefreshResults> refresh) {
+        this(name, scheduler, RefreshExecutors.workers(), refresh);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param name      name, mostly for debugging and monitoring
+     * @param scheduler scheduler to trigger the refreshes with
+     * @param executor  executor to run the refreshes on
+     * @param refresh   does a refresh, and returns its results (or null if it failed)
+     */
+    public RefreshDaemon(String name, ScheduledExecutorService scheduler, Executor executor,
+                         Supplier<RefreshResults> refresh) {
+        if (scheduler == null) {
+            throw new NullPointerException();
+        }
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        if (refresh == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.refresh = refresh;
+    }
+
+    /**
+     * Set the schedule, and schedule a refresh according to it if none is scheduled yet.
+     *
+     * @param schedule schedule, or null to stop refreshing after the refresh that is scheduled (if any)
+     * @param first    delay of the first refresh in milliseconds if none is scheduled yet, or a
+     *                 negative number to use the (jittered) first delay of the schedule
+     */
+    public synchronized void setSchedule(@Nullable RefreshSchedule schedule, long first) {
+        if (shutdown) {
+            throw new IllegalStateException(String.format("refresh daemon %s is shut down", name));
+        }
+        this.schedule = schedule;
+        if (schedule != null) {
+            delay = schedule.first();
+            if (!scheduled) {
+                schedule((first >= 0) ? first : schedule.jittered(delay));
+            }
+        }
+    }
+
+    /**
+     * Set the schedule, and schedule a refresh according to it if none is scheduled yet.
+     *
+     * @param schedule schedule, or null to stop refreshing after the refresh that is scheduled (if any)
+     */
+    public void setSchedule(@Nullable RefreshSchedule schedule) {
+        setSchedule(schedule, -1);
+    }
+
+    /**
+     * @return schedule, or null when not scheduled
+     */
+    @Nullable
+    public synchronized RefreshSchedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * @return current interval between refreshes (without jitter) in milliseconds, which, for
+     * adaptive schedules, depends on what the previous refreshes found
+     */
+    public synchronized long getInterval() {
+        return delay;
+    }
+
+    /*
+     * Must be called while holding the lock.
+     */
+    private void schedule(long millis) {
+        try {
+            next = scheduler.schedule(this::start, millis, TimeUnit.MILLISECONDS);
+            scheduled = true;
+        } catch (RejectedExecutionException e) {
+            scheduled = false; // shut down
+        }
+    }
+
+    /*
+     * Hand the refresh over to the executor, so that the scheduler is free for other work.
+     */
+    private void start() {
+        try {
+            executor.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            log.error(String.format("unable to run refresh of %s: %s", name, e.getMessage()), e);
+            synchronized (this) {
+                scheduled = false;
+                next = null;
+            }
+        }
+    }
+
+    private void run() {
+        RefreshResults results = null;
+        try {
+            results = RefreshExecutors.managedBlock(refresh);
+        } catch (Exception e) {
+            log.error(String.format("problem with refresh run of %s: %s", name, e.getMessage()), e);
+        }
+        synchronized (this) {
+            scheduled = false;
+            next = null;
+            if (schedule != null && !shutdown && !scheduler.isShutdown()) {
+                long next = schedule.next(delay, results);
+                if (next != delay && log.isDebugEnabled()) {
+                    log.debug(String.format("refresh interval of %s is now %,d ms", name, next));
+                }
+                delay = next;
+                schedule(schedule.jittered(delay));
+            }
+        }
+    }
+
+    /**
+     * Stop refreshing; a refresh that is scheduled is cancelled, and a refresh that is
+     * running is finished, but not followed by another one. The scheduler isn't shut down,
+     * as it is typically shared.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        schedule = null;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RefreshDaemon{" +
+                "name='" + name + '\'' +
+                ", schedule=" + schedule +
+                '}';
+    }
+}
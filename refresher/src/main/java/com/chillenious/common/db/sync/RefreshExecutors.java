@@ -0,0 +1,134 @@
+package com.chillenious.common.db.sync;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Thread pools that are shared by all caches, indexers and refreshers in the VM, so that the
+ * number of threads stays the same no matter how many caches (with how many sorts and indexes)
+ * there are:
+ * <ul>
+ * <li>the {@link #scheduler() scheduler} triggers periodic work, like refreshes (see
+ * {@link RefreshDaemon}) and draining the touches of MRU sorts; it only runs short tasks, so that
+ * triggers are on time;</li>
+ * <li>the {@link #workers() workers} deliver events to listeners (see {@link DataRefreshTopic}),
+ * run refreshes and loads, and seed sorts and indexes. This is a work-stealing pool; the events of
+ * a listener are still delivered one at a time and in order, as only one worker at a time drains
+ * a listener's queue. Work that blocks, like refreshes that wait for a database, is run as
+ * {@link #managedBlock(Supplier) managed blocking}, so that the pool can start extra workers to
+ * keep delivering events in the meantime.</li>
+ * </ul>
+ * The threads are daemon threads and the pools are never shut down; users of the pools cancel
+ * their own tasks when they shut down instead.
+ */
+public final class RefreshExecutors {
+
+    /**
+     * Number of threads of the scheduler.
+     */
+    public static final int SCHEDULER_THREADS =
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Parallelism of the workers.
+     */
+    public static final int WORKER_PARALLELISM =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /*
+     * Pools are created when they are first used.
+     */
+    private static final class Scheduler {
+
+        static final ScheduledExecutorService INSTANCE;
+
+        static {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory threads = runnable -> {
+                Thread thread = new Thread(runnable, "refresh-scheduler-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS, threads);
+            scheduler.setRemoveOnCancelPolicy(true); // don't keep cancelled refreshes of caches around
+            INSTANCE = scheduler;
+        }
+    }
+
+    private static final class Workers {
+
+        static final ExecutorService INSTANCE;
+
+        static {
+            AtomicInteger count = new AtomicInteger();
+            ForkJoinPool.ForkJoinWorkerThreadFactory threads = pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                // the pool index isn't necessarily assigned yet, so count
+                thread.setName("refresh-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            INSTANCE = new ForkJoinPool(WORKER_PARALLELISM, threads, null, true); // FIFO for submitted tasks
+        }
+    }
+
+    private RefreshExecutors() {
+    }
+
+    /**
+     * @return scheduler shared by all caches; don't shut it down
+     */
+    public static ScheduledExecutorService scheduler() {
+        return Scheduler.INSTANCE;
+    }
+
+    /**
+     * @return work-stealing pool shared by all listeners and caches; don't shut it down
+     */
+    public static ExecutorService workers() {
+        return Workers.INSTANCE;
+    }
+
+    /**
+     * Do work that blocks (e.g. on a database), telling the fork/join pool the calling thread
+     * belongs to (if any) about it, so that it can start another worker in the meantime.
+     *
+     * @param work work to do
+     * @param <T>  type of the result
+     * @return result of the work
+     */
+    static <T> T managedBlock(Supplier<T> work) {
+        final class Blocker implements ForkJoinPool.ManagedBlocker {
+
+            private T result;
+
+            private boolean done = false;
+
+            @Override
+            public boolean block() {
+                result = work.get();
+                done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done;
+            }
+        }
+        Blocker blocker = new Blocker();
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // restore interrupt status
+            throw new IllegalStateException("interrupted while doing blocking work", e);
+        }
+        return blocker.result;
+    }
+}
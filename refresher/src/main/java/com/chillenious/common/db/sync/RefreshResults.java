@@ -10,7 +10,7 @@ public class RefreshResults {
      */
     public static final class Counter {
 
-        private int recordsFound, numberCreated, numberChanged, numberDeleted;
+        private int recordsFound, numberCreated, numberChanged, numberDeleted, numberUnchanged;
 
         private long start;
 
@@ -22,6 +22,12 @@ public class RefreshResults {
             if (evt == null) {
                 throw new NullPointerException();
             }
+            if (evt instanceof DataBatchEvent) {
+                for (Object batched : ((DataBatchEvent) evt).getEvents()) {
+                    inc((DataRefreshEvent) batched);
+                }
+                return;
+            }
             recordsFound++;
             if (evt instanceof DataCreatedEvent) {
                 this.numberCreated++;
@@ -35,10 +41,53 @@ public class RefreshResults {
             }
         }
 
+        /**
+         * Count a record that was found, but for which no event was published as the object didn't
+         * change (see {@link DataRefresher#isUnchanged(PersistentObject)}).
+         */
+        public void incUnchanged() {
+            recordsFound++;
+            numberUnchanged++;
+        }
+
+        /**
+         * Count changed events that were {@link #inc(DataRefreshEvent) counted}, but that were left
+         * out when they were published as the objects didn't change (see
+         * {@link DataRefresher#publish(java.util.List)}) as unchanged instead.
+         *
+         * @param number number of changed events that weren't published
+         */
+        public void incSuppressed(int number) {
+            if (number < 0 || number > numberChanged) {
+                throw new IllegalArgumentException(String.format(
+                        "number of suppressed events (%,d) must be between 0 and the number changed (%,d)",
+                        number, numberChanged));
+            }
+            numberChanged -= number;
+            numberUnchanged += number;
+        }
+
+        /**
+         * Add the numbers of results of a part of the refresh (e.g. a partition
+         * of a {@link DataRefresher#load() load}).
+         *
+         * @param results results to add
+         */
+        public void add(RefreshResults results) {
+            if (results == null) {
+                throw new NullPointerException();
+            }
+            recordsFound += results.getNumberRecordsFound();
+            numberCreated += results.getNumberCreated();
+            numberChanged += results.getNumberChanged();
+            numberDeleted += results.getNumberDeleted();
+            numberUnchanged += results.getNumberUnchanged();
+        }
+
         public RefreshResults asResults() {
             return new RefreshResults(
                     recordsFound, numberCreated, numberChanged,
-                    numberDeleted, System.currentTimeMillis() - start);
+                    numberDeleted, numberUnchanged, System.currentTimeMillis() - start);
         }
     }
 
@@ -49,7 +98,7 @@ public class RefreshResults {
         return new Counter();
     }
 
-    private final int numberRecordsFound, numberCreated, numberChanged, numberDeleted;
+    private final int numberRecordsFound, numberCreated, numberChanged, numberDeleted, numberUnchanged;
 
     private final long millisecondsItTook;
 
@@ -58,10 +107,20 @@ public class RefreshResults {
                           int numberChanged,
                           int numberDeleted,
                           long millisecondsItTook) {
+        this(numberRecordsFound, numberCreated, numberChanged, numberDeleted, 0, millisecondsItTook);
+    }
+
+    public RefreshResults(int numberRecordsFound,
+                          int numberCreated,
+                          int numberChanged,
+                          int numberDeleted,
+                          int numberUnchanged,
+                          long millisecondsItTook) {
         this.numberRecordsFound = numberRecordsFound;
         this.numberCreated = numberCreated;
         this.numberChanged = numberChanged;
         this.numberDeleted = numberDeleted;
+        this.numberUnchanged = numberUnchanged;
         this.millisecondsItTook = millisecondsItTook;
     }
 
@@ -93,6 +152,14 @@ public class RefreshResults {
         return numberDeleted;
     }
 
+    /**
+     * @return number of persistent objects that were found during the refresh, but that didn't
+     * change since they were last published (and for which no events were published)
+     */
+    public int getNumberUnchanged() {
+        return numberUnchanged;
+    }
+
     /**
      * @return milliseconds total it took for the refresh to execute (note that
      * this does not include the processing time of the listeners for this refresh, so
@@ -109,6 +176,7 @@ public class RefreshResults {
                 ", numberCreated=" + numberCreated +
                 ", numberChanged=" + numberChanged +
                 ", numberDeleted=" + numberDeleted +
+                ", numberUnchanged=" + numberUnchanged +
                 ", millisecondsItTook=" + millisecondsItTook +
                 '}';
     }
@@ -0,0 +1,131 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.util.Duration;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When to refresh: either {@link #every(Duration) at a fixed interval}, or
+ * {@link #adaptive(Duration, Duration) adaptively}, between a minimum and a maximum interval,
+ * depending on how much changes. Adaptive schedules halve the interval after every refresh that
+ * found changes, and double it after every refresh that didn't (or that failed), so that tables
+ * that change a lot are refreshed often, and quiet tables are hardly queried at all.
+ * <p/>
+ * Every delay is randomly stretched or shrunk by the {@link #withJitter(double) jitter} (10% by
+ * default), so that the refreshes of caches that are created at the same time drift apart, rather
+ * than all hitting the database at the same instant.
+ * <p/>
+ * Schedules are immutable, and are run by {@link RefreshDaemon refresh daemons}.
+ */
+public final class RefreshSchedule {
+
+    /**
+     * Fraction of the delays by which they are randomly varied, unless set explicitly.
+     */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    private final long minimum, maximum; // in milliseconds; the same for fixed schedules
+
+    private final double jitter;
+
+    private RefreshSchedule(long minimum, long maximum, double jitter) {
+        if (minimum <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "interval must be positive (is %,d ms)", minimum));
+        }
+        if (maximum < minimum) {
+            throw new IllegalArgumentException(String.format(
+                    "maximum interval (%,d ms) is less than the minimum (%,d ms)", maximum, minimum));
+        }
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException(String.format(
+                    "jitter must be at least 0 and less than 1 (is %s)", jitter));
+        }
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param interval interval between refreshes
+     * @return schedule that refreshes at the provided interval
+     */
+    public static RefreshSchedule every(Duration interval) {
+        if (interval == null) {
+            throw new NullPointerException();
+        }
+        return new RefreshSchedule(interval.getMilliseconds(), interval.getMilliseconds(), DEFAULT_JITTER);
+    }
+
+    /**
+     * @param minimum minimum interval between refreshes, which is also the first interval
+     * @param maximum maximum interval between refreshes
+     * @return schedule that refreshes more often when there are changes, and less often when there are none
+     */
+    public static RefreshSchedule adaptive(Duration minimum, Duration maximum) {
+        if (minimum == null) {
+            throw new NullPointerException();
+        }
+        if (maximum == null) {
+            throw new NullPointerException();
+        }
+        return new RefreshSchedule(minimum.getMilliseconds(), maximum.getMilliseconds(), DEFAULT_JITTER);
+    }
+
+    /**
+     * @param fraction fraction of the delays by which they are randomly varied (0 for exact delays)
+     * @return new schedule with the provided jitter
+     */
+    public RefreshSchedule withJitter(double fraction) {
+        return new RefreshSchedule(minimum, maximum, fraction);
+    }
+
+    /**
+     * @return whether the interval depends on the changes
+     */
+    public boolean isAdaptive() {
+        return minimum != maximum;
+    }
+
+    /**
+     * @return delay before the first refresh (after the initial load), in milliseconds, without jitter
+     */
+    long first() {
+        return minimum;
+    }
+
+    /**
+     * @param delay   previous delay, in milliseconds, without jitter
+     * @param results results of the previous refresh, or null if it failed
+     * @return next delay, in milliseconds, without jitter
+     */
+    long next(long delay, @Nullable RefreshResults results) {
+        // only what was created, changed or deleted counts; refreshers that reload whole tables
+        // find records every time, but don't necessarily count the ones that didn't change
+        if (results != null
+                && results.getNumberCreated() + results.getNumberChanged() + results.getNumberDeleted() > 0) {
+            return Math.max(minimum, delay / 2);
+        }
+        return (delay > maximum / 2) ? maximum : Math.max(minimum, delay * 2);
+    }
+
+    /**
+     * @param delay delay in milliseconds
+     * @return the delay, randomly varied by the jitter
+     */
+    long jittered(long delay) {
+        if (jitter == 0) {
+            return delay;
+        }
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, (long) (delay * factor));
+    }
+
+    @Override
+    public String toString() {
+        return isAdaptive() ?
+                String.format("RefreshSchedule{adaptive, %,d - %,d ms, jitter=%s}", minimum, maximum, jitter) :
+                String.format("RefreshSchedule{every %,d ms, jitter=%s}", minimum, jitter);
+    }
+}
@@ -0,0 +1,967 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.WithShutdown;
+import com.chillenious.common.util.Duration;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache like {@link PersistentObjectCache}, that partitions the objects over a number of shards
+ * by their ids, so that refreshes are applied by multiple threads. Every shard is a cache of
+ * it's own, with it's own storage, and it's own segment of every sort, index and aggregate,
+ * each with it's own listener (and thus thread) and lock. A single listener on the refresher
+ * splits every event (and batch of events) by shard and passes the parts on to the shards, so
+ * that a refresh that touches many objects is applied to the segments in parallel, and a
+ * write to one shard doesn't block readers and writers of the others.
+ * <p/>
+ * Reads combine the shards: sorted views are merged from the sorted segments of the shards
+ * (in O(log shards) per object), index lookups are unions of the lookups in the shards, and
+ * aggregates are combined. Queries on the indexes are evaluated per shard, which gives the
+ * same result as evaluating them on the whole, as every object is in exactly one shard.
+ * <p/>
+ * Shards don't have snapshots; the cache always does a full initial load.
+ *
+ * @param <O> type of the elements in the cache
+ */
+public class ShardedPersistentObjectCache<O extends PersistentObject>
+        implements WithShutdown, PersistentObjectLookup<O> {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedPersistentObjectCache.class);
+
+    /**
+     * Refresher of a shard, which doesn't refresh itself, but publishes what the
+     * {@link ShardingListener sharding listener} passes on to it.
+     */
+    static final class ShardRefresher<O extends PersistentObject> extends DataRefresher<O> {
+
+        ShardRefresher(ShutdownHooks shutdownHooks) {
+            super(shutdownHooks);
+        }
+
+        @Override
+        public RefreshResults refresh() {
+            return NoopRefresher.NOTHING_REALLY;
+        }
+
+        void relay(DataRefreshEvent<O> evt) {
+            publish(evt);
+        }
+
+        void relay(List<DataRefreshEvent<O>> events) {
+            publish(events);
+        }
+    }
+
+    /**
+     * Listens in on refreshes and passes the events on to the shards they belong to.
+     */
+    final class ShardingListener extends DataRefreshListener<O> {
+
+        @Override
+        protected void onEvent(DataRefreshEvent<O> evt) {
+            if (evt instanceof DataCreatedEvent || evt instanceof DataChangedEvent
+                    || evt instanceof DataDeletedEvent) {
+                shardRefreshers.get(shardOf(evt.getId())).relay(evt);
+            } // else ignore; checkpoints aren't used, and other events are special purpose
+        }
+
+        @Override
+        protected void onBatch(DataBatchEvent<O> batch) {
+            List<List<DataRefreshEvent<O>>> parts = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                parts.add(new ArrayList<>());
+            }
+            for (DataRefreshEvent<O> evt : batch.getEvents()) {
+                parts.get(shardOf(evt.getId())).add(evt);
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                shardRefreshers.get(i).relay(parts.get(i)); // doesn't publish empty parts
+            }
+        }
+    }
+
+    final class Refresher implements Supplier<RefreshResults> {
+        @Override
+        public RefreshResults get() {
+            try {
+                log.debug(String.format("do refresh run for %s", name));
+                RefreshResults results = (initialLoadResults == null) ? initialLoad() : refresher.refresh();
+                if (results.getNumberRecordsFound() > 0) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("cache %s refreshed: %s", name, results));
+                    }
+                }
+                return results;
+            } catch (Exception e) {
+                log.error(String.format("problem with cache refresh for %s: %s",
+                        name, e.getMessage()), e);
+                return null;
+            }
+        }
+    }
+
+    protected final String name; // mostly for debugging, monitoring
+
+    protected final DataRefresher<O> refresher;
+
+    protected final ScheduledExecutorService scheduler = RefreshExecutors.scheduler(); // shared; don't shut down
+
+    private final RefreshDaemon refreshDaemon;
+
+    private final List<PersistentObjectCache<O>> shards;
+
+    private final List<ShardRefresher<O>> shardRefreshers;
+
+    private volatile PersistentObjectLookup<O> loader; // loads objects that aren't in the cache
+
+    private volatile Class<O> objectType; // type of the arrays returned by lookup(Object...), if known
+
+    private volatile RefreshResults initialLoadResults;
+
+    /**
+     * Construct with shards that keep their objects on the heap. Some arguments are optional:
+     * <ul>
+     * <li>refresher - if this is null, a {@link com.chillenious.common.db.sync.NoopRefresher dummy} will
+     * be used and no refreshes will be scheduled</li>
+     * <li>refreshInterval - is this is null, no refreshes will be
+     * scheduled (but an initial refresh will be done)</li>
+     * </ul>
+     *
+     * @param name             name of the cache, mainly for debugging and monitoring
+     * @param shutdownHooks    shutdown hook registry
+     * @param refresher        refresher this cache should use to keep track of the backend
+     * @param refreshInterval  interval for refreshes; if null, no refreshes will be
+     *                         done aside from the initial refresh
+     * @param numberOfShards   number of shards; typically the number of cores that should
+     *                         apply refreshes
+     * @param recordStats      whether to record stats
+     * @param startWithRefresh whether to do a refresh when the instance is created
+     * @see PersistentObjectCache#PersistentObjectCache(String, ShutdownHooks, DataRefresher, Duration, boolean, boolean)
+     */
+    public ShardedPersistentObjectCache(
+            String name,
+            ShutdownHooks shutdownHooks,
+            DataRefresher<O> refresher,
+            Duration refreshInterval,
+            int numberOfShards,
+            boolean recordStats,
+            boolean startWithRefresh) {
+
+        this(name, shutdownHooks, refresher, refreshInterval, numberOfShards,
+                () -> new HeapCacheStorage<O>(recordStats), startWithRefresh);
+    }
+
+    /**
+     * Construct, like {@link #ShardedPersistentObjectCache(String, ShutdownHooks, DataRefresher,
+     * Duration, int, boolean, boolean)}, but with a factory for the {@link CacheStorage storage}
+     * of the shards.
+     *
+     * @param name             name of the cache, mainly for debugging and monitoring
+     * @param shutdownHooks    shutdown hook registry
+     * @param refresher        refresher this cache should use to keep track of the backend
+     * @param refreshInterval  interval for refreshes; if null, no refreshes will be
+     *                         done aside from the initial refresh
+     * @param numberOfShards   number of shards
+     * @param storage          creates the storage for each of the shards
+     * @param startWithRefresh whether to do a refresh when the instance is created
+     */
+    public ShardedPersistentObjectCache(
+            String name,
+            ShutdownHooks shutdownHooks,
+            DataRefresher<O> refresher,
+            Duration refreshInterval,
+            int numberOfShards,
+            Supplier<? extends CacheStorage<O>> storage,
+            boolean startWithRefresh) {
+
+        if (storage == null) {
+            throw new NullPointerException();
+        }
+        if (numberOfShards < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "number of shards must be at least 1 (is %,d)", numberOfShards));
+        }
+        this.name = Strings.isNullOrEmpty(name) ? this.toString() : name;
+        log.info(String.format("creating cache %s with %,d shards", this.name, numberOfShards));
+        this.refresher = refresher != null ? refresher : new NoopRefresher<O>();
+        List<PersistentObjectCache<O>> shards = new ArrayList<>(numberOfShards);
+        List<ShardRefresher<O>> shardRefreshers = new ArrayList<>(numberOfShards);
+        for (int i = 0; i < numberOfShards; i++) {
+            ShardRefresher<O> shardRefresher = new ShardRefresher<>(shutdownHooks);
+            shardRefreshers.add(shardRefresher);
+            shards.add(new PersistentObjectCache<>(this.name + "-" + i, shutdownHooks,
+                    shardRefresher, null, storage.get(), false, null));
+        }
+        this.shards = ImmutableList.copyOf(shards);
+        this.shardRefreshers = ImmutableList.copyOf(shardRefreshers);
+        this.refreshDaemon = new RefreshDaemon(this.name, scheduler, new Refresher());
+        shutdownHooks.add(this);
+        initRefresher(refreshInterval, startWithRefresh);
+    }
+
+    /*
+     * Initialize the refresher.
+     */
+    private void initRefresher(Duration refreshInterval, boolean startWithRefresh) {
+        refresher.addListener(new ShardingListener());
+        if (startWithRefresh) {
+            log.info(String.format("start refresher for %s", name));
+            initialLoad();
+        }
+        if (refreshInterval != null) {
+            setRefreshSchedule(RefreshSchedule.every(refreshInterval));
+        }
+        log.info(String.format("cache %s ready", name));
+    }
+
+    /**
+     * Set the schedule for refreshes; see {@link PersistentObjectCache#setRefreshSchedule(RefreshSchedule)}.
+     *
+     * @param schedule schedule, or null to stop refreshing
+     */
+    public void setRefreshSchedule(@Nullable RefreshSchedule schedule) {
+        refreshDaemon.setSchedule(schedule, (initialLoadResults == null) ? 0 : -1);
+    }
+
+    /**
+     * @return daemon that runs the scheduled refreshes, e.g. for monitoring the current interval
+     */
+    public RefreshDaemon getRefreshDaemon() {
+        return refreshDaemon;
+    }
+
+    /*
+     * Load initial data, possibly with multiple partitions concurrently.
+     */
+    private RefreshResults initialLoad() {
+        RefreshResults results = refresher.load();
+        initialLoadResults = results;
+        log.info(String.format("initialized %s with %,d objects, in %,d milliseconds",
+                name, (results.getNumberCreated() + results.getNumberChanged()),
+                results.getMillisecondsItTook()));
+        return results;
+    }
+
+    /*
+     * Index of the shard of the object with the provided id.
+     */
+    int shardOf(Object id) {
+        return shardOfHash(id.hashCode());
+    }
+
+    /*
+     * Index of the shard for the provided hash code of an id.
+     */
+    private int shardOfHash(int h) {
+        h ^= (h >>> 16); // spread sequential ids
+        return (h & 0x7fffffff) % shards.size();
+    }
+
+    /*
+     * Shard of the object with the provided id.
+     */
+    private PersistentObjectCache<O> shard(Object id) {
+        return shards.get(shardOf(id));
+    }
+
+    /**
+     * @return the shards of this cache, e.g. for running queries per shard
+     */
+    public List<PersistentObjectCache<O>> getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets the results of the initial load of this cache, which includes the time it took.
+     *
+     * @return results of the initial load, or null if it wasn't done (yet)
+     */
+    @Nullable
+    public RefreshResults getInitialLoadResults() {
+        return initialLoadResults;
+    }
+
+    /**
+     * Add a sort for objects in this cache; every shard sorts it's own objects, and
+     * {@link #values(String) reads} merge the sorts of the shards.
+     *
+     * @see PersistentObjectCache#addSort(String, SortKeyFactory)
+     */
+    public <T extends Comparable> Future<Integer> addSort(String id, SortKeyFactory<O, T> factory) {
+        return addSort(id, factory, Sorter.Mode.LOCKING);
+    }
+
+    /**
+     * Add a sort for objects in this cache, using the provided mode.
+     *
+     * @see PersistentObjectCache#addSort(String, SortKeyFactory, Sorter.Mode)
+     */
+    public <T extends Comparable> Future<Integer> addSort(
+            String id, SortKeyFactory<O, T> factory, Sorter.Mode mode) {
+        return forAllShards(shard -> shard.addSort(id, factory, mode));
+    }
+
+    /**
+     * Add an index for objects in this cache; every shard indexes it's own objects, and
+     * lookups combine the indexes of the shards.
+     *
+     * @see PersistentObjectCache#addIndex(String, IndexKeyFactory)
+     */
+    public <T extends Comparable> Future<Integer> addIndex(String id, IndexKeyFactory<O, T> factory) {
+        return addIndex(id, factory, Indexer.Mode.HASH);
+    }
+
+    /**
+     * Add an index for objects in this cache, using the provided mode.
+     *
+     * @see PersistentObjectCache#addIndex(String, IndexKeyFactory, Indexer.Mode)
+     */
+    public <T extends Comparable> Future<Integer> addIndex(
+            String id, IndexKeyFactory<O, T> factory, Indexer.Mode mode) {
+        return forAllShards(shard -> shard.addIndex(id, factory, mode));
+    }
+
+    /**
+     * Add an index for objects in this cache with multiple keys per object.
+     *
+     * @see PersistentObjectCache#addMultiIndex(String, MultiIndexKeyFactory, Indexer.Mode)
+     */
+    public <T> Future<Integer> addMultiIndex(
+            String id, MultiIndexKeyFactory<O, T> factory, Indexer.Mode mode) {
+        return forAllShards(shard -> shard.addMultiIndex(id, factory, mode));
+    }
+
+    /**
+     * Add an aggregate view on the objects in this cache; every shard aggregates it's own
+     * objects, and reads combine the aggregates of the shards.
+     *
+     * @see PersistentObjectCache#addAggregate(String, IndexKeyFactory, ToLongFunction, Aggregator.Function...)
+     */
+    public <K> Future<Integer> addAggregate(String id, IndexKeyFactory<O, K> groupBy,
+                                            @Nullable ToLongFunction<? super O> value,
+                                            Aggregator.Function... functions) {
+        return forAllShards(shard -> shard.addAggregate(id, groupBy, value, functions));
+    }
+
+    /*
+     * Do the same for all shards, and combine the futures of the work.
+     */
+    private Future<Integer> forAllShards(Function<PersistentObjectCache<O>, Future<Integer>> work) {
+        List<Future<Integer>> futures = new ArrayList<>(shards.size());
+        for (PersistentObjectCache<O> shard : shards) {
+            futures.add(work.apply(shard));
+        }
+        return new SumOfFutures(futures);
+    }
+
+    /**
+     * Gets the objects of the provided sort, in sort order, merged from the shards.
+     *
+     * @param id id of the sort
+     * @return view on the objects in sort order
+     * @throws IllegalArgumentException when no sorter with the provided id was found
+     */
+    public Collection<O> values(String id) {
+        return values(id, null, false, null, false);
+    }
+
+    /**
+     * Gets the objects with sort values in the provided range for the provided sort id, in
+     * sort order, merged from the shards.
+     *
+     * @see PersistentObjectCache#values(String, Comparable, boolean, Comparable, boolean)
+     */
+    public Collection<O> values(String id, @Nullable Comparable from, boolean fromInclusive,
+                                @Nullable Comparable to, boolean toInclusive) {
+        List<Sorter<O>> sorters = sorters(id);
+        List<Collection<Map.Entry<SortKey, O>>> segments = new ArrayList<>(sorters.size());
+        for (Sorter<O> sorter : sorters) {
+            segments.add(sorter.entries(from, fromInclusive, to, toInclusive));
+        }
+        return new MergedSortView<>(segments);
+    }
+
+    /**
+     * Gets a page of objects in the order of the provided sort, starting after the object
+     * with the provided id, merged from the shards.
+     *
+     * @see PersistentObjectCache#page(String, Object, int)
+     */
+    public List<O> page(String id, @Nullable Object afterId, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException(String.format("limit must be positive (is %,d)", limit));
+        }
+        Collection<O> values;
+        if (afterId != null) {
+            SortKey after = shard(afterId).getSorter(id).keyOf(afterId);
+            if (after == null) {
+                return Collections.emptyList();
+            }
+            // objects of other shards can have the same sort value as the cursor; which of those
+            // come after it is decided by the full key, so start at the sort value and skip
+            List<Sorter<O>> sorters = sorters(id);
+            List<Collection<Map.Entry<SortKey, O>>> segments = new ArrayList<>(sorters.size());
+            for (Sorter<O> sorter : sorters) {
+                segments.add(sorter.entries(after.getSort(), true, null, false));
+            }
+            values = new MergedSortView<>(segments, after);
+        } else {
+            values = values(id);
+        }
+        List<O> page = new ArrayList<>(Math.min(limit, 1024));
+        for (Iterator<O> i = values.iterator(); i.hasNext() && page.size() < limit; ) {
+            page.add(i.next());
+        }
+        return page;
+    }
+
+    /*
+     * The sorters with the provided id of all shards.
+     */
+    private List<Sorter<O>> sorters(String id) {
+        List<Sorter<O>> sorters = new ArrayList<>(shards.size());
+        for (PersistentObjectCache<O> shard : shards) {
+            sorters.add(shard.getSorter(id));
+        }
+        return sorters;
+    }
+
+    /**
+     * Gets set of matches for indexed field based on the indexer (id) and the index value.
+     *
+     * @see PersistentObjectCache#getIndexed(String, Object)
+     */
+    public <T> Set<O> getIndexed(String indexId, T indexVal) {
+        ImmutableSet.Builder<O> objects = ImmutableSet.builder();
+        for (PersistentObjectCache<O> shard : shards) {
+            objects.addAll(shard.getIndexed(indexId, indexVal));
+        }
+        return objects.build();
+    }
+
+    /**
+     * Gets the objects with index values in the provided range, using a
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @see PersistentObjectCache#getIndexedRange(String, Object, boolean, Object, boolean)
+     */
+    public <T> Set<O> getIndexedRange(String indexId, @Nullable T from, boolean fromInclusive,
+                                      @Nullable T to, boolean toInclusive) {
+        ImmutableSet.Builder<O> objects = ImmutableSet.builder();
+        for (PersistentObjectCache<O> shard : shards) {
+            objects.addAll(shard.getIndexedRange(indexId, from, fromInclusive, to, toInclusive));
+        }
+        return objects.build();
+    }
+
+    /**
+     * Counts the objects with index values in the provided range, using a
+     * {@link Indexer.Mode#SORTED sorted} index.
+     *
+     * @see PersistentObjectCache#countIndexedRange(String, Object, boolean, Object, boolean)
+     */
+    public <T> int countIndexedRange(String indexId, @Nullable T from, boolean fromInclusive,
+                                     @Nullable T to, boolean toInclusive) {
+        int count = 0;
+        for (PersistentObjectCache<O> shard : shards) {
+            count += shard.countIndexedRange(indexId, from, fromInclusive, to, toInclusive);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the objects that match the provided query on the indexes of this cache.
+     *
+     * @see PersistentObjectCache#getIndexed(IndexQuery)
+     */
+    public Set<O> getIndexed(IndexQuery query) {
+        ImmutableSet.Builder<O> objects = ImmutableSet.builder();
+        for (PersistentObjectCache<O> shard : shards) {
+            objects.addAll(shard.getIndexed(query));
+        }
+        return objects.build();
+    }
+
+    /**
+     * Gets the ids of the objects that match the provided query on the indexes of this cache.
+     *
+     * @see PersistentObjectCache#getIndexedIds(IndexQuery)
+     */
+    public Set<Object> getIndexedIds(IndexQuery query) {
+        ImmutableSet.Builder<Object> ids = ImmutableSet.builder();
+        for (PersistentObjectCache<O> shard : shards) {
+            ids.addAll(shard.getIndexedIds(query));
+        }
+        return ids.build();
+    }
+
+    /**
+     * Counts the objects that match the provided query on the indexes of this cache.
+     *
+     * @see PersistentObjectCache#countIndexed(IndexQuery)
+     */
+    public int countIndexed(IndexQuery query) {
+        int count = 0;
+        for (PersistentObjectCache<O> shard : shards) {
+            count += shard.countIndexed(query);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the aggregate of a group, combined from the shards.
+     *
+     * @see PersistentObjectCache#getAggregate(String, Object)
+     */
+    public <K> Aggregate getAggregate(String id, K group) {
+        Aggregate aggregate = Aggregate.EMPTY;
+        for (PersistentObjectCache<O> shard : shards) {
+            aggregate = aggregate.plus(shard.getAggregate(id, group));
+        }
+        return aggregate;
+    }
+
+    /**
+     * Gets the aggregates of all groups that have objects, combined from the shards.
+     *
+     * @see PersistentObjectCache#getAggregates(String)
+     */
+    public <K> Map<K, Aggregate> getAggregates(String id) {
+        Map<K, Aggregate> aggregates = new HashMap<>();
+        for (PersistentObjectCache<O> shard : shards) {
+            for (Map.Entry<K, Aggregate> e : shard.<K>getAggregates(id).entrySet()) {
+                aggregates.merge(e.getKey(), e.getValue(), Aggregate::plus);
+            }
+        }
+        return ImmutableMap.copyOf(aggregates);
+    }
+
+    /**
+     * Gets the aggregate of all objects in all groups, combined from the shards.
+     *
+     * @see PersistentObjectCache#getAggregateTotal(String)
+     */
+    public Aggregate getAggregateTotal(String id) {
+        Aggregate aggregate = Aggregate.EMPTY;
+        for (PersistentObjectCache<O> shard : shards) {
+            aggregate = aggregate.plus(shard.getAggregateTotal(id));
+        }
+        return aggregate;
+    }
+
+    /**
+     * Get all values in the cache (in unspecified order).
+     *
+     * @return collection of all values
+     */
+    public Collection<O> values() {
+        List<Collection<O>> values = new ArrayList<>(shards.size());
+        for (PersistentObjectCache<O> shard : shards) {
+            values.add(shard.values());
+        }
+        return new AbstractCollection<O>() {
+
+            @Override
+            public Iterator<O> iterator() {
+                return Iterables.concat(values).iterator();
+            }
+
+            @Override
+            public int size() {
+                long size = 0;
+                for (Collection<O> shardValues : values) {
+                    size += shardValues.size();
+                }
+                return (int) Math.min(Integer.MAX_VALUE, size);
+            }
+        };
+    }
+
+    /**
+     * Get set of all ids values in the cache (in unspecified order).
+     *
+     * @return set of all ids
+     */
+    public Set<Object> ids() {
+        ImmutableSet.Builder<Object> ids = ImmutableSet.builder();
+        for (PersistentObjectCache<O> shard : shards) {
+            ids.addAll(shard.ids());
+        }
+        return ids.build();
+    }
+
+    /**
+     * Returns the value associated with the provided id in this cache, or {@code null}
+     * if there is no cached value for it (and the {@link #setLoader(PersistentObjectLookup) loader},
+     * if any, didn't find it either).
+     */
+    @Nullable
+    public O get(Object id) {
+        return shard(id).get(id);
+    }
+
+    /**
+     * Returns the value associated with the provided long id in this cache, or {@code null}
+     * if there is no cached value for it (and the {@link #setLoader(PersistentObjectLookup) loader},
+     * if any, didn't find it either).
+     * <p/>
+     * This isn't an overload of {@link #get(Object)}, as that would be picked for {@code int}
+     * ids as well, which would then be looked up as longs.
+     */
+    @Nullable
+    public O getById(long id) {
+        return shards.get(shardOfHash(Long.hashCode(id))).get(id);
+    }
+
+    /**
+     * Put object in cache directly.
+     * <p/>
+     * WARNING: this method is meant primarily for testing, typical use is to rely
+     * on the updater to work on the cache when new data comes in from the backend
+     *
+     * @param object object to put in the cache
+     */
+    public void put(O object) {
+        shard(object.getId()).put(object);
+    }
+
+    /**
+     * Invalidate object with given key in cache directly.
+     * WARNING: this method is meant primarily for testing, typical use is to rely
+     * on the updater to work on the cache when new data comes in from the backend
+     *
+     * @param id id of the object to remove
+     */
+    public void remove(Object id) {
+        shard(id).remove(id);
+    }
+
+    /**
+     * @return the approximate number of entries in this cache.
+     */
+    public long size() {
+        long size = 0;
+        for (PersistentObjectCache<O> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Manually trigger refresh.
+     *
+     * @return refresh results
+     */
+    public RefreshResults refresh() {
+        return refresher.refresh();
+    }
+
+    /**
+     * Block until the events that were published so far are applied to all shards, or the
+     * provided timeout passes (for each step: the sharding listener, and then the listeners
+     * of every shard).
+     *
+     * @param timeout maximum time to wait per step
+     */
+    public void waitForShards(Duration timeout) {
+        refresher.waitForListeners(timeout);
+        for (ShardRefresher<O> shardRefresher : shardRefreshers) {
+            shardRefresher.waitForListeners(timeout);
+        }
+    }
+
+    /**
+     * Set the loader for objects that aren't in this cache; see
+     * {@link PersistentObjectCache#setLoader(PersistentObjectLookup)}. Objects that are loaded
+     * are put in the shards they belong to.
+     *
+     * @param loader loader, or null to not load objects that aren't in the cache
+     */
+    public void setLoader(@Nullable PersistentObjectLookup<O> loader) {
+        this.loader = loader;
+        for (PersistentObjectCache<O> shard : shards) {
+            shard.setLoader(loader);
+        }
+    }
+
+    /**
+     * Set the type of the objects in this cache; see
+     * {@link PersistentObjectCache#setObjectType(Class)}.
+     *
+     * @param objectType type of the objects, or null if it isn't known
+     */
+    public void setObjectType(@Nullable Class<O> objectType) {
+        this.objectType = objectType;
+        for (PersistentObjectCache<O> shard : shards) {
+            shard.setObjectType(objectType);
+        }
+    }
+
+    /**
+     * @return type of the objects in this cache, or null if it isn't known
+     */
+    @Nullable
+    public Class<O> getObjectType() {
+        return objectType;
+    }
+
+    /**
+     * Lookup one or more objects by their ids; see {@link PersistentObjectCache#lookup(Object...)}
+     * for the type of the returned array.
+     *
+     * @param ids ids of the objects to lookup
+     * @return objects, with nulls for the ids that weren't found
+     * @throws IllegalStateException when the type of the objects isn't known
+     */
+    @Override
+    public O[] lookup(Object... ids) {
+        Preconditions.checkNotNull(ids);
+        Class<O> type = CacheLookups.arrayType(this, objectType, loader);
+        return CacheLookups.toArray(type, ids, lookupAll(Arrays.asList(ids)));
+    }
+
+    /**
+     * Lookup one or more objects by their ids.
+     *
+     * @param type type of the objects
+     * @param ids  ids of the objects to lookup
+     * @return objects, with nulls for the ids that weren't found
+     */
+    public O[] lookup(Class<O> type, Object... ids) {
+        Preconditions.checkNotNull(type);
+        Preconditions.checkNotNull(ids);
+        return CacheLookups.toArray(type, ids, lookupAll(Arrays.asList(ids)));
+    }
+
+    /**
+     * Lookup multiple objects by their ids. The ids that aren't in any of the shards are looked
+     * up with the {@link #setLoader(PersistentObjectLookup) loader} (if any) in one go, rather
+     * than once per shard, and the objects it finds are put in the shards they belong to.
+     *
+     * @param ids ids of the objects to lookup
+     * @return map of id to object for the objects that were found, in the order of the ids
+     */
+    public Map<Object, O> lookupAll(Collection<?> ids) {
+        Preconditions.checkNotNull(ids);
+        return CacheLookups.lookupAll(ids, id -> shard(id).storage.get(id), loader, this::putAll);
+    }
+
+    /*
+     * Put objects in the shards they belong to, in one go per shard.
+     */
+    private void putAll(Collection<O> objects) {
+        List<List<O>> parts = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (O object : objects) {
+            parts.get(shardOf(object.getId())).add(object);
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            if (!parts.get(i).isEmpty()) {
+                shards.get(i).putAll(parts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Shut this cache down. The shards are shut down by the shutdown hooks they are
+     * registered with.
+     */
+    @Override
+    public void shutdown() {
+        log.debug("shutting down cache " + name);
+        refreshDaemon.shutdown();
+    }
+
+    /*
+     * Sorted view that merges the sorted segments of the shards. The segments hold the sort
+     * keys the objects were sorted with, so the merge never looks keys up (which could find
+     * keys of a newer version of a sort than the segment was read from); the head of every
+     * segment is kept in a priority queue. Objects of different shards with the same sort
+     * value are merged in the order of their ids. When a cursor key is provided, only the
+     * objects that come after it are included.
+     */
+    private static final class MergedSortView<O extends PersistentObject> extends AbstractCollection<O> {
+
+        private final List<Collection<Map.Entry<SortKey, O>>> segments;
+
+        private final SortKey after;
+
+        MergedSortView(List<Collection<Map.Entry<SortKey, O>>> segments) {
+            this(segments, null);
+        }
+
+        MergedSortView(List<Collection<Map.Entry<SortKey, O>>> segments, @Nullable SortKey after) {
+            this.segments = segments;
+            this.after = after;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            return new Iterator<O>() {
+
+                private final PriorityQueue<Head<O>> heads = new PriorityQueue<>(segments.size());
+
+                {
+                    for (Collection<Map.Entry<SortKey, O>> segment : segments) {
+                        advance(new Head<>(segment.iterator()));
+                    }
+                }
+
+                /*
+                 * Move the head to the next entry of it's segment that comes after the
+                 * cursor (if any), and put it in the queue if there is one.
+                 */
+                private void advance(Head<O> head) {
+                    while (head.iterator.hasNext()) {
+                        Map.Entry<SortKey, O> entry = head.iterator.next();
+                        if (after == null || entry.getKey().compareWithId(after) > 0) {
+                            head.entry = entry;
+                            heads.add(head);
+                            return;
+                        }
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return !heads.isEmpty();
+                }
+
+                @Override
+                public O next() {
+                    Head<O> head = heads.poll();
+                    if (head == null) {
+                        throw new NoSuchElementException();
+                    }
+                    O object = head.entry.getValue();
+                    advance(head);
+                    return object;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            if (after != null) {
+                return Iterators.size(iterator()); // segments can include ties that come before the cursor
+            }
+            int size = 0;
+            for (Collection<Map.Entry<SortKey, O>> segment : segments) {
+                size += segment.size();
+            }
+            return size;
+        }
+    }
+
+    /*
+     * Position in a sorted segment.
+     */
+    private static final class Head<O extends PersistentObject> implements Comparable<Head<O>> {
+
+        final Iterator<Map.Entry<SortKey, O>> iterator;
+
+        Map.Entry<SortKey, O> entry;
+
+        Head(Iterator<Map.Entry<SortKey, O>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public int compareTo(Head<O> o) {
+            return entry.getKey().compareWithId(o.entry.getKey());
+        }
+    }
+
+    /*
+     * Future on the sum of the results of other futures.
+     */
+    private static final class SumOfFutures implements Future<Integer> {
+
+        private final List<Future<Integer>> futures;
+
+        SumOfFutures(List<Future<Integer>> futures) {
+            this.futures = futures;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (Future<Integer> future : futures) {
+                cancelled |= future.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for (Future<Integer> future : futures) {
+                if (future.isCancelled()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            for (Future<Integer> future : futures) {
+                if (!future.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            int sum = 0;
+            for (Future<Integer> future : futures) {
+                sum += future.get();
+            }
+            return sum;
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int sum = 0;
+            for (Future<Integer> future : futures) {
+                sum += future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.chillenious.common.db.sync;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sort store that lets readers work on immutable, versioned snapshots. Writers update a
+ * private working copy, and {@link #publish()} swaps in a new snapshot of that copy in one
+ * atomic step, so readers never see a partially applied batch of writes, and never block.
+ * <p/>
+ * Publishing copies the whole set, which makes this a good fit for sorts that are read
+ * a lot and that are updated in batches (like refreshes), and a bad fit for sorts that
+ * are updated one object at a time. Writes that are {@link #publishLazily() published lazily}
+ * (like those of listeners and of single puts) are therefore published at most once every
+ * {@link #PUBLISH_INTERVAL_MILLIS} milliseconds: right away if the interval passed since the
+ * last lazy publish, and otherwise by one of the {@link RefreshExecutors#workers() workers}
+ * once it did, so that a stream of single writes is copied once per interval rather than once
+ * per write.
+ * <p/>
+ * With long ids, the reverse lookup is a primitive map, and {@link #ids()} returns a copy.
+ *
+ * @param <O> type of objects that are sorted
+ */
+final class SnapshotSortStore<O extends PersistentObject> implements SortStore<O> {
+
+    /**
+     * Minimum time between publishes of writes that are published lazily.
+     */
+    static final long PUBLISH_INTERVAL_MILLIS = 50;
+
+    /**
+     * Immutable view on the store at a particular version.
+     */
+    static final class Snapshot<O> {
+
+        final long version;
+
+        final NavigableMap<SortKey, O> sorted;
+
+        final IdMap<SortKey> reverseLookup;
+
+        Snapshot(long version, NavigableMap<SortKey, O> sorted, IdMap<SortKey> reverseLookup) {
+            this.version = version;
+            this.sorted = sorted;
+            this.reverseLookup = reverseLookup;
+        }
+    }
+
+    private final TreeMap<SortKey, O> sorted = new TreeMap<>();
+
+    private final IdMap<SortKey> reverseLookup;
+
+    private final Lock w = new ReentrantLock();
+
+    private boolean dirty = false;
+
+    private long lastPublishedLazily = 0; // when writes were last published lazily
+
+    private boolean publishScheduled = false; // whether a worker will publish lazily published writes
+
+    private volatile Snapshot<O> current;
+
+    SnapshotSortStore() {
+        this(false);
+    }
+
+    SnapshotSortStore(boolean longIds) {
+        this.reverseLookup = IdMap.create(longIds, false);
+        this.current = new Snapshot<>(0, ImmutableSortedMap.<SortKey, O>of(), reverseLookup.immutableCopy());
+    }
+
+    @Override
+    public O put(O object, SortKeyFactory<O, ? extends Comparable> factory) {
+        w.lock();
+        try {
+            return doPut(object, factory);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public void apply(List<DataRefreshEvent<O>> events, SortKeyFactory<O, ? extends Comparable> factory) {
+        w.lock();
+        try {
+            for (DataRefreshEvent<O> evt : events) {
+                if (evt instanceof DataDeletedEvent) {
+                    doRemove(evt.getId());
+                } else {
+                    O object = DataRefreshEvent.objectOf(evt);
+                    if (object != null) {
+                        doPut(object, factory);
+                    }
+                }
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public O remove(Object id) {
+        w.lock();
+        try {
+            return doRemove(id);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    @SuppressWarnings("unchecked")
+    private O doPut(O object, SortKeyFactory<O, ? extends Comparable> factory) {
+        SortKey oldKey = reverseLookup.get(object.getId());
+        SortKey key = factory.create(object, (oldKey == null));
+        if (oldKey != null && key != null) {
+            reverseLookup.remove(object.getId());
+            sorted.remove(oldKey);
+            dirty = true;
+        }
+        if (key != null && (!SortKey.DELETE.equals(key))) {
+            reverseLookup.put(object.getId(), key);
+            dirty = true;
+            return sorted.put(key, object);
+        } else {
+            return null;
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private O doRemove(Object id) {
+        SortKey key = reverseLookup.remove(id);
+        if (key != null) {
+            dirty = true;
+            return sorted.remove(key);
+        }
+        return null;
+    }
+
+    @Override
+    public O get(Object id) {
+        Snapshot<O> snapshot = snapshot();
+        SortKey key = snapshot.reverseLookup.get(id);
+        return (key != null) ? snapshot.sorted.get(key) : null;
+    }
+
+    @Override
+    public Collection<O> values() {
+        return snapshot().sorted.values();
+    }
+
+    @Override
+    public Collection<O> values(@Nullable Comparable from, boolean fromInclusive,
+                                @Nullable Comparable to, boolean toInclusive) {
+        return SortStore.range(snapshot().sorted, from, fromInclusive, to, toInclusive).values();
+    }
+
+    @Override
+    public Collection<Map.Entry<SortKey, O>> entries(@Nullable Comparable from, boolean fromInclusive,
+                                                     @Nullable Comparable to, boolean toInclusive) {
+        return SortStore.range(snapshot().sorted, from, fromInclusive, to, toInclusive).entrySet();
+    }
+
+    @Override
+    public Collection<O> valuesAfter(Object id) {
+        Snapshot<O> snapshot = snapshot();
+        SortKey key = snapshot.reverseLookup.get(id);
+        return (key != null) ? snapshot.sorted.tailMap(key, false).values() : null;
+    }
+
+    @Override
+    public SortKey keyOf(Object id) {
+        return snapshot().reverseLookup.get(id);
+    }
+
+    @Override
+    public int size() {
+        return snapshot().reverseLookup.size();
+    }
+
+    @Override
+    public Set<Object> ids() {
+        return snapshot().reverseLookup.ids();
+    }
+
+    @Override
+    public boolean contains(Object id) {
+        return snapshot().reverseLookup.containsKey(id);
+    }
+
+    @Override
+    public void publish() {
+        w.lock();
+        try {
+            doPublish();
+        } finally {
+            w.unlock();
+        }
+    }
+
+    @Override
+    public void publishLazily() {
+        w.lock();
+        try {
+            if (!dirty || publishScheduled) {
+                return;
+            }
+            long wait = lastPublishedLazily + PUBLISH_INTERVAL_MILLIS - System.currentTimeMillis();
+            if (wait <= 0) {
+                lastPublishedLazily = System.currentTimeMillis();
+                doPublish();
+            } else {
+                publishScheduled = true;
+                RefreshExecutors.scheduler().schedule(
+                        () -> RefreshExecutors.workers().execute(this::publishScheduled),
+                        wait, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /*
+     * Publish the writes that were published lazily, on a worker.
+     */
+    private void publishScheduled() {
+        w.lock();
+        try {
+            publishScheduled = false;
+            lastPublishedLazily = System.currentTimeMillis();
+            doPublish();
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /*
+     * Must be called while holding the write lock.
+     */
+    private void doPublish() {
+        if (dirty) {
+            current = new Snapshot<>(current.version + 1,
+                    ImmutableSortedMap.copyOfSorted(sorted),
+                    reverseLookup.immutableCopy());
+            dirty = false;
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return snapshot().version;
+    }
+
+    /*
+     * Current snapshot; never waits for writers.
+     */
+    private Snapshot<O> snapshot() {
+        return current;
+    }
+}
@@ -24,4 +24,17 @@ final class SortDataRefreshListener<O extends PersistentObject>
             sorter.remove(evt.getId());
         } // else ignore
     }
+
+    @Override
+    protected void onBatch(DataBatchEvent<O> batch) {
+        sorter.apply(batch.getEvents());
+    }
+
+    /*
+     * Publishes lazily, as the queue can be flushed after every single pushed change.
+     */
+    @Override
+    void flush() {
+        sorter.publishLazily();
+    }
 }
@@ -66,6 +66,13 @@ public class SortKey<T extends Comparable> implements Comparable<SortKey<T>> {
         this.sort = sort;
     }
 
+    /**
+     * @return the sort value of this key
+     */
+    Comparable getSort() {
+        return sort;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public int compareTo(SortKey<T> o) {
@@ -78,6 +85,24 @@ public class SortKey<T extends Comparable> implements Comparable<SortKey<T>> {
         }
     }
 
+    /**
+     * Compare by sort value, and by id when the sort values are the same (and the ids are
+     * comparable), so that the keys of different sort stores, like those of the shards of a
+     * {@link ShardedPersistentObjectCache sharded cache}, are in a total order even when their
+     * sort values tie.
+     *
+     * @param o key to compare with
+     * @return negative, zero or positive like {@link #compareTo(SortKey)}
+     */
+    @SuppressWarnings("unchecked")
+    int compareWithId(SortKey o) {
+        int c = compareTo(o);
+        if (c == 0 && id instanceof Comparable && o.id != null && id.getClass() == o.id.getClass()) {
+            c = ((Comparable) id).compareTo(o.id);
+        }
+        return c;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof SortKey) {
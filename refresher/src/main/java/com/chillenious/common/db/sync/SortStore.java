@@ -0,0 +1,152 @@
+package com.chillenious.common.db.sync;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Storage strategy behind a {@link com.chillenious.common.db.sync.Sorter}. Implementations keep
+ * an ordered map between sort keys and persistent objects plus a reverse lookup between ids and
+ * sort keys, and decide how reads and writes are coordinated.
+ *
+ * @param <O> type of objects that are sorted
+ */
+interface SortStore<O extends PersistentObject> {
+
+    /**
+     * Put object, creating it's sort key with the provided factory.
+     *
+     * @param object  object to put
+     * @param factory factory for sort keys
+     * @return previous object for the sort key, if any
+     */
+    O put(O object, SortKeyFactory<O, ? extends Comparable> factory);
+
+    /**
+     * Apply a batch of created, changed and deleted events under a single lock acquisition.
+     *
+     * @param events  events to apply, in order
+     * @param factory factory for sort keys
+     */
+    void apply(List<DataRefreshEvent<O>> events, SortKeyFactory<O, ? extends Comparable> factory);
+
+    /**
+     * Remove object with the provided id.
+     *
+     * @param id id of the object
+     * @return the removed object or null if it wasn't in the store
+     */
+    O remove(Object id);
+
+    /**
+     * @param id id of the object
+     * @return object or null if it isn't in the store
+     */
+    O get(Object id);
+
+    /**
+     * @return objects in sort order
+     */
+    Collection<O> values();
+
+    /**
+     * Objects in sort order whose sort values are in the provided range.
+     *
+     * @param from          lower bound of the sort values, or null for no lower bound
+     * @param fromInclusive whether the lower bound is part of the range
+     * @param to            upper bound of the sort values, or null for no upper bound
+     * @param toInclusive   whether the upper bound is part of the range
+     * @return objects in sort order
+     */
+    Collection<O> values(@Nullable Comparable from, boolean fromInclusive,
+                         @Nullable Comparable to, boolean toInclusive);
+
+    /**
+     * Sort keys and objects in sort order whose sort values are in the provided range. The key
+     * of each object is the one it was sorted with, so that readers can merge sorts without
+     * looking the keys up again.
+     *
+     * @param from          lower bound of the sort values, or null for no lower bound
+     * @param fromInclusive whether the lower bound is part of the range
+     * @param to            upper bound of the sort values, or null for no upper bound
+     * @param toInclusive   whether the upper bound is part of the range
+     * @return entries of sort key and object in sort order
+     */
+    Collection<Map.Entry<SortKey, O>> entries(@Nullable Comparable from, boolean fromInclusive,
+                                              @Nullable Comparable to, boolean toInclusive);
+
+    /**
+     * Objects in sort order that come after the object with the provided id.
+     *
+     * @param id id of the object to start after
+     * @return objects in sort order, or null if there is no object with the provided id in the store
+     */
+    @Nullable
+    Collection<O> valuesAfter(Object id);
+
+    /**
+     * @param id id of the object
+     * @return sort key of the object, or null if it isn't in the store
+     */
+    @Nullable
+    SortKey keyOf(Object id);
+
+    /**
+     * @return number of objects in the store
+     */
+    int size();
+
+    /**
+     * @return ids of the objects in the store
+     */
+    Set<Object> ids();
+
+    /**
+     * @param id id of the object
+     * @return whether an object with the provided id is in the store
+     */
+    boolean contains(Object id);
+
+    /**
+     * Make the writes done so far visible to readers (if they weren't already).
+     */
+    void publish();
+
+    /**
+     * Make the writes done so far visible to readers soon, rather than necessarily right away,
+     * so that a series of single writes can be published in one go. Publishes right away unless
+     * implementations can do better.
+     */
+    default void publishLazily() {
+        publish();
+    }
+
+    /**
+     * @return version of the contents readers currently see; goes up with every visible change
+     */
+    long getVersion();
+
+    /**
+     * Get the part of the provided sorted map with sort values in the provided range.
+     */
+    @SuppressWarnings("unchecked")
+    static <O> NavigableMap<SortKey, O> range(NavigableMap<SortKey, O> sorted,
+                                              @Nullable Comparable from, boolean fromInclusive,
+                                              @Nullable Comparable to, boolean toInclusive) {
+        if (from != null && to != null && from.compareTo(to) > 0) {
+            throw new IllegalArgumentException(String.format(
+                    "lower bound %s is greater than upper bound %s", from, to));
+        }
+        NavigableMap<SortKey, O> range = sorted;
+        if (from != null) {
+            range = range.tailMap(new SortKey(null, from), fromInclusive);
+        }
+        if (to != null) {
+            range = range.headMap(new SortKey(null, to), toInclusive);
+        }
+        return range;
+    }
+}
@@ -0,0 +1,92 @@
+package com.chillenious.common.db.sync;
+
+import javax.annotation.Nullable;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Index store that keeps its keys sorted, so that besides exact matches, it can look up
+ * the objects for ranges of keys, and the closest keys to a key. Keys must be
+ * {@link Comparable comparable}.
+ *
+ * @param <O> type of objects that are indexed
+ * @param <T> key type
+ */
+final class SortedIndexStore<O extends PersistentObject, T> extends HashIndexStore<O, T> {
+
+    private final boolean multiValued; // whether objects can be members of multiple keys
+
+    SortedIndexStore(@Nullable Function<Object, O> resolver, boolean multiValued) {
+        super(new TreeMap<>(), resolver);
+        this.multiValued = multiValued;
+    }
+
+    /**
+     * @return objects with keys in the provided range
+     */
+    Set<O> range(@Nullable T from, boolean fromInclusive, @Nullable T to, boolean toInclusive) {
+        return resolve(range(sorted(), from, fromInclusive, to, toInclusive).values());
+    }
+
+    /**
+     * @return ids of the objects with keys in the provided range
+     */
+    IdSet rangeIds(@Nullable T from, boolean fromInclusive, @Nullable T to, boolean toInclusive) {
+        return idsOf(range(sorted(), from, fromInclusive, to, toInclusive).values());
+    }
+
+    /**
+     * @return number of objects with keys in the provided range
+     */
+    int count(@Nullable T from, boolean fromInclusive, @Nullable T to, boolean toInclusive) {
+        if (multiValued) { // objects with multiple keys in the range are counted once
+            return rangeIds(from, fromInclusive, to, toInclusive).size();
+        }
+        int count = 0;
+        for (Set<Object> members : range(sorted(), from, fromInclusive, to, toInclusive).values()) {
+            count += members.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return greatest key less than or equal to the provided key, or null if there is no such key
+     */
+    @Nullable
+    T floorKey(T key) {
+        return sorted().floorKey(key);
+    }
+
+    /**
+     * @return least key greater than or equal to the provided key, or null if there is no such key
+     */
+    @Nullable
+    T ceilingKey(T key) {
+        return sorted().ceilingKey(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private NavigableMap<T, Set<Object>> sorted() {
+        return (NavigableMap<T, Set<Object>>) indexed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, V> NavigableMap<T, V> range(NavigableMap<T, V> map,
+                                                  @Nullable T from, boolean fromInclusive,
+                                                  @Nullable T to, boolean toInclusive) {
+        if (from != null && to != null && ((Comparable) from).compareTo(to) > 0) {
+            throw new IllegalArgumentException(String.format(
+                    "lower bound %s is greater than upper bound %s", from, to));
+        }
+        NavigableMap<T, V> range = map;
+        if (from != null) {
+            range = range.tailMap(from, fromInclusive);
+        }
+        if (to != null) {
+            range = range.headMap(to, toInclusive);
+        }
+        return range;
+    }
+}
@@ -1,15 +1,31 @@
 package com.chillenious.common.db.sync;
 
+import javax.annotation.Nullable;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 /**
  * Structure that works with a factory to produce sort keys and an ordered map
- * between these keys and persistent objects. It uses {@link java.util.concurrent.ConcurrentSkipListMap}
- * so that the impact of writes is minimal and iterating over the values in order
- * is fast.
+ * between these keys and persistent objects. How the ordered map is stored and how
+ * reads and writes are coordinated depends on the {@link Mode mode} of the sorter:
+ * <ul>
+ * <li>{@link Mode#LOCKING} (the default) uses a {@link java.util.concurrent.ConcurrentSkipListMap}
+ * guarded by a read/ write lock so that the impact of writes is minimal and iterating over
+ * the values in order is fast</li>
+ * <li>{@link Mode#SNAPSHOT} lets readers work on immutable snapshots that are swapped in
+ * atomically after each batch of writes, so that readers never block or see torn state</li>
+ * </ul>
+ * <p/>
+ * Sorters can be created with a resolver, in which case they hold ids rather than objects, and
+ * look up objects with the resolver when they are read (see {@link CacheStorage#isHeapResident()}).
+ * Sorters for objects with long ids can keep their reverse lookup in a primitive map
+ * (see {@link CacheStorage#hasLongIds()}).
+ * <p/>
+ * Besides iterating over all values, sorters support range queries on the sort values
+ * (e.g. {@link #values(Comparable, boolean, Comparable, boolean)}) and paging with the id of
+ * the last object of the previous page as the cursor ({@link #page(Object, int)}). Both
+ * find their starting point in the ordered map in O(log n), so going deep into a sort
+ * doesn't get more expensive than staying near the start.
  * <p/>
  * As part of the setup of this object, it should be {@link #bind(DataRefresher) bound}
  * to a refresher, and when it is taken out of commission, it should be
@@ -19,84 +35,234 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public final class Sorter<O extends PersistentObject> {
 
-    private final SortKeyFactory<O, ? extends Comparable> factory;
-
-    private final NavigableMap<SortKey<? extends Comparable>, O> sorted =
-            new ConcurrentSkipListMap<>();
+    /**
+     * How sorters keep their sorted set.
+     */
+    public static enum Mode {
+        /**
+         * Sorted set guarded by a read/ write lock; writes are visible right away.
+         */
+        LOCKING,
+        /**
+         * Readers work on immutable, versioned snapshots of the sorted set that are
+         * swapped in after batches of writes (typically after each refresh), at most once every
+         * {@link SnapshotSortStore#PUBLISH_INTERVAL_MILLIS} milliseconds for writes that come
+         * in one at a time.
+         */
+        SNAPSHOT
+    }
 
-    private final Map<Object, SortKey> reverseLookup = new HashMap<>();
+    private final SortKeyFactory<O, ? extends Comparable> factory;
 
-    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private final Mode mode;
 
-    private final Lock r = rwl.readLock(), w = rwl.writeLock();
+    private final SortStore<O> store;
 
     SortDataRefreshListener<O> listener;
 
     Sorter(SortKeyFactory<O, ? extends Comparable> factory) {
+        this(factory, Mode.LOCKING);
+    }
+
+    Sorter(SortKeyFactory<O, ? extends Comparable> factory, Mode mode) {
+        this(factory, mode, null);
+    }
+
+    Sorter(SortKeyFactory<O, ? extends Comparable> factory, Mode mode, @Nullable Function<Object, O> resolver) {
+        this(factory, mode, resolver, false);
+    }
+
+    Sorter(SortKeyFactory<O, ? extends Comparable> factory, Mode mode,
+           @Nullable Function<Object, O> resolver, boolean longIds) {
+        if (mode == null) {
+            throw new NullPointerException();
+        }
         this.factory = factory;
+        this.mode = mode;
+        if (resolver == null) {
+            this.store = (mode == Mode.SNAPSHOT) ?
+                    new SnapshotSortStore<O>(longIds) : new LockingSortStore<O>(longIds);
+        } else {
+            this.store = new IdSortStore<>((mode == Mode.SNAPSHOT) ?
+                    new SnapshotSortStore<IdSortStore.IdRef<O>>(longIds) :
+                    new LockingSortStore<IdSortStore.IdRef<O>>(longIds), resolver);
+        }
     }
 
-    @SuppressWarnings("unchecked")
     O put(O object) {
         if (object == null || object.getId() == null) {
             throw new NullPointerException();
         }
-        w.lock();
-        try {
-            SortKey oldKey = reverseLookup.get(object.getId());
-            SortKey key = factory.create(object, (oldKey == null));
-            if (oldKey != null && key != null) {
-                reverseLookup.remove(object.getId());
-                sorted.remove(oldKey);
-            }
-            if (key != null && (!SortKey.DELETE.equals(key))) {
-                reverseLookup.put(object.getId(), key);
-                Object previous = sorted.put(key, object);
-                return (O)previous;
-            } else {
-                return null;
-            }
-        } finally {
-            w.unlock();
-        }
+        return store.put(object, factory);
     }
 
     O remove(Object id) {
         if (id == null) {
             throw new NullPointerException();
         }
-        w.lock();
-        try {
-            SortKey key = reverseLookup.remove(id);
-            return (key != null) ? sorted.remove(key) : null;
-        } finally {
-            w.unlock();
-        }
+        return store.remove(id);
     }
 
     O get(Object id) {
         if (id == null) {
             throw new NullPointerException();
         }
-        r.lock();
-        try {
-            SortKey key = reverseLookup.get(id);
-            return (key != null) ? sorted.get(key) : null;
-        } finally {
-            r.unlock();
+        return store.get(id);
+    }
+
+    /**
+     * Apply a batch of created, changed and deleted events in one go (taking the write lock once).
+     *
+     * @param events events to apply, in order
+     */
+    void apply(List<DataRefreshEvent<O>> events) {
+        if (events == null) {
+            throw new NullPointerException();
         }
+        store.apply(events, factory);
+    }
+
+    /**
+     * Make the writes done so far visible to readers. This is a no-op for
+     * {@link Mode#LOCKING locking} sorters.
+     */
+    void publish() {
+        store.publish();
+    }
+
+    /**
+     * Make the writes done so far visible to readers soon; see {@link SortStore#publishLazily()}.
+     */
+    void publishLazily() {
+        store.publishLazily();
     }
 
     public Collection<O> values() {
-        return sorted.values();
+        return store.values();
+    }
+
+    /**
+     * Get the objects whose sort values are in the provided range, in sort order. Sort values are
+     * what the {@link SortKeyFactory sort key factory} passes to {@link SortKey.SortKeyBuildStep#create(Comparable)}.
+     *
+     * @param from          lower bound of the sort values, or null for no lower bound
+     * @param fromInclusive whether objects with the lower bound as their sort value are included
+     * @param to            upper bound of the sort values, or null for no upper bound
+     * @param toInclusive   whether objects with the upper bound as their sort value are included
+     * @return view on the objects in the range, in sort order
+     * @throws IllegalArgumentException when the lower bound is greater than the upper bound
+     */
+    public Collection<O> values(@Nullable Comparable from, boolean fromInclusive,
+                                @Nullable Comparable to, boolean toInclusive) {
+        return store.values(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Get the sort keys and objects whose sort values are in the provided range, in sort order.
+     *
+     * @see #values(Comparable, boolean, Comparable, boolean)
+     */
+    Collection<Map.Entry<SortKey, O>> entries(@Nullable Comparable from, boolean fromInclusive,
+                                              @Nullable Comparable to, boolean toInclusive) {
+        return store.entries(from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * Get the objects whose sort values are less than (or equal to) the provided value.
+     *
+     * @param to        upper bound of the sort values
+     * @param inclusive whether objects with the upper bound as their sort value are included
+     * @return view on the objects in the range, in sort order
+     */
+    public Collection<O> headValues(Comparable to, boolean inclusive) {
+        if (to == null) {
+            throw new NullPointerException();
+        }
+        return store.values(null, false, to, inclusive);
+    }
+
+    /**
+     * Get the objects whose sort values are greater than (or equal to) the provided value.
+     *
+     * @param from      lower bound of the sort values
+     * @param inclusive whether objects with the lower bound as their sort value are included
+     * @return view on the objects in the range, in sort order
+     */
+    public Collection<O> tailValues(Comparable from, boolean inclusive) {
+        if (from == null) {
+            throw new NullPointerException();
+        }
+        return store.values(from, inclusive, null, false);
+    }
+
+    /**
+     * Get a page of objects in sort order, starting after the object with the provided id.
+     * Typically, the id is the one of the last object of the previous page. If that object
+     * was removed from the sort in the meantime, the page is empty; use
+     * {@link #tailValues(Comparable, boolean)} with the last sort value instead when that's
+     * a problem.
+     *
+     * @param afterId id of the object to start after, or null to start at the beginning
+     * @param limit   maximum number of objects to return
+     * @return objects in sort order, at most limit
+     */
+    public List<O> page(@Nullable Object afterId, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException(String.format("limit must be positive (is %,d)", limit));
+        }
+        Collection<O> values = (afterId != null) ? store.valuesAfter(afterId) : store.values();
+        if (values == null || limit == 0) {
+            return Collections.emptyList();
+        }
+        List<O> page = new ArrayList<>(Math.min(limit, 1024));
+        for (O object : values) {
+            page.add(object);
+            if (page.size() == limit) {
+                break;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @param id id of the object
+     * @return sort key of the object, or null if it isn't in this sort
+     */
+    @Nullable
+    SortKey keyOf(Object id) {
+        if (id == null) {
+            throw new NullPointerException();
+        }
+        return store.keyOf(id);
+    }
+
+    /**
+     * @return number of objects in this sort
+     */
+    public int size() {
+        return store.size();
     }
 
     public Set<Object> ids() {
-        return reverseLookup.keySet();
+        return store.ids();
     }
 
     public boolean contains(Object id) {
-        return reverseLookup.containsKey(id);
+        return store.contains(id);
+    }
+
+    /**
+     * @return mode of this sorter
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return version of the sorted set readers currently see; goes up with every visible change
+     */
+    public long getVersion() {
+        return store.getVersion();
     }
 
     synchronized void bind(DataRefresher<O> refresher) {
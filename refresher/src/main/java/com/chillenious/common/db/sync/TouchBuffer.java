@@ -0,0 +1,98 @@
+package com.chillenious.common.db.sync;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, lock-free buffer that records accesses ('touches') of many threads so that they
+ * can be applied in batches by a single thread later. Recording is lossy: when the buffer is
+ * full, or when another thread claimed the same slot at the same moment, the touch is dropped
+ * rather than waited for, as is common for recording reads in caches; an order that is based on
+ * the touches that remain is still approximately right.
+ *
+ * @param <E> type of the elements that are touched
+ */
+final class TouchBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private volatile long reads; // only written by the thread that drains
+
+    /**
+     * Construct.
+     *
+     * @param capacity minimum number of touches the buffer can hold; rounded up to a power of two
+     */
+    TouchBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("capacity must be positive (is %,d)", capacity));
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(Math.max(size, 1));
+        this.mask = slots.length() - 1;
+    }
+
+    /**
+     * Record a touch.
+     *
+     * @param element element that was touched
+     * @return whether the touch was recorded; false when it was dropped
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long tail = writes.get();
+        if (tail - reads >= slots.length()) {
+            return false; // full
+        }
+        if (!writes.compareAndSet(tail, tail + 1)) {
+            return false; // contended
+        }
+        slots.lazySet((int) (tail & mask), element);
+        return true;
+    }
+
+    /**
+     * @return approximate number of touches that are waiting to be drained
+     */
+    int size() {
+        return (int) (writes.get() - reads);
+    }
+
+    /**
+     * @return number of touches the buffer can hold
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Pass the recorded touches to the consumer, in the order they were recorded. Must not be
+     * called by multiple threads at the same time.
+     *
+     * @param consumer consumer of the touches
+     * @return number of touches that were drained
+     */
+    int drain(Consumer<? super E> consumer) {
+        long head = reads, tail = writes.get();
+        int drained = 0;
+        for (; head < tail; head++) {
+            int index = (int) (head & mask);
+            E element = slots.get(index);
+            if (element == null) {
+                break; // slot is claimed, but not written yet; the next drain picks it up
+            }
+            slots.lazySet(index, null);
+            consumer.accept(element);
+            drained++;
+        }
+        reads = head;
+        return drained;
+    }
+}
@@ -0,0 +1,17 @@
+package com.chillenious.common.db.sync;
+
+/**
+ * {@link com.chillenious.common.db.sync.PersistentObject Persistent object} with a version: a number
+ * that changes whenever the data of the object changes, like a version column, a last modified
+ * timestamp, or a hash of the contents. {@link DataRefresher Refreshers} use it to skip
+ * {@link DataChangedEvent changed} events for objects that have the same version as when they
+ * were last published, so that refreshes of mostly static data don't cost listeners anything.
+ */
+public interface VersionedPersistentObject extends PersistentObject {
+
+    /**
+     * @return version of the data of the object; objects with the same id and version are
+     * considered to be equal
+     */
+    long getVersion();
+}
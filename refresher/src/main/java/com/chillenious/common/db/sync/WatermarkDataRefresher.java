@@ -0,0 +1,534 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for refreshers that load from a JDBC data source (e.g. one that is
+ * {@link com.chillenious.common.db.DataSources#getDataSource(String) registered with DataSources})
+ * incrementally. A high-watermark - the highest value of e.g. an updated_at or version column
+ * seen so far - is tracked, so that each refresh only needs to fetch the rows that changed
+ * since the previous one, rather than reloading the whole table.
+ * <p/>
+ * Rows are streamed with the configured fetch size rather than materialized, and published as
+ * {@link DataBatchEvent batches} of {@link DataCreatedEvent created} (for ids this refresher
+ * didn't publish before), {@link DataChangedEvent changed} and {@link DataDeletedEvent deleted}
+ * (for rows that are {@link #isDeleted(java.sql.ResultSet) marked as deleted}) events.
+ * <p/>
+ * Rows that are physically deleted can't be found through the watermark. They are detected
+ * when doing a full load (the first refresh, or after {@link #resetWatermark()}), and, if
+ * {@link #prepareSelectIds(java.sql.Connection)} is implemented, every
+ * {@link #getDeleteDetectionInterval() so many} refreshes by comparing the ids in the table
+ * with the ids that were published.
+ * <p/>
+ * When events were dropped for a listener, the next refresh is a full load as well, that also
+ * publishes deletes for the objects of the dropped events that are gone, so that the listener
+ * is {@link #resync(java.util.Set) repaired}.
+ * <p/>
+ * Note that several rows can have the same watermark value, and that rows with a watermark
+ * equal to the current one might be committed after a refresh ran. Implementations should
+ * therefore select rows with a watermark greater than <em>or equal to</em> the one passed in;
+ * the few rows that are loaded again are simply published as changed, unless the objects are
+ * {@link VersionedPersistentObject versioned} and didn't change.
+ * <p/>
+ * The initial {@link #load() load} can be split in key ranges that are loaded concurrently, by
+ * implementing {@link #getPartitionBounds(java.sql.Connection)} and
+ * {@link #prepareRange(java.sql.Connection, Object, Object)}, plus
+ * {@link #getHighestWatermark(java.sql.Connection)} so that the first refresh after it doesn't
+ * have to be a full load.
+ *
+ * @param <O> persistent object type
+ * @param <W> watermark type, e.g. {@link java.sql.Timestamp} or {@link Long}
+ */
+public abstract class WatermarkDataRefresher<O extends PersistentObject, W extends Comparable<? super W>>
+        extends DataRefresher<O> {
+
+    private static final Logger log = LoggerFactory.getLogger(WatermarkDataRefresher.class);
+
+    /*
+     * Checkpoint: the watermark and the ids that were published. The set of ids is shared with
+     * the refresher, which copies it before it changes it (see publishedIds()).
+     */
+    private static final class Checkpoint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object watermark;
+
+        private final HashSet<Object> publishedIds;
+
+        Checkpoint(Object watermark, HashSet<Object> publishedIds) {
+            this.watermark = watermark;
+            this.publishedIds = publishedIds;
+        }
+
+        @Override
+        public String toString() {
+            return "Checkpoint{" +
+                    "watermark=" + watermark +
+                    ", publishedIds=" + publishedIds.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * Number of events per batch when the fetch size doesn't say.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DataSource dataSource;
+
+    private final int fetchSize;
+
+    private final int batchSize;
+
+    private HashSet<Object> publishedIds = new HashSet<>();
+
+    // whether the published ids are shared with a checkpoint, and must be copied before they change
+    private boolean publishedIdsShared = false;
+
+    private W watermark;
+
+    private int refreshCount = 0;
+
+    // ids of the objects of events that were dropped for listeners, to resync with the next refresh
+    private final Set<Object> droppedIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Construct.
+     *
+     * @param shutdownHooks shutdown hook registry
+     * @param dataSource    data source to load from
+     * @param fetchSize     fetch size for the statements (see {@link java.sql.Statement#setFetchSize(int)};
+     *                      note that some drivers, like MySQL's, only stream with {@link Integer#MIN_VALUE}).
+     *                      When positive, this is also the size of the batches that are published.
+     */
+    protected WatermarkDataRefresher(ShutdownHooks shutdownHooks, DataSource dataSource, int fetchSize) {
+        this(shutdownHooks, dataSource, fetchSize, ListenerQueueSettings.unbounded());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param shutdownHooks        shutdown hook registry
+     * @param dataSource           data source to load from
+     * @param fetchSize            fetch size for the statements
+     * @param defaultQueueSettings settings for the queues of listeners that are added without
+     *                             explicit settings
+     */
+    protected WatermarkDataRefresher(ShutdownHooks shutdownHooks, DataSource dataSource,
+                                     int fetchSize, ListenerQueueSettings defaultQueueSettings) {
+        super(shutdownHooks, defaultQueueSettings);
+        if (dataSource == null) {
+            throw new NullPointerException();
+        }
+        this.dataSource = dataSource;
+        this.fetchSize = fetchSize;
+        this.batchSize = fetchSize > 0 ? fetchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Prepare the statement that selects the rows that changed since the provided watermark.
+     *
+     * @param connection connection to prepare the statement with
+     * @param watermark  highest watermark seen so far, or null if all rows should be selected
+     * @return statement; the fetch size will be set by this class
+     * @throws SQLException when preparing fails
+     */
+    protected abstract PreparedStatement prepareChangedSince(
+            Connection connection, @Nullable W watermark) throws SQLException;
+
+    /**
+     * Map the current row to a persistent object.
+     *
+     * @param resultSet result set, positioned on the row to map
+     * @return object
+     * @throws SQLException when reading the row fails
+     */
+    protected abstract O map(ResultSet resultSet) throws SQLException;
+
+    /**
+     * Get the watermark (e.g. updated_at or version column) of the current row.
+     *
+     * @param resultSet result set, positioned on the row
+     * @return watermark of the row
+     * @throws SQLException when reading the row fails
+     */
+    protected abstract W watermarkOf(ResultSet resultSet) throws SQLException;
+
+    /**
+     * Whether the current row is marked as deleted (soft deletes). Returns false by default.
+     *
+     * @param resultSet result set, positioned on the row
+     * @return whether the row is deleted
+     * @throws SQLException when reading the row fails
+     */
+    protected boolean isDeleted(ResultSet resultSet) throws SQLException {
+        return false;
+    }
+
+    /**
+     * Get the id of the current row when it is {@link #isDeleted(java.sql.ResultSet) deleted} or
+     * when detecting deletes. By default, this is the first column.
+     *
+     * @param resultSet result set, positioned on the row
+     * @return id of the row
+     * @throws SQLException when reading the row fails
+     */
+    protected Object idOf(ResultSet resultSet) throws SQLException {
+        return resultSet.getObject(1);
+    }
+
+    /**
+     * Prepare the statement that selects the ids of all rows (of which the id should be the
+     * result of {@link #idOf(java.sql.ResultSet)}), used to detect rows that were physically
+     * deleted. By default, this returns null, which means that physical deletes are only
+     * detected with full loads.
+     *
+     * @param connection connection to prepare the statement with
+     * @return statement or null
+     * @throws SQLException when preparing fails
+     */
+    @Nullable
+    protected PreparedStatement prepareSelectIds(Connection connection) throws SQLException {
+        return null;
+    }
+
+    /**
+     * @return every how many refreshes physical deletes should be detected (when
+     * {@link #prepareSelectIds(java.sql.Connection)} is implemented); 10 by default
+     */
+    protected int getDeleteDetectionInterval() {
+        return 10;
+    }
+
+    /**
+     * Bounds of the key ranges the initial {@link #load() load} is split in, so that they can be
+     * loaded concurrently with {@link #prepareRange(java.sql.Connection, Object, Object)}. For
+     * instance, bounds [1000, 2000] split the ids in the ranges below 1000, from 1000 to 2000, and
+     * from 2000. The bounds can be fixed, or e.g. be derived from the lowest and highest id in the
+     * table. By default, this returns an empty list, which means that the initial load is just a
+     * (full) refresh.
+     *
+     * @param connection connection, e.g. to select the lowest and highest id with
+     * @return bounds in ascending order, possibly empty, never null
+     * @throws SQLException when getting the bounds fails
+     */
+    protected List<?> getPartitionBounds(Connection connection) throws SQLException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Prepare the statement that selects all rows with an id in the provided range, for loading
+     * a partition of the initial load. Must be implemented when there are
+     * {@link #getPartitionBounds(java.sql.Connection) partition bounds}.
+     *
+     * @param connection connection to prepare the statement with
+     * @param from       lowest id of the range (inclusive), or null for the first range
+     * @param to         highest id of the range (exclusive), or null for the last range
+     * @return statement; the fetch size will be set by this class
+     * @throws SQLException when preparing fails
+     */
+    protected PreparedStatement prepareRange(Connection connection, @Nullable Object from,
+                                             @Nullable Object to) throws SQLException {
+        throw new UnsupportedOperationException(String.format(
+                "%s has partition bounds, but doesn't implement prepareRange", this));
+    }
+
+    /**
+     * Highest watermark in the backing data store, selected (e.g. with {@code max(version)})
+     * before a partitioned initial {@link #load() load} starts. Once all partitions are loaded,
+     * this becomes the watermark, so that the first refresh picks up exactly the rows that
+     * changed while the partitions were loading. By default, this returns null, which means
+     * that the first refresh after a partitioned load is a full load.
+     *
+     * @param connection connection to select the watermark with
+     * @return highest watermark, or null if it isn't known
+     * @throws SQLException when selecting the watermark fails
+     */
+    @Nullable
+    protected W getHighestWatermark(Connection connection) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Splits the initial load in the key ranges of the
+     * {@link #getPartitionBounds(java.sql.Connection) partition bounds}, when nothing was loaded
+     * yet. The {@link #getHighestWatermark(java.sql.Connection) highest watermark} is selected
+     * before the partitions start, and becomes the watermark once all of them are loaded. When a
+     * partition fails, the watermark isn't set, so that the first refresh does a full load.
+     */
+    @Override
+    protected synchronized List<Callable<RefreshResults>> partitions() {
+        if (watermark != null || !publishedIds.isEmpty()) {
+            return Collections.emptyList(); // loaded before, so refresh from there
+        }
+        List<?> bounds;
+        W highestWatermark;
+        try (Connection connection = dataSource.getConnection()) {
+            bounds = getPartitionBounds(connection);
+            highestWatermark = bounds.isEmpty() ? null : getHighestWatermark(connection);
+        } catch (SQLException e) {
+            String msg = String.format("problem getting the partition bounds of %s: %s", this, e.getMessage());
+            log.error(msg, e);
+            throw new IllegalStateException(msg, e);
+        }
+        if (bounds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        AtomicInteger remaining = new AtomicInteger(bounds.size() + 1);
+        List<Callable<RefreshResults>> partitions = new ArrayList<>(bounds.size() + 1);
+        for (int i = 0; i <= bounds.size(); i++) {
+            Object from = (i > 0) ? bounds.get(i - 1) : null;
+            Object to = (i < bounds.size()) ? bounds.get(i) : null;
+            partitions.add(() -> loadRange(from, to, remaining, highestWatermark));
+        }
+        return partitions;
+    }
+
+    /*
+     * Load the rows with an id in the provided range, as a partition of the initial load. Runs
+     * concurrently with the other partitions; only the published ids are shared, and the last
+     * partition to finish sets the watermark.
+     */
+    private RefreshResults loadRange(@Nullable Object from, @Nullable Object to, AtomicInteger remaining,
+                                     @Nullable W highestWatermark) {
+        RefreshResults.Counter counter = RefreshResults.newCounter();
+        Set<Object> ids = new HashSet<>();
+        List<DataRefreshEvent<O>> batch = new ArrayList<>(batchSize);
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = prepareRange(connection, from, to)) {
+            statement.setFetchSize(fetchSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    if (!isDeleted(resultSet)) {
+                        O object = map(resultSet);
+                        if (ids.add(object.getId())) {
+                            batch = add(batch, new DataCreatedEvent<>(object), counter);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            counter.incSuppressed(publish(batch)); // what we got so far is still good
+            synchronized (this) {
+                publishedIds().addAll(ids);
+            }
+            String msg = String.format("problem loading %s from %s to %s: %s", this, from, to, e.getMessage());
+            log.error(msg, e);
+            throw new IllegalStateException(msg, e);
+        }
+        counter.incSuppressed(publish(batch));
+        synchronized (this) {
+            publishedIds().addAll(ids);
+            if (remaining.decrementAndGet() == 0) {
+                watermark = highestWatermark;
+            }
+        }
+        return counter.asResults();
+    }
+
+    /**
+     * Makes the next refresh a full load, that publishes all rows again, and deletes for the
+     * objects of the dropped events that are gone.
+     */
+    @Override
+    protected void resync(Set<Object> droppedIds) {
+        log.info(String.format("%s does a full load with the next refresh, as listeners dropped %,d objects",
+                this, droppedIds.size()));
+        this.droppedIds.addAll(droppedIds);
+    }
+
+    @Override
+    public synchronized RefreshResults refresh() {
+        RefreshResults.Counter counter = RefreshResults.newCounter();
+        List<Object> resync = new ArrayList<>(droppedIds);
+        droppedIds.removeAll(resync);
+        W since = resync.isEmpty() ? watermark : null;
+        W loadedWatermark = since;
+        boolean fullLoad = (since == null);
+        Set<Object> seen = fullLoad ? new HashSet<>() : null;
+        List<DataRefreshEvent<O>> batch = new ArrayList<>(batchSize);
+        try (Connection connection = dataSource.getConnection()) {
+            try (PreparedStatement statement = prepareChangedSince(connection, since)) {
+                statement.setFetchSize(fetchSize);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        W rowWatermark = watermarkOf(resultSet);
+                        if (rowWatermark != null
+                                && (loadedWatermark == null || rowWatermark.compareTo(loadedWatermark) > 0)) {
+                            loadedWatermark = rowWatermark;
+                        }
+                        DataRefreshEvent<O> evt;
+                        if (isDeleted(resultSet)) {
+                            Object id = idOf(resultSet);
+                            evt = publishedIds.contains(id) && publishedIds().remove(id)
+                                    ? new DataDeletedEvent<O>(id) : null;
+                        } else {
+                            O object = map(resultSet);
+                            if (seen != null) {
+                                seen.add(object.getId());
+                            }
+                            if (!publishedIds.contains(object.getId()) && publishedIds().add(object.getId())) {
+                                evt = new DataCreatedEvent<>(object);
+                            } else if (isUnchanged(object)) {
+                                counter.incUnchanged(); // e.g. loaded again for having the same watermark
+                                evt = null;
+                            } else {
+                                evt = new DataChangedEvent<>(object);
+                            }
+                        }
+                        if (evt != null) {
+                            batch = add(batch, evt, counter);
+                        }
+                    }
+                }
+            }
+            refreshCount++;
+            if (fullLoad) {
+                batch = deleteUnseen(seen, batch, counter);
+                for (Object id : resync) {
+                    if (!seen.contains(id) && !publishedIds.contains(id)) {
+                        // deleted before, but the listeners that dropped the delete don't know
+                        batch = add(batch, new DataDeletedEvent<O>(id), counter);
+                    }
+                }
+            } else if (refreshCount % Math.max(1, getDeleteDetectionInterval()) == 0) {
+                try (PreparedStatement statement = prepareSelectIds(connection)) {
+                    if (statement != null) {
+                        statement.setFetchSize(fetchSize);
+                        Set<Object> ids = new HashSet<>();
+                        try (ResultSet resultSet = statement.executeQuery()) {
+                            while (resultSet.next()) {
+                                ids.add(idOf(resultSet));
+                            }
+                        }
+                        batch = deleteUnseen(ids, batch, counter);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            counter.incSuppressed(publish(batch)); // what we got so far is still good
+            droppedIds.addAll(resync); // try again with the next refresh
+            String msg = String.format("problem refreshing %s from watermark %s: %s",
+                    this, since, e.getMessage());
+            log.error(msg, e);
+            throw new IllegalStateException(msg, e);
+        }
+        counter.incSuppressed(publish(batch));
+        watermark = loadedWatermark;
+        return counter.asResults();
+    }
+
+    /*
+     * Add event to the batch, publishing and starting a new batch if it is full.
+     */
+    private List<DataRefreshEvent<O>> add(List<DataRefreshEvent<O>> batch,
+                                          DataRefreshEvent<O> evt,
+                                          RefreshResults.Counter counter) {
+        batch.add(evt);
+        counter.inc(evt);
+        if (batch.size() >= batchSize) {
+            counter.incSuppressed(publish(batch));
+            return new ArrayList<>(batchSize);
+        }
+        return batch;
+    }
+
+    /*
+     * Publish deletes for the ids that were published before, but that are not in the provided set.
+     */
+    private List<DataRefreshEvent<O>> deleteUnseen(Set<Object> ids,
+                                                   List<DataRefreshEvent<O>> batch,
+                                                   RefreshResults.Counter counter) {
+        List<Object> gone = new ArrayList<>();
+        for (Object id : publishedIds) {
+            if (!ids.contains(id)) {
+                gone.add(id);
+            }
+        }
+        for (Object id : gone) {
+            publishedIds().remove(id);
+            batch = add(batch, new DataDeletedEvent<O>(id), counter);
+        }
+        return batch;
+    }
+
+    /**
+     * @return highest watermark seen so far, or null if nothing was loaded yet
+     */
+    @Nullable
+    public synchronized W getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Forget the watermark so that the next refresh does a full load (which also detects
+     * rows that were physically deleted).
+     */
+    public synchronized void resetWatermark() {
+        watermark = null;
+    }
+
+    /*
+     * The published ids, to change them; copied first if they are shared with a checkpoint, so
+     * that checkpoints (which are taken after every refresh) only cost a copy when a refresh
+     * changes the ids, rather than every time.
+     */
+    private Set<Object> publishedIds() {
+        if (publishedIdsShared) {
+            publishedIds = new HashSet<>(publishedIds);
+            publishedIdsShared = false;
+        }
+        return publishedIds;
+    }
+
+    /**
+     * Gets the watermark and the ids that were published, or null if nothing was loaded yet.
+     * Note that the watermark must be serializable for this.
+     */
+    @Override
+    protected synchronized Serializable getCheckpoint() {
+        if (watermark == null) {
+            return null;
+        }
+        publishedIdsShared = true;
+        return new Checkpoint(watermark, publishedIds);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected synchronized void restoreCheckpoint(Serializable checkpoint) {
+        if (!(checkpoint instanceof Checkpoint)) {
+            throw new IllegalArgumentException(String.format(
+                    "%s is not a checkpoint of a watermark refresher", checkpoint));
+        }
+        Checkpoint restored = (Checkpoint) checkpoint;
+        watermark = (W) restored.watermark;
+        publishedIds = restored.publishedIds;
+        publishedIdsShared = true;
+        refreshCount = -1; // detect deletes that happened in the meantime with the first refresh
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{watermark=" + watermark + '}';
+    }
+}
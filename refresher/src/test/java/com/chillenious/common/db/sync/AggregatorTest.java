@@ -0,0 +1,114 @@
+package com.chillenious.common.db.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class AggregatorTest {
+
+    @Test
+    public void testCountSumMinMax() {
+
+        Aggregator<Bam, String> aggregator = new Aggregator<>(Bam::getName, Bam::getOneToOneFk,
+                EnumSet.of(Aggregator.Function.MIN, Aggregator.Function.MAX));
+
+        aggregator.put(new Bam(1, "foo"));
+        aggregator.put(new Bam(2, "foo"));
+        aggregator.put(new Bam(3, "foo"));
+        aggregator.put(new Bam(4, "bar"));
+
+        Aggregate foo = aggregator.get("foo");
+        Assert.assertEquals(3, foo.getCount());
+        Assert.assertEquals(60, foo.getSum());
+        Assert.assertEquals(Long.valueOf(10), foo.getMin());
+        Assert.assertEquals(Long.valueOf(30), foo.getMax());
+        Assert.assertEquals(20.0, foo.getAverage(), 0.0);
+        Assert.assertEquals(4, aggregator.total().getCount());
+        Assert.assertEquals(100, aggregator.total().getSum());
+        Assert.assertSame(Aggregate.EMPTY, aggregator.get("nope"));
+
+        // change: moves from one group to the other
+        aggregator.put(new Bam(3, "bar"));
+        Assert.assertEquals(2, aggregator.get("foo").getCount());
+        Assert.assertEquals(Long.valueOf(20), aggregator.get("foo").getMax());
+        Assert.assertEquals(70, aggregator.get("bar").getSum());
+        Assert.assertEquals(Long.valueOf(30), aggregator.get("bar").getMin());
+
+        // putting the same object again doesn't count it twice
+        aggregator.put(new Bam(3, "bar"));
+        Assert.assertEquals(2, aggregator.get("bar").getCount());
+        Assert.assertEquals(4, aggregator.total().getCount());
+
+        aggregator.remove(1L);
+        aggregator.remove(2L);
+        aggregator.remove(12345L); // not in there
+        Assert.assertSame(Aggregate.EMPTY, aggregator.get("foo"));
+        Assert.assertEquals(1, aggregator.getAll().size());
+        Assert.assertEquals(70, aggregator.total().getSum());
+        Assert.assertEquals(Long.valueOf(30), aggregator.total().getMin());
+        Assert.assertEquals(Long.valueOf(40), aggregator.total().getMax());
+    }
+
+    @Test
+    public void testApplyBatch() {
+
+        Aggregator<Bam, String> aggregator = new Aggregator<>(Bam::getName, null,
+                EnumSet.noneOf(Aggregator.Function.class), true);
+        Assert.assertEquals(EnumSet.of(Aggregator.Function.COUNT), aggregator.getFunctions());
+
+        aggregator.apply(Arrays.asList(
+                new DataCreatedEvent<>(new Bam(1, "foo")),
+                new DataCreatedEvent<>(new Bam(2, "foo")),
+                new DataCreatedEvent<>(new Bam(3, "bar")),
+                new DataChangedEvent<>(new Bam(2, "bar")),
+                new DataDeletedEvent<>(3L)));
+
+        Assert.assertEquals(1, aggregator.get("foo").getCount());
+        Assert.assertEquals(1, aggregator.get("bar").getCount());
+        Assert.assertNull(aggregator.get("bar").getMin());
+        Assert.assertEquals(2, aggregator.total().getCount());
+    }
+
+    @Test
+    public void testAgainstRecount() {
+
+        Aggregator<Bam, String> aggregator = new Aggregator<>(Bam::getName, Bam::getOneToOneFk,
+                EnumSet.of(Aggregator.Function.MAX), true);
+        Map<Long, Bam> objects = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long id = random.nextInt(500);
+            if (random.nextInt(4) == 0) {
+                objects.remove(id);
+                aggregator.remove(id);
+            } else {
+                Bam bam = new Bam(id, "group" + random.nextInt(7));
+                objects.put(id, bam);
+                aggregator.put(bam);
+            }
+        }
+
+        Map<String, long[]> expected = new HashMap<>(); // count, sum, max
+        for (Bam bam : objects.values()) {
+            long[] agg = expected.computeIfAbsent(bam.getName(), name -> new long[]{0, 0, Long.MIN_VALUE});
+            agg[0]++;
+            agg[1] += bam.getOneToOneFk();
+            agg[2] = Math.max(agg[2], bam.getOneToOneFk());
+        }
+        Map<String, Aggregate> all = aggregator.getAll();
+        Assert.assertEquals(expected.keySet(), all.keySet());
+        for (Map.Entry<String, long[]> e : expected.entrySet()) {
+            Aggregate aggregate = all.get(e.getKey());
+            Assert.assertEquals(e.getValue()[0], aggregate.getCount());
+            Assert.assertEquals(e.getValue()[1], aggregate.getSum());
+            Assert.assertEquals(Long.valueOf(e.getValue()[2]), aggregate.getMax());
+            Assert.assertNull(aggregate.getMin());
+        }
+        Assert.assertEquals(objects.size(), aggregator.total().getCount());
+    }
+}
@@ -0,0 +1,19 @@
+package com.chillenious.common.db.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+class BamCodec implements PersistentObjectCodec<Bam> {
+
+    @Override
+    public void write(Bam object, DataOutput out) throws IOException {
+        out.writeLong((Long) object.getId());
+        out.writeUTF(object.getName());
+    }
+
+    @Override
+    public Bam read(DataInput in) throws IOException {
+        return new Bam(in.readLong(), in.readUTF());
+    }
+}
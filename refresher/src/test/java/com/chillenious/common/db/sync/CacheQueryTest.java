@@ -0,0 +1,111 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.db.jooq.svc.Limit;
+import com.chillenious.common.db.jooq.svc.ListPage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CacheQueryTest {
+
+    private ShutdownHooks shutdownHooks;
+
+    private PersistentObjectCache<Bam> cache;
+
+    @Before
+    public void setup() throws Exception {
+        shutdownHooks = new ShutdownHooks();
+        cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        for (long id = 1; id <= 1000; id++) {
+            // names sort in the reverse order of the ids
+            cache.put(new Bam(id, String.format("%04d-%s", 1000 - id, (id % 100 == 0) ? "rare" : "common")));
+        }
+        cache.addIndex("kind", object -> object.getName().substring(5)).get(1, TimeUnit.SECONDS);
+        cache.addIndex("parity", object -> (Long) object.getId() % 2 == 0, Indexer.Mode.BITMAP)
+                .get(1, TimeUnit.SECONDS);
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName())).get(1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void teardown() {
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testWalkSort() {
+        CacheQuery<Bam> query = cache.query().orderBy("name");
+        Limit limit = Limit.get(3).withTestForMore().startingAt(10);
+        Assert.assertEquals(CacheQuery.Plan.WALK_SORT, query.explain(limit));
+        ListPage<Bam> page = query.list(limit);
+        Assert.assertEquals(ids(990, 989, 988), ids(page));
+        Assert.assertTrue(page.getHasMore());
+        Assert.assertEquals(1000, query.count());
+    }
+
+    @Test
+    public void testIndexSort() {
+        // few candidates, so they're sorted rather than found by walking the sort
+        CacheQuery<Bam> query = cache.query().where(IndexQuery.eq("kind", "rare")).orderBy("name");
+        Limit limit = Limit.get(4).withTestForMore().startingAt(7);
+        Assert.assertEquals(CacheQuery.Plan.INDEX_SORT, query.explain(limit));
+        ListPage<Bam> page = query.list(limit);
+        Assert.assertEquals(ids(300, 200, 100), ids(page));
+        Assert.assertFalse(page.getHasMore());
+        Assert.assertEquals(10, query.count());
+    }
+
+    @Test
+    public void testIndexWalkSort() {
+        // half of the objects are candidates and we only need a few, so walk the sort
+        CacheQuery<Bam> query = cache.query().where(IndexQuery.eq("parity", true)).orderBy("name");
+        Limit limit = Limit.getFirst(3);
+        Assert.assertEquals(CacheQuery.Plan.INDEX_WALK_SORT, query.explain(limit));
+        Assert.assertEquals(ids(1000, 998, 996), ids(query.list(limit)));
+        Assert.assertNull(query.list(limit).getHasMore());
+
+        // deep pages at most walk the whole sort, which is still cheaper than sorting
+        Assert.assertEquals(CacheQuery.Plan.INDEX_WALK_SORT, query.explain(Limit.get(1000).startingAt(400)));
+        Assert.assertEquals(ids(200, 198), ids(query.list(Limit.get(2).startingAt(400))));
+    }
+
+    @Test
+    public void testFilter() {
+        CacheQuery<Bam> query = cache.query()
+                .where(IndexQuery.eq("parity", true))
+                .filter(object -> (Long) object.getId() % 3 == 0)
+                .filter(object -> (Long) object.getId() > 500);
+        Assert.assertEquals(CacheQuery.Plan.INDEX, query.explain(Limit.getDefault()));
+        Assert.assertEquals(83, query.count());
+        Assert.assertEquals(83, query.list(Limit.EVERYTHING).size());
+        for (Bam bam : query.orderBy("name").list(Limit.getFirst(100))) {
+            Assert.assertTrue((Long) bam.getId() % 6 == 0 && (Long) bam.getId() > 500);
+        }
+        Assert.assertEquals(ids(996, 990), ids(query.orderBy("name").list(Limit.getFirst(2))));
+        Assert.assertEquals(500, cache.query().where(IndexQuery.eq("parity", false)).count());
+        Assert.assertEquals(CacheQuery.Plan.SCAN, cache.query().explain(Limit.getDefault()));
+        Assert.assertEquals(1000, cache.query().list(Limit.EVERYTHING).size());
+    }
+
+    private static List<Object> ids(long... ids) {
+        List<Object> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Object> ids(ListPage<Bam> page) {
+        List<Object> list = new ArrayList<>();
+        for (Bam bam : page) {
+            list.add(bam.getId());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,152 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.util.Duration;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DataChangeNotifierTest {
+
+    static class CountingRefresher extends DataRefresher<Bam> {
+
+        final AtomicInteger refreshes = new AtomicInteger();
+
+        CountingRefresher(ShutdownHooks shutdownHooks) {
+            super(shutdownHooks);
+        }
+
+        @Override
+        public RefreshResults refresh() {
+            refreshes.incrementAndGet();
+            return NoopRefresher.NOTHING_REALLY;
+        }
+    }
+
+    private ShutdownHooks shutdownHooks;
+
+    private CountingRefresher refresher;
+
+    private PersistentObjectCache<Bam> cache;
+
+    @Before
+    public void setUp() {
+        shutdownHooks = new ShutdownHooks();
+        refresher = new CountingRefresher(shutdownHooks);
+        cache = new PersistentObjectCache<>(null, shutdownHooks, refresher, null, false, true);
+    }
+
+    @After
+    public void tearDown() {
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testPushChanges() {
+        DataChangeNotifier<Bam> notifier = new DataChangeNotifier<>(shutdownHooks, refresher,
+                ids -> {
+                    Bam[] bams = new Bam[ids.length];
+                    for (int i = 0; i < ids.length; i++) {
+                        long id = (Long) ids[i];
+                        bams[i] = (id < 10) ? new Bam(id, "looked up " + id) : null;
+                    }
+                    return bams;
+                });
+        notifier.changed(new Bam(1L, "bam1"));
+        notifier.changed(Arrays.asList(new Bam(2L, "bam2"), new Bam(11L, "bam11")));
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals("bam2", cache.get(2L).getName());
+
+        notifier.deleted(1L);
+        notifier.invalidate(2L, 11L, 3L);
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertNull(cache.get(1L));
+        Assert.assertEquals("looked up 2", cache.get(2L).getName());
+        Assert.assertNull(cache.get(11L)); // not found, so deleted
+        Assert.assertEquals("looked up 3", cache.get(3L).getName());
+        Assert.assertEquals(1, refresher.refreshes.get()); // just the initial load
+    }
+
+    @Test
+    public void testRequestRefreshOnWrite() throws Exception {
+        DataChangeNotifier<Bam> notifier = new DataChangeNotifier<>(shutdownHooks, refresher, null);
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:notifier");
+        try (Connection connection = dataSource.getConnection()) {
+            DSLContext db = DSL.using(new DefaultConfiguration()
+                    .set(connection)
+                    .set(SQLDialect.H2)
+                    .set(new DefaultExecuteListenerProvider(
+                            new DataChangeExecuteListener(notifier, DSL.tableByName("bam")))));
+            db.execute("create table bam (id bigint primary key, name varchar(32))");
+            db.execute("create table bambam (id bigint primary key)");
+            db.execute("insert into bambam values (1)"); // other table
+            db.fetch("select * from bam"); // not a write
+            Thread.sleep(100);
+            Assert.assertEquals(1, refresher.refreshes.get());
+
+            db.insertInto(DSL.table("bam"), DSL.field("id"), DSL.field("name")).values(1L, "bam1").execute();
+            for (int i = 0; i < 50 && refresher.refreshes.get() < 2; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(2, refresher.refreshes.get());
+        }
+    }
+
+    @Test
+    public void testPublishAfterCommit() throws SQLException {
+        DataChangeNotifier<Bam> notifier = new DataChangeNotifier<>(shutdownHooks, refresher, null);
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:notifier_tx");
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+
+        TransactionStatus transaction = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        notifier.changed(new Bam(1L, "bam1"));
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertNull(cache.get(1L)); // not committed yet
+        transactionManager.commit(transaction);
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals("bam1", cache.get(1L).getName());
+
+        transaction = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        notifier.changed(new Bam(2L, "bam2"));
+        transactionManager.rollback(transaction);
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertNull(cache.get(2L));
+    }
+
+    @Test
+    public void testFailedInvalidateRequestsRefresh() throws Exception {
+        DataChangeNotifier<Bam> notifier = new DataChangeNotifier<>(shutdownHooks, refresher,
+                ids -> {
+                    throw new IllegalStateException("lookup is down");
+                });
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:notifier_invalidate");
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+
+        TransactionStatus transaction = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        notifier.invalidate(1L);
+        transactionManager.commit(transaction); // used to fail with the exception of the lookup
+        for (int i = 0; i < 50 && refresher.refreshes.get() < 2; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(2, refresher.refreshes.get());
+    }
+}
@@ -0,0 +1,64 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory footprint of caches with a sort and an index, with boxed ids
+ * ({@link HeapCacheStorage}) versus long ids ({@link LongHeapCacheStorage}). This is not a
+ * JMH benchmark, as JMH measures time rather than retained memory; run it with the
+ * {@code footprint} Gradle task, optionally passing the number of entries (10M by default):
+ * <pre>
+ *     gradle :refresher:footprint -Pentries=1000000
+ * </pre>
+ * Make sure the heap is large enough to hold the biggest variant.
+ */
+public class IdMapFootprintBenchmark {
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static <O extends PersistentObject> long measure(
+            String description, int entries, CacheStorage<O> storage,
+            ObjectFactory<O> factory) throws Exception {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        long before = usedMemory();
+        PersistentObjectCache<O> cache = new PersistentObjectCache<>(
+                description, shutdownHooks, null, null, storage, false, null);
+        for (int i = 0; i < entries; i++) {
+            storage.put(factory.create(i));
+        }
+        cache.addSort("id", (object, isNew) -> SortKey.forObject(object).create((Long) object.getId()))
+                .get(10, TimeUnit.MINUTES);
+        cache.addIndex("bucket", object -> ((Long) object.getId()) % 1000).get(10, TimeUnit.MINUTES);
+        long used = usedMemory() - before;
+        System.out.println(String.format("%-40s %,15d bytes (%,6.1f bytes per entry)",
+                description, used, (double) used / entries));
+        shutdownHooks.runShutdownHooks();
+        return used;
+    }
+
+    @FunctionalInterface
+    interface ObjectFactory<O> {
+        O create(long id);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+        System.out.println(String.format("footprint of cache with a sort and an index, %,d entries", entries));
+        long boxed = measure("boxed ids (HeapCacheStorage)", entries,
+                new HeapCacheStorage<Bam>(false), id -> new Bam(id, null));
+        long primitive = measure("long ids (LongHeapCacheStorage)", entries,
+                new LongHeapCacheStorage<LongBam>(false, entries), id -> new LongBam(id, null));
+        System.out.println(String.format("saved %,d bytes (%,.1f bytes per entry)",
+                boxed - primitive, (double) (boxed - primitive) / entries));
+    }
+}
@@ -3,6 +3,11 @@ package com.chillenious.common.db.sync;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 public class IndexerTest {
@@ -41,4 +46,182 @@ public class IndexerTest {
         Assert.assertTrue(barSet.contains(fifth));
         Assert.assertFalse(barSet.contains(first));
     }
+
+    @Test
+    public void testApplyBatch() {
+
+        Indexer<Bam, String> indexer = new Indexer<>(Bam::getName);
+
+        Bam first = new Bam(1, "foo");
+        Bam second = new Bam(2, "foo");
+        Bam third = new Bam(300, "bar");
+        Bam secondRenamed = new Bam(2, "bar");
+
+        indexer.apply(Arrays.asList(
+                new DataCreatedEvent<>(first),
+                new DataCreatedEvent<>(second),
+                new DataCreatedEvent<>(third),
+                new DataChangedEvent<>(secondRenamed),
+                new DataDeletedEvent<>(300)));
+
+        Set<Bam> fooSet = indexer.get("foo");
+        Assert.assertEquals(1, fooSet.size());
+        Assert.assertTrue(fooSet.contains(first));
+
+        Set<Bam> barSet = indexer.get("bar");
+        Assert.assertEquals(1, barSet.size());
+        Assert.assertTrue(barSet.contains(secondRenamed));
+    }
+
+    @Test
+    public void testMultiValued() {
+
+        // index on the letters of the name
+        Indexer<Bam, Character> indexer = new Indexer<>((MultiIndexKeyFactory<Bam, Character>) object -> {
+            List<Character> letters = new ArrayList<>();
+            for (char c : object.getName().toCharArray()) {
+                letters.add(c);
+            }
+            return letters;
+        }, null, false);
+        Assert.assertTrue(indexer.isMultiValued());
+
+        Bam first = new Bam(1, "abb");
+        Bam second = new Bam(2, "bc");
+        indexer.put(first);
+        indexer.put(second);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(first)), indexer.get('a'));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(first, second)), indexer.get('b'));
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(1L, 2L)), indexer.ids(Arrays.asList('a', 'c')));
+
+        Bam firstRenamed = new Bam(1, "c");
+        indexer.apply(Arrays.asList(
+                new DataChangedEvent<>(firstRenamed),
+                new DataDeletedEvent<>(2L)));
+        Assert.assertTrue(indexer.get('a').isEmpty());
+        Assert.assertTrue(indexer.get('b').isEmpty());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(firstRenamed)), indexer.get('c'));
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(1L)), indexer.ids(Arrays.asList('c')));
+    }
+
+    @Test
+    public void testComposite() {
+
+        Indexer<Bam, CompositeKey> indexer = new Indexer<>(
+                CompositeKey.<Bam>factory(Bam::getName, object -> object.getOneToOneFk() > 20));
+
+        Bam first = new Bam(1, "foo");
+        Bam second = new Bam(2, "foo");
+        Bam third = new Bam(3, "foo");
+        indexer.put(first);
+        indexer.put(second);
+        indexer.put(third);
+        indexer.put(new Bam(4, null)); // not indexed
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(first, second)), indexer.get(CompositeKey.of("foo", false)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(third)), indexer.get(CompositeKey.of("foo", true)));
+        Assert.assertTrue(indexer.get(CompositeKey.of("foo")).isEmpty());
+        Assert.assertTrue(CompositeKey.of("a", 2).compareTo(CompositeKey.of("a", 10)) < 0);
+        Assert.assertTrue(CompositeKey.of("b", 2).compareTo(CompositeKey.of("a", 10)) > 0);
+    }
+
+    @Test
+    public void testIdSetAgainstHashSet() {
+
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int bound = 1 + random.nextInt(1000);
+            Set<Object> a = randomIds(random, random.nextInt(500), bound);
+            Set<Object> b = randomIds(random, random.nextInt(round % 10 == 0 ? 5 : 500), bound);
+            IdSet x = IdSet.of(a), y = IdSet.of(b);
+
+            Set<Object> and = new HashSet<>(a);
+            and.retainAll(b);
+            Set<Object> or = new HashSet<>(a);
+            or.addAll(b);
+            Assert.assertEquals(and, x.and(y));
+            Assert.assertEquals(and, y.and(x));
+            Assert.assertEquals(or, x.or(y));
+            Assert.assertEquals(or, y.or(x));
+
+            // ids that aren't longs
+            Set<Object> strings = new HashSet<>();
+            for (Object id : a) {
+                strings.add(id.toString());
+            }
+            Assert.assertEquals(strings, IdSet.of(strings));
+            Assert.assertTrue(IdSet.of(strings).and(y).isEmpty());
+            Assert.assertEquals(strings.size() + b.size(), IdSet.of(strings).or(y).size());
+        }
+    }
+
+    private static Set<Object> randomIds(Random random, int size, int bound) {
+        Set<Object> ids = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            ids.add((long) random.nextInt(bound));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testSorted() {
+
+        Indexer<Bam, Long> indexer = new Indexer<>(
+                Bam::getOneToOneFk, Indexer.Mode.SORTED, null, false, null);
+        for (long id = 1; id <= 10; id++) {
+            indexer.put(new Bam(id, "bam" + id));
+        }
+        indexer.put(new Bam(11, "dup")); // fk 110
+
+        Assert.assertEquals(3, indexer.range(30L, true, 50L, true).size());
+        Assert.assertEquals(1, indexer.range(30L, false, 50L, false).size());
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(9L, 10L, 11L)),
+                indexer.rangeIds(85L, true, null, false));
+        Assert.assertEquals(2, indexer.count(null, false, 25L, false));
+        Assert.assertEquals(Long.valueOf(20L), indexer.floorKey(25L));
+        Assert.assertEquals(Long.valueOf(30L), indexer.ceilingKey(25L));
+        Assert.assertEquals(Long.valueOf(30L), indexer.ceilingKey(30L));
+        Assert.assertNull(indexer.floorKey(5L));
+        Assert.assertNull(indexer.ceilingKey(111L));
+
+        indexer.remove(3L);
+        indexer.remove(4L);
+        Assert.assertEquals(1, indexer.range(30L, true, 50L, true).size());
+        Assert.assertEquals(Long.valueOf(50L), indexer.ceilingKey(25L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRangeOnUnsortedIndex() {
+        Indexer<Bam, String> indexer = new Indexer<>(Bam::getName);
+        indexer.range("a", true, "b", true);
+    }
+
+    @Test
+    public void testSortedMultiIndexCountsObjectsOnce() {
+        Indexer<Bam, Long> indexer = new Indexer<>(
+                (MultiIndexKeyFactory<Bam, Long>) object -> Arrays.asList(object.getOneToOneFk(), object.getOneToOneFk() + 1),
+                Indexer.Mode.SORTED, null, false, null);
+        for (long id = 1; id <= 10; id++) {
+            indexer.put(new Bam(id, "bam" + id));
+        }
+        // all objects have two keys in this range
+        Assert.assertEquals(10, indexer.count(1L, true, 101L, true));
+        Assert.assertEquals(10, indexer.rangeIds(1L, true, 101L, true).size());
+        Assert.assertEquals(10, indexer.range(1L, true, 101L, true).size());
+    }
+
+    @Test
+    public void testSortedMultiIndexRejectsKeysThatArentComparable() {
+        Indexer<Bam, Object> indexer = new Indexer<>(
+                (MultiIndexKeyFactory<Bam, Object>) object -> Arrays.asList(object.getId(), new Object()),
+                Indexer.Mode.SORTED, null, false, null);
+        try {
+            indexer.put(new Bam(1, "bam1"));
+            Assert.fail("expected keys that aren't comparable to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(0, indexer.count(null, false, null, false)); // nothing was indexed
+    }
 }
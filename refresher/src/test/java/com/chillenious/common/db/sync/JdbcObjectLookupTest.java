@@ -0,0 +1,107 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class JdbcObjectLookupTest {
+
+    private JdbcDataSource dataSource;
+
+    private Connection keepAlive; // in-memory database lives as long as a connection is open
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:lookup");
+        keepAlive = dataSource.getConnection();
+        execute("create table bam (id bigint primary key, name varchar(32))");
+        for (long id = 1; id <= 10; id++) {
+            execute(String.format("insert into bam values (%d, 'bam%d')", id, id));
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        execute("drop table bam");
+        keepAlive.close();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    static class BamLookup extends JdbcObjectLookup<Bam> {
+
+        final List<Integer> queries = new ArrayList<>(); // number of ids per query
+
+        BamLookup(JdbcDataSource dataSource) {
+            super(dataSource, Bam.class, 3);
+        }
+
+        @Override
+        protected PreparedStatement prepareSelect(Connection connection, List<Object> ids)
+                throws SQLException {
+            queries.add(ids.size());
+            PreparedStatement statement = connection.prepareStatement(
+                    "select * from bam where id in (" + placeholders(ids.size()) + ")");
+            setIds(statement, ids, 1);
+            return statement;
+        }
+
+        @Override
+        protected Bam map(ResultSet resultSet) throws SQLException {
+            return new Bam(resultSet.getLong("id"), resultSet.getString("name"));
+        }
+    }
+
+    @Test
+    public void testLookup() {
+        BamLookup lookup = new BamLookup(dataSource);
+        Bam[] bams = lookup.lookup(2L, 42L, 1L); // typed array
+        Assert.assertEquals(3, bams.length);
+        Assert.assertEquals("bam2", bams[0].getName());
+        Assert.assertNull(bams[1]);
+        Assert.assertEquals("bam1", bams[2].getName());
+        Assert.assertEquals(Arrays.asList(3), lookup.queries);
+
+        lookup.queries.clear();
+        Map<Object, Bam> found = lookup.lookupAll(Arrays.asList(7L, 5L, 5L, 9L, 11L, 1L, 3L, 2L));
+        Assert.assertEquals(Arrays.asList(7L, 5L, 9L, 1L, 3L, 2L), new ArrayList<>(found.keySet()));
+        Assert.assertEquals(Arrays.asList(3, 3, 1), lookup.queries); // 7 distinct ids, 3 per query
+    }
+
+    @Test
+    public void testReadThrough() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        cache.addIndex("name", Bam::getName);
+        cache.put(new Bam(1L, "bam1"));
+        BamLookup lookup = new BamLookup(dataSource);
+        cache.setLoader(lookup);
+        Map<Object, Bam> found = cache.lookupAll(Arrays.asList(1L, 2L, 3L, 42L));
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<>(found.keySet()));
+        Assert.assertEquals(Arrays.asList(3), lookup.queries); // only the ones that weren't cached
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(1, cache.getIndexed("name", "bam3").size());
+        Bam[] bams = cache.lookup(Bam.class, 3L, 4L);
+        Assert.assertEquals("bam4", bams[1].getName());
+        Assert.assertEquals(Arrays.asList(3, 1), lookup.queries);
+        shutdownHooks.runShutdownHooks();
+    }
+}
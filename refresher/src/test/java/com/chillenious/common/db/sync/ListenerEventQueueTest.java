@@ -0,0 +1,334 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ListenerEventQueueTest {
+
+    @Test
+    public void testDropAndMarkStale() throws InterruptedException {
+        ListenerEventQueue<Bam> queue = new ListenerEventQueue<>(ListenerQueueSettings.bounded(
+                2, ListenerQueueSettings.OverflowPolicy.DROP_AND_MARK_STALE));
+
+        queue.put(new DataCreatedEvent<>(new Bam(1, "first")));
+        queue.put(new DataCreatedEvent<>(new Bam(2, "second")));
+        queue.put(new DataCreatedEvent<>(new Bam(3, "third")));
+        queue.put(new DataCheckpointEvent<>("checkpoint")); // internal events are never dropped
+
+        ListenerQueueStats stats = queue.stats("test");
+        Assert.assertEquals(3, stats.getDepth());
+        Assert.assertEquals(1, stats.getNumberDropped());
+        Assert.assertTrue(stats.isStale());
+
+        Assert.assertEquals(1L, process(queue).getId());
+        Assert.assertEquals(2L, process(queue).getId());
+        Assert.assertTrue(process(queue) instanceof DataCheckpointEvent);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(queue.sequence(), queue.processedSequence());
+
+        Assert.assertEquals(1, queue.takeNumberDropped());
+        Assert.assertEquals(0, queue.takeNumberDropped());
+        Assert.assertEquals(Collections.singleton(3L), queue.takeDroppedIds());
+        Assert.assertTrue(queue.takeDroppedIds().isEmpty());
+        Assert.assertFalse(queue.stats("test").isStale());
+        Assert.assertEquals(3, queue.stats("test").getNumberProcessed());
+    }
+
+    @Test
+    public void testCoalesceOnOverflow() throws InterruptedException {
+        ListenerEventQueue<Bam> queue = new ListenerEventQueue<>(ListenerQueueSettings.bounded(
+                2, ListenerQueueSettings.OverflowPolicy.COALESCE));
+
+        queue.put(new DataCreatedEvent<>(new Bam(1, "first")));
+        queue.put(new DataCreatedEvent<>(new Bam(2, "second")));
+        queue.put(new DataChangedEvent<>(new Bam(1, "first, changed")));
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, queue.stats("test").getNumberCoalesced());
+
+        DataRefreshEvent<Bam> evt = process(queue);
+        Assert.assertTrue(evt instanceof DataCreatedEvent);
+        Assert.assertEquals("first, changed", ((DataCreatedEvent<Bam>) evt).getObject().getName());
+        Assert.assertEquals(2L, process(queue).getId());
+    }
+
+    @Test
+    public void testCoalesceBatchesOnOverflow() throws InterruptedException {
+        ListenerEventQueue<Bam> queue = new ListenerEventQueue<>(ListenerQueueSettings.bounded(
+                1, ListenerQueueSettings.OverflowPolicy.COALESCE));
+
+        queue.put(new DataBatchEvent<>(Arrays.asList(
+                new DataCreatedEvent<>(new Bam(1, "first")),
+                new DataCreatedEvent<>(new Bam(2, "second")))));
+        queue.put(new DataBatchEvent<>(Arrays.asList(new DataChangedEvent<>(new Bam(1, "first, changed")))));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, queue.stats("test").getNumberCoalesced());
+
+        // what can't be merged waits for room
+        CountDownLatch published = new CountDownLatch(1);
+        Thread publisher = new Thread(() -> {
+            try {
+                queue.put(new DataBatchEvent<>(Arrays.asList(
+                        new DataChangedEvent<>(new Bam(2, "second, changed")),
+                        new DataCreatedEvent<>(new Bam(3, "third")))));
+                published.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        publisher.start();
+        Assert.assertFalse(published.await(100, TimeUnit.MILLISECONDS));
+
+        List<DataRefreshEvent<Bam>> batch = ((DataBatchEvent<Bam>) queue.poll()).getEvents();
+        queue.markProcessed();
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals("first, changed", ((DataCreatedEvent<Bam>) batch.get(0)).getObject().getName());
+        Assert.assertEquals("second, changed", ((DataCreatedEvent<Bam>) batch.get(1)).getObject().getName());
+        Assert.assertTrue(published.await(1, TimeUnit.SECONDS));
+        batch = ((DataBatchEvent<Bam>) queue.poll()).getEvents();
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(3L, batch.get(0).getId());
+        Assert.assertEquals(2, queue.stats("test").getNumberCoalesced());
+    }
+
+    @Test
+    public void testBlockUntilThereIsRoom() throws InterruptedException {
+        ListenerEventQueue<Bam> queue = new ListenerEventQueue<>(ListenerQueueSettings.bounded(
+                1, ListenerQueueSettings.OverflowPolicy.BLOCK));
+
+        queue.put(new DataCreatedEvent<>(new Bam(1, "first")));
+        CountDownLatch published = new CountDownLatch(1);
+        Thread publisher = new Thread(() -> {
+            try {
+                queue.put(new DataCreatedEvent<>(new Bam(2, "second")));
+                published.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        publisher.start();
+
+        Assert.assertFalse(published.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1L, queue.poll().getId());
+        Assert.assertEquals(0, queue.processedSequence()); // polled, but not processed yet
+        queue.markProcessed();
+        Assert.assertTrue(published.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, queue.processedSequence());
+        Assert.assertEquals(2L, process(queue).getId());
+        Assert.assertEquals(2, queue.processedSequence());
+    }
+
+    @Test
+    public void testCoalescing() throws InterruptedException {
+        ListenerEventQueue<Bam> queue = new ListenerEventQueue<>(
+                ListenerQueueSettings.unbounded().withCoalescing());
+
+        queue.put(new DataChangedEvent<>(new Bam(1, "v1")));
+        queue.put(new DataCreatedEvent<>(new Bam(2, "new")));
+        queue.put(new DataChangedEvent<>(new Bam(1, "v2")));
+        queue.put(new DataDeletedEvent<>(2)); // cancels out the create
+        queue.put(new DataDeletedEvent<>(3));
+        queue.put(new DataCreatedEvent<>(new Bam(3, "back")));
+        queue.put(new DataChangedEvent<>(new Bam(1, "v3")));
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(4, queue.stats("test").getNumberCoalesced());
+
+        DataRefreshEvent<Bam> evt = process(queue);
+        Assert.assertTrue(evt instanceof DataChangedEvent);
+        Assert.assertEquals("v3", ((DataChangedEvent<Bam>) evt).getObject().getName());
+
+        evt = process(queue);
+        Assert.assertTrue(evt instanceof DataChangedEvent);
+        Assert.assertEquals("back", ((DataChangedEvent<Bam>) evt).getObject().getName());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testCoalescingAcrossBatches() throws InterruptedException {
+        ListenerEventQueue<Bam> queue = new ListenerEventQueue<>(
+                ListenerQueueSettings.unbounded().withCoalescing());
+
+        queue.put(new DataChangedEvent<>(new Bam(1, "v1")));
+        queue.put(new DataBatchEvent<>(Arrays.asList(new DataChangedEvent<>(new Bam(1, "v2")))));
+        queue.put(new DataBatchEvent<>(Arrays.asList(
+                new DataCreatedEvent<>(new Bam(2, "new")),
+                new DataCreatedEvent<>(new Bam(3, "new")))));
+        queue.put(new DataBatchEvent<>(Arrays.asList(
+                new DataChangedEvent<>(new Bam(1, "v3")),
+                new DataDeletedEvent<Bam>(2L), // cancels out the create
+                new DataChangedEvent<>(new Bam(3, "changed")),
+                new DataCreatedEvent<>(new Bam(4, "new")))));
+        queue.put(new DataChangedEvent<>(new Bam(4, "changed")));
+
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(5, queue.stats("test").getNumberCoalesced());
+
+        // objects keep the position of their first event
+        Assert.assertEquals("v3", ((DataChangedEvent<Bam>) queue.poll()).getObject().getName());
+        List<DataRefreshEvent<Bam>> batch = ((DataBatchEvent<Bam>) queue.poll()).getEvents();
+        Assert.assertEquals(1, batch.size());
+        Assert.assertTrue(batch.get(0) instanceof DataCreatedEvent);
+        Assert.assertEquals("changed", ((DataCreatedEvent<Bam>) batch.get(0)).getObject().getName());
+        batch = ((DataBatchEvent<Bam>) queue.poll()).getEvents();
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals("changed", ((DataCreatedEvent<Bam>) batch.get(0)).getObject().getName());
+        Assert.assertNull(queue.poll());
+        queue.markProcessed();
+        Assert.assertEquals(queue.sequence(), queue.processedSequence());
+
+        // nothing is merged into batches that were taken off the queue
+        queue.put(new DataBatchEvent<>(Arrays.asList(new DataChangedEvent<>(new Bam(1, "v4")))));
+        Assert.assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testCoalescingRefreshes() throws Exception {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        DataRefresher<Bam> refresher = new DataRefresher<Bam>(shutdownHooks) {
+            @Override
+            public RefreshResults refresh() {
+                return null;
+            }
+        };
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> seen = new CopyOnWriteArrayList<>();
+        refresher.addListener(new DataRefreshListener<Bam>() {
+            @Override
+            protected void onEvent(DataRefreshEvent<Bam> evt) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                seen.add(evt.getId() + "=" + DataRefreshEvent.objectOf(evt).getName());
+            }
+        }, ListenerQueueSettings.unbounded().withCoalescing());
+
+        // a hot row that changes in every poll, while the listener is busy
+        refresher.publish(Arrays.asList(new DataCreatedEvent<>(new Bam(0, "busy"))));
+        for (int poll = 1; poll <= 5; poll++) {
+            refresher.publish(Arrays.asList(
+                    new DataChangedEvent<>(new Bam(1, "hot " + poll)),
+                    new DataCreatedEvent<>(new Bam(100 + poll, "cold"))));
+        }
+        gate.countDown();
+        refresher.whenListenersDone().get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Arrays.asList("0=busy", "1=hot 5", "101=cold", "102=cold", "103=cold",
+                "104=cold", "105=cold"), seen);
+        Assert.assertEquals(4, refresher.getListenerQueueStats().get(0).getNumberCoalesced());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testListenersShareThreadsAndKeepOrder() throws InterruptedException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        DataRefreshTopic<Bam> topic = new DataRefreshTopic<>(shutdownHooks, ListenerQueueSettings.bounded(
+                4, ListenerQueueSettings.OverflowPolicy.BLOCK), executor);
+        int numberOfListeners = 50, numberOfEvents = 500;
+        CountDownLatch done = new CountDownLatch(numberOfListeners);
+        AtomicInteger outOfOrder = new AtomicInteger();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < numberOfListeners; i++) {
+            topic.addListener(new DataRefreshListener<Bam>() {
+
+                long last = 0;
+
+                @Override
+                protected void onEvent(DataRefreshEvent<Bam> evt) {
+                    threads.add(Thread.currentThread());
+                    long id = (Long) evt.getId();
+                    if (id != last + 1) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    last = id;
+                    if (id == numberOfEvents) {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        for (long id = 1; id <= numberOfEvents; id++) {
+            topic.publish(new DataCreatedEvent<>(new Bam(id, "bam " + id)));
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, outOfOrder.get());
+        Assert.assertTrue(threads.size() <= 2);
+        shutdownHooks.runShutdownHooks();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWhenProcessed() throws Exception {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        DataRefreshTopic<Bam> topic = new DataRefreshTopic<>(shutdownHooks,
+                ListenerQueueSettings.unbounded().withCoalescing());
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger processed = new AtomicInteger(), flushed = new AtomicInteger();
+        topic.addListener(new DataRefreshListener<Bam>() {
+
+            @Override
+            protected void onEvent(DataRefreshEvent<Bam> evt) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.incrementAndGet();
+            }
+
+            @Override
+            void flush() {
+                flushed.set(processed.get());
+            }
+        });
+        Assert.assertTrue(topic.whenProcessed().isDone()); // nothing published yet
+
+        topic.publish(new DataCreatedEvent<>(new Bam(1, "first")));
+        CompletableFuture<Void> first = topic.whenProcessed();
+        topic.publish(new DataCreatedEvent<>(new Bam(2, "second")));
+        CompletableFuture<Void> second = topic.whenProcessed(), alsoSecond = topic.whenProcessed();
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+
+        gate.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        alsoSecond.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, processed.get());
+        Assert.assertEquals(2, flushed.get()); // flushed before the futures completed
+
+        // events that cancel each other out are done right away
+        topic.publish(new DataCreatedEvent<>(new Bam(3, "third")));
+        topic.publish(new DataDeletedEvent<Bam>(3L));
+        topic.whenProcessed().get(5, TimeUnit.SECONDS);
+
+        shutdownHooks.runShutdownHooks();
+    }
+
+    /*
+     * Poll the next event and mark it processed, like the topic does when it delivers events.
+     */
+    private static DataRefreshEvent<Bam> process(ListenerEventQueue<Bam> queue) {
+        DataRefreshEvent<Bam> evt = queue.poll();
+        Assert.assertNotNull(evt);
+        queue.markProcessed();
+        return evt;
+    }
+}
@@ -0,0 +1,35 @@
+package com.chillenious.common.db.sync;
+
+class LongBam implements LongPersistentObject {
+
+    final long id;
+
+    final String name;
+
+    LongBam(long id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public long getLongId() {
+        return id;
+    }
+
+    @Override
+    public Object getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return "LongBam{" +
+                "id=" + id +
+                ", name='" + name + '\'' +
+                '}';
+    }
+}
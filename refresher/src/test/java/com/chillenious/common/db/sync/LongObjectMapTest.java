@@ -0,0 +1,57 @@
+package com.chillenious.common.db.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class LongObjectMapTest {
+
+    @Test
+    public void testBasics() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Assert.assertNull(map.put(1L, "one"));
+        Assert.assertNull(map.put(0L, "zero"));
+        Assert.assertNull(map.put(-1L, "minus one"));
+        Assert.assertEquals("one", map.put(1L, "uno"));
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("uno", map.get(1L));
+        Assert.assertEquals("zero", map.get(0L));
+        Assert.assertTrue(map.containsKey(-1L));
+        Assert.assertFalse(map.containsKey(2L));
+
+        Assert.assertEquals("zero", map.remove(0L));
+        Assert.assertNull(map.remove(0L));
+        Assert.assertFalse(map.containsKey(0L));
+        Assert.assertEquals(2, map.size());
+
+        LongObjectMap<String> copy = map.copy();
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals("uno", copy.get(1L));
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(42);
+        LongObjectMap<Long> map = new LongObjectMap<>(4);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(5000); // lots of collisions, removals and re-adds
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Assert.assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 5000; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        Map<Long, Long> visited = new HashMap<>();
+        map.forEach(visited::put);
+        Assert.assertEquals(expected, visited);
+    }
+}
@@ -0,0 +1,117 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+public class OffHeapCacheStorageTest {
+
+    @Test
+    public void testPutGetRemove() {
+        OffHeapCacheStorage<Bam> storage = new OffHeapCacheStorage<>(new BamCodec());
+        storage.put(new Bam(1, "one"));
+        storage.put(new Bam(2, "two"));
+        Assert.assertEquals(2, storage.size());
+        Assert.assertEquals("one", storage.get(1L).getName());
+        Assert.assertNotSame(storage.get(1L), storage.get(1L)); // decoded every time
+
+        storage.put(new Bam(1, "uno"));
+        Assert.assertEquals("uno", storage.get(1L).getName());
+        storage.remove(2L);
+        Assert.assertNull(storage.get(2L));
+        Assert.assertEquals(1, storage.size());
+        Assert.assertEquals(1, storage.values().size());
+        Assert.assertEquals("uno", storage.values().iterator().next().getName());
+        Assert.assertEquals("uno", storage.asMap().get(1L).getName());
+    }
+
+    @Test
+    public void testSegmentsAreCompactedAndReused() {
+        OffHeapCacheStorage<Bam> storage = new OffHeapCacheStorage<>(new BamCodec(), 1024, 0, null);
+        for (int round = 0; round < 50; round++) {
+            for (long id = 0; id < 20; id++) {
+                storage.put(new Bam(id, "bam " + id + " round " + round));
+            }
+        }
+        Assert.assertEquals(20, storage.size());
+        for (long id = 0; id < 20; id++) {
+            Assert.assertEquals("bam " + id + " round 49", storage.get(id).getName());
+        }
+        // way less than what was written in total
+        Assert.assertTrue(storage.getAllocatedBytes() <= 4 * 1024);
+
+        storage.clear();
+        Assert.assertEquals(0, storage.size());
+        Assert.assertEquals(0, storage.getUsedBytes());
+    }
+
+    @Test
+    public void testCompactionMovesObjectsThatDontChange() {
+        OffHeapCacheStorage<Bam> storage = new OffHeapCacheStorage<>(new BamCodec(), 1024, 0, null);
+        for (int round = 0; round < 50; round++) {
+            // objects that are written once share segments with ones that keep changing
+            storage.put(new Bam(1000 + round, "static " + round));
+            for (long id = 0; id < 5; id++) {
+                storage.put(new Bam(id, "bam " + id + " round " + round));
+            }
+        }
+        Assert.assertEquals(55, storage.size());
+        for (int round = 0; round < 50; round++) {
+            Assert.assertEquals("static " + round, storage.get(1000L + round).getName());
+        }
+        for (long id = 0; id < 5; id++) {
+            Assert.assertEquals("bam " + id + " round 49", storage.get(id).getName());
+        }
+        Assert.assertTrue(storage.getUsedBytes() < storage.getAllocatedBytes());
+
+        for (int round = 0; round < 50; round++) {
+            storage.remove(1000L + round);
+        }
+        for (long id = 0; id < 5; id++) {
+            Assert.assertEquals("bam " + id + " round 49", storage.get(id).getName());
+        }
+    }
+
+    @Test
+    public void testHotSet() {
+        OffHeapCacheStorage<Bam> storage = new OffHeapCacheStorage<>(new BamCodec(), 1024, 10, null);
+        storage.put(new Bam(1, "one"));
+        Bam one = storage.get(1L);
+        Assert.assertSame(one, storage.get(1L));
+        Assert.assertEquals(1, storage.stats().hitCount());
+
+        storage.put(new Bam(1, "uno")); // writes invalidate the hot set
+        Assert.assertEquals("uno", storage.get(1L).getName());
+    }
+
+    @Test
+    public void testSortsAndIndexesHoldIds() throws Exception {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, null, null,
+                new OffHeapCacheStorage<>(new BamCodec()), false, null);
+        cache.put(new Bam(1, "c"));
+        cache.put(new Bam(2, "a"));
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName())).get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        cache.put(new Bam(3, "b"));
+        cache.put(new Bam(1, "d"));
+
+        Iterator<Bam> i = cache.values("name").iterator();
+        Assert.assertEquals("a", i.next().getName());
+        Assert.assertEquals("b", i.next().getName());
+        Assert.assertEquals("d", i.next().getName());
+        Assert.assertFalse(i.hasNext());
+        Assert.assertEquals(3L, cache.getIndexedSingle("name", "b").getId());
+        Assert.assertTrue(cache.getIndexed("name", "c").isEmpty());
+
+        cache.remove(3L);
+        Assert.assertEquals(2, cache.values("name").size());
+        Assert.assertNull(cache.getIndexedSingle("name", "b"));
+
+        shutdownHooks.runShutdownHooks();
+    }
+}
@@ -1,12 +1,23 @@
 package com.chillenious.common.db.sync;
 
 import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.util.Duration;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -144,4 +155,531 @@ public class PersistentObjectCacheTest {
 
         shutdownHooks.runShutdownHooks();
     }
+
+    @Test
+    public void testBatchRefresh()
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        List<List<DataRefreshEvent<Bam>>> batches = new ArrayList<>();
+        DataRefresher<Bam> refresher = new DataRefresher<Bam>(shutdownHooks) {
+            @Override
+            public RefreshResults refresh() {
+                RefreshResults.Counter counter = RefreshResults.newCounter();
+                for (List<DataRefreshEvent<Bam>> batch : batches) {
+                    publish(batch);
+                    counter.inc(new DataBatchEvent<>(batch));
+                }
+                batches.clear();
+                return counter.asResults();
+            }
+        };
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, refresher, null, false, true);
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName())).get(1, TimeUnit.SECONDS);
+        cache.addSort("snapshot", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName()), Sorter.Mode.SNAPSHOT)
+                .get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+
+        batches.add(Arrays.asList(
+                new DataCreatedEvent<>(new Bam(1, "c")),
+                new DataCreatedEvent<>(new Bam(2, "a")),
+                new DataCreatedEvent<>(new Bam(3, "b"))));
+        batches.add(Arrays.asList(
+                new DataChangedEvent<>(new Bam(1, "d")),
+                new DataDeletedEvent<>(3)));
+        RefreshResults results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(5, results.getNumberRecordsFound());
+        Assert.assertEquals(3, results.getNumberCreated());
+        Assert.assertEquals(1, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberDeleted());
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("d", cache.get(1L).getName());
+        Assert.assertNull(cache.get(3L));
+        cache.getSorter("snapshot").publish(); // rather than waiting for the listener's lazy publish
+        for (String sortId : Arrays.asList("name", "snapshot")) {
+            Iterator<Bam> i = cache.values(sortId).iterator();
+            Assert.assertEquals("a", i.next().getName());
+            Assert.assertEquals("d", i.next().getName());
+            Assert.assertFalse(i.hasNext());
+        }
+        Assert.assertTrue(cache.getIndexed("name", "b").isEmpty());
+        Assert.assertEquals(1, cache.getIndexed("name", "d").size());
+
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testPartitionedLoad()
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+        CountDownLatch started = new CountDownLatch(4);
+        DataRefresher<Bam> refresher = new DataRefresher<Bam>(shutdownHooks) {
+            @Override
+            public RefreshResults refresh() {
+                return RefreshResults.newCounter().asResults();
+            }
+
+            @Override
+            protected List<Callable<RefreshResults>> partitions() {
+                List<Callable<RefreshResults>> partitions = new ArrayList<>();
+                for (int p = 0; p < 4; p++) {
+                    final long from = p * 250;
+                    partitions.add(() -> {
+                        threads.add(Thread.currentThread().getName());
+                        started.countDown();
+                        // partitions run concurrently, also when the shared workers are busy
+                        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+                        RefreshResults.Counter counter = RefreshResults.newCounter();
+                        List<DataRefreshEvent<Bam>> batch = new ArrayList<>();
+                        for (long id = from; id < from + 250; id++) {
+                            DataCreatedEvent<Bam> evt = new DataCreatedEvent<>(new Bam(id, "bam" + id));
+                            batch.add(evt);
+                            counter.inc(evt);
+                        }
+                        publish(batch);
+                        return counter.asResults();
+                    });
+                }
+                return partitions;
+            }
+        };
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, refresher, null, false, true);
+        RefreshResults results = cache.getInitialLoadResults();
+        Assert.assertNotNull(results);
+        Assert.assertEquals(1000, results.getNumberCreated());
+        Assert.assertEquals(1000, results.getNumberRecordsFound());
+        Assert.assertEquals(4, threads.size());
+
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals(1000, cache.size());
+        Future<Integer> sorted = cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName()), Sorter.Mode.SNAPSHOT);
+        Future<Integer> indexed = cache.addIndex("name", Bam::getName);
+        Assert.assertEquals(1000, sorted.get(5, TimeUnit.SECONDS).intValue());
+        Assert.assertEquals(1000, indexed.get(5, TimeUnit.SECONDS).intValue());
+        Assert.assertEquals(1000, cache.values("name").size());
+        Assert.assertEquals(1, cache.getIndexed("name", "bam999").size());
+
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testLongIds() throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<LongBam> cache = new PersistentObjectCache<>(null, shutdownHooks, null, null,
+                new LongHeapCacheStorage<LongBam>(true), false, null);
+        cache.put(new LongBam(1, "c"));
+        cache.put(new LongBam(2, "a"));
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName())).get(1, TimeUnit.SECONDS);
+        cache.addSort("snapshot", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName()), Sorter.Mode.SNAPSHOT)
+                .get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", LongBam::getName).get(1, TimeUnit.SECONDS);
+        cache.put(new LongBam(3, "b"));
+        cache.remove(2L);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("c", cache.get(1L).getName());
+        Assert.assertEquals("c", cache.get((Object) 1L).getName());
+        Assert.assertNull(cache.get(2L));
+        cache.getSorter("snapshot").publish(); // rather than waiting for the lazy publish
+        for (String sortId : Arrays.asList("name", "snapshot")) {
+            Iterator<LongBam> i = cache.values(sortId).iterator();
+            Assert.assertEquals("b", i.next().getName());
+            Assert.assertEquals("c", i.next().getName());
+            Assert.assertFalse(i.hasNext());
+            Assert.assertEquals(new HashSet<Object>(Arrays.asList(1L, 3L)), cache.getSorter(sortId).ids());
+        }
+        Assert.assertEquals(3L, cache.getIndexedSingle("name", "b").getId());
+        Assert.assertTrue(cache.getIndexed("name", "a").isEmpty());
+        Assert.assertEquals(2, cache.stats().hitCount());
+
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testIndexQuery() throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        cache.put(new Bam(1, "red"));
+        cache.put(new Bam(2, "red"));
+        cache.put(new Bam(3, "blue"));
+        cache.put(new Bam(4, "green"));
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        cache.addMultiIndex("letter", object -> {
+            Set<Character> letters = new HashSet<>();
+            for (char c : object.getName().toCharArray()) {
+                letters.add(c);
+            }
+            return letters;
+        }).get(1, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, cache.countIndexed(IndexQuery.eq("name", "red")));
+        Assert.assertEquals(3, cache.countIndexed(IndexQuery.in("name", "red", "blue")));
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(3L, 4L)),
+                cache.getIndexedIds(IndexQuery.eq("letter", 'e').and(IndexQuery.eq("letter", 'n').or(
+                        IndexQuery.eq("letter", 'b')))));
+        Set<Bam> matches = cache.getIndexed(IndexQuery.and(
+                IndexQuery.eq("letter", 'r'), IndexQuery.in("name", "red", "blue")));
+        Assert.assertEquals(2, matches.size());
+        for (Bam bam : matches) {
+            Assert.assertEquals("red", bam.getName());
+        }
+
+        // results follow updates
+        cache.put(new Bam(2, "blue"));
+        cache.remove(1L);
+        Assert.assertEquals(0, cache.countIndexed(IndexQuery.eq("name", "red")));
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList(2L, 3L)),
+                cache.getIndexedIds(IndexQuery.eq("letter", 'b')));
+
+        try {
+            cache.countIndexed(IndexQuery.eq("nope", "red"));
+            Assert.fail("unknown index");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testBitmapIndex() throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        for (long id = 0; id < 10000; id++) {
+            cache.put(new Bam(id, (id % 3 == 0) ? "fizz" : "other"));
+        }
+        cache.addIndex("fizz", Bam::getName, Indexer.Mode.BITMAP).get(1, TimeUnit.SECONDS);
+        cache.addIndex("odd", object -> object.getOneToOneFk() % 20 != 0, Indexer.Mode.BITMAP)
+                .get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(Indexer.Mode.BITMAP, cache.getIndexer("fizz").getMode());
+
+        Assert.assertEquals(3334, cache.getIndexed("fizz", "fizz").size());
+        Assert.assertEquals(3334, cache.countIndexed(IndexQuery.eq("fizz", "fizz")));
+        Assert.assertEquals(1667, cache.countIndexed(IndexQuery.and(
+                IndexQuery.eq("fizz", "fizz"), IndexQuery.eq("odd", true))));
+        Assert.assertEquals(1667, cache.countIndexed(IndexQuery.and(
+                IndexQuery.eq("name", "fizz"), IndexQuery.eq("odd", true)))); // mixes index types
+        Assert.assertEquals(10000, cache.countIndexed(IndexQuery.in("fizz", "fizz", "other")));
+        Set<Object> ids = cache.getIndexedIds(IndexQuery.and(
+                IndexQuery.eq("fizz", "fizz"), IndexQuery.eq("odd", false)));
+        Assert.assertEquals(1667, ids.size());
+        Assert.assertTrue(ids.contains(0L));
+        Assert.assertTrue(ids.contains(6L));
+        Assert.assertFalse(ids.contains(3L));
+
+        // remove and replace objects, so that ordinals are reused
+        for (long id = 0; id < 3000; id++) {
+            cache.remove(id);
+        }
+        for (long id = 10000; id < 13000; id++) {
+            cache.put(new Bam(id, "fizz"));
+        }
+        Assert.assertEquals(5334, cache.countIndexed(IndexQuery.eq("fizz", "fizz")));
+        for (Bam bam : cache.getIndexed(IndexQuery.eq("fizz", "fizz").and(IndexQuery.eq("odd", true)))) {
+            Assert.assertEquals("fizz", bam.getName());
+            Assert.assertTrue((Long) bam.getId() >= 3000);
+            Assert.assertTrue((Long) bam.getId() % 2 == 1);
+        }
+        Assert.assertEquals(10000, cache.countIndexed(IndexQuery.in("name", "fizz", "other")));
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testSortedIndex() throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        for (long id = 1; id <= 100; id++) {
+            cache.put(new Bam(id, (id % 2 == 0) ? "even" : "odd"));
+        }
+        cache.addIndex("fk", Bam::getOneToOneFk, Indexer.Mode.SORTED).get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+
+        Set<Bam> range = cache.getIndexedRange("fk", 100L, 200L);
+        Assert.assertEquals(11, range.size());
+        for (Bam bam : range) {
+            Assert.assertTrue(bam.getOneToOneFk() >= 100 && bam.getOneToOneFk() <= 200);
+        }
+        Assert.assertEquals(10, cache.countIndexedRange("fk", 100L, true, 200L, false));
+        Assert.assertEquals(Long.valueOf(150L), cache.getIndexedFloorKey("fk", 155L));
+        Assert.assertEquals(Long.valueOf(160L), cache.getIndexedCeilingKey("fk", 155L));
+        Assert.assertEquals(6, cache.countIndexed(IndexQuery.and(
+                IndexQuery.between("fk", 100L, 200L), IndexQuery.eq("name", "even"))));
+        Assert.assertEquals(cache.getIndexed("name", "odd"), cache.getIndexed(
+                IndexQuery.range("fk", null, false, 1000L, true).and(IndexQuery.eq("name", "odd"))));
+
+        cache.put(new Bam(15, "odd")); // unchanged key
+        cache.remove(16L);
+        Assert.assertEquals(10, cache.getIndexedRange("fk", 100L, 200L).size());
+        try {
+            cache.getIndexedRange("name", "a", "z");
+            Assert.fail("name index isn't sorted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testAggregate() throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        for (long id = 1; id <= 100; id++) {
+            cache.put(new Bam(id, (id % 2 == 0) ? "even" : "odd"));
+        }
+        cache.addAggregate("fk", Bam::getName, Bam::getOneToOneFk,
+                Aggregator.Function.MIN, Aggregator.Function.MAX).get(1, TimeUnit.SECONDS);
+
+        Aggregate even = cache.getAggregate("fk", "even");
+        Assert.assertEquals(50, even.getCount());
+        Assert.assertEquals(25500, even.getSum());
+        Assert.assertEquals(Long.valueOf(20), even.getMin());
+        Assert.assertEquals(Long.valueOf(1000), even.getMax());
+        Assert.assertEquals(50500, cache.getAggregateTotal("fk").getSum());
+
+        cache.remove(100L);
+        cache.put(new Bam(2, "odd"));
+        cache.put(new Bam(101, "odd"));
+        even = cache.getAggregate("fk", "even");
+        Assert.assertEquals(48, even.getCount());
+        Assert.assertEquals(Long.valueOf(40), even.getMin());
+        Assert.assertEquals(Long.valueOf(980), even.getMax());
+        Assert.assertEquals(Long.valueOf(1010), cache.getAggregate("fk", "odd").getMax());
+        Assert.assertEquals(2, cache.getAggregates("fk").size());
+        Assert.assertEquals(100, cache.getAggregateTotal("fk").getCount());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testBoundedWithReadThrough()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, null, null,
+                BoundedCacheStorage.<Bam>maximumSize(20, false), true, null);
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName())).get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        for (long id = 1; id <= 100; id++) {
+            cache.put(new Bam(id, String.format("bam%03d", id)));
+        }
+        Assert.assertTrue(cache.size() <= 20);
+        // evicted objects are removed from the sort and index as well
+        Assert.assertEquals(cache.size(), cache.values("name").size());
+        Assert.assertEquals(cache.size(), cache.getSorter("name").size());
+        Assert.assertNull(cache.get(1L));
+        Assert.assertTrue(cache.getIndexed("name", "bam001").isEmpty());
+
+        List<Object> loaded = new ArrayList<>();
+        cache.setLoader(ids -> {
+            loaded.addAll(Arrays.asList(ids));
+            long id = (Long) ids[0];
+            return new Bam[]{(id <= 100) ? new Bam(id, String.format("bam%03d", id)) : null};
+        });
+        Bam first = cache.get(1L);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(first, cache.get(1L)); // now cached
+        Assert.assertEquals(1, loaded.size());
+        Assert.assertTrue(cache.getSorter("name").contains(1L));
+        Assert.assertEquals(Collections.singleton(first), cache.getIndexed("name", "bam001"));
+        Assert.assertNull(cache.get(12345L));
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testBoundedRefreshAfterEvictions()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        List<DataRefreshEvent<Bam>> events = new ArrayList<>();
+        DataRefresher<Bam> refresher = new DataRefresher<Bam>(shutdownHooks) {
+            @Override
+            public RefreshResults refresh() {
+                publish(new ArrayList<>(events));
+                events.clear();
+                return NoopRefresher.NOTHING_REALLY;
+            }
+        };
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, refresher, null,
+                BoundedCacheStorage.<Bam>maximumSize(20, false), false, null);
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName())).get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        for (long id = 1; id <= 100; id++) {
+            events.add(new DataCreatedEvent<>(new Bam(id, String.format("bam%03d", id))));
+        }
+        refresher.refreshAndWait(Duration.seconds(5));
+        Set<Object> resident = new HashSet<>(cache.ids());
+        Assert.assertTrue(resident.size() <= 20);
+
+        // a full refresh doesn't bring evicted objects back, but does update resident ones
+        for (long id = 1; id <= 100; id++) {
+            events.add(new DataChangedEvent<>(new Bam(id, String.format("new%03d", id))));
+        }
+        refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(resident, new HashSet<>(cache.ids()));
+        Assert.assertEquals(resident, new HashSet<>(cache.getSorter("name").ids()));
+        for (Object id : resident) {
+            Bam bam = cache.get(id);
+            Assert.assertEquals(String.format("new%03d", (Long) id), bam.getName());
+            Assert.assertEquals(Collections.singleton(bam), cache.getIndexed("name", bam.getName()));
+        }
+        Assert.assertTrue(cache.getIndexed("name", "bam001").isEmpty());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test(timeout = 30000)
+    public void testBoundedConcurrentReadsAndWrites() throws Exception {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, null, null,
+                BoundedCacheStorage.<Bam>maximumSize(200, false), true, null);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t;
+            futures.add(executor.submit(() -> {
+                for (long id = offset; id < 20000; id += 4) {
+                    cache.put(new Bam(id, "bam" + (id % 50)));
+                }
+            }));
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    cache.getIndexed("name", "bam" + (i % 50));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(20, TimeUnit.SECONDS); // used to deadlock
+        }
+        executor.shutdownNow();
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testBulkLookup() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        cache.put(new Bam(1L, "bam1"));
+        cache.put(new Bam(2L, "bam2"));
+        cache.setObjectType(Bam.class);
+        Bam[] bams = cache.lookup(2L, 3L, 1L); // used to fail with a ClassCastException
+        Assert.assertEquals(3, bams.length);
+        Assert.assertEquals("bam2", bams[0].getName());
+        Assert.assertNull(bams[1]);
+
+        List<List<Object>> loaded = new ArrayList<>();
+        cache.setLoader(ids -> {
+            loaded.add(Arrays.asList(ids));
+            Bam[] objects = new Bam[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                long id = (Long) ids[i];
+                objects[i] = (id <= 10) ? new Bam(id, "bam" + id) : null;
+            }
+            return objects;
+        });
+        Map<Object, Bam> found = cache.lookupAll(Arrays.asList(5L, 1L, 11L, 4L));
+        Assert.assertEquals(Arrays.asList(5L, 1L, 4L), new ArrayList<>(found.keySet()));
+        Assert.assertEquals(Collections.singletonList(Arrays.asList(5L, 11L, 4L)), loaded); // one go
+        Assert.assertEquals(4, cache.size());
+        Assert.assertEquals(3, cache.lookup(Bam.class, 5L, 11L, 4L).length);
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testLookupMissWithObjectType() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        cache.setObjectType(Bam.class);
+        Bam[] bams = cache.lookup(2L); // used to be a PersistentObject[] when nothing was found
+        Assert.assertEquals(1, bams.length);
+        Assert.assertNull(bams[0]);
+        Assert.assertEquals(Bam.class, bams.getClass().getComponentType());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testLookupTypeFromLoader() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        cache.put(new Bam(1L, "bam1"));
+        try {
+            cache.lookup(1L); // would be a PersistentObject[], or an array of a subclass of the objects
+            Assert.fail("the type of the objects isn't known");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        cache.setLoader(new PersistentObjectLookup<Bam>() {
+
+            @Override
+            public Bam[] lookup(Object... ids) {
+                return new Bam[ids.length];
+            }
+
+            @Override
+            public Class<Bam> getObjectType() {
+                return Bam.class;
+            }
+        });
+        Bam[] bams = cache.lookup(2L, 1L);
+        Assert.assertEquals(Bam.class, bams.getClass().getComponentType());
+        Assert.assertNull(bams[0]);
+        Assert.assertEquals("bam1", bams[1].getName());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testGetWithIntIds() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<AbstractPersistentObject> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        AbstractPersistentObject five = new AbstractPersistentObject(5) {
+        };
+        cache.put(five);
+        Assert.assertSame(five, cache.get(5)); // used to be looked up as 5L
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testGetByLongId() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        Bam bam = new Bam(1L, "bam1");
+        cache.put(bam);
+        Assert.assertSame(bam, cache.getById(1L));
+        Assert.assertSame(bam, cache.get(1L));
+        Assert.assertNull(cache.getById(2L));
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedCacheView() {
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        Bam bam = new Bam(1L, "bam1");
+        cache.put(bam);
+        Assert.assertSame(bam, cache.cache.getIfPresent(1L));
+        Assert.assertEquals(1, cache.cache.size());
+        Assert.assertEquals(Arrays.asList(bam), new ArrayList<>(cache.cache.asMap().values()));
+        cache.cache.invalidate(1L);
+        Assert.assertNull(cache.get(1L));
+
+        PersistentObjectCache<Bam> bounded = new PersistentObjectCache<>(null, shutdownHooks, null, null,
+                BoundedCacheStorage.<Bam>maximumSize(20, false), false, null);
+        bounded.put(bam);
+        Assert.assertEquals(Arrays.asList(bam), new ArrayList<>(bounded.cache.asMap().values()));
+        shutdownHooks.runShutdownHooks();
+    }
 }
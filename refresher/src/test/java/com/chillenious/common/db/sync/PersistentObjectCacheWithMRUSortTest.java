@@ -10,7 +10,9 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
@@ -136,4 +138,73 @@ public class PersistentObjectCacheWithMRUSortTest {
 
         Assert.assertEquals(second, cache.valuesByMostRecentlyUsed().iterator().next());
     }
+
+    @Test
+    public void testTouchOfReplacedObject() {
+        PersistentObjectCacheWithMRUSort<Bam> cache =
+                builder.withRefresher(new NoopRefresher<Bam>())
+                        .withMruSort().build();
+
+        CurrentTime.freezeAt(1000);
+        Bam first = new Bam(1, "first");
+        cache.put(first);
+        cache.put(new Bam(2, "second"));
+        CurrentTime.freezeAt(2000);
+        cache.touch(first);
+        CurrentTime.freezeAt(3000);
+        cache.put(new Bam(1, "updated")); // replaces the instance that was touched
+
+        // draining the touch used to put the old instance back in the sort
+        Bam mostRecent = cache.valuesByMostRecentlyUsed().iterator().next();
+        Assert.assertEquals("updated", mostRecent.getName());
+        Assert.assertSame(cache.get(1L), mostRecent);
+    }
+
+    @Test
+    public void testConcurrentTouches() throws InterruptedException {
+
+        PersistentObjectCacheWithMRUSort<Bam> cache =
+                builder.withRefresher(new NoopRefresher<Bam>())
+                        .withMruSort().build();
+        List<Bam> objects = new ArrayList<>();
+        for (long id = 1; id <= 100; id++) {
+            Bam bam = new Bam(id, "bam" + id);
+            objects.add(bam);
+            cache.put(bam);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    cache.touch(objects.get(i % objects.size()));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(100, cache.valuesByMostRecentlyUsed().size());
+
+        // touches of objects that were removed don't bring them back
+        cache.remove(1L);
+        cache.touch(objects.get(0));
+        Bam last = objects.get(99);
+        cache.touch(last);
+        Assert.assertEquals(99, cache.valuesByMostRecentlyUsed().size());
+        Assert.assertEquals(last, cache.valuesByMostRecentlyUsed().iterator().next());
+    }
+
+    @Test
+    public void testLookupMissWithObjectTypeFromBuilder() {
+        PersistentObjectCacheWithMRUSort<Bam> cache =
+                builder.withRefresher(new NoopRefresher<Bam>())
+                        .withObjectType(Bam.class)
+                        .withMruSort().build();
+        Assert.assertEquals(Bam.class, cache.getObjectType());
+        Bam[] bams = cache.lookup(2L, 3L);
+        Assert.assertEquals(2, bams.length);
+        Assert.assertNull(bams[0]);
+    }
 }
@@ -0,0 +1,146 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.util.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RefreshScheduleTest {
+
+    private static final RefreshResults CHANGES = new RefreshResults(5, 1, 1, 0, 3, 10);
+
+    private static final RefreshResults NO_CHANGES = new RefreshResults(5, 0, 0, 0, 5, 10);
+
+    @Test
+    public void testFixed() {
+        RefreshSchedule schedule = RefreshSchedule.every(Duration.seconds(10)).withJitter(0);
+        Assert.assertFalse(schedule.isAdaptive());
+        Assert.assertEquals(10000, schedule.first());
+        Assert.assertEquals(10000, schedule.next(10000, CHANGES));
+        Assert.assertEquals(10000, schedule.next(10000, NO_CHANGES));
+        Assert.assertEquals(10000, schedule.next(10000, null));
+        Assert.assertEquals(10000, schedule.jittered(10000));
+    }
+
+    @Test
+    public void testAdaptive() {
+        RefreshSchedule schedule = RefreshSchedule.adaptive(Duration.seconds(1), Duration.seconds(6));
+        Assert.assertTrue(schedule.isAdaptive());
+        long delay = schedule.first();
+        Assert.assertEquals(1000, delay);
+        // backs off while quiet, up to the maximum
+        delay = schedule.next(delay, NO_CHANGES);
+        Assert.assertEquals(2000, delay);
+        delay = schedule.next(delay, new RefreshResults(0, 0, 0, 0, 10));
+        Assert.assertEquals(4000, delay);
+        delay = schedule.next(delay, null);
+        Assert.assertEquals(6000, delay);
+        delay = schedule.next(delay, NO_CHANGES);
+        Assert.assertEquals(6000, delay);
+        // speeds up when there are changes, down to the minimum
+        delay = schedule.next(delay, CHANGES);
+        Assert.assertEquals(3000, delay);
+        delay = schedule.next(delay, CHANGES);
+        Assert.assertEquals(1500, delay);
+        delay = schedule.next(delay, CHANGES);
+        Assert.assertEquals(1000, delay);
+        delay = schedule.next(delay, CHANGES);
+        Assert.assertEquals(1000, delay);
+    }
+
+    @Test
+    public void testAdaptiveWithFullTableRefresher() {
+        // reloads the whole table every time, and doesn't count the records that didn't change
+        RefreshResults fullTableNoChanges = new RefreshResults(100, 0, 0, 0, 10);
+        RefreshSchedule schedule = RefreshSchedule.adaptive(Duration.seconds(1), Duration.seconds(8));
+        long delay = schedule.next(schedule.first(), fullTableNoChanges);
+        Assert.assertEquals(2000, delay);
+        delay = schedule.next(delay, fullTableNoChanges);
+        Assert.assertEquals(4000, delay);
+        delay = schedule.next(delay, new RefreshResults(100, 0, 0, 1, 10));
+        Assert.assertEquals(2000, delay);
+    }
+
+    @Test
+    public void testJitter() {
+        RefreshSchedule schedule = RefreshSchedule.every(Duration.seconds(10)).withJitter(0.2);
+        for (int i = 0; i < 1000; i++) {
+            long delay = schedule.jittered(10000);
+            Assert.assertTrue(String.valueOf(delay), delay >= 8000 && delay <= 12000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaximumBelowMinimum() {
+        RefreshSchedule.adaptive(Duration.seconds(10), Duration.seconds(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        RefreshSchedule.every(Duration.seconds(1)).withJitter(1);
+    }
+
+    @Test
+    public void testDaemonRunsDontOverlap() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        try {
+            AtomicInteger running = new AtomicInteger(), overlaps = new AtomicInteger();
+            CountDownLatch runs = new CountDownLatch(5);
+            RefreshDaemon daemon = new RefreshDaemon("test", scheduler, () -> {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(20); // takes longer than the interval
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    runs.countDown();
+                }
+                return CHANGES;
+            });
+            daemon.setSchedule(RefreshSchedule.adaptive(
+                    Duration.milliseconds(1), Duration.milliseconds(50)), 0);
+            Assert.assertTrue(runs.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(0, overlaps.get());
+            Assert.assertEquals(1, daemon.getInterval());
+            daemon.setSchedule(null);
+            Assert.assertNull(daemon.getSchedule());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSlowRefreshesDontHoldUpTheScheduler() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        CountDownLatch refreshing = new CountDownLatch(1), release = new CountDownLatch(1);
+        try {
+            RefreshDaemon daemon = new RefreshDaemon("test", scheduler, () -> {
+                refreshing.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS); // e.g. waiting for a slow database
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return NO_CHANGES;
+            });
+            daemon.setSchedule(RefreshSchedule.every(Duration.seconds(1)), 0);
+            Assert.assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+            // the scheduler's only thread is free for other work while the refresh runs
+            Assert.assertEquals("done", scheduler.schedule(() -> "done", 0, TimeUnit.MILLISECONDS)
+                    .get(5, TimeUnit.SECONDS));
+            release.countDown();
+            daemon.shutdown();
+        } finally {
+            release.countDown();
+            scheduler.shutdownNow();
+        }
+    }
+}
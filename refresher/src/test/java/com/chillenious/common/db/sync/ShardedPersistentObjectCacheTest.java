@@ -0,0 +1,185 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.util.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ShardedPersistentObjectCacheTest {
+
+    @Test
+    public void testRefreshAcrossShards()
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        List<List<DataRefreshEvent<Bam>>> batches = new ArrayList<>();
+        DataRefresher<Bam> refresher = new DataRefresher<Bam>(shutdownHooks) {
+            @Override
+            public RefreshResults refresh() {
+                RefreshResults.Counter counter = RefreshResults.newCounter();
+                for (List<DataRefreshEvent<Bam>> batch : batches) {
+                    publish(batch);
+                    counter.inc(new DataBatchEvent<>(batch));
+                }
+                batches.clear();
+                return counter.asResults();
+            }
+        };
+        ShardedPersistentObjectCache<Bam> cache = new ShardedPersistentObjectCache<>(
+                null, shutdownHooks, refresher, null, 4, false, true);
+        cache.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName() + object.getId())).get(1, TimeUnit.SECONDS);
+        cache.addIndex("name", Bam::getName).get(1, TimeUnit.SECONDS);
+        cache.addAggregate("fk", Bam::getName, Bam::getOneToOneFk, Aggregator.Function.MAX)
+                .get(1, TimeUnit.SECONDS);
+
+        List<DataRefreshEvent<Bam>> batch = new ArrayList<>();
+        for (long id = 1; id <= 1000; id++) {
+            batch.add(new DataCreatedEvent<>(new Bam(id, (id % 3 == 0) ? "a" : "b")));
+        }
+        batches.add(batch);
+        batches.add(Arrays.asList(
+                new DataChangedEvent<>(new Bam(1, "a")),
+                new DataDeletedEvent<>(3L)));
+        cache.refresh();
+        cache.waitForShards(Duration.seconds(5));
+
+        Assert.assertEquals(999, cache.size());
+        Assert.assertEquals("a", cache.get(1L).getName());
+        Assert.assertNull(cache.get(3L));
+        int nonEmpty = 0;
+        for (PersistentObjectCache<Bam> shard : cache.getShards()) {
+            nonEmpty += (shard.size() > 0) ? 1 : 0;
+        }
+        Assert.assertEquals(4, nonEmpty);
+
+        // merged sort is in order
+        String previous = null;
+        int count = 0;
+        for (Bam bam : cache.values("name")) {
+            String key = bam.getName() + bam.getId();
+            Assert.assertTrue(previous == null || previous.compareTo(key) < 0);
+            previous = key;
+            count++;
+        }
+        Assert.assertEquals(999, count);
+
+        Assert.assertEquals(333, cache.getIndexed("name", "a").size());
+        Assert.assertEquals(333, cache.countIndexed(IndexQuery.eq("name", "a")));
+        Aggregate a = cache.getAggregate("fk", "a");
+        Assert.assertEquals(333, a.getCount());
+        Assert.assertEquals(Long.valueOf(9990), a.getMax());
+        Assert.assertEquals(999, cache.getAggregateTotal("fk").getCount());
+        Assert.assertEquals(2, cache.getAggregates("fk").size());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testMergedPagesMatchSingleCache()
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        PersistentObjectCache<Bam> single =
+                new PersistentObjectCache<>(null, shutdownHooks, false, true);
+        ShardedPersistentObjectCache<Bam> sharded = new ShardedPersistentObjectCache<>(
+                null, shutdownHooks, null, null, 3, false, true);
+        Random random = new Random(7);
+        for (long id = 1; id <= 500; id++) {
+            Bam bam = new Bam(id, Integer.toString(random.nextInt(100000)));
+            single.put(bam);
+            sharded.put(bam);
+        }
+        SortKeyFactory<Bam, String> factory = (object, isNew) ->
+                SortKey.forObject(object).create(object.getName() + "/" + object.getId());
+        single.addSort("name", factory).get(1, TimeUnit.SECONDS);
+        sharded.addSort("name", factory).get(1, TimeUnit.SECONDS);
+
+        Assert.assertEquals(new ArrayList<>(single.values("name")), new ArrayList<>(sharded.values("name")));
+        Assert.assertEquals(new ArrayList<>(single.values("name", "3", true, "6", false)),
+                new ArrayList<>(sharded.values("name", "3", true, "6", false)));
+        Object after = null;
+        for (int i = 0; i < 10; i++) {
+            List<Bam> expected = single.page("name", after, 50);
+            Assert.assertEquals(expected, sharded.page("name", after, 50));
+            after = expected.get(expected.size() - 1).getId();
+        }
+        Assert.assertTrue(sharded.page("name", after, 50).isEmpty());
+
+        sharded.remove(after);
+        Assert.assertTrue(sharded.page("name", after, 50).isEmpty());
+        Assert.assertEquals(499, sharded.values("name").size());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testPagesWithTiesAcrossShards()
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        ShardedPersistentObjectCache<Bam> sharded = new ShardedPersistentObjectCache<>(
+                null, shutdownHooks, null, null, 4, false, true);
+        // the n-th object of every shard has sort value n, so every sort value is in every shard
+        int[] counts = new int[4];
+        Map<Object, Integer> ranks = new HashMap<>();
+        List<Bam> expected = new ArrayList<>();
+        for (long id = 1; id <= 100; id++) {
+            Bam bam = new Bam(id, "bam" + id);
+            ranks.put(bam.getId(), counts[sharded.shardOf(bam.getId())]++);
+            sharded.put(bam);
+            expected.add(bam);
+        }
+        expected.sort(Comparator.comparing((Bam bam) -> ranks.get(bam.getId()))
+                .thenComparing(bam -> (Long) bam.getId()));
+        sharded.addSort("rank", (object, isNew) ->
+                SortKey.forObject(object).create(ranks.get(object.getId()))).get(1, TimeUnit.SECONDS);
+
+        Assert.assertEquals(expected, new ArrayList<>(sharded.values("rank")));
+        List<Bam> paged = new ArrayList<>();
+        Object after = null;
+        for (List<Bam> page = sharded.page("rank", null, 3); !page.isEmpty();
+             page = sharded.page("rank", after, 3)) {
+            paged.addAll(page);
+            after = page.get(page.size() - 1).getId();
+        }
+        Assert.assertEquals(expected, paged);
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testMergedViewKeepsTheOrderItWasReadWith()
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        ShutdownHooks shutdownHooks = new ShutdownHooks();
+        ShardedPersistentObjectCache<Bam> sharded = new ShardedPersistentObjectCache<>(
+                null, shutdownHooks, null, null, 3, false, true);
+        List<Bam> expected = new ArrayList<>();
+        for (long id = 1; id <= 30; id++) {
+            Bam bam = new Bam(id, String.format("bam%02d", id));
+            sharded.put(bam);
+            expected.add(bam);
+        }
+        sharded.addSort("name", (object, isNew) ->
+                SortKey.forObject(object).create(object.getName()), Sorter.Mode.SNAPSHOT).get(1, TimeUnit.SECONDS);
+        Collection<Bam> values = sharded.values("name");
+
+        // move the first object to the end, and publish that before the view is read
+        sharded.put(new Bam(1L, "zzz"));
+        sharded.getShards().get(sharded.shardOf(1L)).getSorter("name").publish();
+
+        Assert.assertEquals(expected, new ArrayList<>(values));
+        Assert.assertEquals(expected.size(), values.size());
+        shutdownHooks.runShutdownHooks();
+    }
+}
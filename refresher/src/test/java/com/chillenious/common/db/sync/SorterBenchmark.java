@@ -0,0 +1,94 @@
+package com.chillenious.common.db.sync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Sorter.Mode#LOCKING locking} and {@link Sorter.Mode#SNAPSHOT snapshot}
+ * sorters with request threads that page through the sorted values while a listener thread
+ * applies refresh batches. Run with {@code gradle :refresher:jmh} or through {@link #main(String[])}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SorterBenchmark {
+
+    @Param({"LOCKING", "SNAPSHOT"})
+    public String mode;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private Sorter<Bam> sorter;
+
+    private int written = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sorter = new Sorter<>((object, isNew) ->
+                SortKey.forObject(object).create(object.getName()), Sorter.Mode.valueOf(mode));
+        for (long i = 0; i < size; i++) {
+            sorter.put(new Bam(i, name(i)));
+        }
+        sorter.publish();
+    }
+
+    private static String name(long i) {
+        return String.format("%010d", ThreadLocalRandom.current().nextLong(Long.MAX_VALUE));
+    }
+
+    @Benchmark
+    @Group("refreshWhileReading")
+    @GroupThreads(3)
+    public int readPage() {
+        int sum = 0;
+        Iterator<Bam> i = sorter.values().iterator();
+        for (int n = 0; n < 50 && i.hasNext(); n++) {
+            sum += i.next().getName().length();
+        }
+        return sorter.contains(ThreadLocalRandom.current().nextLong(size)) ? sum + 1 : sum;
+    }
+
+    @Benchmark
+    @Group("refreshWhileReading")
+    @GroupThreads(1)
+    public Bam refresh() {
+        long id = ThreadLocalRandom.current().nextLong(size);
+        Bam previous = sorter.put(new Bam(id, name(id)));
+        if (++written % batchSize == 0) {
+            sorter.publish(); // what the listener does at the end of a refresh batch
+        }
+        return previous;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SorterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
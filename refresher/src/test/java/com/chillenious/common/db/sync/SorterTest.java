@@ -5,7 +5,10 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 public class SorterTest {
 
@@ -100,4 +103,134 @@ public class SorterTest {
 
         Assert.assertEquals(second, sorter.values().iterator().next());
     }
+
+    @Test
+    public void testSnapshotOnlyVisibleAfterPublish() {
+        SortKeyFactory<Bam, String> f = (object, isNew) ->
+                SortKey.forObject(object).create(object.getName());
+        Sorter<Bam> sorter = new Sorter<>(f, Sorter.Mode.SNAPSHOT);
+
+        Bam first = new Bam(1, "b");
+        Bam second = new Bam(2, "a");
+
+        sorter.put(first);
+        sorter.put(second);
+        Assert.assertTrue(sorter.values().isEmpty());
+        Assert.assertFalse(sorter.contains(1L));
+        Assert.assertEquals(0, sorter.getVersion());
+
+        sorter.publish();
+        Assert.assertEquals(1, sorter.getVersion());
+        Iterator<Bam> i = sorter.values().iterator();
+        Assert.assertEquals(second, i.next());
+        Assert.assertEquals(first, i.next());
+        Assert.assertFalse(i.hasNext());
+        Assert.assertTrue(sorter.contains(1L));
+        Assert.assertEquals(first, sorter.get(1L));
+
+        sorter.publish(); // nothing changed, so no new version
+        Assert.assertEquals(1, sorter.getVersion());
+    }
+
+    @Test
+    public void testSnapshotPublishedLazily() throws InterruptedException {
+        SortKeyFactory<Bam, String> f = (object, isNew) ->
+                SortKey.forObject(object).create(object.getName());
+        Sorter<Bam> sorter = new Sorter<>(f, Sorter.Mode.SNAPSHOT);
+
+        sorter.put(new Bam(1, "bam1"));
+        sorter.publishLazily(); // nothing was published lazily yet, so right away
+        Assert.assertEquals(1, sorter.getVersion());
+        for (long id = 2; id <= 10; id++) {
+            sorter.put(new Bam(id, "bam" + id));
+            sorter.publishLazily();
+        }
+        // the rest is published in one go by a worker, once the interval passed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sorter.ids().size() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(10, sorter.ids().size());
+        long version = sorter.getVersion();
+        Assert.assertTrue(String.valueOf(version), version <= 3);
+
+        sorter.publishLazily(); // nothing changed, so no new version
+        Assert.assertEquals(version, sorter.getVersion());
+    }
+
+    @Test
+    public void testSnapshotIsNotTornByWrites() {
+        SortKeyFactory<Bam, String> f = (object, isNew) ->
+                SortKey.forObject(object).create(object.getName());
+        Sorter<Bam> sorter = new Sorter<>(f, Sorter.Mode.SNAPSHOT);
+
+        sorter.put(new Bam(1, "a"));
+        sorter.put(new Bam(2, "b"));
+        sorter.publish();
+
+        Iterator<Bam> i = sorter.values().iterator();
+        sorter.remove(1L);
+        sorter.put(new Bam(3, "c"));
+        sorter.publish();
+
+        // the iterator keeps working on the snapshot it was created for
+        Assert.assertEquals("a", i.next().getName());
+        Assert.assertEquals("b", i.next().getName());
+        Assert.assertFalse(i.hasNext());
+
+        Assert.assertEquals(2, sorter.getVersion());
+        Assert.assertFalse(sorter.contains(1L));
+        Assert.assertEquals(2, sorter.ids().size());
+        Assert.assertEquals("b", sorter.values().iterator().next().getName());
+    }
+
+    @Test
+    public void testRangeAndPage() {
+        SortKeyFactory<Bam, Long> f = (object, isNew) ->
+                SortKey.forObject(object).create((Long) object.getId() * 10);
+        for (Sorter.Mode mode : Sorter.Mode.values()) {
+            Sorter<Bam> sorter = new Sorter<>(f, mode);
+            for (long id = 1; id <= 10; id++) {
+                sorter.put(new Bam(id, "bam" + id));
+            }
+            sorter.publish();
+
+            Assert.assertEquals(ids(3, 4, 5), ids(sorter.values(30L, true, 50L, true)));
+            Assert.assertEquals(ids(4), ids(sorter.values(30L, false, 50L, false)));
+            Assert.assertEquals(ids(4, 5), ids(sorter.values(35L, true, 55L, true)));
+            Assert.assertEquals(ids(1, 2), ids(sorter.headValues(30L, false)));
+            Assert.assertEquals(ids(9, 10), ids(sorter.tailValues(90L, true)));
+            Assert.assertEquals(ids(1, 2, 3), ids(sorter.values(null, false, 30L, true)));
+
+            Assert.assertEquals(ids(1, 2, 3), ids(sorter.page(null, 3)));
+            Assert.assertEquals(ids(4, 5, 6), ids(sorter.page(3L, 3)));
+            Assert.assertEquals(ids(10), ids(sorter.page(9L, 3)));
+            Assert.assertTrue(sorter.page(10L, 3).isEmpty());
+            Assert.assertTrue(sorter.page(42L, 3).isEmpty());
+            Assert.assertTrue(sorter.page(null, 0).isEmpty());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRangeBoundsOutOfOrder() {
+        Sorter<Bam> sorter = new Sorter<>((object, isNew) ->
+                SortKey.forObject(object).create(object.getName()));
+        sorter.values("b", true, "a", true);
+    }
+
+    private static List<Object> ids(long... ids) {
+        List<Object> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Object> ids(Collection<Bam> objects) {
+        List<Object> list = new ArrayList<>();
+        for (Bam object : objects) {
+            list.add(object.getId());
+        }
+        return list;
+    }
 }
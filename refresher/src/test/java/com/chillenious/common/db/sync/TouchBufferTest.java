@@ -0,0 +1,82 @@
+package com.chillenious.common.db.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TouchBufferTest {
+
+    @Test
+    public void testOfferAndDrain() {
+        TouchBuffer<String> buffer = new TouchBuffer<>(3);
+        Assert.assertEquals(4, buffer.capacity());
+        Assert.assertTrue(buffer.offer("a"));
+        Assert.assertTrue(buffer.offer("b"));
+        Assert.assertTrue(buffer.offer("c"));
+        Assert.assertTrue(buffer.offer("d"));
+        Assert.assertFalse(buffer.offer("e")); // full, so dropped
+        Assert.assertEquals(4, buffer.size());
+
+        List<String> drained = new ArrayList<>();
+        Assert.assertEquals(4, buffer.drain(drained::add));
+        Assert.assertEquals(4, drained.size());
+        Assert.assertEquals("a", drained.get(0));
+        Assert.assertEquals("d", drained.get(3));
+        Assert.assertEquals(0, buffer.size());
+
+        // wraps around
+        Assert.assertTrue(buffer.offer("f"));
+        drained.clear();
+        buffer.drain(drained::add);
+        Assert.assertEquals(1, drained.size());
+        Assert.assertEquals("f", drained.get(0));
+    }
+
+    @Test
+    public void testConcurrentOffers() throws InterruptedException {
+        TouchBuffer<Integer> buffer = new TouchBuffer<>(64);
+        AtomicInteger recorded = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t * 100000;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    if (buffer.offer(offset + i)) {
+                        recorded.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        Set<Integer> drained = new HashSet<>();
+        AtomicInteger count = new AtomicInteger();
+        threads.forEach(Thread::start);
+        boolean alive = true;
+        while (alive) {
+            buffer.drain(i -> {
+                drained.add(i);
+                count.incrementAndGet();
+            });
+            alive = false;
+            for (Thread thread : threads) {
+                alive |= thread.isAlive();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        while (buffer.size() > 0) {
+            buffer.drain(i -> {
+                drained.add(i);
+                count.incrementAndGet();
+            });
+        }
+        // every recorded touch is drained exactly once
+        Assert.assertEquals(recorded.get(), count.get());
+        Assert.assertEquals(recorded.get(), drained.size());
+    }
+}
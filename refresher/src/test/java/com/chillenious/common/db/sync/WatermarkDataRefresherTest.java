@@ -0,0 +1,500 @@
+package com.chillenious.common.db.sync;
+
+import com.chillenious.common.ShutdownHooks;
+import com.chillenious.common.util.Duration;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WatermarkDataRefresherTest {
+
+    private JdbcDataSource dataSource;
+
+    private Connection keepAlive; // in-memory database lives as long as a connection is open
+
+    private ShutdownHooks shutdownHooks;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:watermark");
+        keepAlive = dataSource.getConnection();
+        execute("create table bam (id bigint primary key, name varchar(32), " +
+                "version bigint not null, deleted boolean default false not null)");
+        shutdownHooks = new ShutdownHooks();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        shutdownHooks.runShutdownHooks();
+        execute("drop table bam");
+        keepAlive.close();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    static class BamRefresher extends WatermarkDataRefresher<Bam, Long> {
+
+        BamRefresher(ShutdownHooks shutdownHooks, JdbcDataSource dataSource) {
+            this(shutdownHooks, dataSource, 2);
+        }
+
+        BamRefresher(ShutdownHooks shutdownHooks, JdbcDataSource dataSource, int fetchSize) {
+            super(shutdownHooks, dataSource, fetchSize);
+        }
+
+        @Override
+        protected PreparedStatement prepareChangedSince(Connection connection, Long watermark)
+                throws SQLException {
+            if (watermark == null) {
+                return connection.prepareStatement("select * from bam order by version");
+            }
+            PreparedStatement statement = connection.prepareStatement(
+                    "select * from bam where version >= ? order by version");
+            statement.setLong(1, watermark);
+            return statement;
+        }
+
+        @Override
+        protected Bam map(ResultSet resultSet) throws SQLException {
+            return new Bam(resultSet.getLong("id"), resultSet.getString("name"));
+        }
+
+        @Override
+        protected Long watermarkOf(ResultSet resultSet) throws SQLException {
+            return resultSet.getLong("version");
+        }
+
+        @Override
+        protected boolean isDeleted(ResultSet resultSet) throws SQLException {
+            return resultSet.getBoolean("deleted");
+        }
+    }
+
+    @Test
+    public void testIncrementalRefresh() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2), (3, 'c', 3)");
+        BamRefresher refresher = new BamRefresher(shutdownHooks, dataSource);
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, refresher, null, false, false);
+
+        RefreshResults results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(3, results.getNumberCreated());
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(Long.valueOf(3), refresher.getWatermark());
+
+        execute("update bam set name = 'a2', version = 4 where id = 1");
+        execute("update bam set deleted = true, version = 5 where id = 2");
+        execute("insert into bam (id, name, version) values (4, 'd', 5)");
+        results = refresher.refreshAndWait(Duration.seconds(5));
+        // row 3 has the old watermark and is loaded again, as a change
+        Assert.assertEquals(1, results.getNumberCreated());
+        Assert.assertEquals(2, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberDeleted());
+        Assert.assertEquals(Long.valueOf(5), refresher.getWatermark());
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals("a2", cache.get(1L).getName());
+        Assert.assertNull(cache.get(2L));
+        Assert.assertEquals("d", cache.get(4L).getName());
+
+        results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(0, results.getNumberCreated());
+        Assert.assertEquals(0, results.getNumberDeleted());
+    }
+
+    static class VersionedBam extends Bam implements VersionedPersistentObject {
+
+        final long version;
+
+        VersionedBam(long id, String name, long version) {
+            super(id, name);
+            this.version = version;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    @Test
+    public void testSkipsUnchangedVersions() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2), (3, 'c', 3)");
+        BamRefresher refresher = new BamRefresher(shutdownHooks, dataSource) {
+            @Override
+            protected Bam map(ResultSet resultSet) throws SQLException {
+                return new VersionedBam(resultSet.getLong("id"), resultSet.getString("name"),
+                        resultSet.getLong("version"));
+            }
+        };
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, refresher, null, false, false);
+        refresher.refreshAndWait(Duration.seconds(5));
+        Bam third = cache.get(3L);
+
+        execute("update bam set name = 'a2', version = 4 where id = 1");
+        RefreshResults results = refresher.refreshAndWait(Duration.seconds(5));
+        // row 3 has the old watermark and is loaded again, but it didn't change
+        Assert.assertEquals(2, results.getNumberRecordsFound());
+        Assert.assertEquals(1, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberUnchanged());
+        Assert.assertEquals("a2", cache.get(1L).getName());
+        Assert.assertSame(third, cache.get(3L)); // not replaced
+
+        results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(0, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberUnchanged());
+    }
+
+    @Test
+    public void testRepublishesUnchangedVersionsForListenersAddedLater() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2), (3, 'c', 3)");
+        BamRefresher refresher = new BamRefresher(shutdownHooks, dataSource) {
+            @Override
+            protected Bam map(ResultSet resultSet) throws SQLException {
+                return new VersionedBam(resultSet.getLong("id"), resultSet.getString("name"),
+                        resultSet.getLong("version"));
+            }
+        };
+        refresher.refreshAndWait(Duration.seconds(5));
+
+        List<DataRefreshEvent<Bam>> received = new CopyOnWriteArrayList<>();
+        refresher.addListener(new DataRefreshListener<Bam>() {
+            @Override
+            protected void onEvent(DataRefreshEvent<Bam> evt) {
+                received.add(evt);
+            }
+        });
+        // row 3 is loaded again; it didn't change, but the new listener never saw it
+        RefreshResults results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(1, results.getNumberChanged());
+        Assert.assertEquals(0, results.getNumberUnchanged());
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(3L, received.get(0).getId());
+
+        results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(0, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberUnchanged());
+    }
+
+    @Test
+    public void testPublishReportsSuppressedEvents() {
+        List<DataRefreshEvent<Bam>> events = Arrays.asList(
+                new DataCreatedEvent<>(new VersionedBam(1, "a", 1)),
+                new DataChangedEvent<>(new VersionedBam(1, "a", 1)),
+                new DataChangedEvent<>(new VersionedBam(1, "a2", 2)));
+        RefreshResults.Counter counter = RefreshResults.newCounter();
+        DataRefresher<Bam> refresher = new DataRefresher<Bam>(shutdownHooks) {
+            @Override
+            public RefreshResults refresh() {
+                for (DataRefreshEvent<Bam> evt : events) {
+                    counter.inc(evt);
+                }
+                counter.incSuppressed(publish(events));
+                return counter.asResults();
+            }
+        };
+        RefreshResults results = refresher.refresh();
+        Assert.assertEquals(3, results.getNumberRecordsFound());
+        Assert.assertEquals(1, results.getNumberCreated());
+        Assert.assertEquals(1, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberUnchanged());
+    }
+
+    @Test
+    public void testFullReloadDetectsPhysicalDeletes() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2)");
+        BamRefresher refresher = new BamRefresher(shutdownHooks, dataSource);
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, refresher, null, false, false);
+        refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(2, cache.size());
+
+        execute("delete from bam where id = 1");
+        refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(2, cache.size()); // can't be seen through the watermark
+
+        refresher.resetWatermark();
+        RefreshResults results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(1, results.getNumberDeleted());
+        Assert.assertEquals(1, results.getNumberChanged());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertNull(cache.get(1L));
+    }
+
+    @Test
+    public void testWarmStartFromSnapshot() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2), (3, 'c', 3)");
+        Path file = folder.getRoot().toPath().resolve("bam.snapshot");
+
+        ShutdownHooks firstRunHooks = new ShutdownHooks();
+        BamRefresher refresher = new BamRefresher(firstRunHooks, dataSource);
+        new PersistentObjectCache<>(null, firstRunHooks, refresher, null,
+                new HeapCacheStorage<>(false), true, new CacheSnapshot<>(file, new BamCodec()));
+        refresher.waitForListeners(Duration.seconds(5));
+        firstRunHooks.runShutdownHooks();
+        Assert.assertTrue(Files.exists(file));
+
+        execute("update bam set name = 'a2', version = 4 where id = 1");
+        execute("update bam set deleted = true, version = 5 where id = 2");
+        execute("insert into bam (id, name, version) values (4, 'd', 5)");
+
+        refresher = new BamRefresher(shutdownHooks, dataSource);
+        PersistentObjectCache<Bam> cache = new PersistentObjectCache<>(null, shutdownHooks, refresher,
+                null, new HeapCacheStorage<>(false), true, new CacheSnapshot<>(file, new BamCodec()));
+        // only caught up with what changed since the snapshot
+        RefreshResults results = cache.getInitialLoadResults();
+        Assert.assertEquals(1, results.getNumberCreated());
+        Assert.assertEquals(2, results.getNumberChanged());
+        Assert.assertEquals(1, results.getNumberDeleted());
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals("a2", cache.get(1L).getName());
+        Assert.assertNull(cache.get(2L));
+        Assert.assertEquals("c", cache.get(3L).getName());
+        Assert.assertEquals("d", cache.get(4L).getName());
+    }
+
+    @Test
+    public void testSnapshotStreamsObjects() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("streamed.snapshot");
+        CacheSnapshot<Bam> snapshot = new CacheSnapshot<>(file, new BamCodec());
+        // any iterable will do, as the number of objects is only known after writing them
+        Iterable<Bam> objects = () -> Arrays.asList(new Bam(1, "a"), new Bam(2, "b"), new Bam(3, "c")).iterator();
+        Assert.assertEquals(3, snapshot.write(5L, objects));
+
+        List<Bam> read = new ArrayList<>();
+        CacheSnapshot.Contents contents = snapshot.read(read::add);
+        Assert.assertNotNull(contents);
+        Assert.assertEquals(5L, contents.checkpoint);
+        Assert.assertEquals(3, contents.size);
+        Assert.assertEquals(3, read.size());
+        Assert.assertEquals("c", read.get(2).getName());
+        Assert.assertNull(new CacheSnapshot<>(folder.getRoot().toPath().resolve("missing"), new BamCodec())
+                .read(read::add));
+        shutdownHooks.runShutdownHooks();
+    }
+
+    @Test
+    public void testCheckpointsDontChangeWithLaterRefreshes() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2), (3, 'c', 3)");
+        BamRefresher refresher = new BamRefresher(shutdownHooks, dataSource);
+        refresher.refresh();
+        String first = String.valueOf(refresher.getCheckpoint());
+        Assert.assertTrue(first, first.contains("publishedIds=3"));
+
+        execute("insert into bam (id, name, version) values (4, 'd', 4)");
+        execute("update bam set deleted = true, version = 5 where id in (1, 2)");
+        Serializable checkpoint = refresher.getCheckpoint();
+        refresher.refresh();
+        Assert.assertEquals(first, String.valueOf(checkpoint)); // the ids are copied before they change
+        String second = String.valueOf(refresher.getCheckpoint());
+        Assert.assertTrue(second, second.contains("publishedIds=2"));
+    }
+
+    @Test
+    public void testDroppedEventsAreResynced() throws Exception {
+        execute("insert into bam (id, name, version) values (1, 'a', 1), (2, 'b', 2)");
+        // every refresh is a single batch, so that only what is published while the listener
+        // is busy can overflow it's queue
+        BamRefresher refresher = new BamRefresher(shutdownHooks, dataSource, 100);
+        CountDownLatch busy = new CountDownLatch(1), gate = new CountDownLatch(1);
+        Map<Object, String> state = new ConcurrentHashMap<>();
+        refresher.addListener(new DataRefreshListener<Bam>() {
+            @Override
+            protected void onEvent(DataRefreshEvent<Bam> evt) {
+                busy.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (evt instanceof DataDeletedEvent) {
+                    state.remove(evt.getId());
+                } else {
+                    state.put(evt.getId(), DataRefreshEvent.objectOf(evt).getName());
+                }
+            }
+        }, ListenerQueueSettings.bounded(1, ListenerQueueSettings.OverflowPolicy.DROP_AND_MARK_STALE));
+
+        refresher.refresh();
+        Assert.assertTrue(busy.await(5, TimeUnit.SECONDS));
+        execute("insert into bam (id, name, version) values (3, 'c', 3)");
+        refresher.refresh(); // queued
+        execute("update bam set deleted = true, version = 4 where id = 1");
+        execute("insert into bam (id, name, version) values (4, 'd', 5)");
+        refresher.refresh(); // dropped: deletes 1 and creates 4
+        gate.countDown();
+        refresher.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals("{1=a, 2=b, 3=c}", new TreeMap<>(state).toString());
+
+        RefreshResults results = refresher.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(1, results.getNumberDeleted());
+        Assert.assertEquals("{2=b, 3=c, 4=d}", new TreeMap<>(state).toString());
+        Assert.assertEquals(Long.valueOf(5), refresher.getWatermark());
+    }
+
+    static class PartitionedBamRefresher extends BamRefresher {
+
+        final List<String> ranges = new CopyOnWriteArrayList<>();
+
+        PartitionedBamRefresher(ShutdownHooks shutdownHooks, JdbcDataSource dataSource) {
+            super(shutdownHooks, dataSource);
+        }
+
+        @Override
+        protected List<?> getPartitionBounds(Connection connection) {
+            return Arrays.asList(4L, 8L);
+        }
+
+        @Override
+        protected PreparedStatement prepareRange(Connection connection, Object from, Object to)
+                throws SQLException {
+            ranges.add(from + "-" + to);
+            PreparedStatement statement = connection.prepareStatement(
+                    "select * from bam where id >= ? and id < ?");
+            statement.setLong(1, (from != null) ? (Long) from : Long.MIN_VALUE);
+            statement.setLong(2, (to != null) ? (Long) to : Long.MAX_VALUE);
+            return statement;
+        }
+
+        @Override
+        protected Long getHighestWatermark(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select max(version) from bam")) {
+                return resultSet.next() ? resultSet.getLong(1) : null;
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedLoad() throws Exception {
+        for (int id = 1; id <= 10; id++) {
+            execute(String.format("insert into bam (id, name, version) values (%d, 'bam%d', %d)", id, id, 11 - id));
+        }
+        execute("update bam set deleted = true where id = 5");
+
+        BamRefresher single = new BamRefresher(shutdownHooks, dataSource);
+        PersistentObjectCache<Bam> singleCache =
+                new PersistentObjectCache<>(null, shutdownHooks, single, null, false, true);
+        PartitionedBamRefresher partitioned = new PartitionedBamRefresher(shutdownHooks, dataSource);
+        PersistentObjectCache<Bam> partitionedCache =
+                new PersistentObjectCache<>(null, shutdownHooks, partitioned, null, false, true);
+        single.waitForListeners(Duration.seconds(5));
+        partitioned.waitForListeners(Duration.seconds(5));
+
+        Assert.assertEquals(3, partitioned.ranges.size());
+        Assert.assertTrue(partitioned.ranges.containsAll(Arrays.asList("null-4", "4-8", "8-null")));
+        Assert.assertEquals(9, singleCache.getInitialLoadResults().getNumberCreated());
+        Assert.assertEquals(9, partitionedCache.getInitialLoadResults().getNumberCreated());
+        Assert.assertEquals(names(singleCache), names(partitionedCache));
+        // the highest watermark from before the partitions started
+        Assert.assertEquals(Long.valueOf(10), partitioned.getWatermark());
+
+        // later refreshes know what was loaded by the partitions
+        execute("update bam set name = 'bam2b', version = 11 where id = 2");
+        execute("update bam set deleted = true, version = 12 where id = 9");
+        RefreshResults results = partitioned.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(0, results.getNumberCreated());
+        Assert.assertEquals(1, results.getNumberDeleted());
+        Assert.assertEquals(8, partitionedCache.size());
+        Assert.assertEquals("bam2b", partitionedCache.get(2L).getName());
+        Assert.assertNull(partitionedCache.get(9L));
+        Assert.assertEquals(Long.valueOf(12), partitioned.getWatermark());
+        Assert.assertEquals(3, partitioned.ranges.size()); // only the initial load is partitioned
+    }
+
+    @Test
+    public void testFailedPartitionedLoad() throws Exception {
+        for (int id = 1; id <= 10; id++) {
+            execute(String.format("insert into bam (id, name, version) values (%d, 'bam%d', %d)", id, id, id));
+        }
+        AtomicBoolean failing = new AtomicBoolean(true);
+        PartitionedBamRefresher partitioned = new PartitionedBamRefresher(shutdownHooks, dataSource) {
+
+            @Override
+            protected PreparedStatement prepareRange(Connection connection, Object from, Object to)
+                    throws SQLException {
+                if (from != null && to == null) {
+                    try {
+                        Thread.sleep(200); // still running when another partition fails
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.prepareRange(connection, from, to);
+            }
+
+            @Override
+            protected Bam map(ResultSet resultSet) throws SQLException {
+                Bam bam = super.map(resultSet);
+                if (failing.get() && bam.getId().equals(7L)) {
+                    throw new IllegalArgumentException("can't map 7");
+                }
+                return bam;
+            }
+        };
+        PersistentObjectCache<Bam> cache =
+                new PersistentObjectCache<>(null, shutdownHooks, partitioned, null, false, false);
+        try {
+            partitioned.load();
+            Assert.fail("load should have failed");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("can't map 7"));
+        }
+        // the partition that was still running finished before the load gave up, and what the
+        // failed partition loaded before the failure is published as well
+        partitioned.waitForListeners(Duration.seconds(5));
+        Assert.assertEquals(9, cache.size());
+        Assert.assertNull(cache.get(7L));
+        Assert.assertNull(partitioned.getWatermark());
+
+        // so the next refresh is a full load, that only creates what is missing
+        failing.set(false);
+        RefreshResults results = partitioned.refreshAndWait(Duration.seconds(5));
+        Assert.assertEquals(1, results.getNumberCreated());
+        Assert.assertEquals(10, cache.size());
+        Assert.assertEquals(Long.valueOf(10), partitioned.getWatermark());
+        shutdownHooks.runShutdownHooks();
+    }
+
+    private static Set<String> names(PersistentObjectCache<Bam> cache) {
+        Set<String> names = new TreeSet<>();
+        for (Bam bam : cache.values()) {
+            names.add(bam.getId() + "=" + bam.getName());
+        }
+        return names;
+    }
+}